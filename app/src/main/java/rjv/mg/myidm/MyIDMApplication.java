@@ -10,9 +10,11 @@ import android.util.Log;
 import androidx.work.Configuration;
 import androidx.work.WorkManager;
 
+import javax.inject.Inject;
+
 import dagger.hilt.android.HiltAndroidApp;
 import rjv.mg.myidm.data.database.DownloadDatabase;
-import rjv.mg.myidm.domain.downloader.TorrentDownloader;
+import rjv.mg.myidm.domain.downloader.TorrentSession;
 
 @HiltAndroidApp
 public class MyIDMApplication extends Application implements Configuration.Provider {
@@ -24,6 +26,9 @@ public class MyIDMApplication extends Application implements Configuration.Provi
     public static final String BROWSER_CHANNEL_ID = "browser_channel";
     public static final String TORRENT_CHANNEL_ID = "torrent_channel";
     
+    @Inject
+    TorrentSession torrentSession;
+    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -107,7 +112,7 @@ public class MyIDMApplication extends Application implements Configuration.Provi
         
         Log.d(TAG, "MyIDM Application terminating...");
         
-        // TorrentDownloader.shutdownSession(); // Neutralisé car gestion torrent désactivée
+        torrentSession.shutdown();
     }
     
     @Override
@@ -4,6 +4,8 @@ import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import android.content.Context;
 
 import rjv.mg.myidm.data.database.dao.DownloadDao;
@@ -21,7 +23,7 @@ import rjv.mg.myidm.data.database.converter.DownloadStatusConverter;
         DownloadSegmentEntity.class,
         BrowserHistoryEntity.class
     },
-    version = 1,
+    version = 8,
     exportSchema = false
 )
 @TypeConverters({DateConverter.class, DownloadStatusConverter.class})
@@ -30,6 +32,67 @@ public abstract class DownloadDatabase extends RoomDatabase {
     private static final String DATABASE_NAME = "myidm_database";
     private static volatile DownloadDatabase INSTANCE;
     
+    // Resume validators
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN etag TEXT");
+            db.execSQL("ALTER TABLE downloads ADD COLUMN last_modified TEXT");
+        }
+    };
+    
+    // Per-download bandwidth cap
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN bandwidth_limit INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+    
+    // Caps for live stream recordings
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN record_max_duration INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE downloads ADD COLUMN record_max_bytes INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+    
+    // Torrent upload cap, sequential mode and piece progress
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN upload_limit INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE downloads ADD COLUMN sequential_download INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE downloads ADD COLUMN torrent_pieces BLOB");
+        }
+    };
+    
+    // Probe results: final URL after redirects and range support
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN resolved_url TEXT");
+            db.execSQL("ALTER TABLE downloads ADD COLUMN accept_ranges INTEGER");
+        }
+    };
+    
+    // Equivalent source URLs for multi-source downloads
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN mirror_urls TEXT");
+        }
+    };
+    
+    // Recorded length of a live stream, so its caps survive a restart
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE downloads ADD COLUMN recorded_duration INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+    
     public abstract DownloadDao downloadDao();
     public abstract DownloadSegmentDao downloadSegmentDao();
     public abstract BrowserHistoryDao browserHistoryDao();
@@ -43,6 +106,8 @@ public abstract class DownloadDatabase extends RoomDatabase {
                         DownloadDatabase.class,
                         DATABASE_NAME
                     )
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7,
+                        MIGRATION_7_8)
                     .fallbackToDestructiveMigration()
                     .build();
                 }
@@ -125,4 +125,10 @@ public interface DownloadDao {
     
     @Query("UPDATE downloads SET downloaded_size = :downloadedSize, download_speed = :speed WHERE id = :downloadId")
     void updateProgress(long downloadId, long downloadedSize, long speed);
+    
+    @Query("UPDATE downloads SET torrent_pieces = :pieces WHERE id = :downloadId")
+    void updateTorrentPieces(long downloadId, byte[] pieces);
+    
+    @Query("UPDATE downloads SET recorded_duration = :durationMs WHERE id = :downloadId")
+    void updateRecordedDuration(long downloadId, long durationMs);
 } 
\ No newline at end of file
@@ -107,6 +107,42 @@ public class DownloadEntity {
     @ColumnInfo(name = "metadata")
     private String metadata; // JSON string for additional data
     
+    @ColumnInfo(name = "etag")
+    private String etag; // Validator used to resume against the same remote file
+    
+    @ColumnInfo(name = "last_modified")
+    private String lastModified;
+    
+    @ColumnInfo(name = "resolved_url")
+    private String resolvedUrl; // URL after redirects, segments request it directly
+    
+    @ColumnInfo(name = "accept_ranges")
+    private Boolean acceptRanges; // null until probed; false keeps the download on one connection
+    
+    @ColumnInfo(name = "mirror_urls")
+    private String mirrorUrls; // Other URLs serving the same file, one per line
+    
+    @ColumnInfo(name = "bandwidth_limit")
+    private long bandwidthLimit; // bytes per second, 0 = no per-download cap
+    
+    @ColumnInfo(name = "record_max_duration")
+    private long recordMaxDuration; // seconds of live stream to record, 0 = until the stream ends
+    
+    @ColumnInfo(name = "record_max_bytes")
+    private long recordMaxBytes; // 0 = no size cap on a live recording
+    
+    @ColumnInfo(name = "recorded_duration")
+    private long recordedDuration; // milliseconds of live stream recorded so far
+    
+    @ColumnInfo(name = "upload_limit")
+    private long uploadLimit; // bytes per second a torrent may seed at, 0 = no cap
+    
+    @ColumnInfo(name = "sequential_download")
+    private boolean sequentialDownload; // torrent pieces in file order, so media plays while downloading
+    
+    @ColumnInfo(name = "torrent_pieces")
+    private byte[] torrentPieces; // bitfield of verified torrent pieces, most significant bit first
+    
     // Constructors
     public DownloadEntity() {}
     
@@ -212,6 +248,42 @@ public class DownloadEntity {
     public String getMetadata() { return metadata; }
     public void setMetadata(String metadata) { this.metadata = metadata; }
     
+    public String getEtag() { return etag; }
+    public void setEtag(String etag) { this.etag = etag; }
+    
+    public String getLastModified() { return lastModified; }
+    public void setLastModified(String lastModified) { this.lastModified = lastModified; }
+    
+    public String getResolvedUrl() { return resolvedUrl; }
+    public void setResolvedUrl(String resolvedUrl) { this.resolvedUrl = resolvedUrl; }
+    
+    public Boolean getAcceptRanges() { return acceptRanges; }
+    public void setAcceptRanges(Boolean acceptRanges) { this.acceptRanges = acceptRanges; }
+    
+    public String getMirrorUrls() { return mirrorUrls; }
+    public void setMirrorUrls(String mirrorUrls) { this.mirrorUrls = mirrorUrls; }
+    
+    public long getBandwidthLimit() { return bandwidthLimit; }
+    public void setBandwidthLimit(long bandwidthLimit) { this.bandwidthLimit = bandwidthLimit; }
+    
+    public long getRecordMaxDuration() { return recordMaxDuration; }
+    public void setRecordMaxDuration(long recordMaxDuration) { this.recordMaxDuration = recordMaxDuration; }
+    
+    public long getRecordMaxBytes() { return recordMaxBytes; }
+    public void setRecordMaxBytes(long recordMaxBytes) { this.recordMaxBytes = recordMaxBytes; }
+    
+    public long getRecordedDuration() { return recordedDuration; }
+    public void setRecordedDuration(long recordedDuration) { this.recordedDuration = recordedDuration; }
+    
+    public long getUploadLimit() { return uploadLimit; }
+    public void setUploadLimit(long uploadLimit) { this.uploadLimit = uploadLimit; }
+    
+    public boolean isSequentialDownload() { return sequentialDownload; }
+    public void setSequentialDownload(boolean sequentialDownload) { this.sequentialDownload = sequentialDownload; }
+    
+    public byte[] getTorrentPieces() { return torrentPieces; }
+    public void setTorrentPieces(byte[] torrentPieces) { this.torrentPieces = torrentPieces; }
+    
     // Helper methods
     public int getProgress() {
         if (fileSize <= 0) return 0;
@@ -0,0 +1,33 @@
+package rjv.mg.myidm.data.preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import rjv.mg.myidm.domain.downloader.HostConnectionStore;
+
+/**
+ * {@link HostConnectionStore} backed by SharedPreferences, one int per host.
+ */
+public class HostConnectionPreferences implements HostConnectionStore {
+    
+    private static final String PREFS_NAME = "host_connections";
+    
+    private final SharedPreferences preferences;
+    
+    public HostConnectionPreferences(Context context) {
+        this.preferences = context.getApplicationContext()
+            .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    @Override
+    public int getOptimalConnections(String host) {
+        if (host == null || host.isEmpty()) return 0;
+        return preferences.getInt(host, 0);
+    }
+    
+    @Override
+    public void saveOptimalConnections(String host, int connections) {
+        if (host == null || host.isEmpty() || connections <= 0) return;
+        preferences.edit().putInt(host, connections).apply();
+    }
+}
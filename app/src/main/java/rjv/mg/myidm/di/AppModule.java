@@ -13,8 +13,17 @@ import rjv.mg.myidm.data.database.DownloadDatabase;
 import rjv.mg.myidm.data.database.dao.BrowserHistoryDao;
 import rjv.mg.myidm.data.database.dao.DownloadDao;
 import rjv.mg.myidm.data.database.dao.DownloadSegmentDao;
+import rjv.mg.myidm.data.preferences.HostConnectionPreferences;
 import rjv.mg.myidm.domain.browser.VideoDetector;
+import okhttp3.OkHttpClient;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadHttpClient;
 import rjv.mg.myidm.domain.downloader.DownloadManager;
+import rjv.mg.myidm.domain.downloader.HostConnectionStore;
+import rjv.mg.myidm.domain.downloader.ProgressAggregator;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.downloader.TorrentSession;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
 
 @Module
 @InstallIn(SingletonComponent.class)
@@ -50,13 +59,65 @@ public class AppModule {
         return new VideoDetector();
     }
     
+    @Provides
+    @Singleton
+    public SegmentScheduler provideSegmentScheduler() {
+        BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, true,
+            SegmentScheduler.DEFAULT_MAX_CONNECTIONS);
+        return new SegmentScheduler(SegmentScheduler.DEFAULT_MAX_CONNECTIONS,
+            SegmentScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST, bufferPool);
+    }
+    
+    @Provides
+    @Singleton
+    public DownloadMetrics provideDownloadMetrics() {
+        // Shared with the downloaders built outside injection, one registry sees everything
+        return DownloadMetrics.getDefault();
+    }
+    
+    @Provides
+    @Singleton
+    public OkHttpClient provideOkHttpClient(DownloadMetrics metrics) {
+        return DownloadHttpClient.create(SegmentScheduler.DEFAULT_MAX_CONNECTIONS,
+            SegmentScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST, metrics);
+    }
+    
+    @Provides
+    @Singleton
+    public HostConnectionStore provideHostConnectionStore(@ApplicationContext Context context) {
+        return new HostConnectionPreferences(context);
+    }
+    
+    @Provides
+    @Singleton
+    public ProgressAggregator provideProgressAggregator(
+            DownloadDatabase database,
+            DownloadDao downloadDao,
+            DownloadSegmentDao segmentDao,
+            DownloadMetrics metrics) {
+        return new ProgressAggregator(database, downloadDao, segmentDao, metrics);
+    }
+    
+    @Provides
+    @Singleton
+    public TorrentSession provideTorrentSession(@ApplicationContext Context context) {
+        return new TorrentSession(context);
+    }
+    
     @Provides
     @Singleton
     public DownloadManager provideDownloadManager(
             @ApplicationContext Context context,
             DownloadDao downloadDao,
             DownloadSegmentDao segmentDao,
-            VideoDetector videoDetector) {
-        return new DownloadManager(context, downloadDao, segmentDao, videoDetector);
+            VideoDetector videoDetector,
+            SegmentScheduler segmentScheduler,
+            OkHttpClient httpClient,
+            HostConnectionStore hostConnectionStore,
+            ProgressAggregator progressAggregator,
+            TorrentSession torrentSession,
+            DownloadMetrics metrics) {
+        return new DownloadManager(context, downloadDao, segmentDao, videoDetector, segmentScheduler, httpClient,
+            hostConnectionStore, progressAggregator, torrentSession, metrics);
     }
 } 
\ No newline at end of file
@@ -488,7 +488,7 @@ public class VideoDetector {
             return DownloadType.FTP;
         } else if (url.startsWith("sftp://")) {
             return DownloadType.SFTP;
-        } else if (url.endsWith(".torrent")) {
+        } else if (url.endsWith(".torrent") || url.startsWith("magnet:")) {
             return DownloadType.TORRENT;
         }
         
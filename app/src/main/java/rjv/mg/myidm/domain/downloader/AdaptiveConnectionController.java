@@ -0,0 +1,75 @@
+package rjv.mg.myidm.domain.downloader;
+
+/**
+ * Decides how many connections a download should keep open from measured throughput.
+ * Starts low and grows the count while the aggregate speed keeps improving, then
+ * settles on the best count seen; new connection errors make it back off by one.
+ */
+public class AdaptiveConnectionController {
+    
+    public static final int INITIAL_CONNECTIONS = 2;
+    public static final long EVALUATION_INTERVAL_MS = 3000;
+    // Smallest relative gain that justifies keeping the added connections
+    private static final double MIN_GAIN = 0.10;
+    
+    private final int maxConnections;
+    private int limit;
+    private int bestLimit;
+    private long bestSpeed;
+    private int lastErrorCount;
+    private boolean settled;
+    
+    /**
+     * @param initialConnections count to start with, e.g. the optimum learned for this host
+     * @param maxConnections upper bound for this download
+     */
+    public AdaptiveConnectionController(int initialConnections, int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.limit = Math.max(1, Math.min(initialConnections, this.maxConnections));
+        this.bestLimit = limit;
+    }
+    
+    public synchronized int getLimit() {
+        return limit;
+    }
+    
+    /**
+     * Connection count that gave the best throughput so far.
+     */
+    public synchronized int getBestLimit() {
+        return bestLimit;
+    }
+    
+    /**
+     * Feeds one measurement and returns the new connection limit.
+     *
+     * @param totalSpeed aggregate speed of all running segments, bytes per second
+     * @param errorCount connection errors seen since the download started
+     */
+    public synchronized int evaluate(long totalSpeed, int errorCount) {
+        if (errorCount > lastErrorCount) {
+            // The server or the link is pushing back: drop a connection and stop probing
+            lastErrorCount = errorCount;
+            limit = Math.max(1, limit - 1);
+            bestLimit = Math.min(bestLimit, limit);
+            settled = true;
+            return limit;
+        }
+        
+        if (totalSpeed > bestSpeed * (1 + MIN_GAIN)) {
+            bestSpeed = totalSpeed;
+            bestLimit = limit;
+            if (!settled && limit < maxConnections) {
+                // Ramp up quickly while every step still pays off
+                limit = Math.min(maxConnections, limit + Math.max(1, limit / 2));
+            }
+        } else if (limit > bestLimit) {
+            // Throughput plateaued: the extra connections did not help
+            limit = bestLimit;
+            settled = true;
+        } else {
+            bestSpeed = Math.max(bestSpeed, totalSpeed);
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,109 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket rate limiter shared by segment read loops.
+ * The bucket is tracked as a single "theoretical arrival time" updated with CAS, so
+ * acquiring takes no lock and allocates nothing. A limit of 0 disables throttling.
+ */
+public class BandwidthLimiter {
+    
+    public static final long UNLIMITED = 0;
+    
+    // How far ahead of the rate a reader may get, i.e. the bucket size in time
+    private static final long BURST_NANOS = 250_000_000L;
+    // Longest single sleep, so a raised or removed limit takes effect quickly
+    private static final long MAX_PARK_NANOS = 100_000_000L;
+    private static final long SCHEDULE_CHECK_INTERVAL_MS = 60_000L;
+    
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+    
+    private volatile BandwidthSchedule schedule;
+    private volatile long baseBytesPerSecond;
+    private volatile long nextScheduleCheck;
+    
+    public BandwidthLimiter() {
+        this(UNLIMITED);
+    }
+    
+    public BandwidthLimiter(long bytesPerSecond) {
+        setLimit(bytesPerSecond);
+    }
+    
+    /**
+     * Sets the limit used outside scheduled windows.
+     */
+    public void setLimit(long bytesPerSecond) {
+        baseBytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        applyLimit(System.currentTimeMillis());
+    }
+    
+    /**
+     * Limit currently in force, schedule included.
+     */
+    public long getLimit() {
+        return bytesPerSecond;
+    }
+    
+    public void setSchedule(BandwidthSchedule schedule) {
+        this.schedule = schedule;
+        applyLimit(System.currentTimeMillis());
+    }
+    
+    public BandwidthSchedule getSchedule() {
+        return schedule;
+    }
+    
+    /**
+     * Takes {@code bytes} tokens, sleeping the calling thread until the bucket allows them.
+     */
+    public void acquire(int bytes) {
+        if (schedule != null) {
+            long nowMillis = System.currentTimeMillis();
+            if (nowMillis >= nextScheduleCheck) {
+                applyLimit(nowMillis);
+            }
+        }
+        
+        long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0) return;
+        
+        long cost = bytes * 1_000_000_000L / rate;
+        long now = System.nanoTime();
+        long arrival;
+        while (true) {
+            long previous = theoreticalArrival.get();
+            arrival = Math.max(previous, now) + cost;
+            if (theoreticalArrival.compareAndSet(previous, arrival)) break;
+        }
+        
+        // Tokens are already reserved; wait until the bucket has refilled them
+        long wait = arrival - BURST_NANOS - now;
+        while (wait > 0 && bytesPerSecond == rate) {
+            LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+            wait = arrival - BURST_NANOS - System.nanoTime();
+        }
+    }
+    
+    private void applyLimit(long nowMillis) {
+        BandwidthSchedule current = schedule;
+        long limit = baseBytesPerSecond;
+        if (current != null) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(nowMillis);
+            int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+            limit = current.getLimit(minuteOfDay, limit);
+        }
+        nextScheduleCheck = nowMillis + SCHEDULE_CHECK_INTERVAL_MS;
+        
+        if (limit != bytesPerSecond) {
+            bytesPerSecond = limit;
+            // Drop any debt built up under the previous rate
+            theoreticalArrival.set(System.nanoTime());
+        }
+    }
+}
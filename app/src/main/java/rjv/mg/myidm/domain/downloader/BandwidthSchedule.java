@@ -0,0 +1,62 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time-of-day bandwidth limits, e.g. "cap at 200 KB/s from 08:00 to 18:00".
+ * Windows may wrap around midnight; the first matching window wins.
+ */
+public class BandwidthSchedule {
+    
+    public static class Window {
+        final int startMinute;
+        final int endMinute;
+        final long bytesPerSecond;
+        
+        /**
+         * @param startMinute minute of day the window opens (0-1439)
+         * @param endMinute minute of day the window closes, exclusive
+         * @param bytesPerSecond limit inside the window, 0 = unlimited
+         */
+        public Window(int startMinute, int endMinute, long bytesPerSecond) {
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        boolean contains(int minuteOfDay) {
+            if (startMinute <= endMinute) {
+                return minuteOfDay >= startMinute && minuteOfDay < endMinute;
+            }
+            return minuteOfDay >= startMinute || minuteOfDay < endMinute;
+        }
+        
+        public int getStartMinute() { return startMinute; }
+        public int getEndMinute() { return endMinute; }
+        public long getBytesPerSecond() { return bytesPerSecond; }
+    }
+    
+    private final List<Window> windows;
+    
+    public BandwidthSchedule(List<Window> windows) {
+        this.windows = Collections.unmodifiableList(new ArrayList<>(windows));
+    }
+    
+    public List<Window> getWindows() {
+        return windows;
+    }
+    
+    /**
+     * Returns the limit for {@code minuteOfDay}, or {@code defaultLimit} outside every window.
+     */
+    public long getLimit(int minuteOfDay, long defaultLimit) {
+        for (Window window : windows) {
+            if (window.contains(minuteOfDay)) {
+                return window.bytesPerSecond;
+            }
+        }
+        return defaultLimit;
+    }
+}
@@ -0,0 +1,62 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of equally sized I/O buffers shared by segment readers.
+ * A segment attempt takes one buffer for its whole read loop and gives it back at the end,
+ * so steady-state downloading allocates no buffers. Direct buffers skip the extra copy
+ * FileChannel makes for heap buffers.
+ */
+public class BufferPool {
+    
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, false, SegmentScheduler.DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * @param bufferSize size of each buffer, clamped to 64 KB - 1 MB
+     * @param direct allocate direct buffers instead of heap buffers
+     * @param maxPooled buffers kept for reuse; extra ones are left to the GC
+     */
+    public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+        this.bufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(bufferSize, MAX_BUFFER_SIZE));
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+    
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+    public boolean isDirect() {
+        return direct;
+    }
+    
+    /**
+     * Returns a cleared buffer, reusing a pooled one when available.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+    
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
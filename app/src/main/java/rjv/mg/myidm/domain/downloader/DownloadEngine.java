@@ -0,0 +1,75 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.io.IOException;
+
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+
+/**
+ * One running download, whatever its protocol. {@link DownloadManager} drives every engine
+ * through the same lifecycle: {@link #prepare()} on a setup thread, then {@link #start()},
+ * {@link #pause()}/{@link #resume()} and {@link #cancel()}. Progress is read through
+ * {@link ProgressSource} and the segments it returns are the rows persisted for resume.
+ */
+public interface DownloadEngine extends ProgressSource {
+    
+    interface DownloadProgressCallback {
+        void onProgress(long downloadedBytes, long totalBytes, int progress, long speed);
+        void onSegmentProgress(int segmentIndex, long downloadedBytes, long totalBytes, int progress);
+    }
+    
+    interface DownloadCompletionCallback {
+        void onCompleted(String filePath, String checksum);
+    }
+    
+    interface DownloadErrorCallback {
+        void onError(String error, int segmentIndex);
+        void onSegmentFailed(int segmentIndex, String error);
+    }
+    
+    interface SegmentSplitCallback {
+        /**
+         * Called when an idle worker took over the tail of {@code donor}; the donor's
+         * end byte has already been moved and {@code child} covers the rest.
+         */
+        void onSegmentSplit(DownloadSegmentEntity donor, DownloadSegmentEntity child);
+    }
+    
+    /**
+     * Resolves what is downloaded: probes the remote file, loads a manifest or fetches torrent
+     * metadata, and fills in the download's size and segments. May block on the network.
+     */
+    void prepare() throws IOException;
+    
+    void start();
+    
+    /**
+     * Stops transferring and keeps what is on disk, so {@link #resume()} or a later run continues.
+     */
+    void pause();
+    
+    void resume();
+    
+    /**
+     * Stops for good and deletes the partial data.
+     */
+    void cancel();
+    
+    /**
+     * Changes the per-download cap while running, 0 removes it.
+     */
+    void setBandwidthLimit(long bytesPerSecond);
+    
+    boolean isPaused();
+    
+    void setProgressCallback(DownloadProgressCallback callback);
+    
+    void setCompletionCallback(DownloadCompletionCallback callback);
+    
+    void setErrorCallback(DownloadErrorCallback callback);
+    
+    /**
+     * Only engines that split segments while running call it.
+     */
+    default void setSegmentSplitCallback(SegmentSplitCallback callback) {
+    }
+}
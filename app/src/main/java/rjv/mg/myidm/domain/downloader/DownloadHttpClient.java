@@ -0,0 +1,59 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
+
+/**
+ * Builds the OkHttp client shared by every download.
+ * Keeps connections alive between segment requests so a new range reuses the
+ * TCP/TLS session, and multiplexes over HTTP/2 when the server offers it.
+ * Connect, TLS and first-byte times of every call go to a {@link DownloadMetrics}.
+ */
+public final class DownloadHttpClient {
+    
+    public static final long CONNECT_TIMEOUT_MS = 30000;
+    public static final long READ_TIMEOUT_MS = 60000;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    
+    private static OkHttpClient defaultClient;
+    
+    private DownloadHttpClient() {
+    }
+    
+    /**
+     * @param maxConnections idle connections kept in the pool
+     * @param maxConnectionsPerHost cap for asynchronous calls; segment calls are
+     *                              capped per host by {@link SegmentScheduler}
+     * @param metrics registry timing the calls
+     */
+    public static OkHttpClient create(int maxConnections, int maxConnectionsPerHost, DownloadMetrics metrics) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, maxConnections));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, maxConnectionsPerHost));
+        
+        return new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(Math.max(1, maxConnections), KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .dispatcher(dispatcher)
+            .eventListenerFactory(metrics.eventListenerFactory())
+            .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .followRedirects(true)
+            .followSslRedirects(true)
+            .build();
+    }
+    
+    /**
+     * Client for callers that are not wired through dependency injection.
+     */
+    public static synchronized OkHttpClient getDefault() {
+        if (defaultClient == null) {
+            defaultClient = create(SegmentScheduler.DEFAULT_MAX_CONNECTIONS,
+                SegmentScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST, DownloadMetrics.getDefault());
+        }
+        return defaultClient;
+    }
+}
@@ -5,25 +5,38 @@ import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import dagger.hilt.android.qualifiers.ApplicationContext;
+import okhttp3.OkHttpClient;
 import rjv.mg.myidm.data.database.dao.DownloadDao;
 import rjv.mg.myidm.data.database.dao.DownloadSegmentDao;
 import rjv.mg.myidm.data.database.entity.DownloadEntity;
 import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
 import rjv.mg.myidm.domain.browser.VideoDetector;
+import rjv.mg.myidm.domain.downloader.dash.DashDownloader;
+import rjv.mg.myidm.domain.downloader.ftp.FtpTransport;
+import rjv.mg.myidm.domain.downloader.ftp.SftpTransport;
+import rjv.mg.myidm.domain.downloader.ftp.SshKnownHosts;
+import rjv.mg.myidm.domain.downloader.ftp.UnknownHostKeyException;
+import rjv.mg.myidm.domain.downloader.hls.HlsDownloader;
+import rjv.mg.myidm.domain.downloader.hls.HlsLiveRecorder;
+import rjv.mg.myidm.domain.downloader.hls.LivePlaylistException;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
 import rjv.mg.myidm.domain.model.DownloadStatus;
 import rjv.mg.myidm.domain.model.DownloadType;
 import rjv.mg.myidm.domain.model.SegmentStatus;
@@ -37,40 +50,81 @@ public class DownloadManager {
     private static final int MAX_CONCURRENT_DOWNLOADS = 30; // Premium: 30, Free: 5
     private static final int MAX_CONCURRENT_SEGMENTS = 32;
     private static final int QUEUE_CAPACITY = 100;
+    // Only prepares downloads; segment connections run on the shared SegmentScheduler
+    private static final int SETUP_THREAD_COUNT = 2;
+    private static final String KNOWN_HOSTS_FILE = "ssh/known_hosts";
+    
+    /**
+     * Told when an SFTP server offers a host key that is not pinned yet; the user compares
+     * the fingerprint and accepts it with {@link #trustHostKey}.
+     */
+    public interface HostKeyListener {
+        /**
+         * @param downloadId the download that failed on it, 0 when none was created yet
+         */
+        void onUnknownHostKey(long downloadId, UnknownHostKeyException hostKey);
+    }
     
     private final Context context;
     private final DownloadDao downloadDao;
     private final DownloadSegmentDao segmentDao;
     private final VideoDetector videoDetector;
+    private final SegmentScheduler segmentScheduler;
+    private final OkHttpClient httpClient;
+    private final HostConnectionStore hostConnectionStore;
+    private final ProgressAggregator progressAggregator;
+    private final TorrentSession torrentSession;
+    private final DownloadMetrics metrics;
+    private final SshKnownHosts knownHosts;
+    private volatile HostKeyListener hostKeyListener;
     
     // Download management
-    private final Map<Long, MultiThreadDownloader> activeDownloaders;
-    // private final Map<Long, TorrentDownloader> activeTorrents; // Désactivé car gestion torrent désactivée
+    private final Map<Long, DownloadEngine> activeEngines;
     private final PriorityBlockingQueue<DownloadEntity> downloadQueue;
     private final ExecutorService downloadExecutor;
     private final ExecutorService queueExecutor;
     
+    // Admission: one permit per running download, released exactly once through releaseSlot()
+    private final Semaphore downloadSlots;
+    private final Set<Long> admittedDownloads;
+    // When each queued download entered the queue, for the queue wait metric
+    private final Map<Long, Long> queuedAt;
+    
     // State
     private boolean isInitialized = false;
-    private int currentConcurrentDownloads = 0;
     
     @Inject
     public DownloadManager(@ApplicationContext Context context, 
                           DownloadDao downloadDao, 
                           DownloadSegmentDao segmentDao,
-                          VideoDetector videoDetector) {
+                          VideoDetector videoDetector,
+                          SegmentScheduler segmentScheduler,
+                          OkHttpClient httpClient,
+                          HostConnectionStore hostConnectionStore,
+                          ProgressAggregator progressAggregator,
+                          TorrentSession torrentSession,
+                          DownloadMetrics metrics) {
         this.context = context;
         this.downloadDao = downloadDao;
         this.segmentDao = segmentDao;
         this.videoDetector = videoDetector;
+        this.segmentScheduler = segmentScheduler;
+        this.httpClient = httpClient;
+        this.hostConnectionStore = hostConnectionStore;
+        this.progressAggregator = progressAggregator;
+        this.torrentSession = torrentSession;
+        this.metrics = metrics;
+        this.knownHosts = new SshKnownHosts(new File(context.getFilesDir(), KNOWN_HOSTS_FILE));
         
-        this.activeDownloaders = new ConcurrentHashMap<>();
-        // this.activeTorrents = new ConcurrentHashMap<>(); // Désactivé car gestion torrent désactivée
+        this.activeEngines = new ConcurrentHashMap<>();
         this.downloadQueue = new PriorityBlockingQueue<>(QUEUE_CAPACITY, 
             (d1, d2) -> Integer.compare(d2.getPriority(), d1.getPriority()));
         
-        this.downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+        this.downloadExecutor = Executors.newFixedThreadPool(SETUP_THREAD_COUNT);
         this.queueExecutor = Executors.newSingleThreadExecutor();
+        this.downloadSlots = new Semaphore(MAX_CONCURRENT_DOWNLOADS);
+        this.admittedDownloads = ConcurrentHashMap.newKeySet();
+        this.queuedAt = new ConcurrentHashMap<>();
     }
     
     public void initialize() {
@@ -83,6 +137,7 @@ public class DownloadManager {
         
         // Start queue processor
         startQueueProcessor();
+        progressAggregator.start();
         
         isInitialized = true;
         Log.d(TAG, "DownloadManager initialized successfully");
@@ -97,12 +152,10 @@ public class DownloadManager {
             for (DownloadEntity download : activeDownloads) {
                 if (download.getStatus() == DownloadStatus.DOWNLOADING || 
                     download.getStatus() == DownloadStatus.RESUMING) {
-                    // Resume download
+                    // Resume download, the downloader picks up the persisted segments
                     startDownload(download);
-                } else if (download.getStatus() == DownloadStatus.PAUSED) {
-                    // Add to queue for later resumption
-                    downloadQueue.offer(download);
                 }
+                // Paused downloads stay paused until resumeDownload() is called
             }
             
             Log.d(TAG, "Restored " + activeDownloads.size() + " active downloads");
@@ -115,13 +168,22 @@ public class DownloadManager {
         queueExecutor.execute(() -> {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // Wait for available slot
-                    while (currentConcurrentDownloads >= MAX_CONCURRENT_DOWNLOADS) {
-                        Thread.sleep(1000);
+                    // Block until a running download releases its slot
+                    downloadSlots.acquire();
+                    
+                    DownloadEntity download;
+                    try {
+                        download = downloadQueue.take();
+                    } catch (InterruptedException e) {
+                        downloadSlots.release();
+                        throw e;
                     }
                     
-                    // Take next download from queue
-                    DownloadEntity download = downloadQueue.take();
+                    // The same download may have been queued twice, e.g. by a double resume
+                    if (!admittedDownloads.add(download.getId())) {
+                        downloadSlots.release();
+                        continue;
+                    }
                     
                     // Start download
                     startDownloadInternal(download);
@@ -142,13 +204,21 @@ public class DownloadManager {
             DownloadType type = VideoDetector.detectDownloadType(url);
             
             // Get file info
-            FileInfo fileInfo = getFileInfo(url);
+            FileInfo fileInfo = type == DownloadType.FTP || type == DownloadType.SFTP
+                ? getRemoteFileInfo(url, type)
+                : getFileInfo(url);
             
             // Create download entity
             DownloadEntity download = new DownloadEntity(url, fileInfo.filename, type);
             download.setFileSize(fileInfo.fileSize);
             download.setContentType(fileInfo.contentType);
-            download.setMaxConcurrentSegments(calculateOptimalSegments(fileInfo.fileSize));
+            download.setEtag(fileInfo.etag);
+            download.setLastModified(fileInfo.lastModified);
+            download.setResolvedUrl(fileInfo.resolvedUrl);
+            download.setAcceptRanges(fileInfo.acceptRanges);
+            // A server without ranges can only be read over one connection
+            download.setMaxConcurrentSegments(Boolean.FALSE.equals(fileInfo.acceptRanges)
+                ? 1 : calculateOptimalSegments(fileInfo.fileSize));
             
             // Set download path
             String downloadPath = getDownloadPath(fileInfo.filename, type);
@@ -156,6 +226,10 @@ public class DownloadManager {
             
             return download;
             
+        } catch (UnknownHostKeyException e) {
+            Log.w(TAG, e.getMessage());
+            notifyUnknownHostKey(0, e);
+            return null;
         } catch (Exception e) {
             Log.e(TAG, "Error creating download from URL: " + url, e);
             return null;
@@ -163,57 +237,22 @@ public class DownloadManager {
     }
     
     private FileInfo getFileInfo(String url) throws Exception {
-        HttpURLConnection connection = null;
-        try {
-            URL urlObj = new URL(url);
-            connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setRequestMethod("HEAD");
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                throw new Exception("HTTP error: " + responseCode);
-            }
-            
-            String filename = getFilenameFromUrl(url, connection);
-            long fileSize = connection.getContentLengthLong();
-            String contentType = connection.getContentType();
-            
-            return new FileInfo(filename, fileSize, contentType);
-            
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+        // One ranged request answers size, validators, redirects and range support together
+        HttpProbe.Result probe = new HttpProbe(httpClient).probe(url, null, null, null);
+        return new FileInfo(probe.getFilename(), probe.getSize(), probe.getContentType(),
+            probe.getEtag(), probe.getLastModified(), probe.getFinalUrl(), probe.isAcceptRanges());
     }
     
-    private String getFilenameFromUrl(String url, HttpURLConnection connection) {
-        // Try to get filename from Content-Disposition header
-        String contentDisposition = connection.getHeaderField("Content-Disposition");
-        if (contentDisposition != null && contentDisposition.contains("filename=")) {
-            int start = contentDisposition.indexOf("filename=") + 9;
-            int end = contentDisposition.indexOf(";", start);
-            if (end == -1) end = contentDisposition.length();
-            String filename = contentDisposition.substring(start, end).replace("\"", "");
-            if (!filename.isEmpty()) {
-                return filename;
+    private FileInfo getRemoteFileInfo(String url, DownloadType type) throws Exception {
+        try (RangeTransport transport = createTransport(url, type)) {
+            RangeTransport.RemoteFile remoteFile = transport.stat();
+            String path = URI.create(url).getPath();
+            String filename = path.substring(path.lastIndexOf('/') + 1);
+            if (filename.isEmpty()) {
+                filename = "download_" + System.currentTimeMillis();
             }
+            return new FileInfo(filename, remoteFile.getSize(), null, null, remoteFile.getLastModified(), null, null);
         }
-        
-        // Extract from URL
-        String filename = url.substring(url.lastIndexOf('/') + 1);
-        if (filename.contains("?")) {
-            filename = filename.substring(0, filename.indexOf('?'));
-        }
-        
-        // Generate default filename if needed
-        if (filename.isEmpty() || filename.equals("/")) {
-            filename = "download_" + System.currentTimeMillis();
-        }
-        
-        return filename;
     }
     
     private int calculateOptimalSegments(long fileSize) {
@@ -268,6 +307,7 @@ public class DownloadManager {
             downloadDao.update(download);
             
             // Add to queue
+            queuedAt.put(download.getId(), System.nanoTime());
             downloadQueue.offer(download);
             
             Log.d(TAG, "Download queued: " + download.getUrl());
@@ -279,114 +319,194 @@ public class DownloadManager {
         }
     }
     
+    /**
+     * Gives back the slot taken by the queue processor; safe to call more than once.
+     */
+    private void releaseSlot(long downloadId) {
+        if (admittedDownloads.remove(downloadId)) {
+            downloadSlots.release();
+        }
+    }
+    
     private void startDownloadInternal(DownloadEntity download) {
+        Long queued = queuedAt.remove(download.getId());
+        if (queued != null) {
+            metrics.record(DownloadMetrics.Distribution.DOWNLOAD_QUEUE_WAIT, download.getId(), null,
+                (System.nanoTime() - queued) / 1_000_000);
+        }
         try {
-            currentConcurrentDownloads++;
+            DownloadEngine pausedEngine = activeEngines.get(download.getId());
+            if (pausedEngine != null) {
+                // Paused in this run: the live engine continues where it stopped
+                download.setStatus(DownloadStatus.DOWNLOADING);
+                downloadDao.update(download);
+                pausedEngine.resume();
+                return;
+            }
             
             // Update status
             download.setStatus(DownloadStatus.DOWNLOADING);
             download.setStartedAt(new java.util.Date());
             downloadDao.update(download);
             
-            switch (download.getType()) {
-                case TORRENT:
-                    startTorrentDownload(download);
-                    break;
-                case M3U8:
-                case DASH:
-                    startStreamingDownload(download);
-                    break;
-                default:
-                    startHttpDownload(download);
-                    break;
-            }
+            startEngine(download);
             
         } catch (Exception e) {
             Log.e(TAG, "Error starting download internal", e);
             download.setStatus(DownloadStatus.FAILED);
             downloadDao.update(download);
-            currentConcurrentDownloads--;
+            releaseSlot(download.getId());
         }
     }
     
-    private void startHttpDownload(DownloadEntity download) {
+    /**
+     * Builds the engine for the download's protocol and runs it. Preparing may block on the
+     * network (probing, manifests, magnet metadata), so it runs on a setup thread; the
+     * transfer itself runs on the engine's own threads.
+     */
+    private void startEngine(DownloadEntity download) {
         downloadExecutor.execute(() -> {
+            // Cancelled while waiting for a setup thread
+            if (!admittedDownloads.contains(download.getId())) return;
+            
             try {
-                MultiThreadDownloader downloader = new MultiThreadDownloader(context, download);
-                activeDownloaders.put(download.getId(), downloader);
+                DownloadEngine engine = createEngine(download);
+                try {
+                    engine.prepare();
+                } catch (LivePlaylistException e) {
+                    // A live HLS stream is recorded from its live edge until it ends or is stopped
+                    engine = new HlsLiveRecorder(download, e.getMediaPlaylistUrl(), segmentScheduler, httpClient);
+                    Log.d(TAG, "Recording live stream: " + download.getFilename());
+                }
+                
+                // Cancelled while preparing
+                if (!admittedDownloads.contains(download.getId())) {
+                    engine.cancel();
+                    return;
+                }
                 
-                // Setup callbacks
-                setupDownloaderCallbacks(downloader, download);
+                // Rows always follow the engine, the manifest or remote file may have changed since the last run
+                persistSegments(download, engine.getSegments());
+                activeEngines.put(download.getId(), engine);
                 
-                // Start download
-                downloader.start();
+                setupEngineCallbacks(engine, download);
+                engine.start();
                 
             } catch (Exception e) {
-                Log.e(TAG, "Error in HTTP download", e);
+                Log.e(TAG, "Error in " + download.getType() + " download", e);
                 handleDownloadError(download, e.getMessage());
+                if (e instanceof UnknownHostKeyException) {
+                    notifyUnknownHostKey(download.getId(), (UnknownHostKeyException) e);
+                }
             }
         });
     }
     
-    private void startTorrentDownload(DownloadEntity download) {
-        downloadExecutor.execute(() -> {
-            try {
-                // Fonctionnalité torrent désactivée temporairement
-                Log.w(TAG, "Torrent downloading is currently disabled (libtorrent non intégré)");
-                download.setStatus(DownloadStatus.FAILED);
-                downloadDao.update(download);
-                currentConcurrentDownloads--;
-            } catch (Exception e) {
-                Log.e(TAG, "Error in torrent download", e);
-                handleDownloadError(download, e.getMessage());
+    private DownloadEngine createEngine(DownloadEntity download) throws IOException {
+        // Completed segments of an earlier run are kept, only the missing bytes are fetched
+        List<DownloadSegmentEntity> savedSegments = segmentDao.getByDownloadId(download.getId());
+        
+        switch (download.getType()) {
+            case TORRENT:
+                return new TorrentDownloader(download, torrentSession, httpClient);
+            case M3U8:
+                return new HlsDownloader(download, savedSegments, segmentScheduler, httpClient);
+            case DASH:
+                return new DashDownloader(download, savedSegments, segmentScheduler, httpClient);
+            case FTP:
+            case SFTP: {
+                // Same segment engine as HTTP, each range read over its own connection
+                MultiThreadDownloader downloader = new MultiThreadDownloader(context, download, savedSegments, segmentScheduler, httpClient);
+                downloader.setTransport(createTransport(download.getUrl(), download.getType()));
+                downloader.setHostConnectionStore(hostConnectionStore);
+                downloader.setMetrics(metrics);
+                return downloader;
             }
-        });
+            default: {
+                MultiThreadDownloader downloader = new MultiThreadDownloader(context, download, savedSegments, segmentScheduler, httpClient);
+                downloader.setHostConnectionStore(hostConnectionStore);
+                downloader.setMetrics(metrics);
+                return downloader;
+            }
+        }
     }
     
-    private void startStreamingDownload(DownloadEntity download) {
-        // For streaming downloads, we'll use a specialized downloader
-        // This will be implemented to handle M3U8/DASH conversion
-        downloadExecutor.execute(() -> {
-            try {
-                // TODO: Implement streaming downloader
-                Log.d(TAG, "Streaming download not yet implemented");
-                download.setStatus(DownloadStatus.FAILED);
-                downloadDao.update(download);
-                currentConcurrentDownloads--;
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error in streaming download", e);
-                handleDownloadError(download, e.getMessage());
-            }
-        });
+    /**
+     * Ends a live recording now and completes the download with what was recorded.
+     */
+    public void stopRecording(long downloadId) {
+        DownloadEngine engine = activeEngines.get(downloadId);
+        if (engine instanceof HlsLiveRecorder) {
+            ((HlsLiveRecorder) engine).stop();
+        }
+    }
+    
+    private RangeTransport createTransport(String url, DownloadType type) throws IOException {
+        if (type == DownloadType.SFTP) {
+            return new SftpTransport(url, knownHosts);
+        }
+        return new FtpTransport(url);
+    }
+    
+    private void notifyUnknownHostKey(long downloadId, UnknownHostKeyException hostKey) {
+        HostKeyListener listener = hostKeyListener;
+        if (listener != null) {
+            listener.onUnknownHostKey(downloadId, hostKey);
+        }
+    }
+    
+    public void setHostKeyListener(HostKeyListener listener) {
+        this.hostKeyListener = listener;
+    }
+    
+    /**
+     * Pins a host key the user accepted and restarts the download that failed on it.
+     */
+    public void trustHostKey(long downloadId, UnknownHostKeyException hostKey) throws IOException {
+        knownHosts.trust(hostKey);
+        Log.i(TAG, "Pinned host key of " + hostKey.getHost() + ": " + hostKey.getFingerprint());
+        if (downloadId > 0) {
+            resumeDownload(downloadId);
+        }
     }
     
-    private void setupDownloaderCallbacks(MultiThreadDownloader downloader, DownloadEntity download) {
-        downloader.setProgressCallback(new MultiThreadDownloader.DownloadProgressCallback() {
+    /**
+     * Host keys accepted for SFTP downloads, for the user to review and remove.
+     */
+    public SshKnownHosts getKnownHosts() {
+        return knownHosts;
+    }
+    
+    private void setupEngineCallbacks(DownloadEngine engine, DownloadEntity download) {
+        // Progress is only marked here and written in batches by the aggregator
+        progressAggregator.register(download.getId(), engine);
+        engine.setProgressCallback(new DownloadEngine.DownloadProgressCallback() {
             @Override
             public void onProgress(long downloadedBytes, long totalBytes, int progress, long speed) {
-                updateDownloadProgress(download.getId(), downloadedBytes, totalBytes, progress, speed);
+                progressAggregator.markDirty(download.getId());
             }
             
             @Override
             public void onSegmentProgress(int segmentIndex, long downloadedBytes, long totalBytes, int progress) {
-                updateSegmentProgress(download.getId(), segmentIndex, downloadedBytes, totalBytes, progress);
+                // Torrent pieces only report here, the aggregator writes them as a bitfield
+                progressAggregator.markDirty(download.getId());
             }
         });
         
-        downloader.setCompletionCallback(new MultiThreadDownloader.DownloadCompletionCallback() {
-            @Override
-            public void onCompleted(String filePath, String checksum) {
-                handleDownloadCompleted(download.getId(), filePath, checksum);
-            }
-            
-            @Override
-            public void onMerged(String filePath) {
-                Log.d(TAG, "Download merged: " + filePath);
+        engine.setCompletionCallback((filePath, checksum) -> {
+            // Joined streams and recordings only know their size now
+            download.setDownloadedSize(engine.getDownloadedBytes());
+            try {
+                downloadDao.update(download);
+            } catch (Exception e) {
+                Log.e(TAG, "Error saving final size", e);
             }
+            handleDownloadCompleted(download.getId(), filePath, checksum);
         });
         
-        downloader.setErrorCallback(new MultiThreadDownloader.DownloadErrorCallback() {
+        engine.setSegmentSplitCallback((donor, child) -> persistSegmentSplit(donor, child));
+        
+        engine.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
             @Override
             public void onError(String error, int segmentIndex) {
                 handleDownloadError(download, error);
@@ -399,33 +519,32 @@ public class DownloadManager {
         });
     }
     
-    // Suppression/neutralisation de setupTorrentCallbacks car TorrentDownloader est désactivé
-    // private void setupTorrentCallbacks(TorrentDownloader torrentDownloader, DownloadEntity download) {
-    //     // Désactivé
-    // }
-    
-    private void updateDownloadProgress(long downloadId, long downloadedBytes, long totalBytes, int progress, long speed) {
+    private void persistSegments(DownloadEntity download, List<DownloadSegmentEntity> segments) {
         try {
-            downloadDao.updateProgress(downloadId, downloadedBytes, speed);
+            segmentDao.deleteByDownloadId(download.getId());
+            List<Long> ids = segmentDao.insertAll(segments);
+            for (int i = 0; i < segments.size(); i++) {
+                segments.get(i).setId(ids.get(i));
+            }
+            downloadDao.update(download);
         } catch (Exception e) {
-            Log.e(TAG, "Error updating download progress", e);
+            Log.e(TAG, "Error persisting segments", e);
         }
     }
     
-    private void updateSegmentProgress(long downloadId, int segmentIndex, long downloadedBytes, long totalBytes, int progress) {
+    private void persistSegmentSplit(DownloadSegmentEntity donor, DownloadSegmentEntity child) {
         try {
-            DownloadSegmentEntity segment = segmentDao.getByDownloadIdAndIndex(downloadId, segmentIndex);
-            if (segment != null) {
-                segment.setDownloadedBytes(downloadedBytes);
-                segment.setLastActivity(System.currentTimeMillis());
-                segmentDao.update(segment);
-            }
+            segmentDao.update(donor);
+            child.setId(segmentDao.insert(child));
         } catch (Exception e) {
-            Log.e(TAG, "Error updating segment progress", e);
+            Log.e(TAG, "Error persisting segment split", e);
         }
     }
     
     private void handleDownloadCompleted(long downloadId, String filePath, String checksum) {
+        // Free the slot first so the next queued download starts right away
+        releaseSlot(downloadId);
+        progressAggregator.unregister(downloadId);
         try {
             DownloadEntity download = downloadDao.getById(downloadId);
             if (download != null) {
@@ -435,8 +554,7 @@ public class DownloadManager {
                 downloadDao.update(download);
                 
                 // Clean up
-                activeDownloaders.remove(downloadId);
-                currentConcurrentDownloads--;
+                activeEngines.remove(downloadId);
                 
                 Log.d(TAG, "Download completed: " + download.getFilename());
             }
@@ -446,13 +564,14 @@ public class DownloadManager {
     }
     
     private void handleDownloadError(DownloadEntity download, String error) {
+        releaseSlot(download.getId());
+        progressAggregator.unregister(download.getId());
         try {
             download.setStatus(DownloadStatus.FAILED);
             downloadDao.update(download);
             
             // Clean up
-            activeDownloaders.remove(download.getId());
-            currentConcurrentDownloads--;
+            activeEngines.remove(download.getId());
             
             Log.e(TAG, "Download failed: " + download.getFilename() + " - " + error);
         } catch (Exception e) {
@@ -462,13 +581,17 @@ public class DownloadManager {
     
     public void pauseDownload(long downloadId) {
         try {
-            MultiThreadDownloader downloader = activeDownloaders.get(downloadId);
-            if (downloader != null) {
-                downloader.pause();
+            DownloadEngine engine = activeEngines.get(downloadId);
+            if (engine != null) {
+                engine.pause();
             }
-            
-            // Retirer les cleanups sur activeTorrents
-            // activeTorrents.remove(downloadId);
+            // Still queued: it waits for resumeDownload() instead of a slot
+            downloadQueue.removeIf(queued -> queued.getId() == downloadId);
+            queuedAt.remove(downloadId);
+            // A paused download holds no slot, queued downloads may run meanwhile
+            releaseSlot(downloadId);
+            // Keep the resume point on disk in case the process dies while paused
+            progressAggregator.flush();
             
             DownloadEntity download = downloadDao.getById(downloadId);
             if (download != null) {
@@ -480,20 +603,19 @@ public class DownloadManager {
         }
     }
     
+    /**
+     * Queues a paused download again; it continues once the queue processor gives it a slot,
+     * with its live engine if it was paused in this run, otherwise rebuilt from the saved segments.
+     */
     public void resumeDownload(long downloadId) {
+        // Already holds a slot, nothing was paused
+        if (admittedDownloads.contains(downloadId)) return;
         try {
             DownloadEntity download = downloadDao.getById(downloadId);
             if (download != null) {
                 download.setStatus(DownloadStatus.RESUMING);
                 downloadDao.update(download);
-                
-                MultiThreadDownloader downloader = activeDownloaders.get(downloadId);
-                if (downloader != null) {
-                    downloader.resume();
-                }
-                
-                // Retirer les cleanups sur activeTorrents
-                // activeTorrents.remove(downloadId);
+                startDownload(download);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error resuming download", e);
@@ -502,14 +624,15 @@ public class DownloadManager {
     
     public void cancelDownload(long downloadId) {
         try {
-            MultiThreadDownloader downloader = activeDownloaders.get(downloadId);
-            if (downloader != null) {
-                downloader.cancel();
-                activeDownloaders.remove(downloadId);
+            DownloadEngine engine = activeEngines.remove(downloadId);
+            if (engine != null) {
+                engine.cancel();
             }
+            progressAggregator.unregister(downloadId);
             
-            // Retirer les cleanups sur activeTorrents
-            // activeTorrents.remove(downloadId);
+            // Not started yet: make sure the queue processor never picks it up
+            downloadQueue.removeIf(queued -> queued.getId() == downloadId);
+            queuedAt.remove(downloadId);
             
             DownloadEntity download = downloadDao.getById(downloadId);
             if (download != null) {
@@ -517,36 +640,118 @@ public class DownloadManager {
                 downloadDao.update(download);
             }
             
-            currentConcurrentDownloads--;
+            releaseSlot(downloadId);
         } catch (Exception e) {
             Log.e(TAG, "Error cancelling download", e);
         }
     }
     
+    /**
+     * Caps the combined speed of all downloads, 0 removes the cap.
+     */
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        segmentScheduler.getBandwidthLimiter().setLimit(bytesPerSecond);
+        // libtorrent moves its own bytes, it gets the same cap
+        torrentSession.setDownloadLimit(bytesPerSecond);
+    }
+    
+    /**
+     * Caps the combined upload of all torrents, 0 removes the cap.
+     */
+    public void setGlobalUploadLimit(long bytesPerSecond) {
+        torrentSession.setUploadLimit(bytesPerSecond);
+    }
+    
+    /**
+     * Replaces the global limit inside the schedule's windows; null clears the schedule.
+     */
+    public void setBandwidthSchedule(BandwidthSchedule schedule) {
+        segmentScheduler.getBandwidthLimiter().setSchedule(schedule);
+    }
+    
+    public void setDownloadBandwidthLimit(long downloadId, long bytesPerSecond) {
+        try {
+            DownloadEngine engine = activeEngines.get(downloadId);
+            if (engine != null) {
+                engine.setBandwidthLimit(bytesPerSecond);
+            }
+            
+            DownloadEntity download = downloadDao.getById(downloadId);
+            if (download != null) {
+                download.setBandwidthLimit(bytesPerSecond);
+                downloadDao.update(download);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting bandwidth limit", e);
+        }
+    }
+    
+    /**
+     * Caps how fast a torrent uploads to peers, 0 removes the cap.
+     */
+    public void setUploadLimit(long downloadId, long bytesPerSecond) {
+        try {
+            DownloadEngine engine = activeEngines.get(downloadId);
+            if (engine instanceof TorrentDownloader) {
+                ((TorrentDownloader) engine).setUploadLimit(bytesPerSecond);
+            }
+            
+            DownloadEntity download = downloadDao.getById(downloadId);
+            if (download != null) {
+                download.setUploadLimit(bytesPerSecond);
+                downloadDao.update(download);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting upload limit", e);
+        }
+    }
+    
+    /**
+     * Fetches a torrent's pieces in file order so media can be played while it downloads.
+     */
+    public void setSequentialDownload(long downloadId, boolean sequential) {
+        try {
+            DownloadEngine engine = activeEngines.get(downloadId);
+            if (engine instanceof TorrentDownloader) {
+                ((TorrentDownloader) engine).setSequentialDownload(sequential);
+            }
+            
+            DownloadEntity download = downloadDao.getById(downloadId);
+            if (download != null) {
+                download.setSequentialDownload(sequential);
+                downloadDao.update(download);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting sequential download", e);
+        }
+    }
+    
     public void pauseAllDownloads() {
-        for (MultiThreadDownloader downloader : activeDownloaders.values()) {
-            downloader.pause();
+        // Go through pauseDownload so the stored status follows the engine
+        for (Long downloadId : activeEngines.keySet()) {
+            pauseDownload(downloadId);
         }
-        
-        // Retirer les cleanups sur activeTorrents
-        // for (TorrentDownloader torrentDownloader : activeTorrents.values()) {
-        //     torrentDownloader.pause();
-        // }
     }
     
     public void resumeAllDownloads() {
-        for (MultiThreadDownloader downloader : activeDownloaders.values()) {
-            downloader.resume();
+        for (Map.Entry<Long, DownloadEngine> entry : activeEngines.entrySet()) {
+            if (entry.getValue().isPaused()) {
+                resumeDownload(entry.getKey());
+            }
         }
-        
-        // Retirer les cleanups sur activeTorrents
-        // for (TorrentDownloader torrentDownloader : activeTorrents.values()) {
-        //     torrentDownloader.resume();
-        // }
     }
     
     public boolean hasActiveDownloads() {
-        return !activeDownloaders.isEmpty();
+        return !activeEngines.isEmpty();
+    }
+    
+    public boolean hasActiveTorrents() {
+        for (DownloadEngine engine : activeEngines.values()) {
+            if (engine instanceof TorrentDownloader) {
+                return true;
+            }
+        }
+        return false;
     }
     
     public boolean isDownloadableUrl(String url) {
@@ -555,19 +760,18 @@ public class DownloadManager {
     }
     
     public void shutdown() {
-        // Cancel all active downloads
-        for (MultiThreadDownloader downloader : activeDownloaders.values()) {
-            downloader.cancel();
+        // Keep everything on disk, restoreActiveDownloads() continues from it on the next start
+        for (DownloadEngine engine : activeEngines.values()) {
+            engine.pause();
         }
-        
-        // Retirer les cleanups sur activeTorrents
-        // for (TorrentDownloader torrentDownloader : activeTorrents.values()) {
-        //     torrentDownloader.cancel();
-        // }
+        // Pausing stops the engines at their last byte, that progress is written before they go away
+        progressAggregator.stop();
+        torrentSession.shutdown();
         
         // Shutdown executors
         downloadExecutor.shutdown();
         queueExecutor.shutdown();
+        segmentScheduler.shutdown();
         
         Log.d(TAG, "DownloadManager shutdown completed");
     }
@@ -576,11 +780,20 @@ public class DownloadManager {
         final String filename;
         final long fileSize;
         final String contentType;
+        final String etag;
+        final String lastModified;
+        final String resolvedUrl;
+        final Boolean acceptRanges;
         
-        FileInfo(String filename, long fileSize, String contentType) {
+        FileInfo(String filename, long fileSize, String contentType, String etag, String lastModified,
+                 String resolvedUrl, Boolean acceptRanges) {
             this.filename = filename;
             this.fileSize = fileSize;
             this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.resolvedUrl = resolvedUrl;
+            this.acceptRanges = acceptRanges;
         }
     }
 } 
\ No newline at end of file
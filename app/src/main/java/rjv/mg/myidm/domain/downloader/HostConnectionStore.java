@@ -0,0 +1,15 @@
+package rjv.mg.myidm.domain.downloader;
+
+/**
+ * Remembers the connection count that worked best for each host,
+ * so the next download from that host starts there.
+ */
+public interface HostConnectionStore {
+    
+    /**
+     * @return the stored connection count, or 0 when the host is unknown
+     */
+    int getOptimalConnections(String host);
+    
+    void saveOptimalConnections(String host, int connections);
+}
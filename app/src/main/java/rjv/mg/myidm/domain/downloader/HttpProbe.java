@@ -0,0 +1,176 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+
+/**
+ * Asks the server once, before any segment is cut, what it serves: the URL left after
+ * redirects, the size, the validators and whether byte ranges work. It sends a ranged GET
+ * for the first byte rather than a HEAD, since a 206 with a Content-Range is the only
+ * reliable sign that ranges are honoured and some servers answer HEAD differently.
+ */
+public class HttpProbe {
+    
+    private static final String PROBE_RANGE = "bytes=0-0";
+    
+    private final OkHttpClient httpClient;
+    
+    public static final class Result {
+        private final String finalUrl;
+        private final long size;
+        private final boolean acceptRanges;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+        private final String filename;
+        
+        Result(String finalUrl, long size, boolean acceptRanges, String etag, String lastModified,
+               String contentType, String filename) {
+            this.finalUrl = finalUrl;
+            this.size = size;
+            this.acceptRanges = acceptRanges;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.filename = filename;
+        }
+        
+        /**
+         * URL after following every redirect; segments request it directly.
+         */
+        public String getFinalUrl() { return finalUrl; }
+        
+        /**
+         * Total size in bytes, -1 when the server did not tell.
+         */
+        public long getSize() { return size; }
+        
+        public boolean isAcceptRanges() { return acceptRanges; }
+        
+        public String getEtag() { return etag; }
+        
+        public String getLastModified() { return lastModified; }
+        
+        public String getContentType() { return contentType; }
+        
+        /**
+         * From Content-Disposition, else the last path segment of the final URL.
+         */
+        public String getFilename() { return filename; }
+    }
+    
+    public HttpProbe(OkHttpClient httpClient) {
+        this.httpClient = httpClient != null ? httpClient : DownloadHttpClient.getDefault();
+    }
+    
+    /**
+     * Probes the original URL of {@code download} with its user agent, referer and cookies.
+     */
+    public Result probe(DownloadEntity download) throws IOException {
+        return probe(download.getUrl(), download.getUserAgent(), download.getReferer(), download.getCookies());
+    }
+    
+    public Result probe(String url, String userAgent, String referer, String cookies) throws IOException {
+        Request.Builder request = new Request.Builder()
+            .url(url)
+            .header("Range", PROBE_RANGE)
+            // A compressed body would hide the real size behind the encoding
+            .header("Accept-Encoding", "identity");
+        if (userAgent != null) {
+            request.header("User-Agent", userAgent);
+        }
+        if (referer != null) {
+            request.header("Referer", referer);
+        }
+        if (cookies != null) {
+            request.header("Cookie", cookies);
+        }
+        
+        // The body is never read: one byte for a 206, the whole file for a 200
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            HttpUrl finalUrl = response.request().url();
+            long size;
+            boolean acceptRanges;
+            switch (response.code()) {
+                case HttpURLConnection.HTTP_PARTIAL:
+                    size = parseTotalLength(response.header("Content-Range"));
+                    acceptRanges = true;
+                    break;
+                case HttpURLConnection.HTTP_OK:
+                    // Range was ignored, the whole file would follow
+                    size = parseLong(response.header("Content-Length"));
+                    acceptRanges = false;
+                    break;
+                case 416:
+                    // Not even byte 0 exists: an empty file
+                    size = Math.max(0, parseTotalLength(response.header("Content-Range")));
+                    acceptRanges = false;
+                    break;
+                default:
+                    throw new IOException("HTTP error: " + response.code());
+            }
+            
+            return new Result(finalUrl.toString(), size, acceptRanges,
+                response.header("ETag"), response.header("Last-Modified"), response.header("Content-Type"),
+                getFilename(response.header("Content-Disposition"), finalUrl));
+        }
+    }
+    
+    /**
+     * Total length from {@code bytes 0-0/12345}, -1 when missing or {@code *}.
+     */
+    static long parseTotalLength(String contentRange) {
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        return parseLong(contentRange.substring(slash + 1));
+    }
+    
+    /**
+     * First byte from {@code bytes 100-199/12345}, -1 when it cannot be read.
+     */
+    static long parseRangeStart(String contentRange) {
+        if (contentRange == null) return -1;
+        String value = contentRange.trim();
+        if (value.startsWith("bytes")) {
+            value = value.substring(5).trim();
+        }
+        int dash = value.indexOf('-');
+        return dash > 0 ? parseLong(value.substring(0, dash)) : -1;
+    }
+    
+    private static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static String getFilename(String contentDisposition, HttpUrl url) {
+        // Try to get filename from Content-Disposition header
+        if (contentDisposition != null && contentDisposition.contains("filename=")) {
+            int start = contentDisposition.indexOf("filename=") + 9;
+            int end = contentDisposition.indexOf(";", start);
+            if (end == -1) end = contentDisposition.length();
+            String filename = contentDisposition.substring(start, end).replace("\"", "").trim();
+            if (!filename.isEmpty()) {
+                return filename;
+            }
+        }
+        
+        // Redirects often end on the real file name, e.g. /download?id=3 -> /files/report.pdf
+        String filename = url.pathSegments().get(url.pathSegments().size() - 1);
+        if (filename.isEmpty()) {
+            filename = "download_" + System.currentTimeMillis();
+        }
+        return filename;
+    }
+}
@@ -0,0 +1,40 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.io.IOException;
+
+import okhttp3.Response;
+
+/**
+ * A response whose status code is not a success, kept so {@link RetryPolicy} can tell a
+ * busy server from a missing file.
+ */
+public class HttpStatusException extends IOException {
+    
+    private final int statusCode;
+    private final long retryAfterMillis;
+    
+    /**
+     * @param retryAfterMillis wait the server asked for, -1 when it did not say
+     */
+    public HttpStatusException(String message, int statusCode, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    
+    /**
+     * Reads the status and Retry-After header of {@code response}; the caller still closes it.
+     */
+    public static HttpStatusException from(Response response, String message) {
+        long retryAfter = RetryPolicy.parseRetryAfter(response.header("Retry-After"), System.currentTimeMillis());
+        return new HttpStatusException(message, response.code(), retryAfter);
+    }
+    
+    public int getStatusCode() {
+        return statusCode;
+    }
+    
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,283 @@
+package rjv.mg.myidm.domain.downloader;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+
+/**
+ * The URLs one file is downloaded from at the same time. Every segment connection asks
+ * {@link #acquire()} for a source; faster mirrors get more connections, and a mirror that
+ * keeps failing or falls far behind the others is dropped while the download runs.
+ * The first mirror is always the download's own URL.
+ */
+public class MirrorSet {
+    private static final String TAG = "MirrorSet";
+    // Failed connections before a mirror is given up
+    private static final int MAX_FAILURES = 4;
+    // Speed samples (about one per second of reading) before a mirror is judged slow
+    private static final int MIN_SAMPLES = 5;
+    // Dropped when this many times slower per connection than the best mirror
+    private static final int SLOW_FACTOR = 5;
+    private static final double SPEED_SMOOTHING = 0.3;
+    // Bytes compared between the primary and a mirror before trusting it
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    
+    public static final class Mirror {
+        private final String url;
+        private final String host;
+        private final boolean primary;
+        private final String etag;
+        private final String lastModified;
+        private volatile String resolvedUrl;
+        private volatile boolean dropped;
+        // Guarded by the owning set
+        private double speed;
+        private int samples;
+        private int failures;
+        private int active;
+        
+        Mirror(String url, boolean primary, HttpProbe.Result probe) {
+            this.url = url;
+            this.host = MirrorSet.getHost(url);
+            this.primary = primary;
+            this.etag = probe.getEtag();
+            this.lastModified = probe.getLastModified();
+            this.resolvedUrl = probe.getFinalUrl();
+        }
+        
+        public String getUrl() { return url; }
+        
+        public String getHost() { return host; }
+        
+        /**
+         * The download's own URL, whose validators live on the download itself.
+         */
+        public boolean isPrimary() { return primary; }
+        
+        public String getEtag() { return etag; }
+        
+        public String getLastModified() { return lastModified; }
+        
+        /**
+         * Where segments connect: the URL after redirects, or the original once that expired.
+         */
+        public String getRequestUrl() {
+            String resolved = resolvedUrl;
+            return resolved != null ? resolved : url;
+        }
+        
+        public void clearResolvedUrl() { resolvedUrl = null; }
+        
+        public boolean isDropped() { return dropped; }
+    }
+    
+    private final List<Mirror> mirrors;
+    
+    MirrorSet(List<Mirror> mirrors) {
+        this.mirrors = Collections.unmodifiableList(new ArrayList<>(mirrors));
+    }
+    
+    /**
+     * Probes every mirror of {@code download} and keeps those serving the same file as the
+     * primary: same size, working ranges and the same bytes in a sample from the middle.
+     * Each mirror keeps its own validators, so a mirror that changes later is dropped alone.
+     * Returns null when no mirror qualifies, the download then runs from its URL alone.
+     */
+    public static MirrorSet probe(OkHttpClient httpClient, DownloadEntity download, HttpProbe.Result primary) {
+        List<String> urls = parseUrls(download.getMirrorUrls());
+        urls.remove(download.getUrl());
+        if (urls.isEmpty() || !primary.isAcceptRanges()) return null;
+        
+        HttpProbe prober = new HttpProbe(httpClient);
+        long sampleStart = Math.max(0, primary.getSize() / 2 - SAMPLE_SIZE / 2);
+        long sampleEnd = Math.min(primary.getSize(), sampleStart + SAMPLE_SIZE) - 1;
+        byte[] expected;
+        try {
+            expected = readRange(httpClient, primary.getFinalUrl(), download, true, sampleStart, sampleEnd);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot sample " + download.getUrl() + ", mirrors unused: " + e.getMessage());
+            return null;
+        }
+        
+        List<Mirror> accepted = new ArrayList<>();
+        accepted.add(new Mirror(download.getUrl(), true, primary));
+        for (String url : urls) {
+            try {
+                // Cookies belong to the primary's site and are not sent to other hosts
+                HttpProbe.Result probe = prober.probe(url, download.getUserAgent(), download.getReferer(), null);
+                if (probe.getSize() != primary.getSize()) {
+                    Log.w(TAG, "Mirror " + url + " has " + probe.getSize() + " bytes instead of " + primary.getSize());
+                    continue;
+                }
+                if (!probe.isAcceptRanges()) {
+                    Log.w(TAG, "Mirror " + url + " does not support ranges");
+                    continue;
+                }
+                // ETags differ between servers, the bytes themselves are compared instead
+                byte[] sample = readRange(httpClient, probe.getFinalUrl(), download, false, sampleStart, sampleEnd);
+                if (!Arrays.equals(expected, sample)) {
+                    Log.w(TAG, "Mirror " + url + " content differs from " + download.getUrl());
+                    continue;
+                }
+                accepted.add(new Mirror(url, false, probe));
+            } catch (IOException e) {
+                Log.w(TAG, "Mirror " + url + " unreachable: " + e.getMessage());
+            }
+        }
+        if (accepted.size() < 2) return null;
+        
+        Log.d(TAG, "Downloading " + download.getFilename() + " from " + accepted.size() + " sources");
+        return new MirrorSet(accepted);
+    }
+    
+    /**
+     * One URL per line (commas and spaces also separate), blanks and duplicates skipped.
+     */
+    public static List<String> parseUrls(String mirrorUrls) {
+        List<String> urls = new ArrayList<>();
+        if (mirrorUrls == null) return urls;
+        for (String url : mirrorUrls.split("[\\s,]+")) {
+            if (!url.isEmpty() && !urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+    
+    /**
+     * Hands out the mirror with the most speed per connection it already carries, halved for
+     * every failure it had. Mirrors not measured yet go first so every one gets tried. Each
+     * call must be paired with {@link #release(Mirror)}.
+     */
+    public synchronized Mirror acquire() {
+        Mirror best = null;
+        double bestScore = -1;
+        for (Mirror mirror : mirrors) {
+            if (mirror.dropped) continue;
+            double speed = mirror.samples == 0 ? Double.MAX_VALUE : mirror.speed;
+            double score = speed / (mirror.active + 1) / (1 << mirror.failures);
+            if (score > bestScore) {
+                bestScore = score;
+                best = mirror;
+            }
+        }
+        if (best == null) {
+            // Never happens: the last mirror is never dropped
+            best = mirrors.get(0);
+        }
+        best.active++;
+        return best;
+    }
+    
+    public synchronized void release(Mirror mirror) {
+        mirror.active = Math.max(0, mirror.active - 1);
+    }
+    
+    /**
+     * Records one connection's speed on {@code mirror} and drops it when it stays far slower
+     * than the best mirror. Connections on a dropped mirror are expected to move elsewhere.
+     */
+    public synchronized void recordSpeed(Mirror mirror, long bytesPerSecond) {
+        mirror.speed = mirror.samples == 0
+            ? bytesPerSecond
+            : mirror.speed + SPEED_SMOOTHING * (bytesPerSecond - mirror.speed);
+        mirror.samples++;
+        if (mirror.dropped || mirror.samples < MIN_SAMPLES) return;
+        
+        double bestSpeed = 0;
+        for (Mirror other : mirrors) {
+            if (!other.dropped && other.samples >= MIN_SAMPLES) {
+                bestSpeed = Math.max(bestSpeed, other.speed);
+            }
+        }
+        if (mirror.speed * SLOW_FACTOR < bestSpeed) {
+            drop(mirror, "too slow, " + (long) mirror.speed + " B/s against " + (long) bestSpeed + " B/s");
+        }
+    }
+    
+    /**
+     * Counts a failed connection against {@code mirror}, dropping it after too many. Returns
+     * true when another mirror is left for the retry.
+     */
+    public synchronized boolean reportFailure(Mirror mirror) {
+        mirror.failures++;
+        if (mirror.failures >= MAX_FAILURES) {
+            drop(mirror, mirror.failures + " failed connections");
+        }
+        return mirror.dropped || getLiveCount() > 1;
+    }
+    
+    /**
+     * Stops handing out {@code mirror}. Returns false when it is the last one left, which
+     * is kept so the download can still finish or fail on its own terms.
+     */
+    public synchronized boolean drop(Mirror mirror, String reason) {
+        if (mirror.dropped) return true;
+        if (getLiveCount() <= 1) return false;
+        mirror.dropped = true;
+        Log.w(TAG, "Dropped mirror " + mirror.url + ": " + reason);
+        return true;
+    }
+    
+    public synchronized int getLiveCount() {
+        int live = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped) live++;
+        }
+        return live;
+    }
+    
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+    
+    /**
+     * Reads the sample range with the headers the segments will send: the Referer goes to
+     * every source, the Cookie only to the primary. A site that checks them answers the same
+     * bytes it serves later.
+     */
+    private static byte[] readRange(OkHttpClient httpClient, String url, DownloadEntity download, boolean primary,
+                                    long start, long end) throws IOException {
+        Request.Builder request = new Request.Builder()
+            .url(url)
+            .header("Range", "bytes=" + start + "-" + end)
+            .header("Accept-Encoding", "identity");
+        if (download.getUserAgent() != null) {
+            request.header("User-Agent", download.getUserAgent());
+        }
+        if (download.getReferer() != null) {
+            request.header("Referer", download.getReferer());
+        }
+        // Cookies belong to the primary's site and are not sent to other hosts
+        if (primary && download.getCookies() != null) {
+            request.header("Cookie", download.getCookies());
+        }
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            ResponseBody body = response.body();
+            if (response.code() != HttpURLConnection.HTTP_PARTIAL || body == null) {
+                throw new IOException("HTTP " + response.code() + " for sample range");
+            }
+            return body.bytes();
+        }
+    }
+    
+    private static String getHost(String url) {
+        try {
+            return URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
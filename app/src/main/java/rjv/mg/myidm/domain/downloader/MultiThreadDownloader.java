@@ -4,34 +4,82 @@ import android.content.Context;
 import android.util.Log;
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import rjv.mg.myidm.data.database.entity.DownloadEntity;
 import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.checksum.ChecksumAlgorithm;
+import rjv.mg.myidm.domain.downloader.checksum.OrderedFileHasher;
+import rjv.mg.myidm.domain.downloader.checksum.StreamingHasher;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
 import rjv.mg.myidm.domain.model.DownloadStatus;
 import rjv.mg.myidm.domain.model.SegmentStatus;
 
-public class MultiThreadDownloader {
+public class MultiThreadDownloader implements DownloadEngine {
     private static final String TAG = "MultiThreadDownloader";
     
     // Configuration
     private static final int DEFAULT_SEGMENT_COUNT = 8;
     private static final int MAX_SEGMENT_COUNT = 32;
     private static final int MIN_SEGMENT_SIZE = 1024 * 1024; // 1MB
-    private static final int BUFFER_SIZE = 8192;
-    private static final int CONNECTION_TIMEOUT = 30000;
-    private static final int READ_TIMEOUT = 60000;
-    private static final int MAX_RETRIES = 3;
+    private static final int MIN_SPLIT_SIZE = 256 * 1024; // Smallest half handed to an idle worker
+    // Reconnects the stall check may force on one segment before only the read timeout is left
+    private static final int MAX_STALL_RECONNECTS = 3;
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    // Longest a read waits to fill its buffer before reporting what it has
+    private static final long FILL_WINDOW_NANOS = 200_000_000L;
+    // End byte of the only segment while the server has not told the size, it reads to the end of the body
+    private static final long UNKNOWN_END = Long.MAX_VALUE - 1;
     
-    // Thread pool for download segments
-    private final ExecutorService segmentExecutor;
-    private final ExecutorService mergeExecutor;
+    // Shared segment scheduler and pooled HTTP client
+    private final SegmentScheduler scheduler;
+    // True when no scheduler was passed in, the private one is shut down with the download
+    private final boolean ownsScheduler;
+    private final OkHttpClient httpClient;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final BufferPool bufferPool;
+    // Set for FTP/SFTP downloads, segments then read through it instead of OkHttp
+    private RangeTransport transport;
+    // Set by prepare() when verified mirrors serve the same file, null for a single source
+    private volatile MirrorSet mirrors;
+    
+    // Adaptive connection count
+    private AdaptiveConnectionController connectionController;
+    private HostConnectionStore hostConnectionStore;
+    private final AtomicInteger connectionErrors = new AtomicInteger(0);
+    private final RetryPolicy retryPolicy;
+    // Retries used by all segments since the download last made real progress, the
+    // download's budget is DownloadEntity.maxRetries
+    private final AtomicInteger retriesInARow = new AtomicInteger(0);
+    // Segments whose connection received a whole buffer since their last failure
+    private final Set<DownloadSegmentEntity> progressedSegments = ConcurrentHashMap.newKeySet();
+    // Failed segments waiting out their backoff, PENDING but not picked before the due time
+    private final Map<DownloadSegmentEntity, Long> retryDue; // guarded by this
+    private final AtomicLong nextConnectionEvaluation = new AtomicLong(0);
+    private int runningWorkers; // guarded by this
+    private final String host;
+    
+    // Output file shared by all segments, written at each segment's own offset
+    private final File partialFile;
+    private RandomAccessFile outputFile;
+    private FileChannel outputChannel;
+    
+    // Checksums are computed inline while bytes arrive, never by re-reading the file afterwards
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private OrderedFileHasher fileHasher;
     
     // Download state
     private final DownloadEntity download;
@@ -44,66 +92,200 @@ public class MultiThreadDownloader {
     private DownloadProgressCallback progressCallback;
     private DownloadCompletionCallback completionCallback;
     private DownloadErrorCallback errorCallback;
+    private SegmentSplitCallback splitCallback;
     
     // Control flags
     private volatile boolean isPaused;
     private volatile boolean isCancelled;
     private volatile boolean isCompleted;
+    private boolean isFinalizing;
+    // Segments came from a previous run rather than being cut here
+    private boolean restored;
+    // A worker is asking the server about the file again after a 416, no new work starts meanwhile
+    private boolean isReprobing; // guarded by this
+    // Ranges cannot be used in this run; the download's own connection setting is kept for later runs
+    private volatile boolean singleConnection;
     
     // Performance tracking
     private final Map<Integer, Long> segmentSpeeds;
+    private final Map<DownloadSegmentEntity, SegmentDigest> segmentDigests;
+    private final Map<DownloadSegmentEntity, Closeable> activeConnections;
     private final long startTime;
     
-    public interface DownloadProgressCallback {
-        void onProgress(long downloadedBytes, long totalBytes, int progress, long speed);
-        void onSegmentProgress(int segmentIndex, long downloadedBytes, long totalBytes, int progress);
+    // Stall check: connections that go silent or lag far behind their siblings are replaced
+    private StallDetector stallDetector = new StallDetector();
+    private ScheduledFuture<?> stallCheck; // guarded by this
+    private final Map<DownloadSegmentEntity, Long> connectionOpenedAt;
+    // Segments whose connection the stall check closed, their worker reconnects without using a retry
+    private final Set<DownloadSegmentEntity> stallReconnects;
+    private final Map<DownloadSegmentEntity, Integer> stallReconnectCounts;
+    private DownloadMetrics metrics = DownloadMetrics.getDefault();
+    
+    private static class SegmentDigest {
+        final StreamingHasher hasher;
+        volatile long hashedBytes;
+        
+        SegmentDigest(StreamingHasher hasher) {
+            this.hasher = hasher;
+        }
     }
     
-    public interface DownloadCompletionCallback {
-        void onCompleted(String filePath, String checksum);
-        void onMerged(String filePath);
+    /**
+     * Thrown when the server no longer serves the file the partial data came from.
+     */
+    static class RemoteFileChangedException extends IOException {
+        RemoteFileChangedException(String message) {
+            super(message);
+        }
     }
     
-    public interface DownloadErrorCallback {
-        void onError(String error, int segmentIndex);
-        void onSegmentFailed(int segmentIndex, String error);
+    /**
+     * Thrown when a server that was probed as range capable answers a range with the whole file.
+     */
+    static class RangeNotSupportedException extends IOException {
+        RangeNotSupportedException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Thrown when a mirror can no longer be used; its segment moves to another mirror.
+     */
+    static class MirrorRejectedException extends IOException {
+        MirrorRejectedException(String message) {
+            super(message);
+        }
     }
     
     public MultiThreadDownloader(Context context, DownloadEntity download) {
+        this(context, download, null, null, null);
+    }
+    
+    /**
+     * Rebuilds a downloader from persisted segments so each one continues from
+     * {@code startByte + downloadedBytes} instead of being re-segmented.
+     * Segment connections run on {@code scheduler}; without one the downloader gets
+     * a private scheduler sized to its own segment count. Requests go through the pooled
+     * {@code httpClient}, or {@link DownloadHttpClient#getDefault()} when null.
+     */
+    public MultiThreadDownloader(Context context, DownloadEntity download, List<DownloadSegmentEntity> savedSegments,
+                                 SegmentScheduler scheduler, OkHttpClient httpClient) {
         this.download = download;
-        this.segments = new ArrayList<>();
+        this.segments = new CopyOnWriteArrayList<>();
         this.totalDownloadedBytes = new AtomicLong(0);
         this.completedSegments = new AtomicInteger(0);
         this.failedSegments = new AtomicInteger(0);
         this.segmentSpeeds = new ConcurrentHashMap<>();
+        this.segmentDigests = new ConcurrentHashMap<>();
+        this.activeConnections = new ConcurrentHashMap<>();
+        this.connectionOpenedAt = new ConcurrentHashMap<>();
+        this.stallReconnects = ConcurrentHashMap.newKeySet();
+        this.stallReconnectCounts = new ConcurrentHashMap<>();
+        this.retryDue = new HashMap<>();
+        this.retryPolicy = new RetryPolicy(download.getMaxRetries());
         this.startTime = System.currentTimeMillis();
+        this.partialFile = new File(download.getFilePath() + PARTIAL_FILE_SUFFIX);
+        this.checksumAlgorithm = ChecksumAlgorithm.fromName(download.getChecksumAlgorithm());
         
-        // Create thread pools
-        int maxConcurrentSegments = Math.min(download.getMaxConcurrentSegments(), MAX_SEGMENT_COUNT);
-        this.segmentExecutor = Executors.newFixedThreadPool(maxConcurrentSegments, new ThreadFactory() {
-            private final AtomicInteger counter = new AtomicInteger(1);
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r, "DownloadSegment-" + counter.getAndIncrement());
-                thread.setPriority(Thread.NORM_PRIORITY);
-                return thread;
-            }
-        });
+        this.ownsScheduler = scheduler == null;
+        if (scheduler == null) {
+            int maxConcurrentSegments = Math.min(download.getMaxConcurrentSegments(), MAX_SEGMENT_COUNT);
+            scheduler = new SegmentScheduler(maxConcurrentSegments, maxConcurrentSegments);
+        }
+        this.scheduler = scheduler;
+        this.httpClient = httpClient != null ? httpClient : DownloadHttpClient.getDefault();
+        this.bandwidthLimiter = new BandwidthLimiter(download.getBandwidthLimit());
+        this.bufferPool = scheduler.getBufferPool();
+        this.host = getHost(download.getUrl());
         
-        this.mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r, "DownloadMerger");
-                thread.setPriority(Thread.NORM_PRIORITY);
-                return thread;
-            }
-        });
+        if (savedSegments == null || savedSegments.isEmpty()) {
+            initializeSegments();
+        } else {
+            restoreSegments(savedSegments);
+            restored = true;
+        }
+    }
+    
+    /**
+     * Asks the server once about the file before any segment connects: its size, validators,
+     * final URL and, for HTTP, whether ranges work. Saved segments are dropped when the remote
+     * file changed since they were written or the server can no longer resume at their offsets.
+     */
+    @Override
+    public void prepare() throws IOException {
+        boolean changed = probeRemoteFile();
         
+        // Without ranges a single segment still resumes by skipping what it has, several cannot
+        boolean resumable = Boolean.TRUE.equals(download.getAcceptRanges()) || segments.size() == 1;
+        if (restored && !changed && resumable) return;
+        if (restored) {
+            Log.w(TAG, "Remote file changed or cannot resume, restarting " + download.getFilename() + " from zero");
+        }
+        // Segments were cut before the size was known, or belong to another version of the file
+        segments.clear();
+        segmentDigests.clear();
+        totalDownloadedBytes.set(0);
+        completedSegments.set(0);
+        failedSegments.set(0);
+        restored = false;
         initializeSegments();
     }
     
+    /**
+     * Reads the remote file's size, validators and range support into the download.
+     * Returns true when the file differs from the one the download knew.
+     */
+    private boolean probeRemoteFile() throws IOException {
+        boolean changed;
+        boolean acceptRanges;
+        if (transport != null) {
+            RangeTransport.RemoteFile remoteFile;
+            try {
+                remoteFile = transport.stat();
+            } catch (IOException e) {
+                closeTransport();
+                throw e;
+            }
+            changed = (download.getFileSize() > 0 && download.getFileSize() != remoteFile.getSize())
+                || (download.getLastModified() != null && remoteFile.getLastModified() != null
+                    && !download.getLastModified().equals(remoteFile.getLastModified()));
+            acceptRanges = transport.supportsRanges();
+            synchronized (download) {
+                download.setFileSize(remoteFile.getSize());
+                download.setLastModified(remoteFile.getLastModified());
+                download.setAcceptRanges(acceptRanges);
+            }
+        } else {
+            HttpProbe.Result probe = new HttpProbe(httpClient).probe(download);
+            changed = remoteFileChanged(probe);
+            // Data resumed from a server caught ignoring ranges stays on one connection until
+            // the file changes, a new run trusts the probe; a chunked or empty answer gives no
+            // size to cut ranges from
+            acceptRanges = probe.getSize() > 0 && probe.isAcceptRanges()
+                && (changed || !restored || !Boolean.FALSE.equals(download.getAcceptRanges()));
+            synchronized (download) {
+                download.setFileSize(Math.max(0, probe.getSize()));
+                download.setEtag(probe.getEtag());
+                download.setLastModified(probe.getLastModified());
+                download.setResolvedUrl(probe.getFinalUrl());
+                download.setAcceptRanges(acceptRanges);
+            }
+            // Other sources are only worth it when every segment can read a range
+            mirrors = acceptRanges ? MirrorSet.probe(httpClient, download, probe) : null;
+        }
+        // Without ranges only one connection can read the file
+        singleConnection = !acceptRanges;
+        return changed;
+    }
+    
     private void initializeSegments() {
         long fileSize = download.getFileSize();
+        if (fileSize <= 0) {
+            // Size unknown: a single request reads the body until it ends
+            segments.add(new DownloadSegmentEntity(download.getId(), 0, 0, UNKNOWN_END));
+            download.setSegmentCount(1);
+            return;
+        }
         int segmentCount = calculateOptimalSegmentCount(fileSize);
         
         long segmentSize = fileSize / segmentCount;
@@ -127,6 +309,38 @@ public class MultiThreadDownloader {
         download.setSegmentCount(segmentCount);
     }
     
+    private void restoreSegments(List<DownloadSegmentEntity> savedSegments) {
+        // Downloaded bytes are only trusted if the preallocated file is still there
+        long fileSize = download.getFileSize();
+        boolean partialFileUsable = partialFile.exists()
+            && (fileSize <= 0 || partialFile.length() == fileSize);
+        if (!partialFileUsable) {
+            Log.w(TAG, "Partial file missing, restarting segments from scratch: " + partialFile);
+        }
+        
+        for (DownloadSegmentEntity segment : savedSegments) {
+            segment.setTempFilePath(partialFile.getAbsolutePath());
+            segment.setDownloadSpeed(0);
+            segment.setRetryCount(0);
+            if (!partialFileUsable) {
+                segment.setDownloadedBytes(0);
+            }
+            segment.setDownloadedBytes(Math.max(0, Math.min(segment.getDownloadedBytes(), segment.getSegmentSize())));
+            
+            if (segment.getRemainingBytes() <= 0) {
+                segment.setStatus(SegmentStatus.COMPLETED);
+                completedSegments.incrementAndGet();
+            } else {
+                segment.setStatus(SegmentStatus.PENDING);
+            }
+            totalDownloadedBytes.addAndGet(segment.getDownloadedBytes());
+            segments.add(segment);
+        }
+        
+        download.setSegmentCount(segments.size());
+        Log.d(TAG, "Restored " + segments.size() + " segments, " + totalDownloadedBytes.get() + " bytes already downloaded");
+    }
+    
     private int calculateOptimalSegmentCount(long fileSize) {
         if (fileSize <= 0) return DEFAULT_SEGMENT_COUNT;
         
@@ -137,110 +351,696 @@ public class MultiThreadDownloader {
         );
         
         // Ensure it doesn't exceed max concurrent segments
-        return Math.min(optimalCount, download.getMaxConcurrentSegments());
+        return Math.min(optimalCount, getMaxConnections());
     }
     
+    /**
+     * Connections this run may open: the download's setting, or one while ranges cannot be used.
+     */
+    private int getMaxConnections() {
+        return singleConnection ? 1 : Math.min(download.getMaxConcurrentSegments(), MAX_SEGMENT_COUNT);
+    }
+    
+    @Override
     public void start() {
         if (isCompleted || isCancelled) return;
         
         Log.d(TAG, "Starting download: " + download.getUrl() + " with " + segments.size() + " segments");
+        metrics.startDownload(download.getId());
+        
+        try {
+            openOutputFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Error preparing output file", e);
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to prepare output file: " + e.getMessage(), -1);
+            }
+            return;
+        }
+        
+        // Start with the count that worked last time for this host, or a few connections
+        int maxConnections = getMaxConnections();
+        int initialConnections = hostConnectionStore != null ? hostConnectionStore.getOptimalConnections(host) : 0;
+        if (initialConnections <= 0) {
+            initialConnections = AdaptiveConnectionController.INITIAL_CONNECTIONS;
+        }
+        connectionController = new AdaptiveConnectionController(initialConnections, maxConnections);
+        nextConnectionEvaluation.set(System.currentTimeMillis() + AdaptiveConnectionController.EVALUATION_INTERVAL_MS);
+        synchronized (this) {
+            if (stallCheck == null) {
+                stallCheck = scheduler.schedulePeriodic(this::checkStalls, stallDetector.getCheckInterval());
+            }
+        }
+        startWorkers();
+        
+        // Everything may already be on disk when resuming
+        if (completedSegments.get() == segments.size()) {
+            checkCompletion();
+        }
+    }
+    
+    private synchronized void openOutputFile() throws IOException {
+        if (outputChannel != null && outputChannel.isOpen()) return;
+        
+        File parentDir = partialFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        
+        outputFile = new RandomAccessFile(partialFile, "rw");
+        outputChannel = outputFile.getChannel();
+        
+        // Reserve the whole file up front so segments can write at their own offset
+        long fileSize = download.getFileSize();
+        if (fileSize > 0 && outputFile.length() != fileSize) {
+            outputFile.setLength(fileSize);
+        }
         
-        // Submit all segments for download
+        StreamingHasher hasher = checksumAlgorithm.newHasher();
+        if (hasher != null && fileSize > 0) {
+            fileHasher = new OrderedFileHasher(hasher, outputChannel, fileSize);
+        }
+    }
+    
+    private synchronized void closeOutputFile() {
+        if (outputFile != null) {
+            try { outputFile.close(); } catch (IOException e) { }
+            outputFile = null;
+            outputChannel = null;
+        }
+    }
+    
+    private void submitSegment(DownloadSegmentEntity segment) {
+        // With mirrors the connection slot is counted against the host it will read from
+        MirrorSet mirrors = this.mirrors;
+        MirrorSet.Mirror mirror = mirrors != null ? mirrors.acquire() : null;
+        String segmentHost = mirror != null ? mirror.getHost() : host;
+        long queuedAt = System.nanoTime();
+        scheduler.submit(this, segmentHost, () -> {
+            metrics.record(DownloadMetrics.Distribution.SEGMENT_QUEUE_WAIT, download.getId(), segmentHost,
+                (System.nanoTime() - queuedAt) / 1_000_000);
+            downloadSegment(segment, mirror);
+        });
+    }
+    
+    /**
+     * Starts workers until the adaptive connection limit is reached. Pending segments go
+     * first, except those still waiting to retry; once none are left, new work is made by
+     * splitting the largest remaining range.
+     */
+    private synchronized void startWorkers() {
+        if (isCancelled || isPaused || isFinalizing || isReprobing || connectionController == null) return;
+        
+        int limit = connectionController.getLimit();
+        long now = System.currentTimeMillis();
+        while (runningWorkers < limit) {
+            DownloadSegmentEntity next = null;
+            for (DownloadSegmentEntity segment : segments) {
+                Long due = retryDue.get(segment);
+                if (segment.getStatus() == SegmentStatus.PENDING && (due == null || due <= now)) {
+                    next = segment;
+                    break;
+                }
+            }
+            if (next == null && !hasFailingSegment()) {
+                // Not while a segment is failing: more connections would only add to the trouble
+                next = splitLargestSegment();
+            }
+            if (next == null) return;
+            
+            retryDue.remove(next);
+            next.setStatus(SegmentStatus.DOWNLOADING);
+            runningWorkers++;
+            submitSegment(next);
+        }
+    }
+    
+    /**
+     * True while a segment is backing off, retrying without having received anything yet,
+     * or failed for good.
+     */
+    private boolean hasFailingSegment() {
         for (DownloadSegmentEntity segment : segments) {
-            segmentExecutor.submit(() -> downloadSegment(segment));
+            if (segment.getRetryCount() > 0 && segment.getStatus() != SegmentStatus.COMPLETED) {
+                return true;
+            }
         }
+        return false;
     }
     
-    private void downloadSegment(DownloadSegmentEntity segment) {
-        if (isCancelled || isPaused) return;
+    private void downloadSegment(DownloadSegmentEntity segment, MirrorSet.Mirror mirror) {
+        try {
+            while (!downloadSegmentWithRetries(segment, mirror)) {
+                // The mirror was released, a resumed segment picks a new one
+                mirror = null;
+                // Failed for good, queued again for a retry once its backoff passed, or dropped
+                if (isCancelled || segment.getStatus() != SegmentStatus.DOWNLOADING || isAbandoned(segment)) break;
+                
+                // Stopped by pause(): release the thread unless resume() already happened
+                if (parkSegment(segment)) break;
+            }
+        } finally {
+            synchronized (this) {
+                runningWorkers--;
+            }
+        }
         
-        int retryCount = 0;
-        boolean success = false;
+        // Hand the connection slot to the next piece of work as a new task, so the
+        // scheduler can give other downloads their turn in between
+        startWorkers();
+    }
+    
+    /**
+     * Re-evaluates the connection count at most once per interval, from any worker.
+     */
+    private void adjustConnections(long now) {
+        long due = nextConnectionEvaluation.get();
+        if (now < due || !nextConnectionEvaluation.compareAndSet(due, now + AdaptiveConnectionController.EVALUATION_INTERVAL_MS)) {
+            return;
+        }
         
-        while (retryCount < MAX_RETRIES && !success && !isCancelled) {
-            try {
-                success = downloadSegmentInternal(segment);
-                if (success) {
-                    segment.setStatus(SegmentStatus.COMPLETED);
-                    completedSegments.incrementAndGet();
-                    checkCompletion();
-                } else {
-                    retryCount++;
-                    segment.setRetryCount(retryCount);
-                    if (retryCount < MAX_RETRIES) {
-                        Thread.sleep(1000 * retryCount); // Exponential backoff
+        int previousLimit = connectionController.getLimit();
+        int limit = connectionController.evaluate(calculateTotalSpeed(), connectionErrors.get());
+        if (limit != previousLimit) {
+            Log.d(TAG, "Connection limit " + previousLimit + " -> " + limit);
+        }
+        // A lower limit takes effect as workers finish and are not replaced
+        if (limit > previousLimit) {
+            startWorkers();
+        }
+    }
+    
+    /**
+     * Runs on the scheduler's timer. Closes the connections the stall detector picks; their
+     * worker then asks for the rest of the range on a new connection. A segment is only
+     * reconnected this way a few times, after that the read timeout decides.
+     */
+    private void checkStalls() {
+        if (isCancelled || isPaused || isFinalizing) return;
+        
+        long now = System.currentTimeMillis();
+        Map<DownloadSegmentEntity, StallDetector.Connection> open = new HashMap<>();
+        for (Map.Entry<DownloadSegmentEntity, Long> entry : connectionOpenedAt.entrySet()) {
+            DownloadSegmentEntity segment = entry.getKey();
+            long remaining;
+            synchronized (segment) {
+                remaining = segment.getRemainingBytes();
+            }
+            open.put(segment, new StallDetector.Connection(entry.getValue(), segment.getLastActivity(),
+                segment.getDownloadSpeed(), remaining));
+        }
+        
+        for (Map.Entry<DownloadSegmentEntity, StallDetector.Verdict> laggard : stallDetector.findLaggards(open, now).entrySet()) {
+            DownloadSegmentEntity segment = laggard.getKey();
+            Closeable connection = activeConnections.get(segment);
+            if (connection == null || stallReconnectCounts.getOrDefault(segment, 0) >= MAX_STALL_RECONNECTS) continue;
+            if (!stallReconnects.add(segment)) continue;
+            
+            stallReconnectCounts.merge(segment, 1, Integer::sum);
+            Log.w(TAG, "Segment " + segment.getSegmentIndex() + " " + laggard.getValue().name().toLowerCase(Locale.ROOT)
+                + " at " + segment.getDownloadSpeed() + " B/s, reconnecting for its remaining bytes");
+            closeQuietly(connection);
+        }
+    }
+    
+    /**
+     * Shuts down the scheduler made in the constructor once the download ended, a shared
+     * scheduler keeps running for the other downloads. Called last, after the callbacks,
+     * since it interrupts the worker that may be calling it.
+     */
+    private void releaseOwnScheduler() {
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+    
+    private synchronized void stopStallCheck() {
+        if (stallCheck != null) {
+            stallCheck.cancel(false);
+            stallCheck = null;
+        }
+    }
+    
+    /**
+     * Marks a segment stopped by pause() as PAUSED so resume() reschedules it.
+     * Returns false when the download was resumed meanwhile and the caller should continue.
+     */
+    private synchronized boolean parkSegment(DownloadSegmentEntity segment) {
+        if (!isPaused) return false;
+        
+        segment.setStatus(SegmentStatus.PAUSED);
+        segment.setDownloadSpeed(0);
+        segmentSpeeds.remove(segment.getSegmentIndex());
+        return true;
+    }
+    
+    /**
+     * Runs attempts on {@code segment} until it completes, fails or is stopped. Takes over
+     * {@code mirror} (null without mirrors, or to pick one here) and releases it. Moving to
+     * another mirror or off a stalled connection happens right away; any other failure goes
+     * to the retry policy and the worker returns instead of sleeping through the backoff.
+     */
+    private boolean downloadSegmentWithRetries(DownloadSegmentEntity segment, MirrorSet.Mirror mirror) {
+        segment.setStatus(SegmentStatus.DOWNLOADING);
+        MirrorSet mirrors = this.mirrors;
+        
+        try {
+            while (!isCancelled && !isPaused && !isAbandoned(segment)) {
+                if (mirror == null && mirrors != null) {
+                    mirror = mirrors.acquire();
+                }
+                Exception failure;
+                try {
+                    if (downloadSegmentInternal(segment, mirror)) {
+                        synchronized (this) {
+                            // A restart dropped the segment while its last read was landing
+                            if (isAbandoned(segment)) break;
+                            retriesInARow.set(0);
+                            segment.setStatus(SegmentStatus.COMPLETED);
+                            segment.setDownloadSpeed(0);
+                            segment.setRetryCount(0);
+                            segmentSpeeds.remove(segment.getSegmentIndex());
+                            completedSegments.incrementAndGet();
+                            checkCompletion();
+                        }
+                        return true;
+                    }
+                    if (isPaused || isCancelled || isAbandoned(segment)) {
+                        // Stopped on purpose, this is not a failed attempt
+                        break;
+                    }
+                    if (stallReconnects.remove(segment)) {
+                        mirror = reconnectAfterStall(segment, mirror);
+                        continue;
+                    }
+                    if (failOver(segment, mirror, "short read")) {
+                        // Another mirror gets the next attempt, the segment keeps its retries
+                        mirror = null;
+                        continue;
+                    }
+                    failure = new IOException("Incomplete segment");
+                } catch (RemoteFileChangedException e) {
+                    Log.w(TAG, "Remote file changed, partial data discarded: " + e.getMessage());
+                    failDownload("Remote file changed: " + e.getMessage());
+                    return false;
+                } catch (RangeNotSupportedException e) {
+                    // Parallel segments cannot work, the file starts over as one segment
+                    restartAsSingleSegment(e.getMessage());
+                    return false;
+                } catch (Exception e) {
+                    if (isPaused || isCancelled || isAbandoned(segment)) {
+                        // pause()/cancel() or a restart closed the connection under us
+                        break;
+                    }
+                    if (stallReconnects.remove(segment)) {
+                        // Counted as a stall there, whatever error the closed connection gave
+                        mirror = reconnectAfterStall(segment, mirror);
+                        continue;
+                    }
+                    if (e instanceof SocketTimeoutException) {
+                        // A silence the stall check did not catch first
+                        metrics.increment(DownloadMetrics.Count.STALLS, download.getId(), getHost(mirror));
                     }
+                    if (e instanceof MirrorRejectedException && mirrors.drop(mirror, e.getMessage())) {
+                        // Another mirror takes the segment over, the attempt does not count
+                        mirror = releaseMirror(mirror);
+                        continue;
+                    }
+                    if (failOver(segment, mirror, e.getMessage())) {
+                        mirror = null;
+                        continue;
+                    }
+                    failure = e;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error downloading segment " + segment.getSegmentIndex(), e);
-                retryCount++;
-                segment.setRetryCount(retryCount);
-                segment.setErrorMessage(e.getMessage());
                 
-                if (retryCount >= MAX_RETRIES) {
-                    segment.setStatus(SegmentStatus.FAILED);
-                    failedSegments.incrementAndGet();
-                    if (errorCallback != null) {
-                        errorCallback.onSegmentFailed(segment.getSegmentIndex(), e.getMessage());
-                    }
+                if (RetryPolicy.classify(failure) == RetryPolicy.Failure.RANGE_NOT_SATISFIABLE) {
+                    // Offsets taken from the probed size are outside the file now
+                    restartChangedFile(segment, failure.getMessage());
+                    return false;
                 }
+                retryLater(segment, failure, getHost(mirror));
+                return false;
             }
+        } finally {
+            releaseMirror(mirror);
         }
+        return false;
     }
     
-    private boolean downloadSegmentInternal(DownloadSegmentEntity segment) throws IOException {
-        URL url = new URL(download.getUrl());
-        HttpURLConnection connection = null;
-        InputStream inputStream = null;
-        FileOutputStream outputStream = null;
+    /**
+     * Counts a failed attempt against the download's retry budget and, when the retry policy
+     * allows another one, queues the segment again once its delay passed; otherwise the
+     * segment fails. The budget is shared by all segments and only refills once a whole
+     * buffer landed on one connection or a segment completed.
+     */
+    private void retryLater(DownloadSegmentEntity segment, Exception failure, String segmentHost) {
+        int retry;
+        if (progressedSegments.remove(segment)) {
+            // Failing after real progress starts a new streak, so connections that all
+            // drop at once after receiving data do not use up the budget together
+            retriesInARow.set(1);
+            retry = 1;
+        } else {
+            retry = retriesInARow.incrementAndGet();
+        }
+        connectionErrors.incrementAndGet();
+        segment.setRetryCount(segment.getRetryCount() + 1);
+        segment.setErrorMessage(failure.getMessage());
+        
+        long delay = retryPolicy.getDelay(failure, retry);
+        if (delay < 0) {
+            Log.e(TAG, "Segment " + segment.getSegmentIndex() + " failed (" + RetryPolicy.classify(failure)
+                + ", attempt " + retry + ")", failure);
+            synchronized (this) {
+                if (isAbandoned(segment)) return;
+                segment.setStatus(SegmentStatus.FAILED);
+                failedSegments.incrementAndGet();
+            }
+            if (errorCallback != null) {
+                errorCallback.onSegmentFailed(segment.getSegmentIndex(), failure.getMessage());
+            }
+            checkCompletion();
+            return;
+        }
+        
+        Log.w(TAG, "Segment " + segment.getSegmentIndex() + " retry " + retry + " in " + delay + " ms: " + failure.getMessage());
+        metrics.increment(DownloadMetrics.Count.RETRIES, download.getId(), segmentHost);
+        synchronized (this) {
+            if (isAbandoned(segment)) return;
+            retryDue.put(segment, System.currentTimeMillis() + delay);
+            segment.setStatus(SegmentStatus.PENDING);
+        }
+        scheduler.schedule(this::startWorkers, delay);
+    }
+    
+    /**
+     * Falls back to one connection after a server probed as range capable answered a range
+     * with the whole file: a single segment reads the file again from byte 0.
+     */
+    private void restartAsSingleSegment(String reason) {
+        List<Closeable> dropped;
+        synchronized (this) {
+            if (isCancelled || isPaused || isFinalizing) return;
+            Log.w(TAG, "Range requests ignored, restarting on one connection: " + reason);
+            synchronized (download) {
+                download.setAcceptRanges(false);
+            }
+            singleConnection = true;
+            dropped = resetSegments();
+        }
+        for (Closeable connection : dropped) {
+            closeQuietly(connection);
+        }
+        startWorkers();
+    }
+    
+    /**
+     * Follows up on a 416: the file is probed again and, when it changed, downloaded from
+     * byte 0 at its new size. The first segment to get one probes on its own worker; the
+     * others wait as PENDING segments and go away with the restart. A file that looks the
+     * same would refuse the same ranges again, the download then fails.
+     */
+    private void restartChangedFile(DownloadSegmentEntity segment, String reason) {
+        synchronized (this) {
+            if (isCancelled || isFinalizing || isAbandoned(segment)) return;
+            segment.setStatus(SegmentStatus.PENDING);
+            if (isReprobing) return;
+            isReprobing = true;
+        }
         
+        Log.w(TAG, "Range not satisfiable, probing " + download.getFilename() + " again: " + reason);
+        String error = null;
+        List<Closeable> dropped = Collections.emptyList();
         try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            
-            // Set range header for partial download
-            String rangeHeader = "bytes=" + segment.getStartByte() + "-" + segment.getEndByte();
-            connection.setRequestProperty("Range", rangeHeader);
-            
-            // Set additional headers
-            if (download.getUserAgent() != null) {
-                connection.setRequestProperty("User-Agent", download.getUserAgent());
+            if (!probeRemoteFile()) {
+                error = "Range not satisfiable for an unchanged file: " + reason;
             }
-            if (download.getReferer() != null) {
-                connection.setRequestProperty("Referer", download.getReferer());
+        } catch (IOException e) {
+            error = "Remote file changed and could not be probed again: " + e.getMessage();
+        }
+        synchronized (this) {
+            isReprobing = false;
+            if (isCancelled || isFinalizing) return;
+            if (error == null) {
+                try {
+                    dropped = resetSegments();
+                    // The file is preallocated at the new size, a shorter one must not keep the old tail
+                    if (outputFile != null) {
+                        outputFile.setLength(Math.max(0, download.getFileSize()));
+                    }
+                } catch (IOException e) {
+                    error = "Failed to resize output file: " + e.getMessage();
+                }
             }
-            if (download.getCookies() != null) {
-                connection.setRequestProperty("Cookie", download.getCookies());
+        }
+        for (Closeable connection : dropped) {
+            closeQuietly(connection);
+        }
+        if (error != null) {
+            failDownload(error);
+            return;
+        }
+        startWorkers();
+    }
+    
+    /**
+     * Replaces every segment with a fresh cut of the file from byte 0, at the size and range
+     * support the download has now. Workers on the old segments stop at the bytes they have;
+     * their connections are returned for the caller to close outside the lock. Called with
+     * the lock held.
+     */
+    private List<Closeable> resetSegments() {
+        List<Closeable> dropped = new ArrayList<>();
+        for (DownloadSegmentEntity segment : segments) {
+            synchronized (segment) {
+                segment.setEndByte(segment.getStartByte() + segment.getDownloadedBytes() - 1);
             }
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
-                throw new IOException("HTTP error: " + responseCode);
+            Closeable connection = activeConnections.get(segment);
+            if (connection != null) {
+                dropped.add(connection);
             }
+        }
+        metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), host, totalDownloadedBytes.get());
+        
+        segments.clear();
+        segmentDigests.clear();
+        segmentSpeeds.clear();
+        retryDue.clear();
+        stallReconnects.clear();
+        stallReconnectCounts.clear();
+        progressedSegments.clear();
+        retriesInARow.set(0);
+        totalDownloadedBytes.set(0);
+        completedSegments.set(0);
+        failedSegments.set(0);
+        initializeSegments();
+        
+        // Bytes hashed so far came from the dropped segments
+        long fileSize = download.getFileSize();
+        StreamingHasher hasher = checksumAlgorithm.newHasher();
+        fileHasher = hasher != null && fileSize > 0 ? new OrderedFileHasher(hasher, outputChannel, fileSize) : null;
+        connectionController = new AdaptiveConnectionController(connectionController.getLimit(), getMaxConnections());
+        return dropped;
+    }
+    
+    /**
+     * True once a restart replaced the segments, the worker still holding it just exits.
+     */
+    private boolean isAbandoned(DownloadSegmentEntity segment) {
+        return !segments.contains(segment);
+    }
+    
+    /**
+     * Follows up on a connection closed by the stall check: the rest of the range goes out
+     * on a new connection and the segment keeps its retries. A mirror that stalled is
+     * reported like any failure so another one can take over. Returns null.
+     */
+    private MirrorSet.Mirror reconnectAfterStall(DownloadSegmentEntity segment, MirrorSet.Mirror mirror) {
+        metrics.increment(DownloadMetrics.Count.STALLS, download.getId(), getHost(mirror));
+        if (!failOver(segment, mirror, "stalled")) {
+            releaseMirror(mirror);
+        }
+        return null;
+    }
+    
+    /**
+     * Gives {@code mirror} back to the set. Returns null so callers clear their reference
+     * in the same step.
+     */
+    private MirrorSet.Mirror releaseMirror(MirrorSet.Mirror mirror) {
+        MirrorSet mirrors = this.mirrors;
+        if (mirror != null && mirrors != null) {
+            mirrors.release(mirror);
+        }
+        return null;
+    }
+    
+    /**
+     * Counts a failed attempt against {@code mirror} and releases it when another mirror
+     * can take the retry. Returns false without mirrors or when {@code mirror} is the last
+     * one left, the failure then counts against the segment as usual.
+     */
+    private boolean failOver(DownloadSegmentEntity segment, MirrorSet.Mirror mirror, String reason) {
+        MirrorSet mirrors = this.mirrors;
+        if (mirror == null || mirrors == null || !mirrors.reportFailure(mirror)) return false;
+        metrics.increment(DownloadMetrics.Count.RETRIES, download.getId(), mirror.getHost());
+        Log.w(TAG, "Segment " + segment.getSegmentIndex() + " moves off " + mirror.getUrl() + ": " + reason);
+        mirrors.release(mirror);
+        return true;
+    }
+    
+    /**
+     * Splits the active segment with the most bytes left and returns the new tail segment,
+     * or null when no range is worth splitting.
+     */
+    private synchronized DownloadSegmentEntity splitLargestSegment() {
+        if (isCancelled || isPaused || isFinalizing) return null;
+        
+        DownloadSegmentEntity donor = null;
+        long largestRemaining = 0;
+        for (DownloadSegmentEntity candidate : segments) {
+            if (candidate.getStatus() != SegmentStatus.DOWNLOADING) continue;
+            long remaining;
+            synchronized (candidate) {
+                remaining = candidate.getRemainingBytes();
+            }
+            if (remaining > largestRemaining) {
+                largestRemaining = remaining;
+                donor = candidate;
+            }
+        }
+        long minSplitSize = Math.max(MIN_SPLIT_SIZE, scheduler.getBufferPool().getBufferSize());
+        if (donor == null || largestRemaining < 2L * minSplitSize) return null;
+        
+        DownloadSegmentEntity child;
+        synchronized (donor) {
+            // Split points stay at least one buffer ahead of the donor, so the read it
+            // may have in flight rarely has to be cut short
+            long remaining = donor.getRemainingBytes();
+            if (remaining < 2L * minSplitSize) return null;
+            long splitAt = donor.getStartByte() + donor.getDownloadedBytes() + remaining / 2;
+            child = new DownloadSegmentEntity(download.getId(), segments.size(), splitAt, donor.getEndByte());
+            child.setTempFilePath(partialFile.getAbsolutePath());
+            donor.setEndByte(splitAt - 1);
+        }
+        child.setStatus(SegmentStatus.DOWNLOADING);
+        segments.add(child);
+        download.setSegmentCount(segments.size());
+        
+        Log.d(TAG, "Segment " + donor.getSegmentIndex() + " split, segment " + child.getSegmentIndex()
+            + " takes bytes " + child.getStartByte() + "-" + child.getEndByte());
+        if (splitCallback != null) {
+            splitCallback.onSegmentSplit(donor, child);
+        }
+        return child;
+    }
+    
+    private boolean downloadSegmentInternal(DownloadSegmentEntity segment, MirrorSet.Mirror mirror) throws IOException {
+        BufferedSource source = null;
+        ByteBuffer buffer = null;
+        
+        try {
+            // Continue right after the bytes already on disk
+            long endByte;
+            long downloadedBytes;
+            synchronized (segment) {
+                endByte = segment.getEndByte();
+                downloadedBytes = segment.getDownloadedBytes();
+            }
+            long requestStart = segment.getStartByte() + downloadedBytes;
+            String segmentHost = getHost(mirror);
             
-            // Create temporary file for segment
-            File tempFile = createTempFile(segment);
-            segment.setTempFilePath(tempFile.getAbsolutePath());
+            // A new connection starts with a clean slate for the stall check
+            long openedAt = System.currentTimeMillis();
+            stallReconnects.remove(segment);
+            segment.setDownloadSpeed(0);
+            segment.setLastActivity(openedAt);
+            connectionOpenedAt.put(segment, openedAt);
+            source = transport != null
+                ? openTransportRange(segment, requestStart)
+                : openHttpRange(segment, requestStart, endByte, mirror);
+            if (source == null) return false;
             
-            inputStream = connection.getInputStream();
-            outputStream = new FileOutputStream(tempFile);
+            segment.setTempFilePath(partialFile.getAbsolutePath());
             
-            byte[] buffer = new byte[BUFFER_SIZE];
-            long downloadedBytes = 0;
+            FileChannel channel = outputChannel;
+            OrderedFileHasher fileHasher = this.fileHasher;
+            BandwidthLimiter globalLimiter = scheduler.getBandwidthLimiter();
+            SegmentDigest segmentDigest = getSegmentDigest(segment, channel, downloadedBytes);
+            StreamingHasher segmentHasher = segmentDigest.hasher;
+            
+            buffer = bufferPool.acquire();
+            long position = requestStart;
             long lastSpeedUpdate = System.currentTimeMillis();
-            long lastSpeedBytes = 0;
+            long lastSpeedBytes = downloadedBytes;
+            long receivedBytes = 0;
+            boolean endOfBody = false;
             
-            while (downloadedBytes < segment.getSegmentSize() && !isCancelled && !isPaused) {
-                int bytesRead = inputStream.read(buffer);
-                if (bytesRead == -1) break;
+            while (!isCancelled && !isPaused) {
+                if (mirror != null && mirror.isDropped()) {
+                    // Dropped for being slow while we read, the rest of the range goes elsewhere
+                    throw new MirrorRejectedException("Mirror " + mirror.getUrl() + " was dropped");
+                }
+                long remaining;
+                synchronized (segment) {
+                    remaining = segment.getSegmentSize() - downloadedBytes;
+                }
+                if (remaining <= 0) break;
+                
+                int bytesRead = fillBuffer(source, buffer, (int) Math.min(buffer.capacity(), remaining), segmentHost);
+                if (bytesRead == -1) {
+                    endOfBody = true;
+                    break;
+                }
+                
+                synchronized (segment) {
+                    // A split may have moved our end while we were blocked in read()
+                    long allowed = segment.getSegmentSize() - downloadedBytes;
+                    if (bytesRead > allowed) {
+                        metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), segmentHost,
+                            bytesRead - Math.max(0, allowed));
+                        bytesRead = (int) allowed;
+                    }
+                }
+                if (bytesRead <= 0) break;
+                
+                // Throttle before writing: per-download cap first, then the global budget
+                bandwidthLimiter.acquire(bytesRead);
+                globalLimiter.acquire(bytesRead);
+                
+                // Positional writes are safe to issue concurrently on a shared channel
+                long writePosition = position;
+                buffer.flip();
+                buffer.limit(bytesRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                
+                // Rewind for each consumer instead of duplicating, nothing is allocated per read
+                if (segmentHasher != null) {
+                    buffer.position(0);
+                    segmentHasher.update(buffer);
+                }
+                if (fileHasher != null) {
+                    buffer.position(0);
+                    fileHasher.onBytesWritten(buffer, writePosition, segment.getStartByte());
+                }
                 
-                outputStream.write(buffer, 0, bytesRead);
-                downloadedBytes += bytesRead;
+                // Only count bytes once they are on disk, resume trusts this value
+                synchronized (segment) {
+                    downloadedBytes += bytesRead;
+                    segment.setDownloadedBytes(downloadedBytes);
+                }
+                metrics.count(DownloadMetrics.Count.BYTES, download.getId(), segmentHost, bytesRead);
+                segmentDigest.hashedBytes = downloadedBytes;
+                if (receivedBytes < buffer.capacity() && (receivedBytes += bytesRead) >= buffer.capacity()) {
+                    // A whole buffer arrived on this connection, a few bytes before a reset do not count
+                    segment.setRetryCount(0);
+                    retriesInARow.set(0);
+                    progressedSegments.add(segment);
+                }
                 
                 // Update segment progress
-                segment.setDownloadedBytes(downloadedBytes);
                 segment.setLastActivity(System.currentTimeMillis());
                 
                 // Calculate speed
@@ -249,76 +1049,372 @@ public class MultiThreadDownloader {
                     long speed = (downloadedBytes - lastSpeedBytes) * 1000 / (currentTime - lastSpeedUpdate);
                     segment.setDownloadSpeed(speed);
                     segmentSpeeds.put(segment.getSegmentIndex(), speed);
+                    metrics.recordSegmentThroughput(download.getId(), segmentHost, segment.getSegmentIndex(), speed);
+                    if (mirror != null) {
+                        mirrors.recordSpeed(mirror, speed);
+                    }
                     lastSpeedUpdate = currentTime;
                     lastSpeedBytes = downloadedBytes;
+                    adjustConnections(currentTime);
                 }
                 
                 // Update total progress
                 long totalBytes = totalDownloadedBytes.addAndGet(bytesRead);
                 if (progressCallback != null) {
-                    progressCallback.onProgress(totalBytes, download.getFileSize(), 
-                        (int) (totalBytes * 100 / download.getFileSize()), calculateTotalSpeed());
+                    long fileSize = download.getFileSize();
+                    progressCallback.onProgress(totalBytes, fileSize,
+                        fileSize > 0 ? (int) (totalBytes * 100 / fileSize) : 0, calculateTotalSpeed());
                     progressCallback.onSegmentProgress(segment.getSegmentIndex(), 
                         downloadedBytes, segment.getSegmentSize(), segment.getProgress());
                 }
             }
             
-            outputStream.flush();
+            if (endOfBody && download.getFileSize() <= 0) {
+                // The body of a file of unknown size ended, its length is what arrived
+                synchronized (segment) {
+                    segment.setEndByte(segment.getStartByte() + downloadedBytes - 1);
+                }
+                synchronized (download) {
+                    download.setFileSize(downloadedBytes);
+                }
+            }
             
             // Verify segment integrity
-            if (downloadedBytes == segment.getSegmentSize()) {
-                String checksum = calculateChecksum(tempFile);
-                segment.setChecksum(checksum);
+            long segmentSize;
+            synchronized (segment) {
+                segmentSize = segment.getSegmentSize();
+            }
+            if (downloadedBytes == segmentSize) {
+                segment.setChecksum(segmentHasher != null ? segmentHasher.digestHex() : null);
                 return true;
             } else {
                 return false;
             }
             
         } finally {
-            if (outputStream != null) {
-                try { outputStream.close(); } catch (IOException e) { }
-            }
-            if (inputStream != null) {
-                try { inputStream.close(); } catch (IOException e) { }
+            connectionOpenedAt.remove(segment);
+            activeConnections.remove(segment);
+            if (buffer != null) {
+                bufferPool.release(buffer);
             }
-            if (connection != null) {
-                connection.disconnect();
+            if (source != null) {
+                // Returns an HTTP connection to the pool when the body was fully read
+                closeQuietly(source);
             }
         }
     }
     
-    private File createTempFile(DownloadSegmentEntity segment) throws IOException {
-        File tempDir = new File(download.getFilePath()).getParentFile();
-        if (!tempDir.exists()) {
-            tempDir.mkdirs();
+    /**
+     * Sends the range request for {@code segment} to {@code mirror}, or to the download's
+     * own URL when null. Returns null when the download was paused or cancelled before
+     * the request went out.
+     */
+    private BufferedSource openHttpRange(DownloadSegmentEntity segment, long requestStart, long endByte,
+                                         MirrorSet.Mirror mirror) throws IOException {
+        String rangeHeader = "bytes=" + requestStart + "-" + endByte;
+        // Without a size the file is asked for whole, a resume skips what is on disk
+        boolean ranged = endByte != UNKNOWN_END;
+        boolean fromMirror = mirror != null && !mirror.isPrimary();
+        // Redirects were followed once by the probe, go straight to where they ended
+        String resolvedUrl = fromMirror ? mirror.getRequestUrl() : download.getResolvedUrl();
+        String originalUrl = fromMirror ? mirror.getUrl() : download.getUrl();
+        Request.Builder request = new Request.Builder()
+            .url(resolvedUrl != null ? resolvedUrl : originalUrl)
+            .tag(DownloadMetrics.CallTag.class, new DownloadMetrics.CallTag(download.getId()));
+        if (ranged) {
+            request.header("Range", rangeHeader);
+            
+            // Only accept the range if the remote file is still the one we started with
+            String ifRange = fromMirror
+                ? getIfRangeValidator(mirror.getEtag(), mirror.getLastModified())
+                : getIfRangeValidator(download.getEtag(), download.getLastModified());
+            if (ifRange != null) {
+                request.header("If-Range", ifRange);
+            }
         }
         
-        String tempFileName = download.getFilename() + ".part" + segment.getSegmentIndex();
-        return new File(tempDir, tempFileName);
+        // Set additional headers
+        if (download.getUserAgent() != null) {
+            request.header("User-Agent", download.getUserAgent());
+        }
+        if (download.getReferer() != null) {
+            request.header("Referer", download.getReferer());
+        }
+        // Cookies belong to the download's own site
+        if (download.getCookies() != null && !fromMirror) {
+            request.header("Cookie", download.getCookies());
+        }
+        
+        // Keep the call reachable so pause()/cancel() can abort a blocked read
+        Call call = httpClient.newCall(request.build());
+        activeConnections.put(segment, call::cancel);
+        if (isPaused || isCancelled) return null;
+        
+        Response response = call.execute();
+        try {
+            int responseCode = response.code();
+            if (resolvedUrl != null && !resolvedUrl.equals(originalUrl) && isExpiredUrlResponse(responseCode)) {
+                // Signed redirect targets expire, the retry follows the redirects again
+                if (fromMirror) {
+                    mirror.clearResolvedUrl();
+                } else {
+                    download.setResolvedUrl(null);
+                }
+                throw new IOException("HTTP error " + responseCode + " from resolved URL, resolving again");
+            }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
+                throw HttpStatusException.from(response, "HTTP error " + responseCode + " for " + rangeHeader);
+            }
+            
+            if (fromMirror) {
+                verifyMirrorValidators(response, mirror);
+            } else {
+                verifyValidators(response);
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response body for " + rangeHeader);
+            }
+            
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                long rangeStart = HttpProbe.parseRangeStart(response.header("Content-Range"));
+                if (rangeStart >= 0 && rangeStart != requestStart) {
+                    throw new IOException("Server sent bytes from " + rangeStart + " for " + rangeHeader);
+                }
+            } else if (fromMirror) {
+                // Mirrors were admitted for their ranges, this one stopped honouring them
+                throw new MirrorRejectedException("Mirror " + mirror.getUrl() + " returned the full file for " + rangeHeader);
+            } else if (requestStart > 0) {
+                // The validators still match, so the server simply ignored the range
+                if (segments.size() > 1) {
+                    throw new RangeNotSupportedException("Server returned the full file for " + rangeHeader);
+                }
+                // A single segment resumes by reading past the bytes it already has
+                Log.d(TAG, "Server ignores ranges, skipping " + requestStart + " bytes already on disk");
+                body.source().skip(requestStart);
+                metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), host, requestStart);
+            }
+            return body.source();
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens {@code segment} through the non-HTTP transport, null when stopped meanwhile.
+     */
+    private BufferedSource openTransportRange(DownloadSegmentEntity segment, long requestStart) throws IOException {
+        // Without ranges the only segment resumes by reading past the bytes it already has
+        boolean skipToStart = requestStart > 0 && !transport.supportsRanges();
+        long opening = System.nanoTime();
+        BufferedSource source = transport.open(skipToStart ? 0 : requestStart);
+        metrics.increment(DownloadMetrics.Count.REQUESTS, download.getId(), host);
+        metrics.record(DownloadMetrics.Distribution.TIME_TO_FIRST_BYTE, download.getId(), host,
+            (System.nanoTime() - opening) / 1_000_000);
+        // Closing the stream is the only way to unblock its read
+        activeConnections.put(segment, source);
+        if (isPaused || isCancelled) {
+            closeQuietly(source);
+            return null;
+        }
+        if (skipToStart) {
+            source.skip(requestStart);
+            metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), host, requestStart);
+        }
+        return source;
+    }
+    
+    /**
+     * Answers from a CDN whose signed redirect target is no longer valid.
+     */
+    private static boolean isExpiredUrlResponse(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_FORBIDDEN
+            || responseCode == HttpURLConnection.HTTP_NOT_FOUND
+            || responseCode == HttpURLConnection.HTTP_GONE;
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
     }
     
-    private String calculateChecksum(File file) throws IOException {
+    /**
+     * Reads up to {@code max} bytes into {@code buffer}. Keeps reading to fill the large
+     * buffer, but returns what it has once the fill window passed so progress stays live
+     * on slow links. Returns -1 only when the stream ended before any byte was read.
+     */
+    private int fillBuffer(BufferedSource source, ByteBuffer buffer, int max, String segmentHost) throws IOException {
+        buffer.clear();
+        buffer.limit(max);
+        long deadline = 0;
         try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    digest.update(buffer, 0, bytesRead);
+            while (buffer.hasRemaining()) {
+                int n = source.read(buffer);
+                if (n == -1) break;
+                
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + FILL_WINDOW_NANOS;
+                } else if (now >= deadline) {
+                    break;
                 }
             }
-            byte[] hash = digest.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
+        } catch (IOException e) {
+            // What was read before the failure never reaches the disk, the retry reads it again
+            metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), segmentHost, buffer.position());
+            throw e;
+        }
+        int filled = buffer.position();
+        return filled == 0 && max > 0 ? -1 : filled;
+    }
+    
+    private boolean remoteFileChanged(HttpProbe.Result probe) {
+        if (download.getFileSize() > 0 && download.getFileSize() != probe.getSize()) {
+            return true;
+        }
+        if (download.getEtag() != null && probe.getEtag() != null) {
+            return !download.getEtag().equals(probe.getEtag());
+        }
+        return download.getLastModified() != null && probe.getLastModified() != null
+            && !download.getLastModified().equals(probe.getLastModified());
+    }
+    
+    private static String getIfRangeValidator(String etag, String lastModified) {
+        // If-Range requires a strong validator
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+    
+    /**
+     * A mirror whose file changed is dropped on its own, the other sources carry on.
+     */
+    private static void verifyMirrorValidators(Response response, MirrorSet.Mirror mirror) throws MirrorRejectedException {
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (mirror.getEtag() != null && etag != null && !mirror.getEtag().equals(etag)) {
+            throw new MirrorRejectedException("Mirror " + mirror.getUrl() + " ETag changed from " + mirror.getEtag() + " to " + etag);
+        }
+        if (mirror.getEtag() == null && mirror.getLastModified() != null && lastModified != null
+                && !mirror.getLastModified().equals(lastModified)) {
+            throw new MirrorRejectedException("Mirror " + mirror.getUrl() + " Last-Modified changed to " + lastModified);
+        }
+    }
+    
+    private void verifyValidators(Response response) throws RemoteFileChangedException {
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        
+        synchronized (download) {
+            if (download.getEtag() != null && etag != null && !download.getEtag().equals(etag)) {
+                throw new RemoteFileChangedException("ETag changed from " + download.getEtag() + " to " + etag);
+            }
+            if (download.getEtag() == null && download.getLastModified() != null && lastModified != null
+                    && !download.getLastModified().equals(lastModified)) {
+                throw new RemoteFileChangedException("Last-Modified changed from " + download.getLastModified() + " to " + lastModified);
+            }
+            
+            // First response of this session pins the validators for the other segments
+            if (download.getEtag() == null && download.getLastModified() == null) {
+                download.setEtag(etag);
+                download.setLastModified(lastModified);
+            }
+        }
+    }
+    
+    /**
+     * Returns the running digest of a segment, priming it from disk when the segment
+     * resumes with bytes that were not hashed in this session.
+     */
+    private SegmentDigest getSegmentDigest(DownloadSegmentEntity segment, FileChannel channel, long downloadedBytes) throws IOException {
+        SegmentDigest digest = segmentDigests.get(segment);
+        if (digest == null) {
+            digest = new SegmentDigest(checksumAlgorithm.newHasher());
+            segmentDigests.put(segment, digest);
+        }
+        if (digest.hasher == null) return digest;
+        
+        if (digest.hashedBytes != downloadedBytes) {
+            digest.hasher.reset();
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                long position = segment.getStartByte();
+                long end = position + downloadedBytes;
+                while (position < end) {
+                    buffer.clear();
+                    if (end - position < buffer.capacity()) {
+                        buffer.limit((int) (end - position));
+                    }
+                    int bytesRead = channel.read(buffer, position);
+                    if (bytesRead <= 0) {
+                        throw new IOException("Partial file shorter than recorded progress");
+                    }
+                    buffer.flip();
+                    digest.hasher.update(buffer);
+                    position += bytesRead;
                 }
-                hexString.append(hex);
+            } finally {
+                bufferPool.release(buffer);
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("MD5 algorithm not available", e);
+            digest.hashedBytes = downloadedBytes;
+        }
+        return digest;
+    }
+    
+    private void failDownload(String error) {
+        synchronized (this) {
+            if (isCancelled || isFinalizing) return;
+            isCancelled = true;
+        }
+        scheduler.cancel(this);
+        cancelActiveCalls();
+        closeTransport();
+        
+        // Data from the old version of the file is useless, restart from zero next time
+        metrics.count(DownloadMetrics.Count.WASTED_BYTES, download.getId(), host, totalDownloadedBytes.get());
+        metrics.finishDownload(download.getId());
+        stopStallCheck();
+        deletePartialFile();
+        synchronized (download) {
+            download.setEtag(null);
+            download.setLastModified(null);
+        }
+        for (DownloadSegmentEntity segment : segments) {
+            segment.setDownloadedBytes(0);
+            segment.setStatus(SegmentStatus.PENDING);
+        }
+        
+        if (errorCallback != null) {
+            errorCallback.onError(error, -1);
+        }
+        releaseOwnScheduler();
+    }
+    
+    /**
+     * Host a segment reads from: its mirror's, or the download's own.
+     */
+    private String getHost(MirrorSet.Mirror mirror) {
+        return mirror != null ? mirror.getHost() : host;
+    }
+    
+    private static String getHost(String url) {
+        try {
+            // URI also parses schemes java.net.URL has no handler for, like sftp
+            String host = URI.create(url).getHost();
+            return host != null ? host : "";
+        } catch (Exception e) {
+            return "";
+        }
+    }
+    
+    private void cancelActiveCalls() {
+        for (Closeable connection : activeConnections.values()) {
+            closeQuietly(connection);
         }
     }
     
@@ -330,115 +1426,203 @@ public class MultiThreadDownloader {
         return totalSpeed;
     }
     
-    private void checkCompletion() {
+    private synchronized void checkCompletion() {
         int totalSegments = segments.size();
         int completed = completedSegments.get();
         int failed = failedSegments.get();
         
-        if (completed + failed == totalSegments) {
+        if (completed + failed == totalSegments && !isFinalizing) {
+            isFinalizing = true;
             if (failed == 0) {
-                // All segments completed successfully, merge files
-                mergeExecutor.submit(this::mergeSegments);
+                // All segments already sit at their final offset, only finalize the file
+                finishDownload();
             } else {
                 // Some segments failed
+                closeTransport();
+                metrics.finishDownload(download.getId());
+                stopStallCheck();
                 if (errorCallback != null) {
                     errorCallback.onError("Some segments failed to download", -1);
                 }
+                releaseOwnScheduler();
             }
         }
     }
     
-    private void mergeSegments() {
+    /**
+     * Without a file hasher, because the size was unknown when the file was opened, the one
+     * segment read the file from byte 0 and its own digest covers the whole file. Null when
+     * no checksum was asked for.
+     */
+    private String getSingleSegmentChecksum() {
+        if (segments.size() != 1 || segments.get(0).getStartByte() != 0) return null;
+        return segments.get(0).getChecksum();
+    }
+    
+    private void finishDownload() {
         try {
             File outputFile = new File(download.getFilePath());
-            File parentDir = outputFile.getParentFile();
-            if (!parentDir.exists()) {
-                parentDir.mkdirs();
-            }
             
-            try (FileOutputStream outputStream = new FileOutputStream(outputFile)) {
-                for (DownloadSegmentEntity segment : segments) {
-                    if (segment.getStatus() == SegmentStatus.COMPLETED) {
-                        File tempFile = new File(segment.getTempFilePath());
-                        if (tempFile.exists()) {
-                            try (FileInputStream inputStream = new FileInputStream(tempFile)) {
-                                byte[] buffer = new byte[BUFFER_SIZE];
-                                int bytesRead;
-                                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                    outputStream.write(buffer, 0, bytesRead);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            // Only the bytes that arrived ahead of the hash frontier are still left to hash
+            String finalChecksum = fileHasher != null ? fileHasher.finish() : getSingleSegmentChecksum();
             
-            // Calculate final checksum
-            String finalChecksum = calculateChecksum(outputFile);
+            outputChannel.force(false);
+            closeOutputFile();
+            closeTransport();
             
-            // Clean up temporary files
-            cleanupTempFiles();
+            if (outputFile.exists()) {
+                outputFile.delete();
+            }
+            if (!partialFile.renameTo(outputFile)) {
+                throw new IOException("Unable to rename " + partialFile.getName() + " to " + outputFile.getName());
+            }
             
             isCompleted = true;
+            metrics.finishDownload(download.getId());
+            stopStallCheck();
+            
+            // Remember what worked for this host so the next download starts there; with
+            // mirrors the count was spread over several hosts and says little about this one
+            if (hostConnectionStore != null && connectionController != null && mirrors == null) {
+                hostConnectionStore.saveOptimalConnections(host, connectionController.getBestLimit());
+            }
             
             if (completionCallback != null) {
                 completionCallback.onCompleted(outputFile.getAbsolutePath(), finalChecksum);
             }
             
         } catch (Exception e) {
-            Log.e(TAG, "Error merging segments", e);
+            Log.e(TAG, "Error finalizing download", e);
             if (errorCallback != null) {
-                errorCallback.onError("Failed to merge segments: " + e.getMessage(), -1);
+                errorCallback.onError("Failed to finalize download: " + e.getMessage(), -1);
             }
         }
+        releaseOwnScheduler();
     }
     
-    private void cleanupTempFiles() {
-        for (DownloadSegmentEntity segment : segments) {
-            if (segment.getTempFilePath() != null) {
-                File tempFile = new File(segment.getTempFilePath());
-                if (tempFile.exists()) {
-                    tempFile.delete();
-                }
-            }
+    private void deletePartialFile() {
+        closeOutputFile();
+        if (partialFile.exists()) {
+            partialFile.delete();
         }
     }
     
+    /**
+     * Stops every segment at its current byte and releases its connection and thread.
+     * Downloaded bytes are kept and no retry is consumed.
+     */
+    @Override
     public void pause() {
-        isPaused = true;
+        synchronized (this) {
+            if (isPaused || isCancelled || isCompleted) return;
+            isPaused = true;
+        }
+        
+        // Unblock workers waiting on the network so they park right away
+        cancelActiveCalls();
         Log.d(TAG, "Download paused");
     }
     
+    /**
+     * Restarts workers for the segments parked by pause(). Segments whose worker is still
+     * stopping pick up the resume themselves in parkSegment().
+     */
+    @Override
     public void resume() {
-        isPaused = false;
+        synchronized (this) {
+            if (!isPaused || isCancelled || isCompleted) return;
+            isPaused = false;
+            
+            for (DownloadSegmentEntity segment : segments) {
+                if (segment.getStatus() == SegmentStatus.PAUSED) {
+                    segment.setStatus(SegmentStatus.PENDING);
+                }
+            }
+            startWorkers();
+        }
         Log.d(TAG, "Download resumed");
     }
     
+    @Override
     public void cancel() {
         isCancelled = true;
         isPaused = false;
         Log.d(TAG, "Download cancelled");
         
-        // Shutdown executors
-        segmentExecutor.shutdownNow();
-        mergeExecutor.shutdownNow();
+        // Drop queued segments and abort the running ones
+        scheduler.cancel(this);
+        cancelActiveCalls();
         
-        // Clean up temporary files
-        cleanupTempFiles();
+        // Drop the partially written output file
+        deletePartialFile();
+        closeTransport();
+        metrics.finishDownload(download.getId());
+        stopStallCheck();
+        releaseOwnScheduler();
+    }
+    
+    public void setHostConnectionStore(HostConnectionStore store) {
+        this.hostConnectionStore = store;
+    }
+    
+    /**
+     * Replaces the default stall detector, e.g. with shorter timings. Must be set before
+     * {@link #start()}.
+     */
+    void setStallDetector(StallDetector stallDetector) {
+        this.stallDetector = stallDetector;
+    }
+    
+    /**
+     * Registry the download reports to, {@link DownloadMetrics#getDefault()} unless set.
+     */
+    public void setMetrics(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Reads segments through {@code transport} instead of HTTP range requests. Must be set
+     * before {@link #prepare()}; the downloader closes it once the download ends.
+     */
+    public void setTransport(RangeTransport transport) {
+        this.transport = transport;
+    }
+    
+    private void closeTransport() {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+    
+    /**
+     * Changes the per-download cap while running, 0 removes it.
+     */
+    @Override
+    public void setBandwidthLimit(long bytesPerSecond) {
+        download.setBandwidthLimit(bytesPerSecond);
+        bandwidthLimiter.setLimit(bytesPerSecond);
     }
     
+    @Override
     public void setProgressCallback(DownloadProgressCallback callback) {
         this.progressCallback = callback;
     }
     
+    @Override
     public void setCompletionCallback(DownloadCompletionCallback callback) {
         this.completionCallback = callback;
     }
     
+    @Override
     public void setErrorCallback(DownloadErrorCallback callback) {
         this.errorCallback = callback;
     }
     
+    @Override
+    public void setSegmentSplitCallback(SegmentSplitCallback callback) {
+        this.splitCallback = callback;
+    }
+    
     public boolean isCompleted() {
         return isCompleted;
     }
@@ -447,18 +1631,29 @@ public class MultiThreadDownloader {
         return isCancelled;
     }
     
+    @Override
     public boolean isPaused() {
         return isPaused;
     }
     
+    @Override
     public List<DownloadSegmentEntity> getSegments() {
         return new ArrayList<>(segments);
     }
     
+    @Override
     public long getDownloadedBytes() {
         return totalDownloadedBytes.get();
     }
     
+    /**
+     * Aggregate speed of the running segments, in bytes per second.
+     */
+    @Override
+    public long getSpeed() {
+        return calculateTotalSpeed();
+    }
+    
     public int getProgress() {
         if (download.getFileSize() <= 0) return 0;
         return (int) (totalDownloadedBytes.get() * 100 / download.getFileSize());
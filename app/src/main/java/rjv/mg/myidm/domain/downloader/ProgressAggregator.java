@@ -0,0 +1,141 @@
+package rjv.mg.myidm.domain.downloader;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import rjv.mg.myidm.data.database.DownloadDatabase;
+import rjv.mg.myidm.data.database.dao.DownloadDao;
+import rjv.mg.myidm.data.database.dao.DownloadSegmentDao;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
+
+/**
+ * Coalesces download progress into periodic database writes.
+ * Read loops only mark their download dirty; every FLUSH_INTERVAL_MS all dirty
+ * downloads and their segments are written in a single Room transaction.
+ */
+public class ProgressAggregator {
+    
+    private static final String TAG = "ProgressAggregator";
+    public static final long FLUSH_INTERVAL_MS = 500;
+    
+    private final DownloadDatabase database;
+    private final DownloadDao downloadDao;
+    private final DownloadSegmentDao segmentDao;
+    private final DownloadMetrics metrics;
+    private final Map<Long, Tracked> tracked = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flushExecutor;
+    
+    private static class Tracked {
+        final ProgressSource source;
+        volatile boolean dirty;
+        
+        Tracked(ProgressSource source) {
+            this.source = source;
+        }
+    }
+    
+    public ProgressAggregator(DownloadDatabase database, DownloadDao downloadDao, DownloadSegmentDao segmentDao,
+                              DownloadMetrics metrics) {
+        this.database = database;
+        this.downloadDao = downloadDao;
+        this.segmentDao = segmentDao;
+        this.metrics = metrics;
+    }
+    
+    public synchronized void start() {
+        if (flushExecutor != null) return;
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ProgressFlush"));
+        flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Writes what is pending and stops the periodic flush.
+     */
+    public synchronized void stop() {
+        flush();
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            flushExecutor = null;
+        }
+    }
+    
+    public void register(long downloadId, ProgressSource source) {
+        tracked.put(downloadId, new Tracked(source));
+    }
+    
+    /**
+     * Writes the last progress of a download and stops tracking it.
+     */
+    public synchronized void unregister(long downloadId) {
+        Tracked entry = tracked.get(downloadId);
+        if (entry != null && entry.dirty) {
+            flush();
+        }
+        tracked.remove(downloadId);
+    }
+    
+    /**
+     * Called from read loops; only flips a flag.
+     */
+    public void markDirty(long downloadId) {
+        Tracked entry = tracked.get(downloadId);
+        if (entry != null && !entry.dirty) {
+            entry.dirty = true;
+        }
+    }
+    
+    /**
+     * Writes every dirty download and its segments in one transaction.
+     */
+    public synchronized void flush() {
+        boolean anyDirty = false;
+        for (Tracked entry : tracked.values()) {
+            if (entry.dirty) {
+                anyDirty = true;
+                break;
+            }
+        }
+        if (!anyDirty) return;
+        
+        long started = System.nanoTime();
+        try {
+            database.runInTransaction(() -> {
+                for (Map.Entry<Long, Tracked> item : tracked.entrySet()) {
+                    Tracked entry = item.getValue();
+                    if (!entry.dirty) continue;
+                    // Clear first so progress made during the write marks it dirty again
+                    entry.dirty = false;
+                    
+                    ProgressSource source = entry.source;
+                    downloadDao.updateProgress(item.getKey(), source.getDownloadedBytes(), source.getSpeed());
+                    byte[] pieces = source.getPieceBitfield();
+                    if (pieces != null) {
+                        downloadDao.updateTorrentPieces(item.getKey(), pieces);
+                    }
+                    long recordedDuration = source.getRecordedDuration();
+                    if (recordedDuration >= 0) {
+                        downloadDao.updateRecordedDuration(item.getKey(), recordedDuration);
+                    }
+                    
+                    List<DownloadSegmentEntity> segments = source.getSegments();
+                    for (DownloadSegmentEntity segment : segments) {
+                        if (segment.getId() == 0) continue; // row not inserted yet
+                        segmentDao.updateProgress(segment.getId(), segment.getDownloadedBytes(),
+                            segment.getDownloadSpeed(), segment.getLastActivity());
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error flushing progress", e);
+        }
+        metrics.record(DownloadMetrics.Distribution.DB_FLUSH, DownloadMetrics.NO_DOWNLOAD, null,
+            (System.nanoTime() - started) / 1_000_000);
+    }
+}
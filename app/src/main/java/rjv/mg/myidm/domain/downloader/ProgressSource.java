@@ -0,0 +1,34 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.List;
+
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+
+/**
+ * Live counters of a running download, read by {@link ProgressAggregator} when it flushes.
+ */
+public interface ProgressSource {
+    
+    long getDownloadedBytes();
+    
+    /**
+     * Current speed in bytes per second.
+     */
+    long getSpeed();
+    
+    List<DownloadSegmentEntity> getSegments();
+    
+    /**
+     * Verified pieces of a torrent as a bitfield, null for downloads that are not made of pieces.
+     */
+    default byte[] getPieceBitfield() {
+        return null;
+    }
+    
+    /**
+     * Milliseconds of a live stream recorded so far, -1 for downloads that are not recordings.
+     */
+    default long getRecordedDuration() {
+        return -1;
+    }
+}
@@ -0,0 +1,58 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import okio.BufferedSource;
+
+/**
+ * Reads a remote file over a protocol other than HTTP. {@link MultiThreadDownloader} opens
+ * one stream per segment, so every range gets its own connection and segments still run
+ * in parallel, throttle and resume like HTTP ones.
+ */
+public interface RangeTransport extends Closeable {
+    
+    /**
+     * Size and modification time of the remote file, asked once before segmenting.
+     */
+    RemoteFile stat() throws IOException;
+    
+    /**
+     * Whether {@link #open(long)} accepts an offset other than 0. Without it the file
+     * is fetched by a single segment that resumes by skipping what is already on disk.
+     */
+    boolean supportsRanges();
+    
+    /**
+     * Opens the file at {@code offset}. The caller stops reading at its segment end and
+     * closes the stream, which also aborts a read blocked on another thread.
+     */
+    BufferedSource open(long offset) throws IOException;
+    
+    /**
+     * Releases connections kept between ranges. The transport may be opened again afterwards.
+     */
+    @Override
+    void close();
+    
+    final class RemoteFile {
+        private final long size;
+        private final String lastModified;
+        
+        public RemoteFile(long size, String lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        /**
+         * Server timestamp used like an HTTP validator, null when the server has none.
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+}
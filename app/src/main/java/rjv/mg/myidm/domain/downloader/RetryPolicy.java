@@ -0,0 +1,119 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed segment attempt is worth another one and how long to wait first.
+ * Network errors and 5xx back off exponentially with jitter, so segments that failed together
+ * do not come back together; 429 and 503 wait at least what Retry-After asks. Other 4xx are
+ * not retried, the same request would get the same answer. Nor is 416: the downloader probes
+ * the file again and starts over at its new size.
+ */
+public class RetryPolicy {
+    
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 30_000;
+    // A server asking for a longer pause than this is not waited for
+    private static final long MAX_RETRY_AFTER_MS = 5 * 60_000;
+    
+    public enum Failure {
+        /** Connection refused, reset or timed out, a short body, 408. */
+        NETWORK,
+        /** A 4xx other than 408, 416 and 429: the request itself is refused. */
+        CLIENT_ERROR,
+        /** A 5xx, or a status the downloader does not expect. */
+        SERVER_ERROR,
+        /** 429: the server asks for fewer or slower requests. */
+        TOO_MANY_REQUESTS,
+        /** 416: the range lies outside the file, which changed size. */
+        RANGE_NOT_SATISFIABLE
+    }
+    
+    private final int maxRetries;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+    
+    /**
+     * @param maxRetries attempts allowed after the first one fails, e.g. {@code DownloadEntity.getMaxRetries()}
+     */
+    public RetryPolicy(int maxRetries) {
+        this(maxRetries, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+    
+    public RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs, Random random) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+    
+    public static Failure classify(Throwable error) {
+        if (error instanceof HttpStatusException) {
+            return classify(((HttpStatusException) error).getStatusCode());
+        }
+        return Failure.NETWORK;
+    }
+    
+    public static Failure classify(int statusCode) {
+        switch (statusCode) {
+            case 408:
+                return Failure.NETWORK;
+            case 416:
+                return Failure.RANGE_NOT_SATISFIABLE;
+            case 429:
+                return Failure.TOO_MANY_REQUESTS;
+            default:
+                return statusCode >= 400 && statusCode < 500 ? Failure.CLIENT_ERROR : Failure.SERVER_ERROR;
+        }
+    }
+    
+    public static boolean isRetryable(Failure failure) {
+        return failure != Failure.CLIENT_ERROR && failure != Failure.RANGE_NOT_SATISFIABLE;
+    }
+    
+    /**
+     * Milliseconds to wait before retry number {@code retry} (1 for the first) after
+     * {@code error}, or -1 when the attempt should not be retried.
+     */
+    public long getDelay(Throwable error, int retry) {
+        if (retry > maxRetries || !isRetryable(classify(error))) return -1;
+        
+        // Equal jitter: half the exponential step is kept, the other half is random
+        long step = baseDelayMs << Math.min(retry - 1, 20);
+        long backoff = Math.min(maxDelayMs, step);
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2 + 1));
+        
+        long retryAfter = error instanceof HttpStatusException
+            ? ((HttpStatusException) error).getRetryAfterMillis() : -1;
+        if (retryAfter > MAX_RETRY_AFTER_MS) return -1;
+        if (retryAfter >= 0) {
+            // Never earlier than asked; the jitter still spreads segments told the same time
+            delay = Math.max(delay, retryAfter + (long) (random.nextDouble() * (baseDelayMs / 2 + 1)));
+        }
+        return delay;
+    }
+    
+    /**
+     * Parses a Retry-After value, either delay seconds or an HTTP date. Returns the wait in
+     * milliseconds from {@code nowMillis}, or -1 when absent or unreadable.
+     */
+    public static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) return -1;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        } catch (NumberFormatException e) {
+            // Not delay seconds, try the date form
+        }
+        try {
+            long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, at - nowMillis);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
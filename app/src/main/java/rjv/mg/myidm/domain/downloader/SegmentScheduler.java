@@ -0,0 +1,226 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-wide scheduler for segment connections.
+ * Caps the number of running segment tasks globally and per host, and hands free
+ * slots to the active downloads in round-robin order so none of them starves.
+ */
+public class SegmentScheduler {
+    
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+    
+    private final int maxConnections;
+    private final int maxConnectionsPerHost;
+    private final ThreadPoolExecutor executor;
+    // Global budget shared by every download on this scheduler
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    // Read buffers shared by every download on this scheduler
+    private final BufferPool bufferPool;
+    // One timer thread for the periodic checks of every download, started on first use
+    private ScheduledExecutorService timer; // guarded by this
+    
+    // Pending tasks per owner; iteration order is the round-robin order
+    private final LinkedHashMap<Object, ArrayDeque<Task>> pending = new LinkedHashMap<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    
+    private static class Task {
+        final Object owner;
+        final String host;
+        final Runnable runnable;
+        
+        Task(Object owner, String host, Runnable runnable) {
+            this.owner = owner;
+            this.host = host;
+            this.runnable = runnable;
+        }
+    }
+    
+    public SegmentScheduler() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+    
+    public SegmentScheduler(int maxConnections, int maxConnectionsPerHost) {
+        this(maxConnections, maxConnectionsPerHost,
+            new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, false, maxConnections));
+    }
+    
+    public SegmentScheduler(int maxConnections, int maxConnectionsPerHost, BufferPool bufferPool) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.bufferPool = bufferPool;
+        
+        // Never more threads than connection slots; idle threads are released
+        this.executor = new ThreadPoolExecutor(this.maxConnections, this.maxConnections,
+            IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(1);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadSegment-" + counter.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Queues a segment task for {@code owner} (usually one downloader) against {@code host}.
+     */
+    public void submit(Object owner, String host, Runnable runnable) {
+        synchronized (this) {
+            ArrayDeque<Task> queue = pending.get(owner);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                pending.put(owner, queue);
+            }
+            queue.add(new Task(owner, host != null ? host : "", runnable));
+        }
+        dispatch();
+    }
+    
+    /**
+     * Drops the tasks of {@code owner} that have not started yet. Running tasks are
+     * expected to notice their own cancellation and return.
+     */
+    public synchronized void cancel(Object owner) {
+        pending.remove(owner);
+    }
+    
+    /**
+     * Runs {@code task} every {@code periodMillis} on the scheduler's timer thread until the
+     * returned future is cancelled. Tasks must be short, they all share that one thread.
+     */
+    public synchronized ScheduledFuture<?> schedulePeriodic(Runnable task, long periodMillis) {
+        return getTimer().scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Runs {@code task} once on the timer thread after {@code delayMillis}, e.g. to queue a
+     * segment again once its retry delay passed without a worker sleeping through it.
+     */
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return getTimer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "DownloadTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+    
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+    
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    public synchronized int getRunningCount() {
+        return running;
+    }
+    
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (ArrayDeque<Task> queue : pending.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+    
+    public void shutdown() {
+        synchronized (this) {
+            pending.clear();
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+        }
+        executor.shutdownNow();
+    }
+    
+    private void dispatch() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                if (running >= maxConnections) return;
+                task = pollNext();
+                if (task == null) return;
+                
+                running++;
+                runningPerHost.merge(task.host, 1, Integer::sum);
+            }
+            
+            final Task started = task;
+            executor.execute(() -> {
+                try {
+                    started.runnable.run();
+                } finally {
+                    release(started);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Takes the head task of the first owner whose host still has a free slot and moves
+     * that owner to the back of the rotation.
+     */
+    private Task pollNext() {
+        Iterator<Map.Entry<Object, ArrayDeque<Task>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayDeque<Task>> entry = it.next();
+            Task head = entry.getValue().peek();
+            if (head == null) {
+                it.remove();
+                continue;
+            }
+            
+            Integer hostRunning = runningPerHost.get(head.host);
+            if (hostRunning != null && hostRunning >= maxConnectionsPerHost) continue;
+            
+            ArrayDeque<Task> queue = entry.getValue();
+            queue.poll();
+            it.remove();
+            if (!queue.isEmpty()) {
+                pending.put(head.owner, queue);
+            }
+            return head;
+        }
+        return null;
+    }
+    
+    private void release(Task task) {
+        synchronized (this) {
+            running--;
+            Integer hostRunning = runningPerHost.get(task.host);
+            if (hostRunning == null || hostRunning <= 1) {
+                runningPerHost.remove(task.host);
+            } else {
+                runningPerHost.put(task.host, hostRunning - 1);
+            }
+        }
+        dispatch();
+    }
+}
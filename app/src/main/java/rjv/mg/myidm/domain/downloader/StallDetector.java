@@ -0,0 +1,116 @@
+package rjv.mg.myidm.domain.downloader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the segment connections worth replacing: those that received nothing for a while,
+ * and those far below the median speed of their siblings. A new connection usually gets
+ * another TCP path, so one bad path no longer sets the pace of the whole download; the
+ * read timeout stays as the last resort.
+ */
+public class StallDetector {
+    
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 2000;
+    // Silence that counts as a stall, well below the read timeout
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 10_000;
+    // Time a new connection gets to ramp up before its speed is compared
+    public static final long DEFAULT_WARMUP_MS = 5000;
+    // A connection this many times slower than the median is replaced
+    private static final int SLOW_FACTOR = 8;
+    // Fewer connections give no meaningful median
+    private static final int MIN_CONNECTIONS_FOR_MEDIAN = 3;
+    // Below this, reconnecting costs more than letting the connection finish
+    private static final long MIN_REMAINING_BYTES = 256 * 1024;
+    
+    public enum Verdict {
+        /** Nothing received for longer than the stall timeout. */
+        STALLED,
+        /** Receiving, but far below the median of the other connections. */
+        SLOW
+    }
+    
+    /**
+     * What the detector looks at for one open connection.
+     */
+    public static final class Connection {
+        final long openedAt;
+        final long lastActivity;
+        final long speed;
+        final long remainingBytes;
+        
+        /**
+         * @param openedAt when the request was sent, epoch milliseconds
+         * @param lastActivity when bytes last arrived on it, epoch milliseconds
+         * @param speed bytes per second measured on this connection, 0 before the first measure
+         * @param remainingBytes bytes it still has to deliver
+         */
+        public Connection(long openedAt, long lastActivity, long speed, long remainingBytes) {
+            this.openedAt = openedAt;
+            this.lastActivity = lastActivity;
+            this.speed = speed;
+            this.remainingBytes = remainingBytes;
+        }
+    }
+    
+    private final long checkIntervalMs;
+    private final long stallTimeoutMs;
+    private final long warmupMs;
+    
+    public StallDetector() {
+        this(DEFAULT_CHECK_INTERVAL_MS, DEFAULT_STALL_TIMEOUT_MS, DEFAULT_WARMUP_MS);
+    }
+    
+    /**
+     * @param warmupMs should cover at least one speed measurement, which takes a second
+     */
+    public StallDetector(long checkIntervalMs, long stallTimeoutMs, long warmupMs) {
+        this.checkIntervalMs = checkIntervalMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.warmupMs = warmupMs;
+    }
+    
+    /**
+     * How often the connections should be handed to {@link #findLaggards}.
+     */
+    public long getCheckInterval() {
+        return checkIntervalMs;
+    }
+    
+    /**
+     * Returns the connections of one download that should be closed and opened again,
+     * with the reason. Connections with little left to deliver are never picked.
+     */
+    public <K> Map<K, Verdict> findLaggards(Map<K, Connection> connections, long now) {
+        Map<K, Verdict> laggards = new HashMap<>();
+        
+        // Only connections past their ramp-up say something about the path
+        long[] speeds = new long[connections.size()];
+        int measured = 0;
+        for (Connection connection : connections.values()) {
+            if (now - connection.openedAt >= warmupMs) {
+                speeds[measured++] = connection.speed;
+            }
+        }
+        long median = -1;
+        if (measured >= MIN_CONNECTIONS_FOR_MEDIAN) {
+            Arrays.sort(speeds, 0, measured);
+            median = speeds[measured / 2];
+        }
+        
+        for (Map.Entry<K, Connection> entry : connections.entrySet()) {
+            Connection connection = entry.getValue();
+            if (connection.remainingBytes < MIN_REMAINING_BYTES) continue;
+            
+            long silentSince = Math.max(connection.openedAt, connection.lastActivity);
+            if (now - silentSince > stallTimeoutMs) {
+                laggards.put(entry.getKey(), Verdict.STALLED);
+            } else if (median > 0 && now - connection.openedAt >= warmupMs
+                    && connection.speed * SLOW_FACTOR < median) {
+                laggards.put(entry.getKey(), Verdict.SLOW);
+            }
+        }
+        return laggards;
+    }
+}
@@ -0,0 +1,891 @@
+package rjv.mg.myidm.domain.downloader;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.checksum.ChecksumAlgorithm;
+import rjv.mg.myidm.domain.downloader.checksum.StreamingHasher;
+import rjv.mg.myidm.domain.model.SegmentStatus;
+
+/**
+ * Base for streaming formats made of many small media segments (HLS, DASH).
+ * Subclasses turn a manifest into a list of {@link MediaSegment}s and assemble the final
+ * file; this class fetches the segments in parallel on the shared {@link SegmentScheduler}.
+ * Each media segment is one row in {@code download_segments} and is kept in a temp directory
+ * once complete, so a resumed download only fetches the segments that are missing.
+ */
+public abstract class StreamDownloader implements DownloadEngine {
+    private static final String TAG = "StreamDownloader";
+    
+    // Configuration
+    private static final int MAX_PARALLEL_SEGMENTS = 8;
+    protected static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final String TEMP_DIR_SUFFIX = ".stream";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int CIPHER_BLOCK_SIZE = 16;
+    // Longest a read waits to fill its buffer before reporting what it has
+    private static final long FILL_WINDOW_NANOS = 200_000_000L;
+    
+    protected final OkHttpClient httpClient;
+    protected final BufferPool bufferPool;
+    private final SegmentScheduler scheduler;
+    // True when no scheduler was passed in, the private one is shut down with the download
+    private final boolean ownsScheduler;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    
+    // Download state
+    protected final DownloadEntity download;
+    private final List<DownloadSegmentEntity> savedSegments;
+    private final List<DownloadSegmentEntity> segments;
+    private final List<MediaSegment> mediaSegments;
+    private final AtomicLong totalDownloadedBytes;
+    private final AtomicInteger completedSegments;
+    private final AtomicInteger failedSegments;
+    private File tempDir;
+    private int parallelSegments;
+    private int runningWorkers; // guarded by this
+    private final RetryPolicy retryPolicy;
+    // Retries used by all segments since the download last made real progress, the
+    // download's budget is DownloadEntity.maxRetries
+    private final AtomicInteger retriesInARow = new AtomicInteger(0);
+    // Segments whose connection received a whole buffer since their last failure
+    private final Set<DownloadSegmentEntity> progressedSegments = ConcurrentHashMap.newKeySet();
+    // Failed segments waiting out their backoff, PENDING but not picked before the due time
+    private final Map<DownloadSegmentEntity, Long> retryDue; // guarded by this
+    
+    // Callbacks
+    private DownloadProgressCallback progressCallback;
+    private DownloadCompletionCallback completionCallback;
+    private DownloadErrorCallback errorCallback;
+    
+    // Control flags
+    private volatile boolean isPaused;
+    private volatile boolean isCancelled;
+    private volatile boolean isCompleted;
+    private boolean isFinalizing;
+    
+    private final Map<Integer, Long> segmentSpeeds;
+    private final Map<DownloadSegmentEntity, Call> activeCalls;
+    
+    /**
+     * One resource to fetch: a whole URL, or a byte range of it when {@code offset >= 0}.
+     * {@code track} groups segments that are joined into the same stream.
+     */
+    public static class MediaSegment {
+        final String url;
+        final long offset;
+        final long length;
+        final int track;
+        
+        public MediaSegment(String url, long offset, long length, int track) {
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+            this.track = track;
+        }
+        
+        public String getUrl() { return url; }
+        public long getOffset() { return offset; }
+        public long getLength() { return length; }
+        public int getTrack() { return track; }
+        
+        public boolean hasByteRange() { return offset >= 0; }
+    }
+    
+    protected static class FetchedText {
+        public final String url; // after redirects, relative URIs resolve against it
+        public final String content;
+        
+        FetchedText(String url, String content) {
+            this.url = url;
+            this.content = content;
+        }
+    }
+    
+    /**
+     * @param savedSegments rows persisted by an earlier run, reused when the manifest still
+     *                      has the same number of segments
+     * @param scheduler shared scheduler, or null for a private one shut down with the download
+     * @param httpClient pooled client, or null for {@link DownloadHttpClient#getDefault()}
+     */
+    protected StreamDownloader(DownloadEntity download, List<DownloadSegmentEntity> savedSegments,
+                               SegmentScheduler scheduler, OkHttpClient httpClient) {
+        this.download = download;
+        this.savedSegments = savedSegments;
+        this.segments = new CopyOnWriteArrayList<>();
+        this.mediaSegments = new ArrayList<>();
+        this.totalDownloadedBytes = new AtomicLong(0);
+        this.completedSegments = new AtomicInteger(0);
+        this.failedSegments = new AtomicInteger(0);
+        this.segmentSpeeds = new ConcurrentHashMap<>();
+        this.activeCalls = new ConcurrentHashMap<>();
+        this.retryDue = new HashMap<>();
+        this.retryPolicy = new RetryPolicy(download.getMaxRetries());
+        this.checksumAlgorithm = ChecksumAlgorithm.fromName(download.getChecksumAlgorithm());
+        
+        this.ownsScheduler = scheduler == null;
+        if (scheduler == null) {
+            scheduler = new SegmentScheduler(MAX_PARALLEL_SEGMENTS, MAX_PARALLEL_SEGMENTS);
+        }
+        this.scheduler = scheduler;
+        this.httpClient = httpClient != null ? httpClient : DownloadHttpClient.getDefault();
+        this.bandwidthLimiter = new BandwidthLimiter(download.getBandwidthLimit());
+        this.bufferPool = scheduler.getBufferPool();
+    }
+    
+    /**
+     * Reads the manifest and returns every segment to fetch, in the order they are joined.
+     * May change the output path through {@link #setOutputExtension(String)}.
+     */
+    protected abstract List<MediaSegment> loadSegments() throws IOException;
+    
+    /**
+     * Writes the final file to {@code target} from the completed segment files.
+     * @return the checksum of {@code target}, or null when no algorithm is set
+     */
+    protected abstract String assemble(File target) throws IOException;
+    
+    /**
+     * Decryption for a segment, or null when it is stored in the clear.
+     */
+    protected Cipher newCipher(int segmentIndex) throws IOException {
+        return null;
+    }
+    
+    /**
+     * Fetches the manifest and builds the segment list. Blocks on the network,
+     * call it off the main thread before {@link #start()}.
+     */
+    @Override
+    public void prepare() throws IOException {
+        List<MediaSegment> loaded = loadSegments();
+        if (loaded.isEmpty()) {
+            throw new IOException("Manifest has no segments");
+        }
+        mediaSegments.clear();
+        mediaSegments.addAll(loaded);
+        tempDir = new File(download.getFilePath() + TEMP_DIR_SUFFIX);
+        initializeSegments();
+    }
+    
+    /**
+     * The joined file is a media container, not a manifest.
+     */
+    protected void setOutputExtension(String extension) {
+        String filePath = download.getFilePath();
+        if (filePath == null || filePath.endsWith(extension)) return;
+        
+        int dot = filePath.lastIndexOf('.');
+        int slash = filePath.lastIndexOf(File.separatorChar);
+        String base = dot > slash ? filePath.substring(0, dot) : filePath;
+        download.setFilePath(base + extension);
+        download.setFilename(new File(base + extension).getName());
+    }
+    
+    private void initializeSegments() {
+        segments.clear();
+        totalDownloadedBytes.set(0);
+        completedSegments.set(0);
+        
+        // Saved rows only describe this manifest if the segment count still matches
+        boolean reuse = savedSegments != null && savedSegments.size() == mediaSegments.size();
+        if (!reuse) {
+            deleteTempDir();
+        }
+        
+        for (int i = 0; i < mediaSegments.size(); i++) {
+            MediaSegment media = mediaSegments.get(i);
+            DownloadSegmentEntity segment = reuse ? savedSegments.get(i) : new DownloadSegmentEntity(
+                download.getId(), i,
+                media.hasByteRange() ? media.offset : 0,
+                media.hasByteRange() ? media.offset + media.length - 1 : -1
+            );
+            File segmentFile = getSegmentFile(i);
+            segment.setTempFilePath(segmentFile.getAbsolutePath());
+            segment.setDownloadSpeed(0);
+            segment.setRetryCount(0);
+            
+            // A segment file is only renamed into place once it is complete
+            if (segmentFile.exists()) {
+                segment.setStatus(SegmentStatus.COMPLETED);
+                segment.setDownloadedBytes(segmentFile.length());
+                completedSegments.incrementAndGet();
+                totalDownloadedBytes.addAndGet(segmentFile.length());
+            } else {
+                segment.setStatus(SegmentStatus.PENDING);
+                segment.setDownloadedBytes(0);
+            }
+            segments.add(segment);
+        }
+        
+        download.setSegmentCount(segments.size());
+        Log.d(TAG, "Prepared " + segments.size() + " segments, " + completedSegments.get() + " already on disk");
+    }
+    
+    @Override
+    public void start() {
+        if (isCompleted || isCancelled) return;
+        if (tempDir == null) {
+            throw new IllegalStateException("prepare() must be called before start()");
+        }
+        
+        if (!tempDir.exists() && !tempDir.mkdirs()) {
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to create " + tempDir, -1);
+            }
+            return;
+        }
+        
+        parallelSegments = Math.max(1, Math.min(download.getMaxConcurrentSegments(), MAX_PARALLEL_SEGMENTS));
+        startWorkers();
+        
+        // Everything may already be on disk when resuming
+        if (completedSegments.get() == segments.size()) {
+            checkCompletion();
+        }
+    }
+    
+    /**
+     * Starts workers for pending segments in manifest order, up to the parallel limit.
+     */
+    private synchronized void startWorkers() {
+        if (isCancelled || isPaused || isFinalizing) return;
+        
+        long now = System.currentTimeMillis();
+        while (runningWorkers < parallelSegments) {
+            DownloadSegmentEntity next = null;
+            for (DownloadSegmentEntity segment : segments) {
+                Long due = retryDue.get(segment);
+                if (segment.getStatus() == SegmentStatus.PENDING && (due == null || due <= now)) {
+                    next = segment;
+                    break;
+                }
+            }
+            if (next == null) return;
+            
+            retryDue.remove(next);
+            next.setStatus(SegmentStatus.DOWNLOADING);
+            runningWorkers++;
+            DownloadSegmentEntity segment = next;
+            String host = getHost(mediaSegments.get(segment.getSegmentIndex()).url);
+            scheduler.submit(this, host, () -> downloadSegment(segment));
+        }
+    }
+    
+    private void downloadSegment(DownloadSegmentEntity segment) {
+        try {
+            while (!downloadSegmentWithRetries(segment)) {
+                // Failed for good, or queued again for a retry once its backoff passed
+                if (isCancelled || segment.getStatus() != SegmentStatus.DOWNLOADING) break;
+                
+                // Stopped by pause(): release the thread unless resume() already happened
+                if (parkSegment(segment)) break;
+            }
+        } finally {
+            synchronized (this) {
+                runningWorkers--;
+            }
+        }
+        startWorkers();
+    }
+    
+    /**
+     * Marks a segment stopped by pause() as PAUSED so resume() reschedules it.
+     * Returns false when the download was resumed meanwhile and the caller should continue.
+     */
+    private synchronized boolean parkSegment(DownloadSegmentEntity segment) {
+        if (!isPaused) return false;
+        
+        segment.setStatus(SegmentStatus.PAUSED);
+        segment.setDownloadSpeed(0);
+        segmentSpeeds.remove(segment.getSegmentIndex());
+        return true;
+    }
+    
+    /**
+     * Runs one attempt on {@code segment}. A failure goes to the retry policy, and the worker
+     * returns instead of sleeping through the backoff. The retry budget is shared by all
+     * segments and only refills once a whole buffer arrived on one connection or a segment
+     * completed, so a dead server does not get {@code maxRetries} attempts per segment.
+     */
+    private boolean downloadSegmentWithRetries(DownloadSegmentEntity segment) {
+        segment.setStatus(SegmentStatus.DOWNLOADING);
+        
+        Exception failure;
+        try {
+            if (downloadSegmentInternal(segment)) {
+                retriesInARow.set(0);
+                progressedSegments.remove(segment);
+                segment.setStatus(SegmentStatus.COMPLETED);
+                segment.setDownloadSpeed(0);
+                segment.setRetryCount(0);
+                segmentSpeeds.remove(segment.getSegmentIndex());
+                completedSegments.incrementAndGet();
+                reportProgress();
+                checkCompletion();
+                return true;
+            }
+            if (isPaused || isCancelled) return false;
+            failure = new IOException("Incomplete segment");
+        } catch (Exception e) {
+            // pause()/cancel() closed the connection under us
+            if (isPaused || isCancelled) return false;
+            failure = e;
+        }
+        
+        int retry;
+        if (progressedSegments.remove(segment)) {
+            // Failing after real progress starts a new streak, so connections that all
+            // drop at once after receiving data do not use up the budget together
+            retriesInARow.set(1);
+            retry = 1;
+        } else {
+            retry = retriesInARow.incrementAndGet();
+        }
+        segment.setRetryCount(segment.getRetryCount() + 1);
+        segment.setErrorMessage(failure.getMessage());
+        long delay = retryPolicy.getDelay(failure, retry);
+        if (delay < 0) {
+            Log.e(TAG, "Segment " + segment.getSegmentIndex() + " failed (" + RetryPolicy.classify(failure)
+                + ", attempt " + retry + ")", failure);
+            segment.setStatus(SegmentStatus.FAILED);
+            failedSegments.incrementAndGet();
+            if (errorCallback != null) {
+                errorCallback.onSegmentFailed(segment.getSegmentIndex(), failure.getMessage());
+            }
+            checkCompletion();
+            return false;
+        }
+        
+        Log.w(TAG, "Segment " + segment.getSegmentIndex() + " retry " + retry + " in " + delay + " ms: " + failure.getMessage());
+        synchronized (this) {
+            retryDue.put(segment, System.currentTimeMillis() + delay);
+            segment.setStatus(SegmentStatus.PENDING);
+        }
+        scheduler.schedule(this::startWorkers, delay);
+        return false;
+    }
+    
+    /**
+     * Fetches one media segment into {@code <n>.seg.part}, decrypting on the way, and renames
+     * it to {@code <n>.seg} once complete. A failed or paused attempt starts the segment over.
+     */
+    private boolean downloadSegmentInternal(DownloadSegmentEntity segment) throws IOException {
+        MediaSegment media = mediaSegments.get(segment.getSegmentIndex());
+        File segmentFile = getSegmentFile(segment.getSegmentIndex());
+        File partFile = new File(segmentFile.getPath() + PARTIAL_FILE_SUFFIX);
+        
+        // Bytes of an interrupted attempt are thrown away with its part file
+        totalDownloadedBytes.addAndGet(-segment.getDownloadedBytes());
+        segment.setDownloadedBytes(0);
+        
+        Cipher cipher = newCipher(segment.getSegmentIndex());
+        Request.Builder request = newRequest(media.url);
+        if (media.hasByteRange()) {
+            request.header("Range", "bytes=" + media.offset + "-" + (media.offset + media.length - 1));
+        }
+        
+        Response response = null;
+        ByteBuffer buffer = null;
+        ByteBuffer decrypted = null;
+        FileOutputStream output = null;
+        
+        try {
+            // Keep the call reachable so pause()/cancel() can abort a blocked read
+            Call call = httpClient.newCall(request.build());
+            activeCalls.put(segment, call);
+            if (isPaused || isCancelled) return false;
+            
+            response = call.execute();
+            int responseCode = response.code();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
+                throw HttpStatusException.from(response, "HTTP error " + responseCode + " for segment " + segment.getSegmentIndex());
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response body for segment " + segment.getSegmentIndex());
+            }
+            
+            BufferedSource source = body.source();
+            long expected = body.contentLength();
+            if (media.hasByteRange()) {
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    // Range ignored: skip to the sub-range inside the full resource
+                    source.skip(media.offset);
+                }
+                expected = media.length;
+            }
+            
+            output = new FileOutputStream(partFile);
+            FileChannel channel = output.getChannel();
+            BandwidthLimiter globalLimiter = scheduler.getBandwidthLimiter();
+            buffer = bufferPool.acquire();
+            if (cipher != null) {
+                decrypted = bufferPool.acquire();
+            }
+            // Leave room for the padding block the cipher may hold back
+            int readSize = cipher != null ? buffer.capacity() - CIPHER_BLOCK_SIZE : buffer.capacity();
+            
+            long downloadedBytes = 0;
+            long lastSpeedUpdate = System.currentTimeMillis();
+            long lastSpeedBytes = 0;
+            boolean progressed = false;
+            
+            while (!isCancelled && !isPaused) {
+                long remaining = expected >= 0 ? expected - downloadedBytes : readSize;
+                if (remaining <= 0) break;
+                
+                int bytesRead = fillBuffer(source, buffer, (int) Math.min(readSize, remaining));
+                if (bytesRead == -1) break;
+                
+                bandwidthLimiter.acquire(bytesRead);
+                globalLimiter.acquire(bytesRead);
+                
+                buffer.flip();
+                ByteBuffer out = buffer;
+                if (cipher != null) {
+                    decrypted.clear();
+                    cipher.update(buffer, decrypted);
+                    decrypted.flip();
+                    out = decrypted;
+                }
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                
+                downloadedBytes += bytesRead;
+                segment.setDownloadedBytes(downloadedBytes);
+                segment.setLastActivity(System.currentTimeMillis());
+                totalDownloadedBytes.addAndGet(bytesRead);
+                if (!progressed && downloadedBytes >= buffer.capacity()) {
+                    // A whole buffer arrived on this connection, a few bytes before a reset do not count
+                    progressed = true;
+                    retriesInARow.set(0);
+                    progressedSegments.add(segment);
+                }
+                
+                long currentTime = System.currentTimeMillis();
+                if (currentTime - lastSpeedUpdate >= 1000) { // Update speed every second
+                    long speed = (downloadedBytes - lastSpeedBytes) * 1000 / (currentTime - lastSpeedUpdate);
+                    segment.setDownloadSpeed(speed);
+                    segmentSpeeds.put(segment.getSegmentIndex(), speed);
+                    lastSpeedUpdate = currentTime;
+                    lastSpeedBytes = downloadedBytes;
+                }
+                reportProgress();
+            }
+            
+            if (isCancelled || isPaused || (expected >= 0 && downloadedBytes != expected)) {
+                return false;
+            }
+            
+            if (cipher != null) {
+                // Flush the last block and strip its padding
+                buffer.clear();
+                buffer.limit(0);
+                decrypted.clear();
+                cipher.doFinal(buffer, decrypted);
+                decrypted.flip();
+                while (decrypted.hasRemaining()) {
+                    channel.write(decrypted);
+                }
+            }
+            channel.force(false);
+            output.close();
+            output = null;
+            
+            if (!partFile.renameTo(segmentFile)) {
+                throw new IOException("Unable to rename " + partFile.getName() + " to " + segmentFile.getName());
+            }
+            segment.setEndByte(segment.getStartByte() + downloadedBytes - 1);
+            return true;
+            
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt segment " + segment.getSegmentIndex(), e);
+        } finally {
+            activeCalls.remove(segment);
+            if (output != null) {
+                try { output.close(); } catch (IOException e) { }
+            }
+            bufferPool.release(buffer);
+            bufferPool.release(decrypted);
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+    
+    protected FetchedText fetchText(String url) throws IOException {
+        try (Response response = httpClient.newCall(newRequest(url).build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP error " + response.code() + " fetching " + url);
+            }
+            return new FetchedText(response.request().url().toString(), body.string());
+        }
+    }
+    
+    /**
+     * Fetches a whole resource, or {@code length} bytes from {@code offset} when offset >= 0.
+     */
+    protected byte[] fetchBytes(String url, long offset, long length) throws IOException {
+        Request.Builder request = newRequest(url);
+        if (offset >= 0) {
+            request.header("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        }
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP error " + response.code() + " fetching " + url);
+            }
+            if (offset >= 0 && response.code() == HttpURLConnection.HTTP_OK) {
+                BufferedSource source = body.source();
+                source.skip(offset);
+                return source.readByteArray(length);
+            }
+            return body.bytes();
+        }
+    }
+    
+    private Request.Builder newRequest(String url) {
+        Request.Builder request = new Request.Builder().url(url);
+        if (download.getUserAgent() != null) {
+            request.header("User-Agent", download.getUserAgent());
+        }
+        if (download.getReferer() != null) {
+            request.header("Referer", download.getReferer());
+        }
+        if (download.getCookies() != null) {
+            request.header("Cookie", download.getCookies());
+        }
+        return request;
+    }
+    
+    /**
+     * Reads up to {@code max} bytes into {@code buffer}, returning early once the fill
+     * window passed. Returns -1 only when the stream ended before any byte was read.
+     */
+    private int fillBuffer(BufferedSource source, ByteBuffer buffer, int max) throws IOException {
+        buffer.clear();
+        buffer.limit(max);
+        long deadline = 0;
+        while (buffer.hasRemaining()) {
+            int n = source.read(buffer);
+            if (n == -1) break;
+            
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + FILL_WINDOW_NANOS;
+            } else if (now >= deadline) {
+                break;
+            }
+        }
+        int filled = buffer.position();
+        return filled == 0 && max > 0 ? -1 : filled;
+    }
+    
+    private void reportProgress() {
+        if (progressCallback == null) return;
+        int total = segments.size();
+        int progress = total > 0 ? completedSegments.get() * 100 / total : 0;
+        progressCallback.onProgress(totalDownloadedBytes.get(), estimateTotalBytes(), progress, getSpeed());
+    }
+    
+    /**
+     * Segment sizes are unknown up front; extrapolate from the completed ones.
+     */
+    private long estimateTotalBytes() {
+        long completedBytes = 0;
+        int completed = 0;
+        for (DownloadSegmentEntity segment : segments) {
+            if (segment.getStatus() == SegmentStatus.COMPLETED) {
+                completedBytes += segment.getDownloadedBytes();
+                completed++;
+            }
+        }
+        return completed > 0 ? completedBytes * segments.size() / completed : 0;
+    }
+    
+    private synchronized void checkCompletion() {
+        int completed = completedSegments.get();
+        int failed = failedSegments.get();
+        
+        if (completed + failed == segments.size() && !isFinalizing) {
+            isFinalizing = true;
+            if (failed == 0) {
+                finishDownload();
+            } else if (errorCallback != null) {
+                errorCallback.onError(failed + " of " + segments.size() + " stream segments failed", -1);
+            }
+            releaseOwnScheduler();
+        }
+    }
+    
+    /**
+     * Shuts down the scheduler made in the constructor once the download ended, a shared
+     * scheduler keeps running for the other downloads. Called last, after the callbacks,
+     * since it interrupts the worker that may be calling it.
+     */
+    private void releaseOwnScheduler() {
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+    
+    private void finishDownload() {
+        File outputFile = new File(download.getFilePath());
+        File partialFile = new File(download.getFilePath() + PARTIAL_FILE_SUFFIX);
+        
+        try {
+            String checksum = assemble(partialFile);
+            
+            if (outputFile.exists()) {
+                outputFile.delete();
+            }
+            if (!partialFile.renameTo(outputFile)) {
+                throw new IOException("Unable to rename " + partialFile.getName() + " to " + outputFile.getName());
+            }
+            download.setFileSize(outputFile.length());
+            deleteTempDir();
+            isCompleted = true;
+            
+            if (completionCallback != null) {
+                completionCallback.onCompleted(outputFile.getAbsolutePath(), checksum);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error assembling stream", e);
+            partialFile.delete();
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to assemble stream: " + e.getMessage(), -1);
+            }
+        }
+    }
+    
+    /**
+     * Joins segment files in the given order. Without a hasher the copy stays in the
+     * kernel through transferTo(); otherwise bytes go through one pooled buffer to be hashed.
+     */
+    protected void concatenate(List<Integer> segmentIndexes, File target, StreamingHasher hasher) throws IOException {
+        ByteBuffer buffer = hasher != null ? bufferPool.acquire() : null;
+        try (FileOutputStream output = new FileOutputStream(target)) {
+            FileChannel out = output.getChannel();
+            for (int index : segmentIndexes) {
+                try (FileInputStream input = new FileInputStream(getSegmentFile(index))) {
+                    FileChannel in = input.getChannel();
+                    if (hasher == null) {
+                        long position = 0;
+                        long size = in.size();
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    } else {
+                        copyAndHash(in, out, buffer, hasher);
+                    }
+                }
+            }
+            out.force(false);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /**
+     * Hashes a file written by a step that could not hash inline, such as a muxer.
+     */
+    protected void hashFile(File file, StreamingHasher hasher) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileInputStream input = new FileInputStream(file)) {
+            copyAndHash(input.getChannel(), null, buffer, hasher);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    private static void copyAndHash(FileChannel in, FileChannel out, ByteBuffer buffer, StreamingHasher hasher) throws IOException {
+        buffer.clear();
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            if (out != null) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.position(0);
+            }
+            hasher.update(buffer);
+            buffer.clear();
+        }
+    }
+    
+    /**
+     * Fresh hasher for the configured checksum algorithm, or null when none is set.
+     */
+    protected StreamingHasher newHasher() {
+        return checksumAlgorithm.newHasher();
+    }
+    
+    protected List<MediaSegment> getMediaSegments() {
+        return mediaSegments;
+    }
+    
+    protected File getTempDir() {
+        return tempDir;
+    }
+    
+    protected File getSegmentFile(int index) {
+        return new File(tempDir, index + SEGMENT_SUFFIX);
+    }
+    
+    private void deleteTempDir() {
+        if (tempDir == null) {
+            tempDir = new File(download.getFilePath() + TEMP_DIR_SUFFIX);
+        }
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+    
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+    
+    private void cancelActiveCalls() {
+        for (Call call : activeCalls.values()) {
+            call.cancel();
+        }
+    }
+    
+    /**
+     * Stops every segment and releases its connection. Completed segments are kept;
+     * segments in flight restart from their first byte on resume.
+     */
+    @Override
+    public void pause() {
+        synchronized (this) {
+            if (isPaused || isCancelled || isCompleted) return;
+            isPaused = true;
+        }
+        cancelActiveCalls();
+        Log.d(TAG, "Stream download paused");
+    }
+    
+    @Override
+    public void resume() {
+        synchronized (this) {
+            if (!isPaused || isCancelled || isCompleted) return;
+            isPaused = false;
+            
+            for (DownloadSegmentEntity segment : segments) {
+                if (segment.getStatus() == SegmentStatus.PAUSED) {
+                    segment.setStatus(SegmentStatus.PENDING);
+                }
+            }
+            startWorkers();
+        }
+        Log.d(TAG, "Stream download resumed");
+    }
+    
+    @Override
+    public void cancel() {
+        isCancelled = true;
+        isPaused = false;
+        Log.d(TAG, "Stream download cancelled");
+        
+        scheduler.cancel(this);
+        cancelActiveCalls();
+        deleteTempDir();
+        releaseOwnScheduler();
+    }
+    
+    /**
+     * Changes the per-download cap while running, 0 removes it.
+     */
+    @Override
+    public void setBandwidthLimit(long bytesPerSecond) {
+        download.setBandwidthLimit(bytesPerSecond);
+        bandwidthLimiter.setLimit(bytesPerSecond);
+    }
+    
+    @Override
+    public void setProgressCallback(DownloadProgressCallback callback) {
+        this.progressCallback = callback;
+    }
+    
+    @Override
+    public void setCompletionCallback(DownloadCompletionCallback callback) {
+        this.completionCallback = callback;
+    }
+    
+    @Override
+    public void setErrorCallback(DownloadErrorCallback callback) {
+        this.errorCallback = callback;
+    }
+    
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+    
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+    
+    @Override
+    public boolean isPaused() {
+        return isPaused;
+    }
+    
+    @Override
+    public List<DownloadSegmentEntity> getSegments() {
+        return new ArrayList<>(segments);
+    }
+    
+    @Override
+    public long getDownloadedBytes() {
+        return totalDownloadedBytes.get();
+    }
+    
+    @Override
+    public long getSpeed() {
+        long totalSpeed = 0;
+        for (Long speed : segmentSpeeds.values()) {
+            totalSpeed += speed;
+        }
+        return totalSpeed;
+    }
+}
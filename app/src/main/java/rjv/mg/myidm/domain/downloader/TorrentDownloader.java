@@ -1,189 +1,530 @@
 package rjv.mg.myidm.domain.downloader;
 
-import android.content.Context;
 import android.util.Log;
 
-import rjv.mg.myidm.domain.model.DownloadStatus;
-import rjv.mg.myidm.domain.model.DownloadType;
+import org.libtorrent4j.AddTorrentParams;
+import org.libtorrent4j.FileStorage;
+import org.libtorrent4j.PieceIndexBitfield;
+import org.libtorrent4j.SessionHandle;
+import org.libtorrent4j.SessionManager;
+import org.libtorrent4j.Sha1Hash;
+import org.libtorrent4j.TorrentFlags;
+import org.libtorrent4j.TorrentHandle;
+import org.libtorrent4j.TorrentInfo;
+import org.libtorrent4j.TorrentStatus;
+import org.libtorrent4j.alerts.FileErrorAlert;
+import org.libtorrent4j.alerts.PieceFinishedAlert;
+import org.libtorrent4j.alerts.SaveResumeDataAlert;
+import org.libtorrent4j.alerts.TorrentAlert;
+import org.libtorrent4j.alerts.TorrentErrorAlert;
+import org.libtorrent4j.alerts.TorrentFinishedAlert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
 
 /**
- * Gestionnaire de téléchargements torrent (temporairement désactivé)
- * TODO: Réactiver avec libtorrent4j
+ * Downloads a torrent through the shared {@link TorrentSession}. The source is a magnet link,
+ * an http(s) URL of a .torrent file or a local .torrent path. Metadata and libtorrent's
+ * fast-resume data are kept in the app's files directory so a restarted download does not
+ * recheck its pieces; verified pieces are also exposed as a bitfield for the database.
  */
-public class TorrentDownloader {
+public class TorrentDownloader implements DownloadEngine {
     
     private static final String TAG = "TorrentDownloader";
     
-    // TODO: Réactiver avec libtorrent4j
-    /*
-    private static SessionManager sessionManager;
-    private final Context context;
-    private final String torrentPath;
-    private final String downloadPath;
-    private final TorrentHandle torrentHandle;
-    private final TorrentDownloadCallback callback;
-    
-    public interface TorrentDownloadCallback {
-        void onProgress(int progress, long downloaded, long total);
-        void onComplete(String filePath);
-        void onError(String error);
-    }
-    
-    public TorrentDownloader(Context context, String torrentPath, String downloadPath, TorrentDownloadCallback callback) {
-        this.context = context;
-        this.torrentPath = torrentPath;
-        this.downloadPath = downloadPath;
-        this.callback = callback;
+    // Configuration
+    private static final int MAGNET_TIMEOUT_SECONDS = 60;
+    private static final String METADATA_SUFFIX = ".torrent";
+    private static final String RESUME_SUFFIX = ".resume";
+    // How often fresh pieces are written to the fast-resume file while downloading
+    private static final long RESUME_SAVE_INTERVAL_MS = 30_000;
+    // Largest file with one of these extensions turns on sequential mode for a new torrent
+    private static final Set<String> MEDIA_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "mp4", "mkv", "avi", "mov", "webm", "m4v", "wmv", "flv", "ts",
+        "mp3", "m4a", "flac", "ogg", "opus", "wav", "aac"));
+    
+    private final DownloadEntity download;
+    private final TorrentSession session;
+    private final OkHttpClient httpClient;
+    
+    // Torrent state
+    private TorrentInfo torrentInfo;
+    private Sha1Hash infoHash;
+    private volatile TorrentHandle handle;
+    private volatile byte[] pieces;
+    private volatile long downloadedBytes;
+    private volatile long downloadSpeed;
+    private volatile long uploadSpeed;
+    private int lastPieceCount = -1;
+    // Only touched by refresh(), on the session's refresh thread
+    private boolean resumeDataStale;
+    private long lastResumeSave;
+    
+    // Callbacks
+    private DownloadProgressCallback progressCallback;
+    private DownloadCompletionCallback completionCallback;
+    private DownloadErrorCallback errorCallback;
+    
+    // Control flags
+    private volatile boolean isPaused;
+    private volatile boolean isCancelled;
+    private volatile boolean isCompleted;
+    
+    /**
+     * @param httpClient pooled client, or null for {@link DownloadHttpClient#getDefault()}
+     */
+    public TorrentDownloader(DownloadEntity download, TorrentSession session, OkHttpClient httpClient) {
+        this.download = download;
+        this.session = session;
+        this.httpClient = httpClient != null ? httpClient : DownloadHttpClient.getDefault();
+        this.pieces = download.getTorrentPieces();
+    }
+    
+    /**
+     * Loads the torrent metadata: from an earlier run, from peers for a magnet link, or from the
+     * .torrent source. Names the download after the torrent. Blocks on the network, call it off
+     * the main thread before {@link #start()}.
+     */
+    @Override
+    public void prepare() throws IOException {
+        File metadataFile = getMetadataFile();
+        byte[] metadata;
+        if (metadataFile.exists()) {
+            metadata = Files.readAllBytes(metadataFile.toPath());
+        } else {
+            metadata = loadMetadata(download.getUrl());
+            try (FileOutputStream output = new FileOutputStream(metadataFile)) {
+                output.write(metadata);
+            }
+        }
         
-        if (sessionManager == null) {
-            initializeSession();
+        try {
+            torrentInfo = TorrentInfo.bdecode(metadata);
+        } catch (IllegalArgumentException e) {
+            metadataFile.delete();
+            throw new IOException("Invalid torrent file: " + e.getMessage(), e);
         }
+        infoHash = torrentInfo.infoHash();
         
-        this.torrentHandle = addTorrent(torrentPath);
+        // The torrent decides the name; files are saved next to where the download was planned
+        File saveDir = getSaveDir();
+        download.setFilename(torrentInfo.name());
+        download.setFilePath(new File(saveDir, torrentInfo.name()).getAbsolutePath());
+        download.setFileSize(torrentInfo.totalSize());
+        download.setSegmentCount(torrentInfo.numPieces());
+        
+        if (pieces == null || pieces.length != bitfieldLength(torrentInfo.numPieces())) {
+            pieces = new byte[bitfieldLength(torrentInfo.numPieces())];
+            // First run: media is fetched in order so it can be played while downloading
+            if (isMediaTorrent(torrentInfo)) {
+                download.setSequentialDownload(true);
+            }
+        }
+        Log.d(TAG, "Prepared torrent " + torrentInfo.name() + ": " + torrentInfo.numPieces() + " pieces of "
+            + torrentInfo.pieceLength() + " bytes");
     }
     
-    private void initializeSession() {
-        try {
-            sessionManager = new SessionManager();
-            sessionManager.start();
-            Log.d(TAG, "Torrent session initialized");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to initialize torrent session", e);
+    private byte[] loadMetadata(String source) throws IOException {
+        String lower = source.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("magnet:")) {
+            return session.fetchMagnet(source, MAGNET_TIMEOUT_SECONDS);
+        }
+        if (lower.startsWith("http://") || lower.startsWith("https://")) {
+            Request.Builder request = new Request.Builder().url(source);
+            if (download.getUserAgent() != null) {
+                request.header("User-Agent", download.getUserAgent());
+            }
+            if (download.getCookies() != null) {
+                request.header("Cookie", download.getCookies());
+            }
+            try (Response response = httpClient.newCall(request.build()).execute()) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null) {
+                    throw new IOException("HTTP error " + response.code() + " fetching " + source);
+                }
+                return body.bytes();
+            }
         }
+        
+        String path = lower.startsWith("file://") ? source.substring("file://".length()) : source;
+        return Files.readAllBytes(new File(path).toPath());
     }
     
-    private TorrentHandle addTorrent(String torrentPath) {
-        try {
-            TorrentInfo torrentInfo = new TorrentInfo(torrentPath);
-            AddTorrentParams params = new AddTorrentParams();
-            params.setTorrentInfo(torrentInfo);
-            params.setSavePath(downloadPath);
-            
-            TorrentHandle handle = sessionManager.addTorrent(params);
-            Log.d(TAG, "Torrent added: " + torrentInfo.getName());
-            return handle;
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to add torrent", e);
-            return null;
+    @Override
+    public void start() {
+        if (isCompleted || isCancelled) return;
+        if (torrentInfo == null) {
+            throw new IllegalStateException("prepare() must be called before start()");
         }
+        
+        File saveDir = getSaveDir();
+        if (!saveDir.exists() && !saveDir.mkdirs()) {
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to create " + saveDir, -1);
+            }
+            return;
+        }
+        
+        SessionManager sessionManager = session.getSessionManager();
+        File resumeFile = getResumeFile();
+        // Register first: alerts for the new torrent may arrive before download() returns
+        session.register(infoHash, this);
+        sessionManager.download(torrentInfo, saveDir, resumeFile.exists() ? resumeFile : null, null, null);
+        
+        handle = sessionManager.find(infoHash);
+        if (handle == null || !handle.isValid()) {
+            session.unregister(infoHash);
+            if (errorCallback != null) {
+                errorCallback.onError("libtorrent refused the torrent", -1);
+            }
+            return;
+        }
+        applySettings(handle);
+        if (isPaused) {
+            handle.pause();
+        } else {
+            handle.resume();
+        }
+        Log.d(TAG, "Torrent started: " + torrentInfo.name());
     }
     
-    public void startDownload() {
-        if (torrentHandle != null) {
-            torrentHandle.resume();
-            Log.d(TAG, "Torrent download started");
+    private void applySettings(TorrentHandle handle) {
+        handle.setDownloadLimit(toRateLimit(download.getBandwidthLimit()));
+        handle.setUploadLimit(toRateLimit(download.getUploadLimit()));
+        if (download.isSequentialDownload()) {
+            handle.setFlags(TorrentFlags.SEQUENTIAL_DOWNLOAD);
+        } else {
+            handle.unsetFlags(TorrentFlags.SEQUENTIAL_DOWNLOAD);
         }
     }
     
-    public void pauseDownload() {
-        if (torrentHandle != null) {
-            torrentHandle.pause();
-            Log.d(TAG, "Torrent download paused");
+    /**
+     * Called by the session once per second with fresh counters.
+     */
+    void refresh() {
+        TorrentHandle current = handle;
+        if (current == null || !current.isValid() || isCompleted || isCancelled) return;
+        
+        TorrentStatus status = current.status();
+        downloadedBytes = status.totalWantedDone();
+        downloadSpeed = isPaused ? 0 : status.downloadPayloadRate();
+        uploadSpeed = isPaused ? 0 : status.uploadPayloadRate();
+        
+        // Only rebuild the bitfield when pieces changed, e.g. after the resume check
+        int pieceCount = status.numPieces();
+        if (pieceCount != lastPieceCount) {
+            lastPieceCount = pieceCount;
+            pieces = toBitfield(status.pieces(), torrentInfo.numPieces());
+            resumeDataStale = true;
         }
+        
+        // A crash then only rechecks the pieces of the last interval, not the whole torrent
+        long now = System.currentTimeMillis();
+        if (resumeDataStale && !isPaused && now - lastResumeSave >= RESUME_SAVE_INTERVAL_MS) {
+            resumeDataStale = false;
+            lastResumeSave = now;
+            current.saveResumeData();
+        }
+        reportProgress(status.totalWanted());
+    }
+    
+    /**
+     * Asks libtorrent for fresh resume data, written once its alert arrives.
+     * @return false when the torrent is not in the session, no alert will come
+     */
+    boolean saveResumeData() {
+        TorrentHandle current = handle;
+        if (current == null || !current.isValid() || isCompleted || isCancelled) return false;
+        current.saveResumeData();
+        return true;
     }
     
-    public void resumeDownload() {
-        if (torrentHandle != null) {
-            torrentHandle.resume();
-            Log.d(TAG, "Torrent download resumed");
+    void onAlert(TorrentAlert<?> alert) {
+        if (isCancelled) return;
+        
+        if (alert instanceof PieceFinishedAlert) {
+            int index = ((PieceFinishedAlert) alert).pieceIndex();
+            setPiece(index);
+            if (progressCallback != null) {
+                progressCallback.onSegmentProgress(index, torrentInfo.pieceLength(), torrentInfo.pieceLength(), 100);
+            }
+        } else if (alert instanceof TorrentFinishedAlert) {
+            finishDownload();
+        } else if (alert instanceof SaveResumeDataAlert) {
+            writeResumeData((SaveResumeDataAlert) alert);
+        } else if (alert instanceof TorrentErrorAlert) {
+            fail(((TorrentErrorAlert) alert).error().message());
+        } else if (alert instanceof FileErrorAlert) {
+            FileErrorAlert fileError = (FileErrorAlert) alert;
+            fail(fileError.filename() + ": " + fileError.error().message());
         }
     }
     
-    public void cancelDownload() {
-        if (torrentHandle != null) {
-            sessionManager.removeTorrent(torrentHandle);
-            Log.d(TAG, "Torrent download cancelled");
+    private synchronized void finishDownload() {
+        if (isCompleted) return;
+        isCompleted = true;
+        
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            TorrentStatus status = current.status();
+            downloadedBytes = status.totalWantedDone();
+            pieces = toBitfield(status.pieces(), torrentInfo.numPieces());
+            // Files stay on disk; the torrent leaves the session so it stops seeding
+            session.getSessionManager().remove(current);
+        }
+        handle = null;
+        downloadSpeed = 0;
+        uploadSpeed = 0;
+        session.unregister(infoHash);
+        getMetadataFile().delete();
+        getResumeFile().delete();
+        
+        Log.d(TAG, "Torrent completed: " + torrentInfo.name());
+        if (completionCallback != null) {
+            // Pieces were already checked against the torrent's hashes
+            completionCallback.onCompleted(download.getFilePath(), null);
         }
     }
     
-    public void setDownloadLimit(int limit) {
-        if (sessionManager != null) {
-            sessionManager.setDownloadRateLimit(limit);
-            Log.d(TAG, "Download limit set to: " + limit);
+    private void fail(String error) {
+        Log.e(TAG, "Torrent error: " + error);
+        TorrentHandle current = handle;
+        handle = null;
+        if (current != null && current.isValid()) {
+            // Keep the files, a retry adds the torrent again and rechecks them
+            session.getSessionManager().remove(current);
         }
+        session.unregister(infoHash);
+        isPaused = true;
+        downloadSpeed = 0;
+        uploadSpeed = 0;
+        if (errorCallback != null) {
+            errorCallback.onError(error, -1);
+        }
+    }
+    
+    private void writeResumeData(SaveResumeDataAlert alert) {
+        try (FileOutputStream output = new FileOutputStream(getResumeFile())) {
+            output.write(AddTorrentParams.writeResumeDataBuf(alert.params()));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save resume data", e);
+        }
+    }
+    
+    private void reportProgress(long totalWanted) {
+        if (progressCallback == null) return;
+        int progress = totalWanted > 0 ? (int) (downloadedBytes * 100 / totalWanted) : 0;
+        progressCallback.onProgress(downloadedBytes, totalWanted, progress, downloadSpeed);
+    }
+    
+    private synchronized void setPiece(int index) {
+        byte[] current = pieces;
+        if (current == null || index < 0 || index / 8 >= current.length) return;
+        byte[] updated = current.clone();
+        updated[index / 8] |= (byte) (0x80 >>> (index % 8));
+        pieces = updated;
     }
     
-    public void setUploadLimit(int limit) {
-        if (sessionManager != null) {
-            sessionManager.setUploadRateLimit(limit);
-            Log.d(TAG, "Upload limit set to: " + limit);
+    private static byte[] toBitfield(PieceIndexBitfield have, int numPieces) {
+        byte[] bitfield = new byte[bitfieldLength(numPieces)];
+        for (int i = 0; i < numPieces; i++) {
+            if (have.getBit(i)) {
+                bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
         }
+        return bitfield;
     }
     
-    public void setFilePriority(int fileIndex, int priority) {
-        if (torrentHandle != null) {
-            torrentHandle.filePriority(fileIndex, priority);
-            Log.d(TAG, "File priority set for index " + fileIndex + ": " + priority);
+    private static int bitfieldLength(int numPieces) {
+        return (numPieces + 7) / 8;
+    }
+    
+    private static boolean isMediaTorrent(TorrentInfo info) {
+        FileStorage files = info.files();
+        int largest = -1;
+        for (int i = 0; i < files.numFiles(); i++) {
+            if (largest < 0 || files.fileSize(i) > files.fileSize(largest)) {
+                largest = i;
+            }
         }
+        if (largest < 0) return false;
+        
+        String name = files.fileName(largest);
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && MEDIA_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+    
+    private static int toRateLimit(long bytesPerSecond) {
+        // libtorrent takes an int, 0 means unlimited
+        return (int) Math.min(Math.max(bytesPerSecond, 0), Integer.MAX_VALUE);
+    }
+    
+    private File getSaveDir() {
+        File parent = new File(download.getFilePath()).getParentFile();
+        return parent != null ? parent : session.getMetadataDir();
+    }
+    
+    private File getMetadataFile() {
+        return new File(session.getMetadataDir(), download.getId() + METADATA_SUFFIX);
+    }
+    
+    private File getResumeFile() {
+        return new File(session.getMetadataDir(), download.getId() + RESUME_SUFFIX);
     }
     
-    public void setPiecePriority(int pieceIndex, int priority) {
-        if (torrentHandle != null) {
-            torrentHandle.piecePriority(pieceIndex, priority);
-            Log.d(TAG, "Piece priority set for index " + pieceIndex + ": " + priority);
+    /**
+     * Disconnects from peers. libtorrent writes the resume data in the background.
+     */
+    @Override
+    public void pause() {
+        synchronized (this) {
+            if (isPaused || isCancelled || isCompleted) return;
+            isPaused = true;
+        }
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            current.pause();
+            current.saveResumeData();
         }
+        downloadSpeed = 0;
+        uploadSpeed = 0;
+        Log.d(TAG, "Torrent paused");
     }
     
-    public void forceRecheck() {
-        if (torrentHandle != null) {
-            torrentHandle.forceRecheck();
-            Log.d(TAG, "Force recheck triggered");
+    @Override
+    public void resume() {
+        synchronized (this) {
+            if (!isPaused || isCancelled || isCompleted) return;
+            isPaused = false;
         }
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            current.resume();
+        }
+        Log.d(TAG, "Torrent resumed");
     }
     
-    public void addTracker(String url) {
-        if (torrentHandle != null) {
-            torrentHandle.addTracker(new AnnounceEntry(url));
-            Log.d(TAG, "Tracker added: " + url);
+    /**
+     * Removes the torrent and deletes its files.
+     */
+    @Override
+    public void cancel() {
+        isCancelled = true;
+        isPaused = false;
+        TorrentHandle current = handle;
+        handle = null;
+        if (current != null && current.isValid()) {
+            session.getSessionManager().remove(current, SessionHandle.DELETE_FILES);
+        }
+        if (infoHash != null) {
+            session.unregister(infoHash);
         }
+        getMetadataFile().delete();
+        getResumeFile().delete();
+        Log.d(TAG, "Torrent cancelled");
     }
     
-    public void removeTracker(String url) {
-        if (torrentHandle != null) {
-            torrentHandle.removeTracker(new AnnounceEntry(url));
-            Log.d(TAG, "Tracker removed: " + url);
+    /**
+     * Changes the download cap of this torrent, 0 removes it.
+     */
+    @Override
+    public void setBandwidthLimit(long bytesPerSecond) {
+        download.setBandwidthLimit(bytesPerSecond);
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            current.setDownloadLimit(toRateLimit(bytesPerSecond));
         }
     }
     
-    public TorrentStatus getStatus() {
-        if (torrentHandle != null) {
-            return torrentHandle.getStatus();
+    /**
+     * Changes how fast this torrent may upload to peers, 0 removes the cap.
+     */
+    public void setUploadLimit(long bytesPerSecond) {
+        download.setUploadLimit(bytesPerSecond);
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            current.setUploadLimit(toRateLimit(bytesPerSecond));
         }
-        return null;
     }
     
-    public void shutdown() {
-        if (sessionManager != null) {
-            sessionManager.stop();
-            Log.d(TAG, "Torrent session shutdown");
+    /**
+     * Fetches pieces in file order instead of rarest first, so media can be played early.
+     */
+    public void setSequentialDownload(boolean sequential) {
+        download.setSequentialDownload(sequential);
+        TorrentHandle current = handle;
+        if (current != null && current.isValid()) {
+            applySettings(current);
         }
     }
-    */
     
-    // Version temporaire
-    public TorrentDownloader(Context context, String torrentPath, String downloadPath, TorrentDownloadCallback callback) {
-        Log.d(TAG, "TorrentDownloader temporarily disabled");
+    @Override
+    public void setProgressCallback(DownloadProgressCallback callback) {
+        this.progressCallback = callback;
+    }
+    
+    @Override
+    public void setCompletionCallback(DownloadCompletionCallback callback) {
+        this.completionCallback = callback;
+    }
+    
+    @Override
+    public void setErrorCallback(DownloadErrorCallback callback) {
+        this.errorCallback = callback;
+    }
+    
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+    
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+    
+    @Override
+    public boolean isPaused() {
+        return isPaused;
     }
     
-    public interface TorrentDownloadCallback {
-        void onProgress(int progress, long downloaded, long total);
-        void onComplete(String filePath);
-        void onError(String error);
+    /**
+     * Pieces are persisted as a bitfield, not as segment rows.
+     */
+    @Override
+    public List<DownloadSegmentEntity> getSegments() {
+        return new ArrayList<>();
     }
     
-    public void startDownload() {
-        Log.d(TAG, "Torrent download temporarily disabled");
+    @Override
+    public byte[] getPieceBitfield() {
+        return pieces;
     }
     
-    public void pauseDownload() {
-        Log.d(TAG, "Torrent download temporarily disabled");
+    @Override
+    public long getDownloadedBytes() {
+        return downloadedBytes;
     }
     
-    public void resumeDownload() {
-        Log.d(TAG, "Torrent download temporarily disabled");
+    @Override
+    public long getSpeed() {
+        return downloadSpeed;
     }
     
-    public void cancelDownload() {
-        Log.d(TAG, "Torrent download temporarily disabled");
+    public long getUploadSpeed() {
+        return uploadSpeed;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,254 @@
+package rjv.mg.myidm.domain.downloader;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.libtorrent4j.AlertListener;
+import org.libtorrent4j.SessionManager;
+import org.libtorrent4j.SessionParams;
+import org.libtorrent4j.SettingsPack;
+import org.libtorrent4j.Sha1Hash;
+import org.libtorrent4j.alerts.Alert;
+import org.libtorrent4j.alerts.AlertType;
+import org.libtorrent4j.alerts.SaveResumeDataAlert;
+import org.libtorrent4j.alerts.SaveResumeDataFailedAlert;
+import org.libtorrent4j.alerts.TorrentAlert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one libtorrent session of the process. Torrents are added by {@link TorrentDownloader};
+ * the session routes their alerts to them and refreshes their status every second. The
+ * torrent service listens to the totals to keep its notification current.
+ */
+public class TorrentSession {
+    
+    private static final String TAG = "TorrentSession";
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    private static final String METADATA_DIR = "torrents";
+    // Longest shutdown waits for the torrents' last resume data
+    private static final long RESUME_DATA_TIMEOUT_MS = 5000;
+    
+    /**
+     * Totals across all torrents, pushed once per refresh.
+     */
+    public interface StatsListener {
+        void onStats(int activeTorrents, long downloadRate, long uploadRate);
+    }
+    
+    private final Context context;
+    private final Map<String, TorrentDownloader> torrents = new ConcurrentHashMap<>();
+    // Info hashes whose resume data shutdown() still waits for, notified on each alert
+    private final Set<String> awaitingResumeData = new HashSet<>();
+    private SessionManager sessionManager;
+    private ScheduledExecutorService refreshExecutor;
+    private volatile StatsListener statsListener;
+    private int uploadLimit;
+    private int downloadLimit;
+    
+    private final AlertListener alertListener = new AlertListener() {
+        @Override
+        public int[] types() {
+            return new int[] {
+                AlertType.PIECE_FINISHED.swig(),
+                AlertType.TORRENT_FINISHED.swig(),
+                AlertType.TORRENT_ERROR.swig(),
+                AlertType.FILE_ERROR.swig(),
+                AlertType.SAVE_RESUME_DATA.swig(),
+                AlertType.SAVE_RESUME_DATA_FAILED.swig()
+            };
+        }
+        
+        @Override
+        public void alert(Alert<?> alert) {
+            if (!(alert instanceof TorrentAlert)) return;
+            TorrentAlert<?> torrentAlert = (TorrentAlert<?>) alert;
+            if (torrentAlert.handle() == null || !torrentAlert.handle().isValid()) return;
+            
+            String infoHash = torrentAlert.handle().infoHash().toHex();
+            TorrentDownloader downloader = torrents.get(infoHash);
+            if (downloader != null) {
+                downloader.onAlert(torrentAlert);
+            }
+            if (alert instanceof SaveResumeDataAlert || alert instanceof SaveResumeDataFailedAlert) {
+                synchronized (awaitingResumeData) {
+                    if (awaitingResumeData.remove(infoHash)) {
+                        awaitingResumeData.notifyAll();
+                    }
+                }
+            }
+        }
+    };
+    
+    public TorrentSession(Context context) {
+        this.context = context.getApplicationContext();
+    }
+    
+    /**
+     * Starts libtorrent on first use; the native session is not created for users who never add a torrent.
+     */
+    synchronized SessionManager getSessionManager() {
+        if (sessionManager == null) {
+            SettingsPack settings = new SettingsPack()
+                .uploadRateLimit(uploadLimit)
+                .downloadRateLimit(downloadLimit);
+            sessionManager = new SessionManager();
+            sessionManager.addListener(alertListener);
+            sessionManager.start(new SessionParams(settings));
+            Log.d(TAG, "Torrent session started");
+        }
+        return sessionManager;
+    }
+    
+    synchronized void register(Sha1Hash infoHash, TorrentDownloader downloader) {
+        torrents.put(infoHash.toHex(), downloader);
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "TorrentRefresh"));
+            refreshExecutor.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    synchronized void unregister(Sha1Hash infoHash) {
+        torrents.remove(infoHash.toHex());
+        if (torrents.isEmpty()) {
+            if (refreshExecutor != null) {
+                refreshExecutor.shutdown();
+                refreshExecutor = null;
+            }
+            // Last refresh will not run, tell the listener nothing is left
+            StatsListener listener = statsListener;
+            if (listener != null) {
+                listener.onStats(0, 0, 0);
+            }
+        }
+    }
+    
+    private void refresh() {
+        long downloadRate = 0;
+        long uploadRate = 0;
+        int active = 0;
+        for (TorrentDownloader downloader : torrents.values()) {
+            try {
+                downloader.refresh();
+            } catch (Exception e) {
+                Log.e(TAG, "Error refreshing torrent", e);
+            }
+            if (!downloader.isPaused()) {
+                active++;
+                downloadRate += downloader.getSpeed();
+                uploadRate += downloader.getUploadSpeed();
+            }
+        }
+        StatsListener listener = statsListener;
+        if (listener != null) {
+            listener.onStats(active, downloadRate, uploadRate);
+        }
+    }
+    
+    /**
+     * Fetches the metadata of a magnet link from peers, blocking up to {@code timeoutSeconds}.
+     */
+    byte[] fetchMagnet(String magnetUri, int timeoutSeconds) throws IOException {
+        byte[] data = getSessionManager().fetchMagnet(magnetUri, timeoutSeconds, getMetadataDir());
+        if (data == null) {
+            throw new IOException("No peer sent the torrent metadata within " + timeoutSeconds + "s");
+        }
+        return data;
+    }
+    
+    /**
+     * Where a torrent's metadata and fast-resume data are kept between runs.
+     */
+    File getMetadataDir() {
+        File dir = new File(context.getFilesDir(), METADATA_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+    
+    /**
+     * Caps the combined upload of all torrents, 0 removes the cap.
+     */
+    public synchronized void setUploadLimit(long bytesPerSecond) {
+        uploadLimit = (int) Math.min(bytesPerSecond, Integer.MAX_VALUE);
+        if (sessionManager != null) {
+            sessionManager.uploadRateLimit(uploadLimit);
+        }
+    }
+    
+    /**
+     * Caps the combined download of all torrents, 0 removes the cap.
+     */
+    public synchronized void setDownloadLimit(long bytesPerSecond) {
+        downloadLimit = (int) Math.min(bytesPerSecond, Integer.MAX_VALUE);
+        if (sessionManager != null) {
+            sessionManager.downloadRateLimit(downloadLimit);
+        }
+    }
+    
+    private void saveAllResumeData() {
+        synchronized (awaitingResumeData) {
+            // Listed before asking, the alert may arrive before saveResumeData() returns
+            awaitingResumeData.addAll(torrents.keySet());
+        }
+        for (Map.Entry<String, TorrentDownloader> entry : torrents.entrySet()) {
+            if (!entry.getValue().saveResumeData()) {
+                synchronized (awaitingResumeData) {
+                    awaitingResumeData.remove(entry.getKey());
+                }
+            }
+        }
+        
+        long deadline = System.currentTimeMillis() + RESUME_DATA_TIMEOUT_MS;
+        synchronized (awaitingResumeData) {
+            try {
+                long left;
+                while (!awaitingResumeData.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+                    awaitingResumeData.wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!awaitingResumeData.isEmpty()) {
+                Log.w(TAG, "Stopping without resume data for " + awaitingResumeData.size() + " torrents");
+                awaitingResumeData.clear();
+            }
+        }
+    }
+    
+    public void setStatsListener(StatsListener listener) {
+        this.statsListener = listener;
+    }
+    
+    public int getActiveTorrentCount() {
+        return torrents.size();
+    }
+    
+    /**
+     * Saves the resume data of every torrent, waiting a few seconds at most for it to be
+     * written, then stops libtorrent.
+     */
+    public synchronized void shutdown() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+            refreshExecutor = null;
+        }
+        if (sessionManager != null) {
+            saveAllResumeData();
+            sessionManager.removeListener(alertListener);
+            sessionManager.stop();
+            sessionManager = null;
+            Log.d(TAG, "Torrent session stopped");
+        }
+        torrents.clear();
+    }
+}
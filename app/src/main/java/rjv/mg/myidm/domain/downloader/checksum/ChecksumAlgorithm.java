@@ -0,0 +1,77 @@
+package rjv.mg.myidm.domain.downloader.checksum;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Algorithms accepted in {@code DownloadEntity.checksum_algorithm}.
+ */
+public enum ChecksumAlgorithm {
+    MD5("MD5"),
+    SHA_256("SHA-256"),
+    XXHASH64("XXH64"),
+    NONE("NONE");
+    
+    private final String algorithmName;
+    
+    ChecksumAlgorithm(String algorithmName) {
+        this.algorithmName = algorithmName;
+    }
+    
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+    
+    /**
+     * Resolves the value stored on a download. Unset values keep the historical MD5 default.
+     */
+    public static ChecksumAlgorithm fromName(String name) {
+        if (name == null || name.trim().isEmpty()) return MD5;
+        
+        String normalized = name.trim().toUpperCase(java.util.Locale.ROOT).replace("-", "").replace("_", "");
+        switch (normalized) {
+            case "MD5":
+                return MD5;
+            case "SHA256":
+                return SHA_256;
+            case "XXH64":
+            case "XXHASH":
+            case "XXHASH64":
+                return XXHASH64;
+            case "NONE":
+                return NONE;
+            default:
+                throw new IllegalArgumentException("Unsupported checksum algorithm: " + name);
+        }
+    }
+    
+    /**
+     * Creates a fresh hasher, or returns null for {@link #NONE}.
+     */
+    public StreamingHasher newHasher() {
+        switch (this) {
+            case XXHASH64:
+                return new XxHash64();
+            case NONE:
+                return null;
+            default:
+                try {
+                    return new MessageDigestHasher(MessageDigest.getInstance(algorithmName));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(algorithmName + " algorithm not available", e);
+                }
+        }
+    }
+    
+    static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+}
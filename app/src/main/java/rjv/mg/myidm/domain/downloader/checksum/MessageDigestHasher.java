@@ -0,0 +1,33 @@
+package rjv.mg.myidm.domain.downloader.checksum;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+class MessageDigestHasher implements StreamingHasher {
+    
+    private final MessageDigest digest;
+    
+    MessageDigestHasher(MessageDigest digest) {
+        this.digest = digest;
+    }
+    
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        digest.update(buffer, offset, length);
+    }
+    
+    @Override
+    public void update(ByteBuffer buffer) {
+        digest.update(buffer);
+    }
+    
+    @Override
+    public void reset() {
+        digest.reset();
+    }
+    
+    @Override
+    public String digestHex() {
+        return ChecksumAlgorithm.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,102 @@
+package rjv.mg.myidm.domain.downloader.checksum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Whole-file hash computed while segments are being written.
+ * <p>
+ * MD5/SHA-256/XXH64 must consume the file in order, while segments arrive in parallel.
+ * The hasher keeps a frontier: bytes written exactly at the frontier are hashed inline
+ * from the network buffer. A writer that finds the frontier inside its own region, but
+ * behind its write position, first catches up from the file (those bytes arrived while
+ * an earlier region was still downloading) and then continues inline. Whatever is left
+ * when the last segment lands is caught up by {@link #finish()}.
+ */
+public class OrderedFileHasher {
+    
+    private static final int CATCH_UP_BUFFER_SIZE = 64 * 1024;
+    
+    private final StreamingHasher hasher;
+    private final FileChannel channel;
+    private final long length;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long frontier;
+    private ByteBuffer catchUpBuffer;
+    
+    public OrderedFileHasher(StreamingHasher hasher, FileChannel channel, long length) {
+        this.hasher = hasher;
+        this.channel = channel;
+        this.length = length;
+    }
+    
+    /**
+     * Reports the bytes between {@code data}'s position and limit, just written at
+     * {@code position} by a writer whose contiguous region starts at {@code regionStart}.
+     * Writers outside the frontier return without locking. May consume {@code data}.
+     */
+    public void onBytesWritten(ByteBuffer data, long position, long regionStart) throws IOException {
+        long end = position + data.remaining();
+        long current = frontier;
+        if (current < regionStart || current >= end) return;
+        
+        lock.lock();
+        try {
+            current = frontier;
+            if (current < regionStart || current >= end) return;
+            
+            if (current < position) {
+                catchUp(position);
+                current = position;
+            }
+            // A retried range may overlap bytes already hashed, skip those
+            int skip = (int) (current - position);
+            data.position(data.position() + skip);
+            hasher.update(data);
+            frontier = end;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Hashes everything not yet covered inline and returns the hex digest.
+     */
+    public String finish() throws IOException {
+        lock.lock();
+        try {
+            catchUp(length);
+            return hasher.digestHex();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getFrontier() {
+        return frontier;
+    }
+    
+    private void catchUp(long target) throws IOException {
+        if (catchUpBuffer == null) {
+            catchUpBuffer = ByteBuffer.allocate(CATCH_UP_BUFFER_SIZE);
+        }
+        
+        long position = frontier;
+        while (position < target) {
+            catchUpBuffer.clear();
+            if (target - position < catchUpBuffer.capacity()) {
+                catchUpBuffer.limit((int) (target - position));
+            }
+            int bytesRead = channel.read(catchUpBuffer, position);
+            if (bytesRead <= 0) {
+                throw new IOException("Unexpected end of file while hashing at offset " + position);
+            }
+            catchUpBuffer.flip();
+            hasher.update(catchUpBuffer);
+            position += bytesRead;
+            frontier = position;
+        }
+    }
+}
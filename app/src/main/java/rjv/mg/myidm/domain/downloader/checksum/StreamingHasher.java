@@ -0,0 +1,20 @@
+package rjv.mg.myidm.domain.downloader.checksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental hash fed with bytes as they arrive from the network.
+ */
+public interface StreamingHasher {
+    
+    void update(byte[] buffer, int offset, int length);
+    
+    void update(ByteBuffer buffer);
+    
+    void reset();
+    
+    /**
+     * Returns the lowercase hex digest of everything fed so far.
+     */
+    String digestHex();
+}
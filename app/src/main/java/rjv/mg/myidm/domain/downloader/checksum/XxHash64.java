@@ -0,0 +1,174 @@
+package rjv.mg.myidm.domain.downloader.checksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming XXH64 (seed 0). Much cheaper than MD5/SHA-256 on the download path
+ * when only corruption detection is needed.
+ */
+public class XxHash64 implements StreamingHasher {
+    
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_SIZE = 32;
+    
+    private final byte[] memory = new byte[STRIPE_SIZE];
+    private byte[] scratch;
+    private int memorySize;
+    private long totalLength;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    
+    public XxHash64() {
+        reset();
+    }
+    
+    @Override
+    public void reset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        memorySize = 0;
+        totalLength = 0;
+    }
+    
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        totalLength += length;
+        int end = offset + length;
+        
+        // Complete a previously buffered stripe first
+        if (memorySize > 0) {
+            int fill = Math.min(STRIPE_SIZE - memorySize, length);
+            System.arraycopy(buffer, offset, memory, memorySize, fill);
+            memorySize += fill;
+            offset += fill;
+            if (memorySize < STRIPE_SIZE) return;
+            consumeStripe(memory, 0);
+            memorySize = 0;
+        }
+        
+        while (end - offset >= STRIPE_SIZE) {
+            consumeStripe(buffer, offset);
+            offset += STRIPE_SIZE;
+        }
+        
+        if (offset < end) {
+            memorySize = end - offset;
+            System.arraycopy(buffer, offset, memory, 0, memorySize);
+        }
+    }
+    
+    @Override
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int length = buffer.remaining();
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            return;
+        }
+        
+        // Direct buffers have no backing array, stage them through a reusable copy
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, length);
+            update(scratch, 0, length);
+        }
+    }
+    
+    @Override
+    public String digestHex() {
+        long hash = digest();
+        String hex = Long.toHexString(hash);
+        StringBuilder builder = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            builder.append('0');
+        }
+        return builder.append(hex).toString();
+    }
+    
+    public long digest() {
+        long hash;
+        if (totalLength >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = v3 + PRIME64_5;
+        }
+        
+        hash += totalLength;
+        
+        int offset = 0;
+        while (offset + 8 <= memorySize) {
+            hash ^= round(0, readLongLE(memory, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            offset += 8;
+        }
+        if (offset + 4 <= memorySize) {
+            hash ^= (readIntLE(memory, offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        while (offset < memorySize) {
+            hash ^= (memory[offset] & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            offset++;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+    
+    private void consumeStripe(byte[] data, int offset) {
+        v1 = round(v1, readLongLE(data, offset));
+        v2 = round(v2, readLongLE(data, offset + 8));
+        v3 = round(v3, readLongLE(data, offset + 16));
+        v4 = round(v4, readLongLE(data, offset + 24));
+    }
+    
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+    
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+    
+    private static long readLongLE(byte[] data, int offset) {
+        return (data[offset] & 0xFFL)
+            | (data[offset + 1] & 0xFFL) << 8
+            | (data[offset + 2] & 0xFFL) << 16
+            | (data[offset + 3] & 0xFFL) << 24
+            | (data[offset + 4] & 0xFFL) << 32
+            | (data[offset + 5] & 0xFFL) << 40
+            | (data[offset + 6] & 0xFFL) << 48
+            | (data[offset + 7] & 0xFFL) << 56;
+    }
+    
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+            | (data[offset + 1] & 0xFF) << 8
+            | (data[offset + 2] & 0xFF) << 16
+            | (data[offset + 3] & 0xFF) << 24;
+    }
+}
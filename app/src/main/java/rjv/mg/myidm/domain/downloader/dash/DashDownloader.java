@@ -0,0 +1,227 @@
+package rjv.mg.myidm.domain.downloader.dash;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.downloader.StreamDownloader;
+import rjv.mg.myidm.domain.downloader.checksum.StreamingHasher;
+
+/**
+ * Downloads an MPEG-DASH presentation: picks one video and one audio representation,
+ * fetches the segments of both in parallel and muxes them into a single MP4.
+ */
+public class DashDownloader extends StreamDownloader {
+    private static final String TAG = "DashDownloader";
+    
+    private long maxBandwidth;
+    private int trackCount;
+    
+    public DashDownloader(DownloadEntity download, List<DownloadSegmentEntity> savedSegments,
+                          SegmentScheduler scheduler, OkHttpClient httpClient) {
+        super(download, savedSegments, scheduler, httpClient);
+    }
+    
+    @Override
+    protected List<MediaSegment> loadSegments() throws IOException {
+        FetchedText mpd = fetchText(download.getUrl());
+        DashManifestParser.Manifest manifest = DashManifestParser.parse(mpd.content, mpd.url);
+        if (manifest.isDynamic()) {
+            throw new IOException("Live DASH manifests are not supported");
+        }
+        
+        DashManifestParser.Representation video = select(manifest.getRepresentations(), true);
+        DashManifestParser.Representation audio = select(manifest.getRepresentations(), false);
+        if (video == null && audio == null) {
+            throw new IOException("No playable representation in manifest");
+        }
+        
+        List<List<MediaSegment>> tracks = new ArrayList<>();
+        if (video != null) {
+            Log.d(TAG, "Video " + video.getId() + " " + video.getWidth() + "x" + video.getHeight() + " @ " + video.getBandwidth());
+            tracks.add(trackSegments(video, tracks.size()));
+        }
+        if (audio != null) {
+            Log.d(TAG, "Audio " + audio.getId() + " @ " + audio.getBandwidth());
+            tracks.add(trackSegments(audio, tracks.size()));
+        }
+        trackCount = tracks.size();
+        
+        setOutputExtension(".mp4");
+        return interleave(tracks);
+    }
+    
+    /**
+     * Highest bandwidth representation of the kind, preferring MP4 since that is what
+     * the muxer writes. Video is capped by {@link #setMaxBandwidth(long)}.
+     */
+    private DashManifestParser.Representation select(List<DashManifestParser.Representation> representations, boolean video) {
+        boolean anyMp4 = false;
+        for (DashManifestParser.Representation candidate : representations) {
+            if (isKind(candidate, video) && candidate.isMp4()) {
+                anyMp4 = true;
+            }
+        }
+        
+        DashManifestParser.Representation best = null;
+        DashManifestParser.Representation lowest = null;
+        for (DashManifestParser.Representation candidate : representations) {
+            if (!isKind(candidate, video) || (anyMp4 && !candidate.isMp4())) continue;
+            
+            if (lowest == null || candidate.getBandwidth() < lowest.getBandwidth()) {
+                lowest = candidate;
+            }
+            if (video && maxBandwidth > 0 && candidate.getBandwidth() > maxBandwidth) continue;
+            if (best == null || candidate.getBandwidth() > best.getBandwidth()) {
+                best = candidate;
+            }
+        }
+        return best != null ? best : lowest;
+    }
+    
+    private static boolean isKind(DashManifestParser.Representation representation, boolean video) {
+        return video ? representation.isVideo() : representation.isAudio();
+    }
+    
+    private List<MediaSegment> trackSegments(DashManifestParser.Representation representation, int track) throws IOException {
+        List<MediaSegment> segments = new ArrayList<>();
+        DashManifestParser.Segment init = representation.getInitialization();
+        if (init != null) {
+            segments.add(new MediaSegment(init.getUrl(), init.getOffset(), init.getLength(), track));
+        }
+        
+        List<DashManifestParser.Segment> media = representation.getSegments();
+        if (representation.getIndex() != null) {
+            media = readSegmentIndex(representation.getIndex());
+        }
+        for (DashManifestParser.Segment segment : media) {
+            segments.add(new MediaSegment(segment.getUrl(), segment.getOffset(), segment.getLength(), track));
+        }
+        return segments;
+    }
+    
+    /**
+     * Reads the sidx box of a SegmentBase representation and turns its references into
+     * byte ranges; media starts right after the sidx box itself plus its first_offset, the
+     * index range may cover more than the box.
+     */
+    private List<DashManifestParser.Segment> readSegmentIndex(DashManifestParser.Segment index) throws IOException {
+        ByteBuffer box = ByteBuffer.wrap(fetchBytes(index.getUrl(), index.getOffset(), index.getLength()));
+        try {
+            long size = box.getInt() & 0xFFFFFFFFL;
+            int type = box.getInt();
+            if (type != 0x73696478) { // "sidx"
+                throw new IOException("Index range does not hold a sidx box");
+            }
+            if (size == 1) {
+                size = box.getLong(); // 64-bit size
+            } else if (size == 0) {
+                size = index.getLength(); // Box runs to the end of what was fetched
+            }
+            int version = box.get() & 0xFF;
+            box.position(box.position() + 3); // flags
+            box.getInt(); // reference_ID
+            box.getInt(); // timescale
+            long firstOffset;
+            if (version == 0) {
+                box.getInt(); // earliest_presentation_time
+                firstOffset = box.getInt() & 0xFFFFFFFFL;
+            } else {
+                box.getLong();
+                firstOffset = box.getLong();
+            }
+            box.getShort(); // reserved
+            int referenceCount = box.getShort() & 0xFFFF;
+            
+            List<DashManifestParser.Segment> segments = new ArrayList<>(referenceCount);
+            long offset = index.getOffset() + size + firstOffset;
+            for (int i = 0; i < referenceCount; i++) {
+                int reference = box.getInt();
+                box.getInt(); // subsegment_duration
+                box.getInt(); // SAP fields
+                if (reference < 0) {
+                    throw new IOException("Hierarchical sidx is not supported");
+                }
+                long length = reference & 0x7FFFFFFFL;
+                segments.add(new DashManifestParser.Segment(index.getUrl(), offset, length));
+                offset += length;
+            }
+            return segments;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated sidx box", e);
+        }
+    }
+    
+    /**
+     * Orders segments so video and audio advance together: each track's init segment
+     * first, then whichever track is proportionally further behind.
+     */
+    private static List<MediaSegment> interleave(List<List<MediaSegment>> tracks) {
+        List<MediaSegment> result = new ArrayList<>();
+        int[] positions = new int[tracks.size()];
+        int total = 0;
+        for (List<MediaSegment> track : tracks) {
+            total += track.size();
+        }
+        while (result.size() < total) {
+            int next = -1;
+            double nextFraction = Double.MAX_VALUE;
+            for (int i = 0; i < tracks.size(); i++) {
+                int size = tracks.get(i).size();
+                if (positions[i] >= size) continue;
+                double fraction = (double) positions[i] / size;
+                if (fraction < nextFraction) {
+                    nextFraction = fraction;
+                    next = i;
+                }
+            }
+            result.add(tracks.get(next).get(positions[next]++));
+        }
+        return result;
+    }
+    
+    @Override
+    protected String assemble(File target) throws IOException {
+        List<List<Integer>> tracks = new ArrayList<>();
+        for (int i = 0; i < trackCount; i++) {
+            tracks.add(new ArrayList<>());
+        }
+        List<MediaSegment> segments = getMediaSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            tracks.get(segments.get(i).getTrack()).add(i);
+        }
+        
+        StreamingHasher hasher = newHasher();
+        if (trackCount == 1) {
+            // A single fragmented MP4 plays as is
+            concatenate(tracks.get(0), target, hasher);
+        } else {
+            List<File> trackFiles = new ArrayList<>();
+            for (int i = 0; i < trackCount; i++) {
+                File trackFile = new File(getTempDir(), "track" + i + ".mp4");
+                concatenate(tracks.get(i), trackFile, null);
+                trackFiles.add(trackFile);
+            }
+            Mp4Muxer.mux(trackFiles, target);
+            if (hasher != null) {
+                hashFile(target, hasher);
+            }
+        }
+        return hasher != null ? hasher.digestHex() : null;
+    }
+    
+    /**
+     * Highest video bitrate to pick, 0 for the best one. Only read by {@link #prepare()}.
+     */
+    public void setMaxBandwidth(long bitsPerSecond) {
+        this.maxBandwidth = bitsPerSecond;
+    }
+}
@@ -0,0 +1,392 @@
+package rjv.mg.myidm.domain.downloader.dash;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Parser for static MPEG-DASH manifests. Expands SegmentTemplate (number or timeline based)
+ * and SegmentList into explicit segment URLs; SegmentBase representations keep their index
+ * range so the caller can read the sidx box.
+ */
+public class DashManifestParser {
+    
+    private static final Pattern TEMPLATE_IDENTIFIER = Pattern.compile("\\$(RepresentationID|Number|Bandwidth|Time)(%0(\\d+)d)?\\$");
+    private static final Pattern ISO_DURATION = Pattern.compile(
+        "P(?:(\\d+(?:\\.\\d+)?)D)?(?:T(?:(\\d+(?:\\.\\d+)?)H)?(?:(\\d+(?:\\.\\d+)?)M)?(?:(\\d+(?:\\.\\d+)?)S)?)?");
+    
+    public static class Segment {
+        final String url;
+        final long offset; // -1 when the whole resource is the segment
+        final long length;
+        
+        Segment(String url, long offset, long length) {
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        public String getUrl() { return url; }
+        public long getOffset() { return offset; }
+        public long getLength() { return length; }
+    }
+    
+    public static class Representation {
+        final String id;
+        final String contentType; // video, audio or text
+        final String mimeType;
+        final String codecs;
+        final long bandwidth;
+        final int width;
+        final int height;
+        final Segment initialization;
+        final List<Segment> segments;
+        final Segment index; // SegmentBase only: sidx location, segments are read from it
+        
+        Representation(String id, String contentType, String mimeType, String codecs, long bandwidth,
+                       int width, int height, Segment initialization, List<Segment> segments, Segment index) {
+            this.id = id;
+            this.contentType = contentType;
+            this.mimeType = mimeType;
+            this.codecs = codecs;
+            this.bandwidth = bandwidth;
+            this.width = width;
+            this.height = height;
+            this.initialization = initialization;
+            this.segments = segments;
+            this.index = index;
+        }
+        
+        public String getId() { return id; }
+        public String getContentType() { return contentType; }
+        public String getMimeType() { return mimeType; }
+        public String getCodecs() { return codecs; }
+        public long getBandwidth() { return bandwidth; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public Segment getInitialization() { return initialization; }
+        public List<Segment> getSegments() { return segments; }
+        public Segment getIndex() { return index; }
+        
+        public boolean isVideo() { return "video".equals(contentType); }
+        public boolean isAudio() { return "audio".equals(contentType); }
+        public boolean isMp4() { return mimeType != null && mimeType.contains("mp4"); }
+    }
+    
+    public static class Manifest {
+        final boolean dynamic;
+        final double durationSeconds;
+        final List<Representation> representations;
+        
+        Manifest(boolean dynamic, double durationSeconds, List<Representation> representations) {
+            this.dynamic = dynamic;
+            this.durationSeconds = durationSeconds;
+            this.representations = representations;
+        }
+        
+        public boolean isDynamic() { return dynamic; }
+        public double getDurationSeconds() { return durationSeconds; }
+        public List<Representation> getRepresentations() { return representations; }
+    }
+    
+    /**
+     * Parses the first period of the manifest; later periods (ad breaks, chapters) are ignored.
+     */
+    public static Manifest parse(String content, String manifestUrl) throws IOException {
+        Element mpd;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            mpd = builder.parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))).getDocumentElement();
+        } catch (Exception e) {
+            throw new IOException("Invalid MPD: " + e.getMessage(), e);
+        }
+        if (!"MPD".equals(localName(mpd))) {
+            throw new IOException("Not a DASH manifest: " + manifestUrl);
+        }
+        
+        boolean dynamic = "dynamic".equals(mpd.getAttribute("type"));
+        double duration = parseDuration(mpd.getAttribute("mediaPresentationDuration"));
+        String mpdBase = resolveBaseUrl(manifestUrl, mpd);
+        
+        List<Representation> representations = new ArrayList<>();
+        Element period = firstChild(mpd, "Period");
+        if (period == null) {
+            return new Manifest(dynamic, duration, representations);
+        }
+        double periodDuration = parseDuration(period.getAttribute("duration"));
+        if (periodDuration <= 0) {
+            periodDuration = duration;
+        }
+        String periodBase = resolveBaseUrl(mpdBase, period);
+        
+        for (Element adaptationSet : children(period, "AdaptationSet")) {
+            String setBase = resolveBaseUrl(periodBase, adaptationSet);
+            for (Element representation : children(adaptationSet, "Representation")) {
+                String baseUrl = resolveBaseUrl(setBase, representation);
+                representations.add(parseRepresentation(period, adaptationSet, representation, baseUrl, periodDuration));
+            }
+        }
+        return new Manifest(dynamic, duration, representations);
+    }
+    
+    private static Representation parseRepresentation(Element period, Element adaptationSet, Element representation,
+                                                      String baseUrl, double periodDuration) throws IOException {
+        String id = representation.getAttribute("id");
+        long bandwidth = parseLong(representation.getAttribute("bandwidth"), 0);
+        String mimeType = inherited("mimeType", representation, adaptationSet);
+        String codecs = inherited("codecs", representation, adaptationSet);
+        String contentType = inherited("contentType", adaptationSet, representation);
+        if (contentType == null && mimeType != null) {
+            contentType = mimeType.substring(0, Math.max(0, mimeType.indexOf('/')));
+        }
+        int width = (int) parseLong(inherited("width", representation, adaptationSet), 0);
+        int height = (int) parseLong(inherited("height", representation, adaptationSet), 0);
+        
+        Segment initialization = null;
+        List<Segment> segments = new ArrayList<>();
+        Segment index = null;
+        
+        // The closest element wins: Representation, then AdaptationSet, then Period
+        Element[] levels = { representation, adaptationSet, period };
+        Element template = firstChild("SegmentTemplate", levels);
+        Element list = firstChild("SegmentList", levels);
+        Element base = firstChild("SegmentBase", levels);
+        
+        if (template != null) {
+            Element[] templates = templateChain(levels);
+            String init = inherited("initialization", templates);
+            if (init != null) {
+                initialization = new Segment(resolve(baseUrl, fillTemplate(init, id, bandwidth, 0, 0)), -1, 0);
+            }
+            expandTemplate(templates, id, bandwidth, baseUrl, periodDuration, segments);
+        } else if (list != null) {
+            Element init = firstChild(list, "Initialization");
+            if (init != null) {
+                initialization = rangeSegment(baseUrl, init.getAttribute("sourceURL"), init.getAttribute("range"));
+            }
+            for (Element segmentUrl : children(list, "SegmentURL")) {
+                segments.add(rangeSegment(baseUrl, segmentUrl.getAttribute("media"), segmentUrl.getAttribute("mediaRange")));
+            }
+        } else if (base != null) {
+            Element init = firstChild(base, "Initialization");
+            if (init != null && !init.getAttribute("range").isEmpty()) {
+                initialization = rangeSegment(baseUrl, null, init.getAttribute("range"));
+            }
+            String indexRange = base.getAttribute("indexRange");
+            if (!indexRange.isEmpty()) {
+                index = rangeSegment(baseUrl, null, indexRange);
+            } else {
+                segments.add(new Segment(baseUrl, -1, 0));
+            }
+        } else {
+            // A single self-contained file
+            segments.add(new Segment(baseUrl, -1, 0));
+        }
+        
+        return new Representation(id, contentType, mimeType, codecs, bandwidth, width, height, initialization, segments, index);
+    }
+    
+    /**
+     * SegmentTemplate attributes are inherited from outer levels one by one.
+     */
+    private static Element[] templateChain(Element[] levels) {
+        List<Element> chain = new ArrayList<>();
+        for (Element level : levels) {
+            Element template = firstChild(level, "SegmentTemplate");
+            if (template != null) {
+                chain.add(template);
+            }
+        }
+        return chain.toArray(new Element[0]);
+    }
+    
+    private static void expandTemplate(Element[] templates, String id, long bandwidth, String baseUrl,
+                                       double periodDuration, List<Segment> segments) throws IOException {
+        String media = inherited("media", templates);
+        if (media == null) {
+            throw new IOException("SegmentTemplate without media for representation " + id);
+        }
+        long timescale = parseLong(inherited("timescale", templates), 1);
+        long startNumber = parseLong(inherited("startNumber", templates), 1);
+        
+        Element timeline = null;
+        for (Element template : templates) {
+            timeline = firstChild(template, "SegmentTimeline");
+            if (timeline != null) break;
+        }
+        
+        long number = startNumber;
+        if (timeline != null) {
+            long time = 0;
+            long periodEnd = (long) (periodDuration * timescale);
+            for (Element s : children(timeline, "S")) {
+                if (!s.getAttribute("t").isEmpty()) {
+                    time = parseLong(s.getAttribute("t"), time);
+                }
+                long duration = parseLong(s.getAttribute("d"), 0);
+                long repeat = parseLong(s.getAttribute("r"), 0);
+                if (duration <= 0) continue;
+                if (repeat < 0) {
+                    // Repeats until the end of the period
+                    repeat = periodEnd > time ? (periodEnd - time + duration - 1) / duration - 1 : 0;
+                }
+                for (long i = 0; i <= repeat; i++) {
+                    segments.add(new Segment(resolve(baseUrl, fillTemplate(media, id, bandwidth, number, time)), -1, 0));
+                    number++;
+                    time += duration;
+                }
+            }
+        } else {
+            long duration = parseLong(inherited("duration", templates), 0);
+            if (duration <= 0 || periodDuration <= 0) {
+                throw new IOException("Cannot count segments of representation " + id);
+            }
+            long count = (long) Math.ceil(periodDuration * timescale / duration);
+            for (long i = 0; i < count; i++) {
+                long time = i * duration;
+                segments.add(new Segment(resolve(baseUrl, fillTemplate(media, id, bandwidth, number, time)), -1, 0));
+                number++;
+            }
+        }
+    }
+    
+    static String fillTemplate(String template, String id, long bandwidth, long number, long time) {
+        Matcher matcher = TEMPLATE_IDENTIFIER.matcher(template);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String value;
+            switch (matcher.group(1)) {
+                case "RepresentationID":
+                    value = id;
+                    break;
+                case "Bandwidth":
+                    value = String.valueOf(bandwidth);
+                    break;
+                case "Time":
+                    value = String.valueOf(time);
+                    break;
+                default:
+                    value = String.valueOf(number);
+                    break;
+            }
+            if (matcher.group(3) != null) {
+                int width = Integer.parseInt(matcher.group(3));
+                StringBuilder padded = new StringBuilder();
+                for (int i = value.length(); i < width; i++) {
+                    padded.append('0');
+                }
+                value = padded.append(value).toString();
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(result);
+        return result.toString().replace("$$", "$");
+    }
+    
+    /**
+     * Reads ISO 8601 durations such as {@code PT1H2M3.5S}; returns 0 when absent.
+     */
+    static double parseDuration(String value) {
+        if (value == null || value.isEmpty()) return 0;
+        Matcher matcher = ISO_DURATION.matcher(value.trim());
+        if (!matcher.matches()) return 0;
+        
+        double seconds = 0;
+        double[] unit = { 86400, 3600, 60, 1 };
+        for (int i = 0; i < unit.length; i++) {
+            String part = matcher.group(i + 1);
+            if (part != null) {
+                seconds += Double.parseDouble(part) * unit[i];
+            }
+        }
+        return seconds;
+    }
+    
+    private static Segment rangeSegment(String baseUrl, String source, String range) {
+        String url = source == null || source.isEmpty() ? baseUrl : resolve(baseUrl, source);
+        if (range == null || range.isEmpty()) {
+            return new Segment(url, -1, 0);
+        }
+        int dash = range.indexOf('-');
+        long start = parseLong(range.substring(0, dash), 0);
+        long end = parseLong(range.substring(dash + 1), start);
+        return new Segment(url, start, end - start + 1);
+    }
+    
+    private static String resolveBaseUrl(String parentUrl, Element element) {
+        Element baseUrl = firstChild(element, "BaseURL");
+        if (baseUrl == null) return parentUrl;
+        return resolve(parentUrl, baseUrl.getTextContent().trim());
+    }
+    
+    private static String resolve(String baseUrl, String reference) {
+        try {
+            return URI.create(baseUrl).resolve(reference.replace(" ", "%20")).toString();
+        } catch (Exception e) {
+            return reference;
+        }
+    }
+    
+    private static String inherited(String attribute, Element... elements) {
+        for (Element element : elements) {
+            if (element != null && element.hasAttribute(attribute)) {
+                return element.getAttribute(attribute);
+            }
+        }
+        return null;
+    }
+    
+    private static Element firstChild(String name, Element... elements) {
+        for (Element element : elements) {
+            Element child = firstChild(element, name);
+            if (child != null) return child;
+        }
+        return null;
+    }
+    
+    private static Element firstChild(Element parent, String name) {
+        List<Element> matches = children(parent, name);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+    
+    private static List<Element> children(Element parent, String name) {
+        List<Element> result = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && name.equals(localName((Element) node))) {
+                result.add((Element) node);
+            }
+        }
+        return result;
+    }
+    
+    private static String localName(Element element) {
+        String name = element.getTagName();
+        int colon = name.indexOf(':');
+        return colon >= 0 ? name.substring(colon + 1) : name;
+    }
+    
+    private static long parseLong(String value, long fallback) {
+        if (value == null || value.isEmpty()) return fallback;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
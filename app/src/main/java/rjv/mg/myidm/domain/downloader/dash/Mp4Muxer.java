@@ -0,0 +1,121 @@
+package rjv.mg.myidm.domain.downloader.dash;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remuxes separate tracks (e.g. DASH video and audio, or an HLS variant and its audio
+ * rendition) into one MP4 without re-encoding. Any container the platform extractor reads
+ * works as input: fragmented MP4, MPEG-TS, ADTS. Each input gives its video track, or its
+ * audio track when it has none; timed metadata and text tracks are left out. Samples are
+ * written in timestamp order across tracks so the output is interleaved.
+ */
+public class Mp4Muxer {
+    
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 2 * 1024 * 1024;
+    
+    public static void mux(List<File> trackFiles, File output) throws IOException {
+        List<MediaExtractor> extractors = new ArrayList<>();
+        MediaMuxer muxer = null;
+        boolean started = false;
+        
+        try {
+            muxer = new MediaMuxer(output.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int[] muxerTracks = new int[trackFiles.size()];
+            int[] inputTracks = new int[trackFiles.size()];
+            int bufferSize = DEFAULT_SAMPLE_BUFFER_SIZE;
+            
+            for (int i = 0; i < trackFiles.size(); i++) {
+                MediaExtractor extractor = new MediaExtractor();
+                extractors.add(extractor);
+                extractor.setDataSource(trackFiles.get(i).getAbsolutePath());
+                inputTracks[i] = findMediaTrack(extractor);
+                if (inputTracks[i] < 0) {
+                    throw new IOException("No audio or video track in " + trackFiles.get(i).getName());
+                }
+                extractor.selectTrack(inputTracks[i]);
+                
+                MediaFormat format = extractor.getTrackFormat(inputTracks[i]);
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+                muxerTracks[i] = muxer.addTrack(format);
+            }
+            
+            muxer.start();
+            started = true;
+            
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (true) {
+                // Next sample across all tracks, earliest first
+                int next = -1;
+                long nextTime = Long.MAX_VALUE;
+                for (int i = 0; i < extractors.size(); i++) {
+                    long time = extractors.get(i).getSampleTime();
+                    if (time >= 0 && time < nextTime) {
+                        nextTime = time;
+                        next = i;
+                    }
+                }
+                if (next < 0) break;
+                
+                MediaExtractor extractor = extractors.get(next);
+                buffer.clear();
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) {
+                    extractor.unselectTrack(inputTracks[next]);
+                    continue;
+                }
+                info.offset = 0;
+                info.size = size;
+                info.presentationTimeUs = nextTime;
+                info.flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                    ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                muxer.writeSampleData(muxerTracks[next], buffer, info);
+                extractor.advance();
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Muxing failed: " + e.getMessage(), e);
+        } finally {
+            for (MediaExtractor extractor : extractors) {
+                extractor.release();
+            }
+            if (muxer != null) {
+                try {
+                    if (started) {
+                        muxer.stop();
+                    }
+                } catch (IllegalStateException e) {
+                    // Nothing was written; the caller deletes the output
+                }
+                muxer.release();
+            }
+        }
+    }
+    
+    /**
+     * Index of the first video track of {@code extractor}, else of its first audio track,
+     * or -1 when it has neither.
+     */
+    private static int findMediaTrack(MediaExtractor extractor) {
+        int audio = -1;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime == null) continue;
+            if (mime.startsWith("video/")) return i;
+            if (audio < 0 && mime.startsWith("audio/")) {
+                audio = i;
+            }
+        }
+        return audio;
+    }
+}
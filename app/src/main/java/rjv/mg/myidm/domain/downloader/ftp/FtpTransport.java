@@ -0,0 +1,145 @@
+package rjv.mg.myidm.domain.downloader.ftp;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import rjv.mg.myidm.domain.downloader.RangeTransport;
+
+/**
+ * Reads ftp:// URLs. Every range logs in on its own control connection and starts its
+ * transfer with REST at the range offset, so segments download in parallel. Credentials
+ * come from the URL user info, anonymous otherwise.
+ */
+public class FtpTransport implements RangeTransport {
+    private static final String TAG = "FtpTransport";
+    private static final int TIMEOUT_MS = 15000;
+    
+    private final String host;
+    private final int port;
+    private final String path;
+    private final String user;
+    private final String password;
+    private volatile boolean restSupported;
+    
+    public FtpTransport(String url) throws IOException {
+        URI uri = URI.create(url);
+        if (uri.getHost() == null || uri.getPath() == null || uri.getPath().isEmpty()) {
+            throw new IOException("Invalid FTP URL: " + url);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : FTP.DEFAULT_PORT;
+        this.path = uri.getPath();
+        
+        String userInfo = uri.getUserInfo();
+        if (userInfo == null || userInfo.isEmpty()) {
+            this.user = "anonymous";
+            this.password = "anonymous@";
+        } else {
+            int colon = userInfo.indexOf(':');
+            this.user = colon >= 0 ? userInfo.substring(0, colon) : userInfo;
+            this.password = colon >= 0 ? userInfo.substring(colon + 1) : "";
+        }
+    }
+    
+    @Override
+    public RemoteFile stat() throws IOException {
+        FTPClient client = connect();
+        try {
+            String size = client.getSize(path);
+            if (size == null) {
+                throw new IOException("SIZE failed for " + path + ": " + client.getReplyString().trim());
+            }
+            // MDTM is optional, without it resume cannot tell whether the file changed
+            String modified = client.getModificationTime(path);
+            restSupported = client.hasFeature("REST");
+            Log.d(TAG, host + path + ": " + size.trim() + " bytes, REST " + (restSupported ? "supported" : "unsupported"));
+            return new RemoteFile(Long.parseLong(size.trim()), modified != null ? modified.trim() : null);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected SIZE reply for " + path, e);
+        } finally {
+            disconnect(client);
+        }
+    }
+    
+    @Override
+    public boolean supportsRanges() {
+        return restSupported;
+    }
+    
+    @Override
+    public BufferedSource open(long offset) throws IOException {
+        FTPClient client = connect();
+        try {
+            client.setRestartOffset(offset);
+            InputStream in = client.retrieveFileStream(path);
+            if (in == null) {
+                throw new IOException("RETR failed for " + path + ": " + client.getReplyString().trim());
+            }
+            // Segments stop reading mid-file, so the transfer is aborted with the connection
+            return Okio.buffer(new ForwardingSource(Okio.source(in)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        disconnect(client);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            disconnect(client);
+            throw e;
+        }
+    }
+    
+    @Override
+    public void close() {
+        // Connections live only as long as their range
+    }
+    
+    private FTPClient connect() throws IOException {
+        FTPClient client = new FTPClient();
+        client.setConnectTimeout(TIMEOUT_MS);
+        client.setDefaultTimeout(TIMEOUT_MS);
+        client.setDataTimeout(Duration.ofMillis(TIMEOUT_MS));
+        client.setControlEncoding("UTF-8");
+        client.setAutodetectUTF8(true);
+        try {
+            client.connect(host, port);
+            if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                throw new IOException("FTP server refused connection: " + client.getReplyString().trim());
+            }
+            if (!client.login(user, password)) {
+                throw new IOException("FTP login failed for " + user + ": " + client.getReplyString().trim());
+            }
+            client.enterLocalPassiveMode();
+            if (!client.setFileType(FTP.BINARY_FILE_TYPE)) {
+                throw new IOException("FTP server refused binary mode: " + client.getReplyString().trim());
+            }
+            return client;
+        } catch (IOException e) {
+            disconnect(client);
+            throw e;
+        }
+    }
+    
+    private static void disconnect(FTPClient client) {
+        if (!client.isConnected()) return;
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
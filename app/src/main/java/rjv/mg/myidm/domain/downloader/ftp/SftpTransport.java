@@ -0,0 +1,232 @@
+package rjv.mg.myidm.domain.downloader.ftp;
+
+import android.util.Log;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.UserInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import rjv.mg.myidm.domain.downloader.RangeTransport;
+
+/**
+ * Reads sftp:// URLs. Ranges are separate SFTP channels multiplexed over a few SSH sessions,
+ * each one reading from its own offset. Only host keys pinned in {@link SshKnownHosts} are
+ * accepted: an unknown key fails with {@link UnknownHostKeyException}, which carries the
+ * fingerprint for the user to confirm, and a changed key fails the connection.
+ */
+public class SftpTransport implements RangeTransport {
+    private static final String TAG = "SftpTransport";
+    private static final int DEFAULT_PORT = 22;
+    private static final int TIMEOUT_MS = 15000;
+    // OpenSSH allows 10 sessions per connection by default, stay below it
+    private static final int CHANNELS_PER_SESSION = 8;
+    
+    private final String host;
+    private final int port;
+    private final String path;
+    private final String user;
+    private final String password;
+    private final SshKnownHosts knownHosts;
+    
+    // Open SSH connections and how many channels each one carries, guarded by this
+    private final Map<Session, Integer> sessions = new HashMap<>();
+    private JSch jsch;
+    
+    public SftpTransport(String url, SshKnownHosts knownHosts) throws IOException {
+        URI uri = URI.create(url);
+        if (uri.getHost() == null || uri.getPath() == null || uri.getPath().isEmpty()) {
+            throw new IOException("Invalid SFTP URL: " + url);
+        }
+        String userInfo = uri.getUserInfo();
+        if (userInfo == null || userInfo.isEmpty()) {
+            throw new IOException("SFTP URL needs a user name: " + url);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        this.path = uri.getPath();
+        int colon = userInfo.indexOf(':');
+        this.user = colon >= 0 ? userInfo.substring(0, colon) : userInfo;
+        this.password = colon >= 0 ? userInfo.substring(colon + 1) : null;
+        this.knownHosts = knownHosts;
+    }
+    
+    @Override
+    public RemoteFile stat() throws IOException {
+        Session session = acquireSession();
+        ChannelSftp channel = null;
+        try {
+            channel = openChannel(session);
+            SftpATTRS attrs = channel.stat(path);
+            if (attrs.isDir()) {
+                throw new IOException(path + " is a directory");
+            }
+            Log.d(TAG, host + path + ": " + attrs.getSize() + " bytes");
+            return new RemoteFile(attrs.getSize(), String.valueOf(attrs.getMTime()));
+        } catch (SftpException e) {
+            throw new IOException("SFTP stat failed for " + path + ": " + e.getMessage(), e);
+        } finally {
+            releaseChannel(session, channel);
+        }
+    }
+    
+    @Override
+    public boolean supportsRanges() {
+        // SFTP reads are addressed by offset, every server can resume
+        return true;
+    }
+    
+    @Override
+    public BufferedSource open(long offset) throws IOException {
+        Session session = acquireSession();
+        ChannelSftp channel = null;
+        try {
+            channel = openChannel(session);
+            InputStream in = channel.get(path, null, offset);
+            ChannelSftp opened = channel;
+            return Okio.buffer(new ForwardingSource(Okio.source(in)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        releaseChannel(session, opened);
+                    }
+                }
+            });
+        } catch (SftpException e) {
+            releaseChannel(session, channel);
+            throw new IOException("SFTP read failed for " + path + ": " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            releaseChannel(session, channel);
+            throw e;
+        }
+    }
+    
+    @Override
+    public synchronized void close() {
+        for (Session session : sessions.keySet()) {
+            session.disconnect();
+        }
+        sessions.clear();
+    }
+    
+    /**
+     * Picks a connected session with a free channel slot, connecting a new one when all are full.
+     * The slot is taken before returning and given back by {@link #releaseChannel}.
+     */
+    private synchronized Session acquireSession() throws IOException {
+        sessions.keySet().removeIf(session -> !session.isConnected());
+        for (Map.Entry<Session, Integer> entry : sessions.entrySet()) {
+            if (entry.getValue() < CHANNELS_PER_SESSION) {
+                entry.setValue(entry.getValue() + 1);
+                return entry.getKey();
+            }
+        }
+        
+        List<UnknownHostKeyException> unknownKeys = new ArrayList<>();
+        try {
+            Session session = getJsch().getSession(user, host, port);
+            session.setHostKeyRepository(knownHosts.newSessionRepository(unknownKeys));
+            if (password != null) {
+                session.setPassword(password);
+            }
+            session.setConfig("StrictHostKeyChecking", "yes");
+            session.setUserInfo(new NoPromptUserInfo(password));
+            session.setServerAliveInterval(TIMEOUT_MS);
+            session.connect(TIMEOUT_MS);
+            sessions.put(session, 1);
+            Log.d(TAG, "Connected to " + host + ":" + port + ", " + sessions.size() + " session(s)");
+            return session;
+        } catch (JSchException e) {
+            synchronized (unknownKeys) {
+                if (!unknownKeys.isEmpty()) {
+                    throw unknownKeys.get(0);
+                }
+            }
+            throw new IOException("SSH connection to " + host + " failed: " + e.getMessage(), e);
+        }
+    }
+    
+    private ChannelSftp openChannel(Session session) throws IOException {
+        try {
+            ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+            channel.connect(TIMEOUT_MS);
+            return channel;
+        } catch (JSchException e) {
+            throw new IOException("SFTP channel to " + host + " failed: " + e.getMessage(), e);
+        }
+    }
+    
+    private synchronized void releaseChannel(Session session, ChannelSftp channel) {
+        if (channel != null) {
+            channel.disconnect();
+        }
+        Integer count = sessions.get(session);
+        if (count != null) {
+            sessions.put(session, Math.max(0, count - 1));
+        }
+    }
+    
+    private synchronized JSch getJsch() {
+        if (jsch == null) {
+            jsch = new JSch();
+        }
+        return jsch;
+    }
+    
+    /**
+     * Answers keyboard-interactive password prompts with the URL password and nothing else.
+     */
+    private static class NoPromptUserInfo implements UserInfo {
+        private final String password;
+        
+        NoPromptUserInfo(String password) {
+            this.password = password;
+        }
+        
+        @Override
+        public String getPassphrase() {
+            return null;
+        }
+        
+        @Override
+        public String getPassword() {
+            return password;
+        }
+        
+        @Override
+        public boolean promptPassword(String message) {
+            return password != null;
+        }
+        
+        @Override
+        public boolean promptPassphrase(String message) {
+            return false;
+        }
+        
+        @Override
+        public boolean promptYesNo(String message) {
+            return false;
+        }
+        
+        @Override
+        public void showMessage(String message) {
+            Log.d(TAG, message);
+        }
+    }
+}
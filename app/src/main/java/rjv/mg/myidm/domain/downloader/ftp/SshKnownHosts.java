@@ -0,0 +1,178 @@
+package rjv.mg.myidm.domain.downloader.ftp;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.UserInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The host keys SFTP downloads accept, kept in an OpenSSH known_hosts file. Keys are only
+ * added by {@link #trust} after the user saw the fingerprint; a changed key keeps failing
+ * until the pinned one is removed.
+ */
+public class SshKnownHosts {
+    
+    /**
+     * One pinned key as shown to the user.
+     */
+    public static final class PinnedKey {
+        private final String host;
+        private final String type;
+        private final String fingerprint;
+        
+        PinnedKey(String host, String type, String fingerprint) {
+            this.host = host;
+            this.type = type;
+            this.fingerprint = fingerprint;
+        }
+        
+        public String getHost() { return host; }
+        public String getType() { return type; }
+        public String getFingerprint() { return fingerprint; }
+    }
+    
+    private final File file;
+    private HostKeyRepository repository; // guarded by this
+    
+    public SshKnownHosts(File file) {
+        this.file = file;
+    }
+    
+    public synchronized List<PinnedKey> list() throws IOException {
+        List<PinnedKey> keys = new ArrayList<>();
+        HostKey[] pinned = getRepository().getHostKey();
+        if (pinned == null) return keys;
+        for (HostKey key : pinned) {
+            keys.add(new PinnedKey(key.getHost(), key.getType(),
+                UnknownHostKeyException.fingerprint(Base64.getDecoder().decode(key.getKey()))));
+        }
+        return keys;
+    }
+    
+    /**
+     * Pins the key the server offered, after the user accepted its fingerprint.
+     */
+    public synchronized void trust(UnknownHostKeyException unknown) throws IOException {
+        try {
+            getRepository().add(new HostKey(unknown.getHost(), unknown.getKey()), null);
+        } catch (JSchException e) {
+            throw new IOException("Unsupported host key for " + unknown.getHost(), e);
+        }
+    }
+    
+    /**
+     * Forgets a pinned key; the next connection to the host asks again.
+     */
+    public synchronized void remove(String host, String type) throws IOException {
+        getRepository().remove(host, type);
+    }
+    
+    /**
+     * Checks a key the server offered; JSch fails the connection on anything but OK.
+     */
+    synchronized int check(String host, byte[] key) throws IOException {
+        return getRepository().check(host, key);
+    }
+    
+    /**
+     * Repository handed to JSch sessions: checks go through this store, nothing is added.
+     */
+    HostKeyRepository newSessionRepository(List<UnknownHostKeyException> unknownKeys) {
+        return new SessionRepository(unknownKeys);
+    }
+    
+    private HostKeyRepository getRepository() throws IOException {
+        if (repository == null) {
+            // KnownHosts only writes keys back to a file that already exists
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            if (!file.exists() && !file.createNewFile()) {
+                throw new IOException("Cannot create " + file);
+            }
+            try {
+                JSch jsch = new JSch();
+                jsch.setKnownHosts(file.getAbsolutePath());
+                repository = jsch.getHostKeyRepository();
+            } catch (JSchException e) {
+                throw new IOException("Cannot read " + file + ": " + e.getMessage(), e);
+            }
+        }
+        return repository;
+    }
+    
+    /**
+     * Records the keys that were not pinned so the transport can report their fingerprint.
+     */
+    private class SessionRepository implements HostKeyRepository {
+        private final List<UnknownHostKeyException> unknownKeys;
+        
+        SessionRepository(List<UnknownHostKeyException> unknownKeys) {
+            this.unknownKeys = unknownKeys;
+        }
+        
+        @Override
+        public int check(String host, byte[] key) {
+            try {
+                int result = SshKnownHosts.this.check(host, key);
+                if (result == NOT_INCLUDED) {
+                    HostKey offered = new HostKey(host, key);
+                    synchronized (unknownKeys) {
+                        unknownKeys.add(new UnknownHostKeyException(host, offered.getType(), key));
+                    }
+                }
+                return result;
+            } catch (IOException | JSchException e) {
+                return NOT_INCLUDED;
+            }
+        }
+        
+        @Override
+        public void add(HostKey hostkey, UserInfo ui) {
+            // Only trust() pins keys
+        }
+        
+        @Override
+        public void remove(String host, String type) {
+        }
+        
+        @Override
+        public void remove(String host, String type, byte[] key) {
+        }
+        
+        @Override
+        public String getKnownHostsRepositoryID() {
+            return file.getAbsolutePath();
+        }
+        
+        @Override
+        public HostKey[] getHostKey() {
+            synchronized (SshKnownHosts.this) {
+                try {
+                    return getRepository().getHostKey();
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+        
+        @Override
+        public HostKey[] getHostKey(String host, String type) {
+            synchronized (SshKnownHosts.this) {
+                try {
+                    return getRepository().getHostKey(host, type);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+    }
+}
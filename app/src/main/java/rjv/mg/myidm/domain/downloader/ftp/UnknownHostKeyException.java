@@ -0,0 +1,55 @@
+package rjv.mg.myidm.domain.downloader.ftp;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The SSH server offered a host key that is not pinned yet. The connection is refused until
+ * the user compared the fingerprint and called {@link SshKnownHosts#trust}.
+ */
+public class UnknownHostKeyException extends IOException {
+    
+    private final String host;
+    private final String type;
+    private final byte[] key;
+    
+    /**
+     * @param host as JSch names it, {@code [host]:port} for ports other than 22
+     */
+    public UnknownHostKeyException(String host, String type, byte[] key) {
+        super("Unknown host key for " + host + " (" + type + " " + fingerprint(key) + ")");
+        this.host = host;
+        this.type = type;
+        this.key = key.clone();
+    }
+    
+    public String getHost() {
+        return host;
+    }
+    
+    public String getType() {
+        return type;
+    }
+    
+    byte[] getKey() {
+        return key.clone();
+    }
+    
+    /**
+     * Fingerprint in the format OpenSSH prints, e.g. {@code SHA256:n4bQgYh...}.
+     */
+    public String getFingerprint() {
+        return fingerprint(key);
+    }
+    
+    static String fingerprint(byte[] key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key);
+            return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
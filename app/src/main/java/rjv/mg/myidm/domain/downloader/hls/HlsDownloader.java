@@ -0,0 +1,160 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import okhttp3.OkHttpClient;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.downloader.StreamDownloader;
+import rjv.mg.myidm.domain.downloader.checksum.StreamingHasher;
+import rjv.mg.myidm.domain.downloader.dash.Mp4Muxer;
+
+/**
+ * Downloads an HLS stream: resolves the variant, fetches media segments in parallel,
+ * decrypts AES-128 segments and joins them into one .ts (or .mp4 for fMP4) file.
+ * A variant whose audio is a separate EXT-X-MEDIA rendition gets that track downloaded
+ * as well, and both are muxed into one .mp4.
+ */
+public class HlsDownloader extends StreamDownloader {
+    private static final String TAG = "HlsDownloader";
+    
+    private final List<HlsPlaylistParser.Segment> entries;
+    private final HlsKeyCache keyCache;
+    private long maxBandwidth;
+    private boolean separateAudio;
+    // File extension of each track's segments, so the extractor recognizes the joined track
+    private final String[] trackExtensions = new String[2];
+    
+    public HlsDownloader(DownloadEntity download, List<DownloadSegmentEntity> savedSegments,
+                         SegmentScheduler scheduler, OkHttpClient httpClient) {
+        super(download, savedSegments, scheduler, httpClient);
+        this.entries = new ArrayList<>();
+        this.keyCache = new HlsKeyCache(url -> fetchBytes(url, -1, 0));
+    }
+    
+    @Override
+    protected List<MediaSegment> loadSegments() throws IOException {
+        FetchedText playlist = fetchPlaylist(download.getUrl());
+        HlsPlaylistParser.Rendition audio = null;
+        
+        if (HlsPlaylistParser.isMasterPlaylist(playlist.content)) {
+            List<HlsPlaylistParser.Variant> variants = HlsPlaylistParser.parseMaster(playlist.content, playlist.url);
+            HlsPlaylistParser.Variant variant = HlsPlaylistParser.selectVariant(variants, maxBandwidth);
+            if (variant == null) {
+                throw new IOException("Master playlist has no variants");
+            }
+            Log.d(TAG, "Selected variant " + variant.getResolution() + " @ " + variant.getBandwidth() + " bps");
+            audio = HlsPlaylistParser.selectAudio(
+                HlsPlaylistParser.parseRenditions(playlist.content, playlist.url), variant);
+            playlist = fetchPlaylist(variant.getUrl());
+        }
+        
+        HlsPlaylistParser.MediaPlaylist media = HlsPlaylistParser.parseMedia(playlist.content, playlist.url);
+        if (!media.isEndList()) {
+            // The recorder writes this media playlist alone to the same path, so the extension
+            // follows its segments; a separate audio rendition is not recorded or muxed in
+            setOutputExtension(media.isFragmentedMp4() ? ".mp4" : ".ts");
+            throw new LivePlaylistException(playlist.url);
+        }
+        separateAudio = audio != null;
+        setOutputExtension(media.isFragmentedMp4() || separateAudio ? ".mp4" : ".ts");
+        
+        entries.clear();
+        List<MediaSegment> segments = new ArrayList<>();
+        addTrack(media, 0, segments);
+        if (separateAudio) {
+            Log.d(TAG, "Audio rendition " + audio.getName() + " (" + audio.getLanguage() + ")");
+            FetchedText audioPlaylist = fetchPlaylist(audio.getUrl());
+            addTrack(HlsPlaylistParser.parseMedia(audioPlaylist.content, audioPlaylist.url), 1, segments);
+        }
+        return segments;
+    }
+    
+    /**
+     * Appends the init section and segments of {@code media} to {@link #entries} and
+     * {@code segments}, which stay index aligned for {@link #newCipher(int)}.
+     */
+    private void addTrack(HlsPlaylistParser.MediaPlaylist media, int track, List<MediaSegment> segments) throws IOException {
+        List<HlsPlaylistParser.Segment> trackEntries = new ArrayList<>();
+        if (media.getInitSegment() != null) {
+            trackEntries.add(media.getInitSegment());
+        }
+        trackEntries.addAll(media.getSegments());
+        trackExtensions[track] = trackExtension(media);
+        
+        for (HlsPlaylistParser.Segment entry : trackEntries) {
+            HlsPlaylistParser.Key key = entry.getKey();
+            if (key != null && !key.isAes128()) {
+                throw new IOException("Unsupported HLS encryption: " + key.getMethod());
+            }
+            segments.add(new MediaSegment(entry.getUrl(), entry.getByteRangeOffset(), entry.getByteRangeLength(), track));
+        }
+        entries.addAll(trackEntries);
+    }
+    
+    @Override
+    protected String assemble(File target) throws IOException {
+        List<Integer> video = new ArrayList<>();
+        List<Integer> audio = new ArrayList<>();
+        List<MediaSegment> segments = getMediaSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            (segments.get(i).getTrack() == 0 ? video : audio).add(i);
+        }
+        
+        StreamingHasher hasher = newHasher();
+        if (!separateAudio) {
+            concatenate(video, target, hasher);
+        } else {
+            // Each track is joined in its own container first, the extractor reads TS, ADTS and fMP4 alike
+            File videoFile = new File(getTempDir(), "video" + trackExtensions[0]);
+            File audioFile = new File(getTempDir(), "audio" + trackExtensions[1]);
+            concatenate(video, videoFile, null);
+            concatenate(audio, audioFile, null);
+            Mp4Muxer.mux(List.of(videoFile, audioFile), target);
+            if (hasher != null) {
+                hashFile(target, hasher);
+            }
+        }
+        return hasher != null ? hasher.digestHex() : null;
+    }
+    
+    @Override
+    protected Cipher newCipher(int segmentIndex) throws IOException {
+        return keyCache.newCipher(entries.get(segmentIndex));
+    }
+    
+    private static String trackExtension(HlsPlaylistParser.MediaPlaylist media) {
+        if (media.isFragmentedMp4()) return ".mp4";
+        if (!media.getSegments().isEmpty()) {
+            String path = URI.create(media.getSegments().get(0).getUrl()).getPath();
+            // Packed audio renditions are plain ADTS streams
+            if (path != null && (path.endsWith(".aac") || path.endsWith(".adts"))) return ".aac";
+        }
+        return ".ts";
+    }
+    
+    private FetchedText fetchPlaylist(String url) throws IOException {
+        FetchedText playlist = fetchText(url);
+        if (!playlist.content.trim().startsWith("#EXTM3U")) {
+            throw new IOException("Not an HLS playlist: " + url);
+        }
+        return playlist;
+    }
+    
+    /**
+     * Highest variant bitrate to pick from a master playlist, 0 for the best one.
+     * Only read by {@link #prepare()}.
+     */
+    public void setMaxBandwidth(long bitsPerSecond) {
+        this.maxBandwidth = bitsPerSecond;
+    }
+}
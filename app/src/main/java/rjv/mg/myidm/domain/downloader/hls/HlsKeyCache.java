@@ -0,0 +1,64 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128 keys of one stream, fetched once per key URI and shared by every segment using it.
+ */
+class HlsKeyCache {
+    
+    private static final int AES_KEY_SIZE = 16;
+    
+    interface KeyLoader {
+        byte[] load(String url) throws IOException;
+    }
+    
+    private final KeyLoader loader;
+    private final Map<String, byte[]> keys = new ConcurrentHashMap<>();
+    
+    HlsKeyCache(KeyLoader loader) {
+        this.loader = loader;
+    }
+    
+    /**
+     * Decryption for {@code segment}, or null when it is stored in the clear.
+     */
+    Cipher newCipher(HlsPlaylistParser.Segment segment) throws IOException {
+        HlsPlaylistParser.Key key = segment.getKey();
+        if (key == null) return null;
+        if (!key.isAes128()) {
+            throw new IOException("Unsupported HLS encryption: " + key.getMethod());
+        }
+        
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(getKey(key), "AES"),
+                new IvParameterSpec(HlsPlaylistParser.ivFor(segment)));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to set up AES-128 decryption", e);
+        }
+    }
+    
+    private byte[] getKey(HlsPlaylistParser.Key key) throws IOException {
+        if (key.getUrl() == null) {
+            throw new IOException("AES-128 key without URI");
+        }
+        byte[] cached = keys.get(key.getUrl());
+        if (cached != null) return cached;
+        
+        byte[] value = loader.load(key.getUrl());
+        if (value.length != AES_KEY_SIZE) {
+            throw new IOException("Invalid AES-128 key length: " + value.length);
+        }
+        keys.put(key.getUrl(), value);
+        return value;
+    }
+}
@@ -0,0 +1,632 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.data.database.entity.DownloadSegmentEntity;
+import rjv.mg.myidm.domain.downloader.BandwidthLimiter;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadEngine;
+import rjv.mg.myidm.domain.downloader.DownloadHttpClient;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+
+/**
+ * Records a live (sliding-window) HLS stream. The media playlist is polled every target
+ * duration, timed on the shared {@link SegmentScheduler} timer and run as one of its
+ * connections, and each new segment, identified by its media sequence number, is appended to
+ * {@code <filePath>.part} as it arrives, so memory stays at one pooled buffer whatever the
+ * length of the recording. Recording ends on EXT-X-ENDLIST, on the duration or size cap of
+ * the download, or when {@link #stop()} is called; the part file is then renamed into place.
+ */
+public class HlsLiveRecorder implements DownloadEngine {
+    private static final String TAG = "HlsLiveRecorder";
+    
+    // Configuration
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final int CIPHER_BLOCK_SIZE = 16;
+    // Playlist or segment failures in a row before the recording gives up
+    private static final int MAX_CONSECUTIVE_ERRORS = 5;
+    private static final long MIN_POLL_INTERVAL_MS = 500;
+    // Until the first playlist tells the target duration
+    private static final long DEFAULT_POLL_INTERVAL_MS = 2000;
+    
+    private final DownloadEntity download;
+    private final OkHttpClient httpClient;
+    private final BufferPool bufferPool;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final BandwidthLimiter globalLimiter;
+    private final HlsKeyCache keyCache;
+    private final SegmentScheduler scheduler;
+    private final String host;
+    private final File partFile;
+    
+    // Polls run on scheduler threads, one at a time under this lock
+    private final Object recordLock = new Object();
+    
+    // Recording state, only touched while holding recordLock
+    private String playlistUrl;
+    private long lastSequence = -1;
+    private int consecutiveErrors;
+    private long targetMs = DEFAULT_POLL_INTERVAL_MS;
+    // Only written while holding recordLock, also read by the progress flush
+    private volatile double recordedSeconds;
+    private final AtomicLong recordedBytes;
+    private volatile long speed;
+    
+    // Callbacks
+    private DownloadProgressCallback progressCallback;
+    private DownloadCompletionCallback completionCallback;
+    private DownloadErrorCallback errorCallback;
+    
+    // Control flags
+    private volatile boolean isPaused;
+    private volatile boolean isCancelled;
+    private volatile boolean isCompleted;
+    private volatile Call activeCall;
+    private ScheduledFuture<?> nextPoll; // guarded by this
+    
+    private static class Playlist {
+        final String url; // after redirects, relative URIs resolve against it
+        final String content;
+        
+        Playlist(String url, String content) {
+            this.url = url;
+            this.content = content;
+        }
+    }
+    
+    /**
+     * @param playlistUrl media (or master) playlist to poll; {@code download}'s file path
+     *                    should already carry the container extension
+     * @param httpClient pooled client, or null for {@link DownloadHttpClient#getDefault()}
+     */
+    public HlsLiveRecorder(DownloadEntity download, String playlistUrl,
+                           SegmentScheduler scheduler, OkHttpClient httpClient) {
+        this.download = download;
+        this.playlistUrl = playlistUrl;
+        this.httpClient = httpClient != null ? httpClient : DownloadHttpClient.getDefault();
+        this.bufferPool = scheduler.getBufferPool();
+        this.globalLimiter = scheduler.getBandwidthLimiter();
+        this.bandwidthLimiter = new BandwidthLimiter(download.getBandwidthLimit());
+        this.keyCache = new HlsKeyCache(this::fetchBytes);
+        this.scheduler = scheduler;
+        this.host = getHost(playlistUrl);
+        this.partFile = new File(download.getFilePath() + PARTIAL_FILE_SUFFIX);
+        // A recording interrupted by a restart carries on at the end of its part file,
+        // with the duration saved for it so the caps and progress go on from there
+        this.recordedBytes = new AtomicLong(partFile.length());
+        this.recordedSeconds = recordedBytes.get() > 0 ? download.getRecordedDuration() / 1000.0 : 0;
+    }
+    
+    /**
+     * Nothing to resolve up front, the playlist is polled once recording starts.
+     */
+    @Override
+    public void prepare() {
+    }
+    
+    @Override
+    public void start() {
+        if (isCompleted || isCancelled) return;
+        File parent = partFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to create " + parent, -1);
+            }
+            return;
+        }
+        schedulePoll(0);
+    }
+    
+    private synchronized void schedulePoll(long delayMs) {
+        if (isPaused || isCancelled || isCompleted) return;
+        try {
+            // The timer only hands the poll over, it blocks on the network for a whole segment
+            nextPoll = scheduler.schedule(() -> runLocked(this::poll), delayMs);
+        } catch (RejectedExecutionException e) {
+            // Scheduler shut down meanwhile
+        }
+    }
+    
+    /**
+     * Runs {@code task} as a connection of this recording, after the poll in flight.
+     */
+    private void runLocked(Runnable task) {
+        try {
+            scheduler.submit(this, host, () -> {
+                synchronized (recordLock) {
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Scheduler shut down meanwhile
+        }
+    }
+    
+    private void poll() {
+        if (isPaused || isCancelled || isCompleted) return;
+        
+        HlsPlaylistParser.MediaPlaylist media;
+        try {
+            media = fetchMediaPlaylist();
+        } catch (IOException e) {
+            Log.w(TAG, "Playlist refresh failed: " + e.getMessage());
+            onFailure("Failed to refresh live playlist: " + e.getMessage());
+            schedulePoll(targetMs);
+            return;
+        }
+        
+        targetMs = Math.max(MIN_POLL_INTERVAL_MS, (long) (media.getTargetDuration() * 1000));
+        int recorded = 0;
+        try {
+            recorded = recordNewSegments(media);
+            consecutiveErrors = 0;
+        } catch (IOException e) {
+            if (isPaused || isCancelled) return;
+            Log.w(TAG, "Segment failed, retrying on next refresh: " + e.getMessage());
+            onFailure("Failed to record live segment: " + e.getMessage());
+        }
+        if (isCompleted || isPaused || isCancelled) return;
+        
+        if (media.isEndList() && consecutiveErrors == 0) {
+            Log.d(TAG, "Stream ended");
+            finish();
+            return;
+        }
+        // Nothing new yet: check again after half a target duration (RFC 8216, 6.3.4)
+        schedulePoll(recorded > 0 ? targetMs : targetMs / 2);
+    }
+    
+    private HlsPlaylistParser.MediaPlaylist fetchMediaPlaylist() throws IOException {
+        Playlist fetched = fetchPlaylist(playlistUrl);
+        if (HlsPlaylistParser.isMasterPlaylist(fetched.content)) {
+            List<HlsPlaylistParser.Variant> variants = HlsPlaylistParser.parseMaster(fetched.content, fetched.url);
+            HlsPlaylistParser.Variant variant = HlsPlaylistParser.selectVariant(variants, 0);
+            if (variant == null) {
+                throw new IOException("Master playlist has no variants");
+            }
+            // Later refreshes go straight to the media playlist
+            playlistUrl = variant.getUrl();
+            fetched = fetchPlaylist(playlistUrl);
+        }
+        return HlsPlaylistParser.parseMedia(fetched.content, fetched.url);
+    }
+    
+    /**
+     * Appends the segments newer than the last recorded sequence number.
+     * @return the number of segments written
+     */
+    private int recordNewSegments(HlsPlaylistParser.MediaPlaylist media) throws IOException {
+        List<HlsPlaylistParser.Segment> fresh = new ArrayList<>();
+        for (HlsPlaylistParser.Segment segment : media.getSegments()) {
+            if (segment.getSequence() > lastSequence) {
+                fresh.add(segment);
+            }
+        }
+        if (fresh.isEmpty()) return 0;
+        
+        if (lastSequence >= 0 && fresh.get(0).getSequence() > lastSequence + 1) {
+            // Fell behind the window (slow network or paused), these are gone for good
+            Log.w(TAG, "Missed " + (fresh.get(0).getSequence() - lastSequence - 1) + " live segments");
+        }
+        if (media.getInitSegment() != null && partFile.length() == 0) {
+            appendSegment(media.getInitSegment());
+            reportProgress();
+        }
+        
+        int written = 0;
+        for (HlsPlaylistParser.Segment segment : fresh) {
+            if (isPaused || isCancelled) break;
+            appendSegment(segment);
+            lastSequence = segment.getSequence();
+            recordedSeconds += segment.getDuration();
+            written++;
+            // After the duration moved on, so the flush it triggers saves both
+            reportProgress();
+            
+            if (isCapReached()) {
+                Log.d(TAG, "Recording cap reached after " + (long) recordedSeconds + "s, " + recordedBytes.get() + " bytes");
+                finish();
+                break;
+            }
+        }
+        return written;
+    }
+    
+    private boolean isCapReached() {
+        long maxDuration = download.getRecordMaxDuration();
+        long maxBytes = download.getRecordMaxBytes();
+        return (maxDuration > 0 && recordedSeconds >= maxDuration)
+            || (maxBytes > 0 && recordedBytes.get() >= maxBytes);
+    }
+    
+    /**
+     * Streams one segment onto the end of the part file, decrypting on the way. A failed or
+     * paused segment is cut off again so the file only ever holds whole segments.
+     */
+    private void appendSegment(HlsPlaylistParser.Segment segment) throws IOException {
+        Cipher cipher = keyCache.newCipher(segment);
+        Request.Builder request = newRequest(segment.getUrl());
+        if (segment.hasByteRange()) {
+            request.header("Range", "bytes=" + segment.getByteRangeOffset() + "-"
+                + (segment.getByteRangeOffset() + segment.getByteRangeLength() - 1));
+        }
+        
+        Response response = null;
+        ByteBuffer buffer = null;
+        ByteBuffer decrypted = null;
+        long start = -1;
+        long written = 0;
+        boolean complete = false;
+        
+        try (FileOutputStream output = new FileOutputStream(partFile, true)) {
+            FileChannel channel = output.getChannel();
+            start = channel.size();
+            
+            Call call = httpClient.newCall(request.build());
+            activeCall = call;
+            if (isPaused || isCancelled) {
+                throw new IOException("Recording stopped");
+            }
+            response = call.execute();
+            int responseCode = response.code();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error " + responseCode + " for segment " + segment.getSequence());
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response body for segment " + segment.getSequence());
+            }
+            
+            BufferedSource source = body.source();
+            long expected = body.contentLength();
+            if (segment.hasByteRange()) {
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    // Range ignored: skip to the sub-range inside the full resource
+                    source.skip(segment.getByteRangeOffset());
+                }
+                expected = segment.getByteRangeLength();
+            }
+            
+            buffer = bufferPool.acquire();
+            if (cipher != null) {
+                decrypted = bufferPool.acquire();
+            }
+            // Leave room for the padding block the cipher may hold back
+            int readSize = cipher != null ? buffer.capacity() - CIPHER_BLOCK_SIZE : buffer.capacity();
+            long downloaded = 0;
+            long startTime = System.currentTimeMillis();
+            
+            while (!isCancelled && !isPaused) {
+                long remaining = expected >= 0 ? expected - downloaded : readSize;
+                if (remaining <= 0) break;
+                
+                buffer.clear();
+                buffer.limit((int) Math.min(readSize, remaining));
+                int bytesRead = source.read(buffer);
+                if (bytesRead == -1) break;
+                
+                bandwidthLimiter.acquire(bytesRead);
+                globalLimiter.acquire(bytesRead);
+                
+                buffer.flip();
+                ByteBuffer out = buffer;
+                if (cipher != null) {
+                    decrypted.clear();
+                    cipher.update(buffer, decrypted);
+                    decrypted.flip();
+                    out = decrypted;
+                }
+                long n = writeFully(channel, out);
+                written += n;
+                recordedBytes.addAndGet(n);
+                downloaded += bytesRead;
+            }
+            
+            if (isCancelled || isPaused) {
+                throw new IOException("Recording stopped");
+            }
+            if (expected >= 0 && downloaded != expected) {
+                throw new IOException("Incomplete segment " + segment.getSequence());
+            }
+            if (cipher != null) {
+                // Flush the last block and strip its padding
+                buffer.clear();
+                buffer.limit(0);
+                decrypted.clear();
+                cipher.doFinal(buffer, decrypted);
+                decrypted.flip();
+                long n = writeFully(channel, decrypted);
+                written += n;
+                recordedBytes.addAndGet(n);
+            }
+            channel.force(false);
+            
+            long elapsed = System.currentTimeMillis() - startTime;
+            speed = elapsed > 0 ? downloaded * 1000 / elapsed : downloaded;
+            complete = true;
+            
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt segment " + segment.getSequence(), e);
+        } finally {
+            activeCall = null;
+            bufferPool.release(buffer);
+            bufferPool.release(decrypted);
+            if (response != null) {
+                response.close();
+            }
+            if (!complete && start >= 0) {
+                recordedBytes.addAndGet(-written);
+                truncate(start);
+            }
+        }
+    }
+    
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+    
+    /**
+     * Drops a partly written segment from the end of the part file.
+     */
+    private void truncate(long length) {
+        try (FileOutputStream output = new FileOutputStream(partFile, true)) {
+            output.getChannel().truncate(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to drop partial segment", e);
+        }
+    }
+    
+    private void onFailure(String error) {
+        if (++consecutiveErrors < MAX_CONSECUTIVE_ERRORS) return;
+        
+        if (recordedBytes.get() > 0) {
+            // The stream went away, keep what was recorded
+            Log.w(TAG, "Ending recording after repeated failures: " + error);
+            finish();
+        } else {
+            isCompleted = true;
+            if (errorCallback != null) {
+                errorCallback.onError(error, -1);
+            }
+        }
+    }
+    
+    private void finish() {
+        if (isCompleted || isCancelled) return;
+        File outputFile = new File(download.getFilePath());
+        
+        try {
+            if (!partFile.exists() || partFile.length() == 0) {
+                throw new IOException("Nothing was recorded");
+            }
+            if (outputFile.exists()) {
+                outputFile.delete();
+            }
+            if (!partFile.renameTo(outputFile)) {
+                throw new IOException("Unable to rename " + partFile.getName() + " to " + outputFile.getName());
+            }
+            download.setFileSize(outputFile.length());
+            isCompleted = true;
+            speed = 0;
+            
+            if (completionCallback != null) {
+                // No checksum: there is no published digest for a recording
+                completionCallback.onCompleted(outputFile.getAbsolutePath(), null);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error finishing recording", e);
+            isCompleted = true;
+            if (errorCallback != null) {
+                errorCallback.onError("Failed to finish recording: " + e.getMessage(), -1);
+            }
+        }
+    }
+    
+    private Playlist fetchPlaylist(String url) throws IOException {
+        try (Response response = httpClient.newCall(newRequest(url).build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP error " + response.code() + " fetching " + url);
+            }
+            String content = body.string();
+            if (!content.trim().startsWith("#EXTM3U")) {
+                throw new IOException("Not an HLS playlist: " + url);
+            }
+            return new Playlist(response.request().url().toString(), content);
+        }
+    }
+    
+    private byte[] fetchBytes(String url) throws IOException {
+        try (Response response = httpClient.newCall(newRequest(url).build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP error " + response.code() + " fetching " + url);
+            }
+            return body.bytes();
+        }
+    }
+    
+    private Request.Builder newRequest(String url) {
+        Request.Builder request = new Request.Builder().url(url);
+        if (download.getUserAgent() != null) {
+            request.header("User-Agent", download.getUserAgent());
+        }
+        if (download.getReferer() != null) {
+            request.header("Referer", download.getReferer());
+        }
+        if (download.getCookies() != null) {
+            request.header("Cookie", download.getCookies());
+        }
+        return request;
+    }
+    
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+    
+    private void reportProgress() {
+        if (progressCallback == null) return;
+        long maxDuration = download.getRecordMaxDuration();
+        long maxBytes = download.getRecordMaxBytes();
+        int progress = 0;
+        if (maxDuration > 0) {
+            progress = (int) Math.min(100, recordedSeconds * 100 / maxDuration);
+        } else if (maxBytes > 0) {
+            progress = (int) Math.min(100, recordedBytes.get() * 100 / maxBytes);
+        }
+        progressCallback.onProgress(recordedBytes.get(), maxBytes, progress, speed);
+    }
+    
+    private void cancelActiveCall() {
+        Call call = activeCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+    
+    /**
+     * Ends the recording now and keeps everything written so far.
+     */
+    public void stop() {
+        if (isCancelled || isCompleted) return;
+        isPaused = false;
+        // After the segment in flight, which is then complete
+        runLocked(this::finish);
+    }
+    
+    /**
+     * Stops polling and drops the segment in flight. What was recorded stays in the part file;
+     * on resume the recording picks up at the live edge, segments aired meanwhile are lost.
+     */
+    @Override
+    public void pause() {
+        synchronized (this) {
+            if (isPaused || isCancelled || isCompleted) return;
+            isPaused = true;
+            if (nextPoll != null) {
+                nextPoll.cancel(false);
+            }
+        }
+        cancelActiveCall();
+        speed = 0;
+        Log.d(TAG, "Recording paused");
+    }
+    
+    @Override
+    public void resume() {
+        synchronized (this) {
+            if (!isPaused || isCancelled || isCompleted) return;
+            isPaused = false;
+        }
+        schedulePoll(0);
+        Log.d(TAG, "Recording resumed");
+    }
+    
+    @Override
+    public void cancel() {
+        isCancelled = true;
+        isPaused = false;
+        synchronized (this) {
+            if (nextPoll != null) {
+                nextPoll.cancel(false);
+            }
+        }
+        cancelActiveCall();
+        scheduler.cancel(this);
+        // After the poll in flight, so nothing writes to the file once it is gone
+        runLocked(partFile::delete);
+        Log.d(TAG, "Recording cancelled");
+    }
+    
+    /**
+     * Changes the per-download cap while running, 0 removes it.
+     */
+    @Override
+    public void setBandwidthLimit(long bytesPerSecond) {
+        download.setBandwidthLimit(bytesPerSecond);
+        bandwidthLimiter.setLimit(bytesPerSecond);
+    }
+    
+    @Override
+    public void setProgressCallback(DownloadProgressCallback callback) {
+        this.progressCallback = callback;
+    }
+    
+    @Override
+    public void setCompletionCallback(DownloadCompletionCallback callback) {
+        this.completionCallback = callback;
+    }
+    
+    @Override
+    public void setErrorCallback(DownloadErrorCallback callback) {
+        this.errorCallback = callback;
+    }
+    
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+    
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+    
+    @Override
+    public boolean isPaused() {
+        return isPaused;
+    }
+    
+    /**
+     * A recording has no fixed segments, there is nothing to persist per segment.
+     */
+    @Override
+    public List<DownloadSegmentEntity> getSegments() {
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public long getDownloadedBytes() {
+        return recordedBytes.get();
+    }
+    
+    @Override
+    public long getSpeed() {
+        return speed;
+    }
+    
+    @Override
+    public long getRecordedDuration() {
+        return (long) (recordedSeconds * 1000);
+    }
+}
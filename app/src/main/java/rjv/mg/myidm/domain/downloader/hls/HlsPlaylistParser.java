@@ -0,0 +1,392 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for HLS master and media playlists (RFC 8216), limited to the tags
+ * needed to download a stream: variants, audio renditions, segments, byte ranges, keys and init sections.
+ */
+public class HlsPlaylistParser {
+    
+    public static class Variant {
+        final String url;
+        final long bandwidth;
+        final String resolution;
+        final String codecs;
+        final String audioGroup; // GROUP-ID of the EXT-X-MEDIA audio renditions, null when audio is muxed in
+        
+        Variant(String url, long bandwidth, String resolution, String codecs, String audioGroup) {
+            this.url = url;
+            this.bandwidth = bandwidth;
+            this.resolution = resolution;
+            this.codecs = codecs;
+            this.audioGroup = audioGroup;
+        }
+        
+        public String getUrl() { return url; }
+        public long getBandwidth() { return bandwidth; }
+        public String getResolution() { return resolution; }
+        public String getCodecs() { return codecs; }
+        public String getAudioGroup() { return audioGroup; }
+    }
+    
+    /**
+     * An EXT-X-MEDIA alternative rendition of a master playlist.
+     */
+    public static class Rendition {
+        final String type;
+        final String groupId;
+        final String name;
+        final String language;
+        final String url; // null: the rendition is carried in the variant stream itself
+        final boolean isDefault;
+        final boolean autoselect;
+        
+        Rendition(String type, String groupId, String name, String language, String url,
+                  boolean isDefault, boolean autoselect) {
+            this.type = type;
+            this.groupId = groupId;
+            this.name = name;
+            this.language = language;
+            this.url = url;
+            this.isDefault = isDefault;
+            this.autoselect = autoselect;
+        }
+        
+        public String getType() { return type; }
+        public String getGroupId() { return groupId; }
+        public String getName() { return name; }
+        public String getLanguage() { return language; }
+        public String getUrl() { return url; }
+        public boolean isDefault() { return isDefault; }
+        public boolean isAutoselect() { return autoselect; }
+    }
+    
+    public static class Key {
+        final String method;
+        final String url;
+        final byte[] iv; // null: derived from the media sequence number
+        
+        Key(String method, String url, byte[] iv) {
+            this.method = method;
+            this.url = url;
+            this.iv = iv;
+        }
+        
+        public String getMethod() { return method; }
+        public String getUrl() { return url; }
+        public byte[] getIv() { return iv; }
+        
+        public boolean isAes128() { return "AES-128".equals(method); }
+    }
+    
+    public static class Segment {
+        final String url;
+        final double duration;
+        final long sequence;
+        final long byteRangeOffset; // -1 when the whole resource is the segment
+        final long byteRangeLength;
+        final Key key;
+        
+        Segment(String url, double duration, long sequence, long byteRangeOffset, long byteRangeLength, Key key) {
+            this.url = url;
+            this.duration = duration;
+            this.sequence = sequence;
+            this.byteRangeOffset = byteRangeOffset;
+            this.byteRangeLength = byteRangeLength;
+            this.key = key;
+        }
+        
+        public String getUrl() { return url; }
+        public double getDuration() { return duration; }
+        public long getSequence() { return sequence; }
+        public long getByteRangeOffset() { return byteRangeOffset; }
+        public long getByteRangeLength() { return byteRangeLength; }
+        public Key getKey() { return key; }
+        
+        public boolean hasByteRange() { return byteRangeOffset >= 0; }
+    }
+    
+    public static class MediaPlaylist {
+        final double targetDuration;
+        final long mediaSequence;
+        final boolean endList;
+        final Segment initSegment; // EXT-X-MAP, fragmented MP4 streams only
+        final List<Segment> segments;
+        
+        MediaPlaylist(double targetDuration, long mediaSequence, boolean endList, Segment initSegment, List<Segment> segments) {
+            this.targetDuration = targetDuration;
+            this.mediaSequence = mediaSequence;
+            this.endList = endList;
+            this.initSegment = initSegment;
+            this.segments = segments;
+        }
+        
+        public double getTargetDuration() { return targetDuration; }
+        public long getMediaSequence() { return mediaSequence; }
+        public boolean isEndList() { return endList; }
+        public Segment getInitSegment() { return initSegment; }
+        public List<Segment> getSegments() { return segments; }
+        
+        public boolean isFragmentedMp4() { return initSegment != null; }
+    }
+    
+    public static boolean isMasterPlaylist(String content) {
+        return content.contains("#EXT-X-STREAM-INF");
+    }
+    
+    public static List<Variant> parseMaster(String content, String baseUrl) {
+        List<Variant> variants = new ArrayList<>();
+        Map<String, String> pending = null;
+        
+        for (String rawLine : content.split("\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) continue;
+            
+            if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                pending = parseAttributes(line.substring("#EXT-X-STREAM-INF:".length()));
+            } else if (!line.startsWith("#") && pending != null) {
+                variants.add(new Variant(
+                    resolve(baseUrl, line),
+                    parseLong(pending.get("BANDWIDTH"), 0),
+                    pending.get("RESOLUTION"),
+                    pending.get("CODECS"),
+                    pending.get("AUDIO")
+                ));
+                pending = null;
+            }
+        }
+        return variants;
+    }
+    
+    public static List<Rendition> parseRenditions(String content, String baseUrl) {
+        List<Rendition> renditions = new ArrayList<>();
+        for (String rawLine : content.split("\n")) {
+            String line = rawLine.trim();
+            if (!line.startsWith("#EXT-X-MEDIA:")) continue;
+            
+            Map<String, String> attributes = parseAttributes(line.substring("#EXT-X-MEDIA:".length()));
+            String uri = attributes.get("URI");
+            renditions.add(new Rendition(
+                attributes.get("TYPE"),
+                attributes.get("GROUP-ID"),
+                attributes.get("NAME"),
+                attributes.get("LANGUAGE"),
+                uri != null ? resolve(baseUrl, uri) : null,
+                "YES".equals(attributes.get("DEFAULT")),
+                "YES".equals(attributes.get("AUTOSELECT"))
+            ));
+        }
+        return renditions;
+    }
+    
+    /**
+     * Picks the audio rendition of {@code variant}'s AUDIO group that has its own playlist:
+     * the DEFAULT one, else the first AUTOSELECT one, else the first of the group.
+     * Returns null when the variant carries its own audio.
+     */
+    public static Rendition selectAudio(List<Rendition> renditions, Variant variant) {
+        if (variant.audioGroup == null) return null;
+        
+        Rendition first = null;
+        Rendition autoselect = null;
+        for (Rendition rendition : renditions) {
+            if (!"AUDIO".equals(rendition.type) || !variant.audioGroup.equals(rendition.groupId)
+                    || rendition.url == null) continue;
+            
+            if (rendition.isDefault) return rendition;
+            if (autoselect == null && rendition.autoselect) {
+                autoselect = rendition;
+            }
+            if (first == null) {
+                first = rendition;
+            }
+        }
+        return autoselect != null ? autoselect : first;
+    }
+    
+    public static MediaPlaylist parseMedia(String content, String baseUrl) {
+        List<Segment> segments = new ArrayList<>();
+        double targetDuration = 0;
+        long mediaSequence = 0;
+        boolean endList = false;
+        Segment initSegment = null;
+        Key key = null;
+        
+        double duration = 0;
+        long rangeLength = -1;
+        long rangeOffset = -1;
+        // Byte ranges without an offset continue where the previous range of the same URL ended
+        Map<String, Long> nextOffsets = new HashMap<>();
+        
+        for (String rawLine : content.split("\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) continue;
+            
+            if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                targetDuration = parseDouble(line.substring("#EXT-X-TARGETDURATION:".length()), 0);
+            } else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                mediaSequence = parseLong(line.substring("#EXT-X-MEDIA-SEQUENCE:".length()), 0);
+            } else if (line.startsWith("#EXT-X-ENDLIST")) {
+                endList = true;
+            } else if (line.startsWith("#EXTINF:")) {
+                String value = line.substring("#EXTINF:".length());
+                int comma = value.indexOf(',');
+                duration = parseDouble(comma >= 0 ? value.substring(0, comma) : value, 0);
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                String value = line.substring("#EXT-X-BYTERANGE:".length());
+                int at = value.indexOf('@');
+                rangeLength = parseLong(at >= 0 ? value.substring(0, at) : value, -1);
+                rangeOffset = at >= 0 ? parseLong(value.substring(at + 1), -1) : -1;
+            } else if (line.startsWith("#EXT-X-KEY:")) {
+                Map<String, String> attributes = parseAttributes(line.substring("#EXT-X-KEY:".length()));
+                String method = attributes.get("METHOD");
+                if (method == null || "NONE".equals(method)) {
+                    key = null;
+                } else {
+                    String uri = attributes.get("URI");
+                    key = new Key(method, uri != null ? resolve(baseUrl, uri) : null, parseIv(attributes.get("IV")));
+                }
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                Map<String, String> attributes = parseAttributes(line.substring("#EXT-X-MAP:".length()));
+                String uri = attributes.get("URI");
+                if (uri != null) {
+                    long offset = -1;
+                    long length = -1;
+                    String range = attributes.get("BYTERANGE");
+                    if (range != null) {
+                        int at = range.indexOf('@');
+                        length = parseLong(at >= 0 ? range.substring(0, at) : range, -1);
+                        offset = at >= 0 ? parseLong(range.substring(at + 1), 0) : 0;
+                    }
+                    initSegment = new Segment(resolve(baseUrl, uri), 0, -1, offset, length, key);
+                }
+            } else if (!line.startsWith("#")) {
+                String url = resolve(baseUrl, line);
+                long offset = -1;
+                long length = -1;
+                if (rangeLength >= 0) {
+                    Long next = nextOffsets.get(url);
+                    offset = rangeOffset >= 0 ? rangeOffset : (next != null ? next : 0);
+                    length = rangeLength;
+                    nextOffsets.put(url, offset + length);
+                }
+                
+                segments.add(new Segment(url, duration, mediaSequence + segments.size(), offset, length, key));
+                duration = 0;
+                rangeLength = -1;
+                rangeOffset = -1;
+            }
+        }
+        return new MediaPlaylist(targetDuration, mediaSequence, endList, initSegment, segments);
+    }
+    
+    /**
+     * Picks the best variant whose bandwidth fits {@code maxBandwidth}; 0 means no limit.
+     * Falls back to the lowest variant when none fits.
+     */
+    public static Variant selectVariant(List<Variant> variants, long maxBandwidth) {
+        Variant best = null;
+        Variant lowest = null;
+        for (Variant variant : variants) {
+            if (lowest == null || variant.bandwidth < lowest.bandwidth) {
+                lowest = variant;
+            }
+            if (maxBandwidth > 0 && variant.bandwidth > maxBandwidth) continue;
+            if (best == null || variant.bandwidth > best.bandwidth) {
+                best = variant;
+            }
+        }
+        return best != null ? best : lowest;
+    }
+    
+    /**
+     * IV used for a segment: the explicit one, or the sequence number as a 128-bit big-endian value.
+     */
+    public static byte[] ivFor(Segment segment) {
+        if (segment.key != null && segment.key.iv != null) {
+            return segment.key.iv;
+        }
+        byte[] iv = new byte[16];
+        long sequence = Math.max(0, segment.sequence);
+        for (int i = 15; i >= 8; i--) {
+            iv[i] = (byte) sequence;
+            sequence >>>= 8;
+        }
+        return iv;
+    }
+    
+    static Map<String, String> parseAttributes(String list) {
+        Map<String, String> attributes = new HashMap<>();
+        int i = 0;
+        int length = list.length();
+        while (i < length) {
+            int equals = list.indexOf('=', i);
+            if (equals < 0) break;
+            String name = list.substring(i, equals).trim();
+            
+            String value;
+            int next;
+            if (equals + 1 < length && list.charAt(equals + 1) == '"') {
+                // Quoted values may contain commas
+                int close = list.indexOf('"', equals + 2);
+                if (close < 0) close = length;
+                value = list.substring(equals + 2, close);
+                next = list.indexOf(',', close);
+            } else {
+                next = list.indexOf(',', equals);
+                value = list.substring(equals + 1, next < 0 ? length : next).trim();
+            }
+            attributes.put(name, value);
+            
+            if (next < 0) break;
+            i = next + 1;
+        }
+        return attributes;
+    }
+    
+    private static byte[] parseIv(String value) {
+        if (value == null) return null;
+        String hex = value.startsWith("0x") || value.startsWith("0X") ? value.substring(2) : value;
+        if (hex.length() > 32) return null;
+        while (hex.length() < 32) {
+            hex = "0" + hex;
+        }
+        
+        byte[] iv = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            iv[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return iv;
+    }
+    
+    private static String resolve(String baseUrl, String reference) {
+        try {
+            return URI.create(baseUrl).resolve(reference.replace(" ", "%20")).toString();
+        } catch (Exception e) {
+            return reference;
+        }
+    }
+    
+    private static long parseLong(String value, long fallback) {
+        if (value == null) return fallback;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+    
+    private static double parseDouble(String value, double fallback) {
+        if (value == null) return fallback;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
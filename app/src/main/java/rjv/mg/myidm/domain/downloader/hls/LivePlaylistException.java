@@ -0,0 +1,24 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HLS stream turns out to be live (no EXT-X-ENDLIST), so it has to be
+ * recorded by {@link HlsLiveRecorder} instead of downloaded as a whole.
+ */
+public class LivePlaylistException extends IOException {
+    
+    private final String mediaPlaylistUrl;
+    
+    public LivePlaylistException(String mediaPlaylistUrl) {
+        super("Live playlist, the stream has no end");
+        this.mediaPlaylistUrl = mediaPlaylistUrl;
+    }
+    
+    /**
+     * The media playlist picked from the master playlist, polled while recording.
+     */
+    public String getMediaPlaylistUrl() {
+        return mediaPlaylistUrl;
+    }
+}
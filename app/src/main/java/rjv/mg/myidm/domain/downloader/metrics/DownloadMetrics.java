@@ -0,0 +1,244 @@
+package rjv.mg.myidm.domain.downloader.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import okhttp3.EventListener;
+
+/**
+ * Where download throughput goes: connection setup, waits, retries, stalls and discarded
+ * bytes, kept for all downloads together, per download and per host. Recording only touches
+ * atomic counters so it can sit in segment read loops; {@link #snapshot()} copies everything
+ * for display.
+ */
+public class DownloadMetrics {
+    
+    /** Marks a value that belongs to no particular download, e.g. a database flush. */
+    public static final long NO_DOWNLOAD = -1;
+    // Finished downloads kept for the debug screen; the oldest go first
+    private static final int MAX_FINISHED_DOWNLOADS = 20;
+    // New hosts past this only count in the totals
+    private static final int MAX_HOSTS = 64;
+    
+    private static DownloadMetrics defaultMetrics;
+    
+    public enum Distribution {
+        /** From sending a request to the first response byte, or opening an FTP/SFTP range. */
+        TIME_TO_FIRST_BYTE("ms"),
+        /** TCP connect, TLS included, for connections not taken from the pool. */
+        CONNECT("ms"),
+        TLS_HANDSHAKE("ms"),
+        /** A download waiting for one of the concurrent download slots. */
+        DOWNLOAD_QUEUE_WAIT("ms"),
+        /** A segment waiting for a connection slot on the scheduler. */
+        SEGMENT_QUEUE_WAIT("ms"),
+        /** One segment connection's speed over about a second of reading. */
+        SEGMENT_THROUGHPUT("B/s"),
+        /** One batched progress write to the database. */
+        DB_FLUSH("ms");
+        
+        private final String unit;
+        
+        Distribution(String unit) {
+            this.unit = unit;
+        }
+        
+        public String getUnit() {
+            return unit;
+        }
+    }
+    
+    public enum Count {
+        REQUESTS,
+        /** Connections opened, as opposed to reused from the pool. */
+        CONNECTIONS,
+        BYTES,
+        RETRIES,
+        /** Reads that timed out or were aborted for making no progress. */
+        STALLS,
+        /** Bytes received and thrown away: cut by a split, lost in a failed read, skipped or discarded. */
+        WASTED_BYTES
+    }
+    
+    /**
+     * Request tag linking an OkHttp call to its download, see {@link #eventListenerFactory()}.
+     */
+    public static final class CallTag {
+        final long downloadId;
+        
+        public CallTag(long downloadId) {
+            this.downloadId = downloadId;
+        }
+    }
+    
+    static final class Scope {
+        final Histogram[] distributions = new Histogram[Distribution.values().length];
+        final LongAdder[] counts = new LongAdder[Count.values().length];
+        // Per-segment throughput, only filled in download scopes
+        final Map<Integer, Histogram> segments = new ConcurrentHashMap<>();
+        volatile long finishedAt;
+        
+        Scope() {
+            for (int i = 0; i < distributions.length; i++) {
+                distributions[i] = new Histogram();
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+        
+        MetricsSnapshot.Scope snapshot() {
+            Histogram.Snapshot[] distributionSnapshots = new Histogram.Snapshot[distributions.length];
+            for (int i = 0; i < distributions.length; i++) {
+                distributionSnapshots[i] = distributions[i].snapshot();
+            }
+            long[] countValues = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                countValues[i] = counts[i].sum();
+            }
+            Map<Integer, Histogram.Snapshot> segmentSnapshots = new HashMap<>();
+            for (Map.Entry<Integer, Histogram> entry : segments.entrySet()) {
+                segmentSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+            }
+            return new MetricsSnapshot.Scope(distributionSnapshots, countValues, segmentSnapshots, finishedAt > 0);
+        }
+    }
+    
+    private final Scope total = new Scope();
+    private final Map<Long, Scope> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Scope> hosts = new ConcurrentHashMap<>();
+    private final long startedAt = System.currentTimeMillis();
+    
+    /**
+     * Registry for callers that are not wired through dependency injection.
+     */
+    public static synchronized DownloadMetrics getDefault() {
+        if (defaultMetrics == null) {
+            defaultMetrics = new DownloadMetrics();
+        }
+        return defaultMetrics;
+    }
+    
+    /**
+     * Adds {@code value} to the totals, to {@code downloadId} unless {@link #NO_DOWNLOAD}
+     * and to {@code host} unless null.
+     */
+    public void record(Distribution distribution, long downloadId, String host, long value) {
+        int index = distribution.ordinal();
+        total.distributions[index].record(value);
+        Scope download = download(downloadId);
+        if (download != null) {
+            download.distributions[index].record(value);
+        }
+        Scope hostScope = host(host);
+        if (hostScope != null) {
+            hostScope.distributions[index].record(value);
+        }
+    }
+    
+    public void count(Count count, long downloadId, String host, long delta) {
+        int index = count.ordinal();
+        total.counts[index].add(delta);
+        Scope download = download(downloadId);
+        if (download != null) {
+            download.counts[index].add(delta);
+        }
+        Scope hostScope = host(host);
+        if (hostScope != null) {
+            hostScope.counts[index].add(delta);
+        }
+    }
+    
+    public void increment(Count count, long downloadId, String host) {
+        count(count, downloadId, host, 1);
+    }
+    
+    /**
+     * Records a segment speed sample both in the throughput distributions and under the segment.
+     */
+    public void recordSegmentThroughput(long downloadId, String host, int segmentIndex, long bytesPerSecond) {
+        record(Distribution.SEGMENT_THROUGHPUT, downloadId, host, bytesPerSecond);
+        Scope download = download(downloadId);
+        if (download != null) {
+            Histogram segment = download.segments.get(segmentIndex);
+            if (segment == null) {
+                segment = download.segments.computeIfAbsent(segmentIndex, index -> new Histogram());
+            }
+            segment.record(bytesPerSecond);
+        }
+    }
+    
+    /**
+     * Marks a download as running again, e.g. when resumed after it failed.
+     */
+    public void startDownload(long downloadId) {
+        Scope download = download(downloadId);
+        if (download != null) {
+            download.finishedAt = 0;
+        }
+    }
+    
+    /**
+     * Marks a download done; its numbers stay visible until newer downloads push them out.
+     */
+    public void finishDownload(long downloadId) {
+        Scope download = downloads.get(downloadId);
+        if (download == null || download.finishedAt > 0) return;
+        download.finishedAt = System.currentTimeMillis();
+        pruneFinished();
+    }
+    
+    public MetricsSnapshot snapshot() {
+        Map<Long, MetricsSnapshot.Scope> downloadSnapshots = new HashMap<>();
+        for (Map.Entry<Long, Scope> entry : downloads.entrySet()) {
+            downloadSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        Map<String, MetricsSnapshot.Scope> hostSnapshots = new HashMap<>();
+        for (Map.Entry<String, Scope> entry : hosts.entrySet()) {
+            hostSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(startedAt, System.currentTimeMillis(), total.snapshot(),
+            downloadSnapshots, hostSnapshots);
+    }
+    
+    /**
+     * Feeds connect, TLS and time-to-first-byte of every call made by a client into this
+     * registry. Calls tagged with a {@link CallTag} are also counted for their download.
+     */
+    public EventListener.Factory eventListenerFactory() {
+        return call -> new MetricsEventListener(this);
+    }
+    
+    private Scope download(long downloadId) {
+        if (downloadId == NO_DOWNLOAD) return null;
+        Scope scope = downloads.get(downloadId);
+        return scope != null ? scope : downloads.computeIfAbsent(downloadId, id -> new Scope());
+    }
+    
+    private Scope host(String host) {
+        if (host == null || host.isEmpty()) return null;
+        Scope scope = hosts.get(host);
+        if (scope != null || hosts.size() >= MAX_HOSTS) return scope;
+        return hosts.computeIfAbsent(host, name -> new Scope());
+    }
+    
+    private void pruneFinished() {
+        int finished = 0;
+        long oldestAt = Long.MAX_VALUE;
+        Long oldest = null;
+        for (Map.Entry<Long, Scope> entry : downloads.entrySet()) {
+            long finishedAt = entry.getValue().finishedAt;
+            if (finishedAt == 0) continue;
+            finished++;
+            if (finishedAt < oldestAt) {
+                oldestAt = finishedAt;
+                oldest = entry.getKey();
+            }
+        }
+        if (finished > MAX_FINISHED_DOWNLOADS && oldest != null) {
+            downloads.remove(oldest);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package rjv.mg.myidm.domain.downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative longs. Values fall into log-linear buckets: four per
+ * power of two, so a percentile read back is at most 25% above the real value. Recording
+ * is a few atomic adds, cheap enough for read loops.
+ */
+public final class Histogram {
+    
+    // Values 0-3 get a bucket each, then four buckets per power of two up to 2^63
+    private static final int BUCKET_COUNT = 4 + 61 * 4;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Copies the current counts. Recording may go on meanwhile, so the copy is only
+     * consistent to within the values recorded while it was taken.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.sum(), sum.sum(), max.get());
+    }
+    
+    static int bucketOf(long value) {
+        if (value < 4) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - 2)) & 3);
+        return 4 + (exponent - 2) * 4 + sub;
+    }
+    
+    /**
+     * Largest value that lands in {@code bucket}.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < 4) return bucket;
+        int exponent = (bucket - 4) / 4 + 2;
+        int sub = (bucket - 4) % 4;
+        if (exponent == 62 && sub == 3) return Long.MAX_VALUE;
+        return ((5L + sub) << (exponent - 2)) - 1;
+    }
+    
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+        
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+        
+        public long getCount() { return count; }
+        
+        public long getSum() { return sum; }
+        
+        public long getMax() { return max; }
+        
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+        
+        /**
+         * Upper bound of the bucket holding the {@code quantile} (0 to 1), never above the max.
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
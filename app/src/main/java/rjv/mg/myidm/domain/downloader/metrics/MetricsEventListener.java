@@ -0,0 +1,75 @@
+package rjv.mg.myidm.domain.downloader.metrics;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Times one OkHttp call. OkHttp creates a listener per call and reports its events on the
+ * calling thread, so plain fields are enough.
+ */
+class MetricsEventListener extends okhttp3.EventListener {
+    
+    private final DownloadMetrics metrics;
+    private long downloadId = DownloadMetrics.NO_DOWNLOAD;
+    private String host;
+    private long callStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private boolean firstByteSeen;
+    
+    MetricsEventListener(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+        host = call.request().url().host();
+        DownloadMetrics.CallTag tag = call.request().tag(DownloadMetrics.CallTag.class);
+        if (tag != null) {
+            downloadId = tag.downloadId;
+        }
+        metrics.increment(DownloadMetrics.Count.REQUESTS, downloadId, host);
+    }
+    
+    @Override
+    public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+    
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+    
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        if (secureConnectStart > 0) {
+            metrics.record(DownloadMetrics.Distribution.TLS_HANDSHAKE, downloadId, host, millisSince(secureConnectStart));
+        }
+    }
+    
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+        if (connectStart > 0) {
+            metrics.record(DownloadMetrics.Distribution.CONNECT, downloadId, host, millisSince(connectStart));
+            metrics.increment(DownloadMetrics.Count.CONNECTIONS, downloadId, host);
+        }
+    }
+    
+    @Override
+    public void responseHeadersStart(Call call) {
+        // Redirects and retries start more responses within the same call, the first one counts
+        if (firstByteSeen) return;
+        firstByteSeen = true;
+        metrics.record(DownloadMetrics.Distribution.TIME_TO_FIRST_BYTE, downloadId, host, millisSince(callStart));
+    }
+    
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
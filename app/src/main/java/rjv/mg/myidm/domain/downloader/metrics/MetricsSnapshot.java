@@ -0,0 +1,65 @@
+package rjv.mg.myidm.domain.downloader.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A copy of {@link DownloadMetrics} at one point in time, safe to read from any thread.
+ */
+public final class MetricsSnapshot {
+    
+    private final long startedAt;
+    private final long takenAt;
+    private final Scope total;
+    private final Map<Long, Scope> downloads;
+    private final Map<String, Scope> hosts;
+    
+    MetricsSnapshot(long startedAt, long takenAt, Scope total, Map<Long, Scope> downloads, Map<String, Scope> hosts) {
+        this.startedAt = startedAt;
+        this.takenAt = takenAt;
+        this.total = total;
+        this.downloads = Collections.unmodifiableMap(downloads);
+        this.hosts = Collections.unmodifiableMap(hosts);
+    }
+    
+    /** When recording began, in epoch milliseconds. */
+    public long getStartedAt() { return startedAt; }
+    
+    public long getTakenAt() { return takenAt; }
+    
+    /** Every download and host together. */
+    public Scope getTotal() { return total; }
+    
+    /** Running downloads and the most recently finished ones, by download id. */
+    public Map<Long, Scope> getDownloads() { return downloads; }
+    
+    public Map<String, Scope> getHosts() { return hosts; }
+    
+    public static final class Scope {
+        private final Histogram.Snapshot[] distributions;
+        private final long[] counts;
+        private final Map<Integer, Histogram.Snapshot> segments;
+        private final boolean finished;
+        
+        Scope(Histogram.Snapshot[] distributions, long[] counts, Map<Integer, Histogram.Snapshot> segments,
+              boolean finished) {
+            this.distributions = distributions;
+            this.counts = counts;
+            this.segments = Collections.unmodifiableMap(segments);
+            this.finished = finished;
+        }
+        
+        public Histogram.Snapshot get(DownloadMetrics.Distribution distribution) {
+            return distributions[distribution.ordinal()];
+        }
+        
+        public long get(DownloadMetrics.Count count) {
+            return counts[count.ordinal()];
+        }
+        
+        /** Throughput samples per segment index, empty outside download scopes. */
+        public Map<Integer, Histogram.Snapshot> getSegmentThroughput() { return segments; }
+        
+        public boolean isFinished() { return finished; }
+    }
+}
@@ -124,11 +124,6 @@ public class MultiThreadDownloadExample {
                 // Notifier l'utilisateur
                 showCompletionNotification(filePath);
             }
-            
-            @Override
-            public void onMerged(String filePath) {
-                Log.i(TAG, "Fichiers fusionnés: " + filePath);
-            }
         });
         
         // Callback d'erreur
@@ -9,12 +9,16 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.IBinder;
+import android.text.format.Formatter;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import javax.inject.Inject;
+
 import dagger.hilt.android.AndroidEntryPoint;
 import rjv.mg.myidm.R;
+import rjv.mg.myidm.domain.downloader.TorrentSession;
 import rjv.mg.myidm.ui.MainActivity;
 
 @AndroidEntryPoint
@@ -23,6 +27,9 @@ public class TorrentService extends Service {
     private static final String CHANNEL_ID = "TORRENT_SERVICE";
     private static final int NOTIFICATION_ID = 2001;
     
+    @Inject
+    TorrentSession torrentSession;
+    
     public static void startService(Context context) {
         Intent intent = new Intent(context, TorrentService.class);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -47,7 +54,17 @@ public class TorrentService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         startForeground(NOTIFICATION_ID, createNotification());
         
-        // TODO: Initialize torrent session and start monitoring
+        // The session pushes its totals every second; nothing left means the service is done
+        torrentSession.setStatsListener((activeTorrents, downloadRate, uploadRate) -> {
+            if (torrentSession.getActiveTorrentCount() == 0) {
+                stopSelf();
+                return;
+            }
+            updateNotification(getString(R.string.torrent_service_title),
+                getString(R.string.torrent_service_progress, activeTorrents,
+                    Formatter.formatShortFileSize(this, downloadRate),
+                    Formatter.formatShortFileSize(this, uploadRate)));
+        });
         
         return START_STICKY;
     }
@@ -61,7 +78,8 @@ public class TorrentService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        // TODO: Cleanup torrent session
+        // The session belongs to DownloadManager, only stop listening to it
+        torrentSession.setStatsListener(null);
     }
     
     private void createNotificationChannel() {
@@ -2,6 +2,7 @@ package rjv.mg.myidm.ui;
 
 import android.Manifest;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
@@ -32,6 +33,7 @@ import javax.annotation.Nonnull;
 import dagger.hilt.android.AndroidEntryPoint;
 import rjv.mg.myidm.R;
 import rjv.mg.myidm.ui.browser.BrowserFragment;
+import rjv.mg.myidm.ui.debug.MetricsFragment;
 import rjv.mg.myidm.ui.download.DownloadsFragment;
 import rjv.mg.myidm.ui.download.AddDownloadDialogFragment;
 import rjv.mg.myidm.ui.download.SearchDialogFragment;
@@ -247,6 +249,8 @@ public class MainActivity extends AppCompatActivity implements NavigationBarView
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        menu.findItem(R.id.action_engine_metrics).setVisible(debuggable);
         return true;
     }
     
@@ -265,11 +269,21 @@ public class MainActivity extends AppCompatActivity implements NavigationBarView
         } else if (itemId == R.id.action_import_downloads) {
             viewModel.importDownloads();
             return true;
+        } else if (itemId == R.id.action_engine_metrics) {
+            showMetrics();
+            return true;
         }
         
         return super.onOptionsItemSelected(item);
     }
     
+    private void showMetrics() {
+        getSupportFragmentManager().beginTransaction()
+            .replace(R.id.fragment_container, new MetricsFragment())
+            .addToBackStack("metrics")
+            .commit();
+    }
+    
     private void showSearchDialog() {
         SearchDialogFragment dialog = new SearchDialogFragment();
         dialog.show(getSupportFragmentManager(), "search");
@@ -0,0 +1,131 @@
+package rjv.mg.myidm.ui.debug;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.AndroidEntryPoint;
+import rjv.mg.myidm.R;
+import rjv.mg.myidm.domain.downloader.metrics.DownloadMetrics;
+import rjv.mg.myidm.domain.downloader.metrics.Histogram;
+import rjv.mg.myidm.domain.downloader.metrics.MetricsSnapshot;
+
+/**
+ * Debug screen showing the download engine metrics, refreshed every second while visible.
+ */
+@AndroidEntryPoint
+public class MetricsFragment extends Fragment {
+    
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    
+    @Inject
+    DownloadMetrics metrics;
+    
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            render();
+            handler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+    private TextView metricsText;
+    
+    @Nullable
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_metrics, container, false);
+    }
+    
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        metricsText = view.findViewById(R.id.metrics_text);
+    }
+    
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+    
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+    
+    private void render() {
+        MetricsSnapshot snapshot = metrics.snapshot();
+        if (snapshot.getTotal().get(DownloadMetrics.Count.REQUESTS) == 0) {
+            metricsText.setText(R.string.metrics_empty);
+            return;
+        }
+        
+        StringBuilder text = new StringBuilder();
+        text.append(getString(R.string.metrics_since,
+            DateFormat.getTimeInstance().format(new Date(snapshot.getStartedAt())))).append("\n\n");
+        appendScope(text, getString(R.string.metrics_total), snapshot.getTotal());
+        for (Map.Entry<String, MetricsSnapshot.Scope> host : new TreeMap<>(snapshot.getHosts()).entrySet()) {
+            appendScope(text, host.getKey(), host.getValue());
+        }
+        for (Map.Entry<Long, MetricsSnapshot.Scope> download : new TreeMap<>(snapshot.getDownloads()).entrySet()) {
+            MetricsSnapshot.Scope scope = download.getValue();
+            String title = "#" + download.getKey() + (scope.isFinished() ? " " + getString(R.string.metrics_finished) : "");
+            appendScope(text, title, scope);
+        }
+        metricsText.setText(text);
+    }
+    
+    private static void appendScope(StringBuilder text, String title, MetricsSnapshot.Scope scope) {
+        text.append(title).append('\n');
+        text.append(String.format(Locale.US, "  requests %d  connections %d  retries %d  stalls %d%n",
+            scope.get(DownloadMetrics.Count.REQUESTS), scope.get(DownloadMetrics.Count.CONNECTIONS),
+            scope.get(DownloadMetrics.Count.RETRIES), scope.get(DownloadMetrics.Count.STALLS)));
+        text.append(String.format(Locale.US, "  bytes %s  wasted %s%n",
+            formatBytes(scope.get(DownloadMetrics.Count.BYTES)), formatBytes(scope.get(DownloadMetrics.Count.WASTED_BYTES))));
+        for (DownloadMetrics.Distribution distribution : DownloadMetrics.Distribution.values()) {
+            Histogram.Snapshot values = scope.get(distribution);
+            if (values.getCount() == 0) continue;
+            appendDistribution(text, "  " + distribution.name().toLowerCase(Locale.US), values, distribution.getUnit());
+        }
+        for (Map.Entry<Integer, Histogram.Snapshot> segment : new TreeMap<>(scope.getSegmentThroughput()).entrySet()) {
+            appendDistribution(text, "  segment " + segment.getKey(), segment.getValue(), "B/s");
+        }
+        text.append('\n');
+    }
+    
+    private static void appendDistribution(StringBuilder text, String label, Histogram.Snapshot values, String unit) {
+        boolean bytes = "B/s".equals(unit);
+        text.append(String.format(Locale.US, "%-22s n=%-6d p50=%s p90=%s p99=%s max=%s%n", label, values.getCount(),
+            format(values.getPercentile(0.5), bytes), format(values.getPercentile(0.9), bytes),
+            format(values.getPercentile(0.99), bytes), format(values.getMax(), bytes)));
+    }
+    
+    private static String format(long value, boolean bytes) {
+        return bytes ? formatBytes(value) + "/s" : value + "ms";
+    }
+    
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+        return String.format(Locale.US, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -19,9 +19,12 @@ import androidx.lifecycle.ViewModelProvider;
 
 import com.google.android.material.textfield.TextInputLayout;
 
+import java.util.List;
+
 import dagger.hilt.android.AndroidEntryPoint;
 import rjv.mg.myidm.R;
 import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.MirrorSet;
 import rjv.mg.myidm.domain.model.DownloadType;
 
 @AndroidEntryPoint
@@ -32,6 +35,8 @@ public class AddDownloadDialogFragment extends DialogFragment {
     private EditText urlEditText;
     private TextInputLayout filenameInputLayout;
     private EditText filenameEditText;
+    private TextInputLayout mirrorsInputLayout;
+    private EditText mirrorsEditText;
     private Button addButton;
     private Button cancelButton;
     private ProgressBar progressBar;
@@ -67,6 +72,8 @@ public class AddDownloadDialogFragment extends DialogFragment {
         urlEditText = view.findViewById(R.id.url_edit_text);
         filenameInputLayout = view.findViewById(R.id.filename_input_layout);
         filenameEditText = view.findViewById(R.id.filename_edit_text);
+        mirrorsInputLayout = view.findViewById(R.id.mirrors_input_layout);
+        mirrorsEditText = view.findViewById(R.id.mirrors_edit_text);
         addButton = view.findViewById(R.id.add_button);
         cancelButton = view.findViewById(R.id.cancel_button);
         progressBar = view.findViewById(R.id.progress_bar);
@@ -140,15 +147,26 @@ public class AddDownloadDialogFragment extends DialogFragment {
             return;
         }
         
+        // Validate mirrors, only plain HTTP(S) sources can share segments
+        List<String> mirrors = MirrorSet.parseUrls(mirrorsEditText.getText().toString());
+        for (String mirror : mirrors) {
+            String lower = mirror.toLowerCase();
+            if (!(lower.startsWith("http://") || lower.startsWith("https://")) || !isValidUrl(mirror)) {
+                mirrorsInputLayout.setError(getString(R.string.error_invalid_mirror, mirror));
+                return;
+            }
+        }
+        
         // Clear errors
         urlInputLayout.setError(null);
         filenameInputLayout.setError(null);
+        mirrorsInputLayout.setError(null);
         
         // Add download
-        addDownload(url, filename);
+        addDownload(url, filename, mirrors);
     }
     
-    private void addDownload(String url, String filename) {
+    private void addDownload(String url, String filename, List<String> mirrors) {
         try {
             // Create download entity
             DownloadEntity download = new DownloadEntity(url, filename, DownloadType.HTTP_HTTPS);
@@ -156,6 +174,9 @@ public class AddDownloadDialogFragment extends DialogFragment {
             // Detect download type
             DownloadType type = detectDownloadType(url);
             download.setType(type);
+            if (type == DownloadType.HTTP_HTTPS && !mirrors.isEmpty()) {
+                download.setMirrorUrls(TextUtils.join("\n", mirrors));
+            }
             
             // Set default values
             download.setPriority(0);
@@ -178,6 +199,15 @@ public class AddDownloadDialogFragment extends DialogFragment {
     }
     
     private boolean isValidUrl(String url) {
+        // Magnet links carry the info hash instead of a host
+        if (url.toLowerCase().startsWith("magnet:?")) {
+            return url.toLowerCase().contains("xt=urn:btih:");
+        }
+        // WEB_URL knows ftp:// but not sftp://, which always needs a user and host
+        if (url.toLowerCase().startsWith("sftp://")) {
+            android.net.Uri uri = android.net.Uri.parse(url);
+            return uri.getHost() != null && uri.getUserInfo() != null;
+        }
         return android.util.Patterns.WEB_URL.matcher(url).matches();
     }
     
@@ -220,7 +250,11 @@ public class AddDownloadDialogFragment extends DialogFragment {
             return DownloadType.INSTAGRAM;
         } else if (lowerUrl.contains("tiktok.com")) {
             return DownloadType.TIKTOK;
-        } else if (lowerUrl.endsWith(".torrent")) {
+        } else if (lowerUrl.startsWith("ftp://")) {
+            return DownloadType.FTP;
+        } else if (lowerUrl.startsWith("sftp://")) {
+            return DownloadType.SFTP;
+        } else if (lowerUrl.endsWith(".torrent") || lowerUrl.startsWith("magnet:")) {
             return DownloadType.TORRENT;
         } else if (lowerUrl.contains(".m3u8")) {
             return DownloadType.M3U8;
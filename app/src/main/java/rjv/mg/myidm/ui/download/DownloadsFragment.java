@@ -14,6 +14,7 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.google.android.material.chip.Chip;
 import com.google.android.material.chip.ChipGroup;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import javax.annotation.Nonnull;
@@ -120,12 +121,30 @@ public class DownloadsFragment extends Fragment {
             }
         });
         
+        // An SFTP server offered a host key that is not pinned yet
+        viewModel.getHostKeyPrompt().observe(getViewLifecycleOwner(), prompt -> {
+            if (prompt != null) {
+                showHostKeyDialog(prompt);
+            }
+        });
+        
         // Observe active downloads count
         viewModel.getActiveDownloadsCount().observe(getViewLifecycleOwner(), count -> {
             updateActiveDownloadsCount(count);
         });
     }
     
+    private void showHostKeyDialog(DownloadsViewModel.HostKeyPrompt prompt) {
+        new MaterialAlertDialogBuilder(requireContext())
+            .setTitle(R.string.unknown_host_key_title)
+            .setMessage(getString(R.string.unknown_host_key_message, prompt.hostKey.getHost(),
+                prompt.hostKey.getType(), prompt.hostKey.getFingerprint()))
+            .setPositiveButton(R.string.trust_host_key, (dialog, which) -> viewModel.trustHostKey(prompt))
+            .setNegativeButton(R.string.cancel, (dialog, which) -> viewModel.dismissHostKeyPrompt())
+            .setCancelable(false)
+            .show();
+    }
+    
     private void setupFilterChips() {
         // Add filter chips
         addFilterChip("Tous", null);
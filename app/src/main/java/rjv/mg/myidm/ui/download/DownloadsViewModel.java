@@ -15,7 +15,10 @@ import dagger.hilt.android.lifecycle.HiltViewModel;
 import rjv.mg.myidm.data.database.dao.DownloadDao;
 import rjv.mg.myidm.data.database.entity.DownloadEntity;
 import rjv.mg.myidm.domain.downloader.DownloadManager;
+import rjv.mg.myidm.domain.downloader.ftp.UnknownHostKeyException;
 import rjv.mg.myidm.domain.model.DownloadStatus;
+import rjv.mg.myidm.domain.model.DownloadType;
+import rjv.mg.myidm.service.TorrentService;
 
 @HiltViewModel
 public class DownloadsViewModel extends AndroidViewModel {
@@ -28,12 +31,33 @@ public class DownloadsViewModel extends AndroidViewModel {
     private final MutableLiveData<DownloadStatus> currentFilter = new MutableLiveData<>(null);
     private final MutableLiveData<Boolean> isLoading = new MutableLiveData<>(false);
     private final MutableLiveData<String> error = new MutableLiveData<>();
+    private final MutableLiveData<HostKeyPrompt> hostKeyPrompt = new MutableLiveData<>();
+    
+    /**
+     * An SFTP host key waiting for the user to accept or refuse it.
+     */
+    public static final class HostKeyPrompt {
+        public final long downloadId;
+        public final UnknownHostKeyException hostKey;
+        
+        HostKeyPrompt(long downloadId, UnknownHostKeyException hostKey) {
+            this.downloadId = downloadId;
+            this.hostKey = hostKey;
+        }
+    }
     
     @Inject
     public DownloadsViewModel(Application application, DownloadDao downloadDao, DownloadManager downloadManager) {
         super(application);
         this.downloadDao = downloadDao;
         this.downloadManager = downloadManager;
+        downloadManager.setHostKeyListener((downloadId, hostKey) ->
+            hostKeyPrompt.postValue(new HostKeyPrompt(downloadId, hostKey)));
+    }
+    
+    @Override
+    protected void onCleared() {
+        downloadManager.setHostKeyListener(null);
     }
     
     public LiveData<List<DownloadEntity>> getDownloads() {
@@ -90,6 +114,7 @@ public class DownloadsViewModel extends AndroidViewModel {
             if (position >= 0 && position < downloads.size()) {
                 DownloadEntity download = downloads.get(position);
                 downloadManager.resumeDownload(download.getId());
+                startTorrentServiceIfNeeded(download);
                 Log.d(TAG, "Resumed download: " + download.getFilename());
             }
         } catch (Exception e) {
@@ -117,6 +142,7 @@ public class DownloadsViewModel extends AndroidViewModel {
             long id = downloadDao.insert(download);
             download.setId(id);
             downloadManager.startDownload(download);
+            startTorrentServiceIfNeeded(download);
             Log.d(TAG, "Added and started download: " + download.getFilename());
         } catch (Exception e) {
             Log.e(TAG, "Error adding download", e);
@@ -124,6 +150,15 @@ public class DownloadsViewModel extends AndroidViewModel {
         }
     }
     
+    /**
+     * Torrents keep talking to peers in the background, which needs the foreground service.
+     */
+    private void startTorrentServiceIfNeeded(DownloadEntity download) {
+        if (download.getType() == DownloadType.TORRENT) {
+            TorrentService.startService(getApplication());
+        }
+    }
+    
     public void deleteDownload(int position) {
         try {
             List<DownloadEntity> downloads = getCurrentDownloadsList();
@@ -148,6 +183,7 @@ public class DownloadsViewModel extends AndroidViewModel {
                     download.setRetryCount(0);
                     downloadDao.update(download);
                     downloadManager.startDownload(download);
+                    startTorrentServiceIfNeeded(download);
                     Log.d(TAG, "Retried download: " + download.getFilename());
                 }
             }
@@ -190,6 +226,27 @@ public class DownloadsViewModel extends AndroidViewModel {
         }
     }
     
+    public LiveData<HostKeyPrompt> getHostKeyPrompt() {
+        return hostKeyPrompt;
+    }
+    
+    /**
+     * Pins the key the user accepted and restarts the download that was refused.
+     */
+    public void trustHostKey(HostKeyPrompt prompt) {
+        hostKeyPrompt.setValue(null);
+        try {
+            downloadManager.trustHostKey(prompt.downloadId, prompt.hostKey);
+        } catch (Exception e) {
+            Log.e(TAG, "Error trusting host key", e);
+            error.setValue("Erreur lors de l'enregistrement de la clé: " + e.getMessage());
+        }
+    }
+    
+    public void dismissHostKeyPrompt() {
+        hostKeyPrompt.setValue(null);
+    }
+    
     public void clearError() {
         error.setValue(null);
     }
@@ -13,13 +13,24 @@ import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
 import com.google.android.material.card.MaterialCardView;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.inject.Inject;
 
 import dagger.hilt.android.AndroidEntryPoint;
 import rjv.mg.myidm.R;
+import rjv.mg.myidm.domain.downloader.DownloadManager;
+import rjv.mg.myidm.domain.downloader.ftp.SshKnownHosts;
 
 @AndroidEntryPoint
 public class SettingsFragment extends Fragment {
     
+    @Inject
+    DownloadManager downloadManager;
+    
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -83,8 +94,47 @@ public class SettingsFragment extends Fragment {
     }
     
     private void openSecuritySettings() {
-        // TODO: Open security settings fragment
-        showComingSoonMessage();
+        // Only the pinned SFTP host keys for now
+        showKnownHosts();
+    }
+    
+    private void showKnownHosts() {
+        SshKnownHosts knownHosts = downloadManager.getKnownHosts();
+        List<SshKnownHosts.PinnedKey> keys;
+        try {
+            keys = knownHosts.list();
+        } catch (IOException e) {
+            android.widget.Toast.makeText(requireContext(), R.string.known_hosts_error, android.widget.Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(requireContext())
+            .setTitle(R.string.known_hosts_title)
+            .setNegativeButton(R.string.cancel, null);
+        if (keys.isEmpty()) {
+            builder.setMessage(R.string.known_hosts_empty).show();
+            return;
+        }
+        
+        String[] items = new String[keys.size()];
+        boolean[] checked = new boolean[keys.size()];
+        for (int i = 0; i < items.length; i++) {
+            SshKnownHosts.PinnedKey key = keys.get(i);
+            items[i] = key.getHost() + " (" + key.getType() + ")\n" + key.getFingerprint();
+        }
+        builder.setMultiChoiceItems(items, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+            .setPositiveButton(R.string.known_hosts_remove, (dialog, which) -> {
+                try {
+                    for (int i = 0; i < checked.length; i++) {
+                        if (checked[i]) {
+                            knownHosts.remove(keys.get(i).getHost(), keys.get(i).getType());
+                        }
+                    }
+                } catch (IOException e) {
+                    android.widget.Toast.makeText(requireContext(), R.string.known_hosts_error, android.widget.Toast.LENGTH_SHORT).show();
+                }
+            })
+            .show();
     }
     
     private void openAbout() {
@@ -23,6 +23,7 @@ import rjv.mg.myidm.data.database.entity.DownloadEntity;
 import rjv.mg.myidm.domain.downloader.DownloadManager;
 import rjv.mg.myidm.domain.model.DownloadStatus;
 import rjv.mg.myidm.service.DownloadService;
+import rjv.mg.myidm.service.TorrentService;
 
 @HiltViewModel
 public class MainViewModel extends AndroidViewModel {
@@ -67,6 +68,9 @@ public class MainViewModel extends AndroidViewModel {
                 if (downloadManager.hasActiveDownloads()) {
                     DownloadService.startService(getApplication());
                 }
+                if (downloadManager.hasActiveTorrents()) {
+                    TorrentService.startService(getApplication());
+                }
                 
                 Log.d(TAG, "Services initialized successfully");
             } catch (Exception e) {
@@ -0,0 +1,315 @@
+package rjv.mg.myidm.domain.downloader;
+
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.filesystem.nativefs.impl.NativeFtpFile;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FileSystemView;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ftplet.User;
+import org.apache.ftpserver.impl.DefaultFtpServer;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.ftp.FtpTransport;
+import rjv.mg.myidm.domain.model.DownloadType;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link MultiThreadDownloader} through {@link FtpTransport} against an Apache FtpServer
+ * on 127.0.0.1, with and without REST, and with transfers cut in the middle.
+ */
+public class FtpTransportTest {
+    private static final int SIZE = 4 * 1024 * 1024 + 123;
+    private static final int SEGMENTS = 4;
+    private static final String USER = "idm";
+    private static final String PASSWORD = "secret";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private FtpServer server;
+    private int port;
+    private SegmentScheduler scheduler;
+    private byte[] content;
+    
+    // What the server saw, reset for every test
+    private final List<Long> retrieveOffsets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicInteger maxActiveTransfers = new AtomicInteger();
+    private final AtomicInteger restCommands = new AtomicInteger();
+    // The next transfer starting at offset 0 stops after this many bytes, -1 for none
+    private volatile int cutAfter = -1;
+    private volatile boolean advertiseRest = true;
+    
+    @Before
+    public void setUp() throws Exception {
+        File root = folder.newFolder("ftp");
+        content = new byte[SIZE];
+        new Random(17).nextBytes(content);
+        Files.write(new File(root, "file.bin").toPath(), content);
+        
+        BaseUser user = new BaseUser();
+        user.setName(USER);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(root.getAbsolutePath());
+        List<Authority> authorities = Collections.singletonList(new ConcurrentLoginPermission(0, 0));
+        user.setAuthorities(authorities);
+        
+        FtpServerFactory factory = new FtpServerFactory();
+        ListenerFactory listener = new ListenerFactory();
+        listener.setServerAddress("127.0.0.1");
+        listener.setPort(0);
+        factory.addListener("default", listener.createListener());
+        PropertiesUserManagerFactory users = new PropertiesUserManagerFactory();
+        users.setFile(folder.newFile("users.properties"));
+        factory.setUserManager(users.createUserManager());
+        factory.getUserManager().save(user);
+        factory.setFileSystem(new CuttingFileSystemFactory());
+        Map<String, Ftplet> ftplets = new HashMap<>();
+        ftplets.put("recorder", new RecordingFtplet());
+        factory.setFtplets(ftplets);
+        
+        server = factory.createServer();
+        server.start();
+        port = ((DefaultFtpServer) server).getListener("default").getPort();
+        scheduler = new SegmentScheduler(SEGMENTS, SEGMENTS, new BufferPool(64 * 1024, true, SEGMENTS));
+    }
+    
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        server.stop();
+    }
+    
+    @Test
+    public void segmentsUseRestAndMatchTheSource() throws Exception {
+        Outcome outcome = download(newDownload("whole.bin"));
+        
+        assertNull(outcome.error, outcome.error);
+        assertArrayEquals(content, Files.readAllBytes(new File(outcome.filePath).toPath()));
+        assertTrue("Segments did not run in parallel", maxActiveTransfers.get() > 1);
+        assertTrue(restCommands.get() >= SEGMENTS - 1);
+    }
+    
+    @Test
+    public void cutTransferResumesWithRestWhereItStopped() throws Exception {
+        cutAfter = 100_000;
+        Outcome outcome = download(newDownload("cut.bin"));
+        
+        assertNull(outcome.error, outcome.error);
+        assertArrayEquals(content, Files.readAllBytes(new File(outcome.filePath).toPath()));
+        // The first segment came back at its own offset, not at 0 and not as a split of the rest
+        assertTrue(retrieveOffsets.toString(), retrieveOffsets.stream().anyMatch(offset -> offset > 0 && offset <= 100_000));
+    }
+    
+    @Test
+    public void serverWithoutRestUsesOneConnectionAndSkipsOnResume() throws Exception {
+        advertiseRest = false;
+        cutAfter = 300_000;
+        DownloadEntity download = newDownload("no-rest.bin");
+        Outcome outcome = download(download);
+        
+        assertNull(outcome.error, outcome.error);
+        assertArrayEquals(content, Files.readAllBytes(new File(outcome.filePath).toPath()));
+        assertEquals(1, maxActiveTransfers.get());
+        // The user's setting is kept for a later run
+        assertEquals(SEGMENTS, download.getMaxConcurrentSegments());
+        // Resumed by reading again from the start, REST was never sent
+        assertEquals(0, restCommands.get());
+        assertTrue(retrieveOffsets.toString(), retrieveOffsets.size() >= 2);
+        for (long offset : retrieveOffsets) {
+            assertEquals(0, offset);
+        }
+    }
+    
+    private DownloadEntity newDownload(String filename) {
+        String url = "ftp://" + USER + ":" + PASSWORD + "@127.0.0.1:" + port + "/file.bin";
+        DownloadEntity download = new DownloadEntity(url, filename, DownloadType.FTP);
+        download.setId(filename.hashCode());
+        download.setFilePath(new File(folder.getRoot(), filename).getPath());
+        download.setMaxConcurrentSegments(SEGMENTS);
+        return download;
+    }
+    
+    private Outcome download(DownloadEntity download) throws Exception {
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setTransport(new FtpTransport(download.getUrl()));
+        downloader.setHostConnectionStore(new HostConnectionStore() {
+            @Override
+            public int getOptimalConnections(String host) {
+                return SEGMENTS;
+            }
+            
+            @Override
+            public void saveOptimalConnections(String host, int connections) {
+            }
+        });
+        Outcome outcome = new Outcome();
+        CountDownLatch done = new CountDownLatch(1);
+        downloader.setCompletionCallback((filePath, checksum) -> {
+            outcome.filePath = filePath;
+            done.countDown();
+        });
+        AtomicReference<String> firstError = new AtomicReference<>();
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String error, int segmentIndex) {
+                firstError.compareAndSet(null, error);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String error) {
+            }
+        });
+        
+        downloader.prepare();
+        downloader.start();
+        assertTrue("Download did not finish", done.await(60, TimeUnit.SECONDS));
+        outcome.error = firstError.get();
+        return outcome;
+    }
+    
+    /**
+     * Counts transfers and REST commands, and hides REST from FEAT when asked to.
+     */
+    private class RecordingFtplet extends DefaultFtplet {
+        @Override
+        public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+            String command = request.getCommand().toUpperCase();
+            if (command.equals("FEAT") && !advertiseRest) {
+                session.write(new DefaultFtpReply(FtpReply.REPLY_211_SYSTEM_STATUS_REPLY,
+                    "Extensions supported\n SIZE\n MDTM\nEnd"));
+                return FtpletResult.SKIP;
+            }
+            if (command.equals("REST")) {
+                restCommands.incrementAndGet();
+            } else if (command.equals("RETR")) {
+                int active = activeTransfers.incrementAndGet();
+                maxActiveTransfers.accumulateAndGet(active, Math::max);
+            }
+            return super.beforeCommand(session, request);
+        }
+        
+        @Override
+        public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply) throws FtpException, IOException {
+            if (request.getCommand().equalsIgnoreCase("RETR")) {
+                activeTransfers.decrementAndGet();
+            }
+            return super.afterCommand(session, request, reply);
+        }
+    }
+    
+    /**
+     * Serves the home directory and records where each transfer starts; the first one from
+     * offset 0 after {@link #cutAfter} is set ends early, which closes its data connection.
+     */
+    private class CuttingFileSystemFactory extends NativeFileSystemFactory {
+        @Override
+        public FileSystemView createFileSystemView(User user) throws FtpException {
+            FileSystemView view = super.createFileSystemView(user);
+            return new FileSystemView() {
+                @Override
+                public FtpFile getHomeDirectory() throws FtpException {
+                    return view.getHomeDirectory();
+                }
+                
+                @Override
+                public FtpFile getWorkingDirectory() throws FtpException {
+                    return view.getWorkingDirectory();
+                }
+                
+                @Override
+                public boolean changeWorkingDirectory(String dir) throws FtpException {
+                    return view.changeWorkingDirectory(dir);
+                }
+                
+                @Override
+                public FtpFile getFile(String file) throws FtpException {
+                    FtpFile served = view.getFile(file);
+                    if (!served.isFile()) return served;
+                    return new NativeFtpFile(served.getAbsolutePath(), (File) served.getPhysicalFile(), user) {
+                        @Override
+                        public InputStream createInputStream(long offset) throws IOException {
+                            retrieveOffsets.add(offset);
+                            InputStream in = super.createInputStream(offset);
+                            int limit = cutAfter;
+                            if (offset != 0 || limit < 0) return in;
+                            cutAfter = -1;
+                            return new CutInputStream(in, limit);
+                        }
+                    };
+                }
+                
+                @Override
+                public boolean isRandomAccessible() throws FtpException {
+                    return view.isRandomAccessible();
+                }
+                
+                @Override
+                public void dispose() {
+                    view.dispose();
+                }
+            };
+        }
+    }
+    
+    private static final class CutInputStream extends FilterInputStream {
+        private long remaining;
+        
+        CutInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Transfer cut by the test");
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+    }
+    
+    private static final class Outcome {
+        volatile String filePath;
+        volatile String error;
+    }
+}
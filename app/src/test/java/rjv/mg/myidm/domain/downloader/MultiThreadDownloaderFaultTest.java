@@ -0,0 +1,295 @@
+package rjv.mg.myidm.domain.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.model.DownloadType;
+import rjv.mg.myidm.testserver.Fault;
+import rjv.mg.myidm.testserver.FaultInjectingServer;
+import rjv.mg.myidm.testserver.FaultProfile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link MultiThreadDownloader} against {@link FaultInjectingServer} and checks that
+ * each server misbehaviour ends in the right file or the right error.
+ */
+public class MultiThreadDownloaderFaultTest {
+    private static final long SIZE = 4 * 1024 * 1024 + 123;
+    private static final int SEGMENTS = 4;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private FaultInjectingServer server;
+    private SegmentScheduler scheduler;
+    // Short timings so stalls are caught within the test, null for the defaults
+    private StallDetector stallDetector;
+    
+    @Before
+    public void setUp() throws Exception {
+        server = new FaultInjectingServer(SIZE);
+        scheduler = new SegmentScheduler(SEGMENTS, SEGMENTS, new BufferPool(64 * 1024, true, SEGMENTS));
+    }
+    
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        server.close();
+    }
+    
+    @Test
+    public void cleanServerDownloadsWholeFile() throws Exception {
+        Outcome outcome = download(newDownload("clean.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(0, server.getFaultCount());
+    }
+    
+    @Test
+    public void droppedConnectionsResumeWhereTheyStopped() throws Exception {
+        server.enqueue(Fault.disconnectAfter(100_000));
+        server.enqueue(Fault.disconnectAfter(300_000));
+        Outcome outcome = download(newDownload("dropped.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(2, server.getFaultCount());
+        assertEquals(2, server.getRecoveryTimesMillis().size());
+        assertEquals(0, server.getUnrecoveredCount());
+    }
+    
+    @Test
+    public void wrongContentRangeIsRetried() throws Exception {
+        server.enqueue(Fault.wrongContentRange(4096));
+        Outcome outcome = download(newDownload("shifted.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(0, server.getUnrecoveredCount());
+    }
+    
+    @Test
+    public void unavailableServerIsRetried() throws Exception {
+        server.enqueue(Fault.unavailable(0));
+        server.enqueue(Fault.tooManyRequests(0));
+        Outcome outcome = download(newDownload("busy.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(0, server.getUnrecoveredCount());
+    }
+    
+    @Test
+    public void retryAfterIsWaitedOut() throws Exception {
+        server.enqueue(Fault.unavailable(2));
+        long started = System.nanoTime();
+        Outcome outcome = download(newDownload("retry-after.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 2000);
+        assertTrue(server.getRecoveryTimesMillis().get(0) >= 2000);
+    }
+    
+    @Test
+    public void clientErrorIsNotRetried() throws Exception {
+        server.enqueue(Fault.status(404, -1));
+        Outcome outcome = download(newDownload("missing.bin"), null);
+        
+        assertNotNull(outcome.error);
+        assertEquals(1, server.getUnrecoveredCount());
+    }
+    
+    @Test
+    public void retriesStopAtTheDownloadBudget() throws Exception {
+        DownloadEntity download = newDownload("budget.bin");
+        download.setMaxRetries(1);
+        server.apply(FaultProfile.clean().every(1, Fault.status(500, -1)));
+        Outcome outcome = download(download, null);
+        
+        assertNotNull(outcome.error);
+        // Each segment gets its first attempt, the download a single retry
+        assertEquals(SEGMENTS + 1, server.getFaultCount());
+    }
+    
+    @Test
+    public void ignoredRangesFallBackToOneConnection() throws Exception {
+        DownloadEntity download = newDownload("no-ranges.bin");
+        // The probe still sees ranges, the segments then get the whole file
+        Outcome outcome = download(download, () -> server.setRangesSupported(false));
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(Boolean.FALSE, download.getAcceptRanges());
+        assertEquals(1, download.getSegmentCount());
+        // One connection for this run only, the next one may find the server fixed
+        assertEquals(SEGMENTS, download.getMaxConcurrentSegments());
+    }
+    
+    @Test
+    public void unknownSizeIsReadInOneRequest() throws Exception {
+        server.setSizeHidden(true);
+        DownloadEntity download = newDownload("chunked.bin");
+        download.setChecksumAlgorithm("SHA-256");
+        Outcome outcome = download(download, null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(SIZE, download.getFileSize());
+        assertEquals(1, server.getMaxConcurrentConnections());
+        // Hashed while it arrived, though no size was known to set up the file hasher
+        assertEquals(sha256(new File(outcome.filePath)), outcome.checksum);
+    }
+    
+    @Test
+    public void changedEtagFailsDownload() throws Exception {
+        Outcome outcome = download(newDownload("changed.bin"), () -> server.changeContent(7));
+        
+        assertNotNull(outcome.error);
+        assertTrue(outcome.error, outcome.error.startsWith("Remote file changed"));
+    }
+    
+    @Test
+    public void shrunkFileIsProbedAgainAndRestarted() throws Exception {
+        DownloadEntity download = newDownload("shrunk.bin");
+        // Every segment but the first now starts past the end and gets 416
+        Outcome outcome = download(download, () -> server.truncate(SIZE / SEGMENTS / 2));
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(SIZE / SEGMENTS / 2, download.getFileSize());
+    }
+    
+    @Test
+    public void periodicFaultsUnderBandwidthCapStillComplete() throws Exception {
+        server.apply(new FaultProfile("flaky", 4 * 1024 * 1024, 10)
+            .every(3, Fault.disconnectAfter(64 * 1024))
+            .every(5, Fault.unavailable(0)));
+        Outcome outcome = download(newDownload("flaky.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertTrue(server.getFaultCount() >= 2);
+        assertEquals(0, server.getUnrecoveredCount());
+    }
+    
+    @Test
+    public void stalledConnectionIsReplacedBeforeReadTimeout() throws Exception {
+        server.enqueue(Fault.stallAfter(64 * 1024, 60_000));
+        stallDetector = new StallDetector(200, 1000, 500);
+        long started = System.nanoTime();
+        Outcome outcome = download(newDownload("stalled.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        assertEquals(0, server.getUnrecoveredCount());
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started) < 20);
+    }
+    
+    @Test
+    public void slowConnectionIsReplaced() throws Exception {
+        server.setBandwidthPerConnection(512 * 1024);
+        server.enqueue(Fault.throttle(8 * 1024));
+        stallDetector = new StallDetector(200, 10_000, 1500);
+        long started = System.nanoTime();
+        Outcome outcome = download(newDownload("slow.bin"), null);
+        
+        assertNull(outcome.error, outcome.error);
+        assertTrue(server.contentEquals(new File(outcome.filePath)));
+        // At 8 KB/s the throttled range alone would take a minute
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started) < 20);
+    }
+    
+    private DownloadEntity newDownload(String filename) {
+        DownloadEntity download = new DownloadEntity(server.url(), filename, DownloadType.HTTP_HTTPS);
+        download.setId(filename.hashCode());
+        download.setFilePath(new File(folder.getRoot(), filename).getPath());
+        download.setMaxConcurrentSegments(SEGMENTS);
+        return download;
+    }
+    
+    /**
+     * Prepares and runs {@code download}, calling {@code afterPrepare} between the probe and
+     * the first segment connection.
+     */
+    private Outcome download(DownloadEntity download, Runnable afterPrepare) throws Exception {
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setHostConnectionStore(new HostConnectionStore() {
+            @Override
+            public int getOptimalConnections(String host) {
+                return SEGMENTS;
+            }
+            
+            @Override
+            public void saveOptimalConnections(String host, int connections) {
+            }
+        });
+        if (stallDetector != null) {
+            downloader.setStallDetector(stallDetector);
+        }
+        Outcome outcome = new Outcome();
+        CountDownLatch done = new CountDownLatch(1);
+        downloader.setCompletionCallback((filePath, checksum) -> {
+            outcome.filePath = filePath;
+            outcome.checksum = checksum;
+            done.countDown();
+        });
+        AtomicReference<String> firstError = new AtomicReference<>();
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String error, int segmentIndex) {
+                firstError.compareAndSet(null, error);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String error) {
+            }
+        });
+        
+        downloader.prepare();
+        if (afterPrepare != null) {
+            afterPrepare.run();
+        }
+        downloader.start();
+        assertTrue("Download did not finish", done.await(60, TimeUnit.SECONDS));
+        outcome.error = firstError.get();
+        return outcome;
+    }
+    
+    private static String sha256(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    private static final class Outcome {
+        volatile String filePath;
+        volatile String checksum;
+        volatile String error;
+    }
+}
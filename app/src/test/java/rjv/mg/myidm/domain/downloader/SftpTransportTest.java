@@ -0,0 +1,223 @@
+package rjv.mg.myidm.domain.downloader;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.ftp.SftpTransport;
+import rjv.mg.myidm.domain.downloader.ftp.SshKnownHosts;
+import rjv.mg.myidm.domain.downloader.ftp.UnknownHostKeyException;
+import rjv.mg.myidm.domain.model.DownloadType;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link MultiThreadDownloader} through {@link SftpTransport} against an Apache SSHD
+ * server on 127.0.0.1, including the host key confirmation and a dropped SSH connection.
+ */
+public class SftpTransportTest {
+    private static final int SIZE = 4 * 1024 * 1024 + 123;
+    private static final int SEGMENTS = 4;
+    private static final String USER = "idm";
+    private static final String PASSWORD = "secret";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private SshServer server;
+    private SegmentScheduler scheduler;
+    private SshKnownHosts knownHosts;
+    private byte[] content;
+    
+    // Offset of the first read on every handle the server opened
+    private final List<Long> handleStarts = new CopyOnWriteArrayList<>();
+    private final Map<FileHandle, Boolean> startedHandles = new ConcurrentHashMap<>();
+    // The server drops the SSH connection once this many bytes went out, -1 for never
+    private final AtomicLong dropAfter = new AtomicLong(-1);
+    private final AtomicLong bytesRead = new AtomicLong();
+    
+    @Before
+    public void setUp() throws Exception {
+        File root = folder.newFolder("sftp");
+        content = new byte[SIZE];
+        new Random(23).nextBytes(content);
+        Files.write(new File(root, "file.bin").toPath(), content);
+        
+        SftpSubsystemFactory sftp = new SftpSubsystemFactory();
+        sftp.addSftpEventListener(new SftpEventListener() {
+            @Override
+            public void reading(ServerSession session, String remoteHandle, FileHandle localHandle,
+                    long offset, byte[] data, int dataOffset, int dataLen) throws IOException {
+                if (startedHandles.putIfAbsent(localHandle, Boolean.TRUE) == null) {
+                    handleStarts.add(offset);
+                }
+                long limit = dropAfter.get();
+                if (limit >= 0 && bytesRead.addAndGet(dataLen) > limit && dropAfter.compareAndSet(limit, -1)) {
+                    session.close(true);
+                }
+            }
+        });
+        
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        server.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+        server.setSubsystemFactories(Collections.singletonList(sftp));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root.toPath()));
+        server.start();
+        
+        knownHosts = new SshKnownHosts(new File(folder.getRoot(), "known_hosts"));
+        scheduler = new SegmentScheduler(SEGMENTS, SEGMENTS, new BufferPool(64 * 1024, true, SEGMENTS));
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        scheduler.shutdown();
+        server.stop(true);
+    }
+    
+    @Test
+    public void unknownHostKeyIsReportedUntilTrusted() throws Exception {
+        DownloadEntity download = newDownload("unknown.bin");
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setTransport(new SftpTransport(download.getUrl(), knownHosts));
+        try {
+            downloader.prepare();
+            fail("Connected to a host whose key was never accepted");
+        } catch (UnknownHostKeyException e) {
+            assertEquals(serverFingerprint(), e.getFingerprint());
+        }
+        assertTrue(knownHosts.list().isEmpty());
+        
+        trustServerKey();
+        assertEquals(1, knownHosts.list().size());
+        assertEquals(serverFingerprint(), knownHosts.list().get(0).getFingerprint());
+        Outcome outcome = download(download);
+        assertNull(outcome.error, outcome.error);
+    }
+    
+    @Test
+    public void segmentsReadInParallelAndMatchTheSource() throws Exception {
+        trustServerKey();
+        Outcome outcome = download(newDownload("whole.bin"));
+        
+        assertNull(outcome.error, outcome.error);
+        assertArrayEquals(content, Files.readAllBytes(new File(outcome.filePath).toPath()));
+        assertTrue(handleStarts.toString(), handleStarts.size() >= SEGMENTS);
+    }
+    
+    @Test
+    public void droppedConnectionResumesAtEachSegmentOffset() throws Exception {
+        trustServerKey();
+        dropAfter.set(1024 * 1024);
+        Outcome outcome = download(newDownload("dropped.bin"));
+        
+        assertNull(outcome.error, outcome.error);
+        assertArrayEquals(content, Files.readAllBytes(new File(outcome.filePath).toPath()));
+        assertEquals(-1, dropAfter.get());
+        // Segments came back past their start with the bytes they had, not as a split of the rest
+        List<Long> firstRound = handleStarts.subList(0, SEGMENTS);
+        assertTrue(handleStarts.toString(), handleStarts.stream().skip(SEGMENTS).anyMatch(offset ->
+            firstRound.stream().anyMatch(start -> offset > start && offset < start + SIZE / SEGMENTS / 2)));
+    }
+    
+    private DownloadEntity newDownload(String filename) {
+        String url = "sftp://" + USER + ":" + PASSWORD + "@127.0.0.1:" + server.getPort() + "/file.bin";
+        DownloadEntity download = new DownloadEntity(url, filename, DownloadType.SFTP);
+        download.setId(filename.hashCode());
+        download.setFilePath(new File(folder.getRoot(), filename).getPath());
+        download.setMaxConcurrentSegments(SEGMENTS);
+        return download;
+    }
+    
+    /**
+     * Accepts the key the way the user does: from the failure that showed its fingerprint.
+     */
+    private void trustServerKey() throws Exception {
+        SftpTransport transport = new SftpTransport(newDownload("probe.bin").getUrl(), knownHosts);
+        try {
+            transport.stat();
+            fail("Key was already trusted");
+        } catch (UnknownHostKeyException e) {
+            knownHosts.trust(e);
+        } finally {
+            transport.close();
+        }
+    }
+    
+    private String serverFingerprint() throws Exception {
+        KeyPair key = server.getKeyPairProvider().loadKeys(null).iterator().next();
+        return KeyUtils.getFingerPrint(key.getPublic());
+    }
+    
+    private Outcome download(DownloadEntity download) throws Exception {
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setTransport(new SftpTransport(download.getUrl(), knownHosts));
+        downloader.setHostConnectionStore(new HostConnectionStore() {
+            @Override
+            public int getOptimalConnections(String host) {
+                return SEGMENTS;
+            }
+            
+            @Override
+            public void saveOptimalConnections(String host, int connections) {
+            }
+        });
+        Outcome outcome = new Outcome();
+        CountDownLatch done = new CountDownLatch(1);
+        downloader.setCompletionCallback((filePath, checksum) -> {
+            outcome.filePath = filePath;
+            done.countDown();
+        });
+        AtomicReference<String> firstError = new AtomicReference<>();
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String error, int segmentIndex) {
+                firstError.compareAndSet(null, error);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String error) {
+            }
+        });
+        
+        downloader.prepare();
+        downloader.start();
+        assertTrue("Download did not finish", done.await(60, TimeUnit.SECONDS));
+        outcome.error = firstError.get();
+        return outcome;
+    }
+    
+    private static final class Outcome {
+        volatile String filePath;
+        volatile String error;
+    }
+}
@@ -0,0 +1,220 @@
+package rjv.mg.myidm.domain.downloader;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.libtorrent4j.SessionManager;
+import org.libtorrent4j.SessionParams;
+import org.libtorrent4j.SettingsPack;
+import org.libtorrent4j.TcpEndpoint;
+import org.libtorrent4j.TorrentBuilder;
+import org.libtorrent4j.TorrentFlags;
+import org.libtorrent4j.TorrentHandle;
+import org.libtorrent4j.TorrentInfo;
+import org.libtorrent4j.TorrentStatus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.model.DownloadType;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link TorrentDownloader} against a second libtorrent session on 127.0.0.1 that
+ * seeds a generated torrent, so no tracker, DHT or internet peer is involved.
+ */
+public class TorrentDownloaderTest {
+    private static final int SIZE = 3 * 1024 * 1024 + 321;
+    private static final int PIECE_SIZE = 64 * 1024;
+    private static final long UPLOAD_LIMIT = 48 * 1024;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private SessionManager seeder;
+    private TorrentSession session;
+    private File source;
+    private File torrentFile;
+    private TorrentInfo torrentInfo;
+    
+    /**
+     * The desktop jar carries the native library as a resource; libtorrent4j loads it from
+     * a file. Skips the test on platforms without a desktop build on the classpath.
+     */
+    @BeforeClass
+    public static void loadNativeLibrary() throws Exception {
+        if (System.getProperty("libtorrent4j.jni.path") != null) return;
+        try (InputStream library = TorrentDownloaderTest.class.getClassLoader()
+                .getResourceAsStream("lib/x86_64/libtorrent4j.so")) {
+            Assume.assumeNotNull(library);
+            File extracted = File.createTempFile("libtorrent4j", ".so");
+            extracted.deleteOnExit();
+            Files.copy(library, extracted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.setProperty("libtorrent4j.jni.path", extracted.getAbsolutePath());
+        }
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        File seedDir = folder.newFolder("seed");
+        source = new File(seedDir, "clip.mp4");
+        byte[] content = new byte[SIZE];
+        new Random(7).nextBytes(content);
+        Files.write(source.toPath(), content);
+        
+        byte[] metadata = new TorrentBuilder().path(source).pieceSize(PIECE_SIZE).generate().entry().bencode();
+        torrentFile = new File(folder.getRoot(), "clip.torrent");
+        try (FileOutputStream output = new FileOutputStream(torrentFile)) {
+            output.write(metadata);
+        }
+        torrentInfo = new TorrentInfo(torrentFile);
+        
+        seeder = new SessionManager();
+        seeder.start(new SessionParams(new SettingsPack().listenInterfaces("127.0.0.1:0")));
+        seeder.download(torrentInfo, seedDir);
+        waitForSeeding(seeder.find(torrentInfo.infoHash()));
+        
+        File filesDir = folder.newFolder("files");
+        Context context = new ContextWrapper(null) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+            
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+        session = new TorrentSession(context);
+    }
+    
+    @After
+    public void tearDown() {
+        if (session != null) {
+            session.shutdown();
+        }
+        if (seeder != null) {
+            seeder.stop();
+        }
+    }
+    
+    @Test
+    public void downloadsFromLocalSeedAndRecordsEveryPiece() throws Exception {
+        DownloadEntity download = newDownload();
+        download.setUploadLimit(UPLOAD_LIMIT);
+        TorrentDownloader downloader = new TorrentDownloader(download, session, null);
+        Outcome outcome = new Outcome(downloader);
+        
+        downloader.prepare();
+        // An .mp4 torrent is fetched in order on its first run
+        assertTrue(download.isSequentialDownload());
+        downloader.start();
+        
+        TorrentHandle handle = session.getSessionManager().find(torrentInfo.infoHash());
+        assertNotNull(handle);
+        assertTrue(handle.flags().and_(TorrentFlags.SEQUENTIAL_DOWNLOAD).nonZero());
+        assertEquals(UPLOAD_LIMIT, handle.getUploadLimit());
+        
+        handle.connectPeer(new TcpEndpoint("127.0.0.1", seeder.listenPort()));
+        outcome.await();
+        
+        assertNull(outcome.error.get(), outcome.error.get());
+        File downloaded = new File(outcome.filePath.get());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(downloaded.toPath()));
+        
+        // What the progress aggregator writes to downloads.torrent_pieces
+        byte[] pieces = downloader.getPieceBitfield();
+        int numPieces = torrentInfo.numPieces();
+        assertEquals((numPieces + 7) / 8, pieces.length);
+        for (int i = 0; i < pieces.length * 8; i++) {
+            boolean set = (pieces[i / 8] & (0x80 >>> (i % 8))) != 0;
+            assertEquals("piece " + i, i < numPieces, set);
+        }
+        
+        // A downloader restored from that row keeps the bitfield and the user's choice
+        download.setTorrentPieces(pieces);
+        download.setSequentialDownload(false);
+        TorrentDownloader restored = new TorrentDownloader(download, session, null);
+        restored.prepare();
+        assertArrayEquals(pieces, restored.getPieceBitfield());
+        assertFalse(download.isSequentialDownload());
+    }
+    
+    @Test
+    public void settingsChangedWhileRunningReachTheHandle() throws Exception {
+        DownloadEntity download = newDownload();
+        TorrentDownloader downloader = new TorrentDownloader(download, session, null);
+        downloader.prepare();
+        downloader.start();
+        TorrentHandle handle = session.getSessionManager().find(torrentInfo.infoHash());
+        assertNotNull(handle);
+        
+        downloader.setSequentialDownload(false);
+        downloader.setUploadLimit(UPLOAD_LIMIT * 2);
+        
+        assertFalse(handle.flags().and_(TorrentFlags.SEQUENTIAL_DOWNLOAD).nonZero());
+        assertEquals(UPLOAD_LIMIT * 2, handle.getUploadLimit());
+        downloader.cancel();
+    }
+    
+    private DownloadEntity newDownload() throws Exception {
+        DownloadEntity download = new DownloadEntity(torrentFile.getAbsolutePath(), "clip.torrent", DownloadType.TORRENT);
+        download.setId(1);
+        download.setFilePath(new File(folder.newFolder("downloads"), "clip.torrent").getPath());
+        return download;
+    }
+    
+    private static void waitForSeeding(TorrentHandle handle) throws InterruptedException {
+        assertNotNull(handle);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (handle.status().state() != TorrentStatus.State.SEEDING) {
+            assertTrue("Seeder did not finish checking", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+    
+    private static final class Outcome {
+        final AtomicReference<String> filePath = new AtomicReference<>();
+        final AtomicReference<String> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        
+        Outcome(TorrentDownloader downloader) {
+            downloader.setCompletionCallback((path, checksum) -> {
+                filePath.set(path);
+                done.countDown();
+            });
+            downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+                @Override
+                public void onError(String message, int segmentIndex) {
+                    error.compareAndSet(null, message);
+                    done.countDown();
+                }
+                
+                @Override
+                public void onSegmentFailed(int segmentIndex, String message) {
+                }
+            });
+        }
+        
+        void await() throws InterruptedException {
+            assertTrue("Download did not finish", done.await(60, TimeUnit.SECONDS));
+        }
+    }
+}
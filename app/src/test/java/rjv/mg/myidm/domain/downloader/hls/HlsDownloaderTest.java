@@ -0,0 +1,179 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadEngine;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.model.DownloadType;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link HlsDownloader} against playlists served on 127.0.0.1: the output path it
+ * picks for live and finished streams, and the retry budget when segments keep failing.
+ */
+public class HlsDownloaderTest {
+    private static final String MASTER_WITH_AUDIO = "#EXTM3U\n"
+        + "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aud\",NAME=\"English\",LANGUAGE=\"en\",DEFAULT=YES,URI=\"audio.m3u8\"\n"
+        + "#EXT-X-STREAM-INF:BANDWIDTH=1280000,RESOLUTION=1280x720,AUDIO=\"aud\"\n"
+        + "video.m3u8\n";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private HttpServer server;
+    private SegmentScheduler scheduler;
+    // Path to body of every playlist served
+    private final Map<String, String> playlists = new ConcurrentHashMap<>();
+    // Media segments are never served, every request for one gets a 500
+    private final AtomicInteger segmentRequests = new AtomicInteger();
+    
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 8);
+        server.createContext("/", this::handle);
+        server.start();
+        scheduler = new SegmentScheduler(2, 2, new BufferPool(64 * 1024, true, 2));
+    }
+    
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        server.stop(0);
+    }
+    
+    @Test
+    public void liveStreamWithSeparateAudioIsRecordedAsTs() throws Exception {
+        playlists.put("/master.m3u8", MASTER_WITH_AUDIO);
+        playlists.put("/video.m3u8", mediaPlaylist("v", false));
+        playlists.put("/audio.m3u8", mediaPlaylist("a", false));
+        DownloadEntity download = newDownload("live.m3u8");
+        
+        try {
+            new HlsDownloader(download, null, scheduler, null).prepare();
+            fail("A playlist without EXT-X-ENDLIST was taken for a finished stream");
+        } catch (LivePlaylistException e) {
+            assertEquals(url("/video.m3u8"), e.getMediaPlaylistUrl());
+        }
+        // The recorder writes the video playlist's TS segments alone, without the audio rendition
+        assertTrue(download.getFilePath(), download.getFilePath().endsWith("live.ts"));
+        assertEquals("live.ts", download.getFilename());
+    }
+    
+    @Test
+    public void finishedStreamWithSeparateAudioIsMuxedToMp4() throws Exception {
+        playlists.put("/master.m3u8", MASTER_WITH_AUDIO);
+        playlists.put("/video.m3u8", mediaPlaylist("v", true));
+        playlists.put("/audio.m3u8", mediaPlaylist("a", true));
+        DownloadEntity download = newDownload("vod.m3u8");
+        
+        new HlsDownloader(download, null, scheduler, null).prepare();
+        
+        assertTrue(download.getFilePath(), download.getFilePath().endsWith("vod.mp4"));
+        // Both renditions are fetched, video first
+        assertEquals(4, download.getSegmentCount());
+    }
+    
+    @Test
+    public void retriesStopAtTheDownloadBudget() throws Exception {
+        int segments = 6;
+        playlists.put("/master.m3u8", mediaPlaylist("s", segments, true));
+        DownloadEntity download = newDownload("budget.m3u8");
+        download.setMaxRetries(1);
+        HlsDownloader downloader = new HlsDownloader(download, null, scheduler, null);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> error = new AtomicReference<>();
+        downloader.setCompletionCallback((filePath, checksum) -> done.countDown());
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String message, int segmentIndex) {
+                error.compareAndSet(null, message);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String message) {
+            }
+        });
+        
+        downloader.prepare();
+        downloader.start();
+        assertTrue("Download did not finish", done.await(30, TimeUnit.SECONDS));
+        
+        assertNotNull(error.get());
+        // Each segment gets its first attempt, the download a single retry
+        assertEquals(segments + 1, segmentRequests.get());
+    }
+    
+    private static String mediaPlaylist(String prefix, boolean ended) {
+        return mediaPlaylist(prefix, 2, ended);
+    }
+    
+    private static String mediaPlaylist(String prefix, int segments, boolean ended) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:4\n#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (int i = 0; i < segments; i++) {
+            playlist.append("#EXTINF:4.0,\n").append(prefix).append(i).append(".ts\n");
+        }
+        if (ended) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+        return playlist.toString();
+    }
+    
+    private DownloadEntity newDownload(String filename) {
+        DownloadEntity download = new DownloadEntity(url("/master.m3u8"), filename, DownloadType.M3U8);
+        download.setId(filename.hashCode());
+        download.setFilePath(new File(folder.getRoot(), filename).getPath());
+        return download;
+    }
+    
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith(".ts")) {
+                segmentRequests.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            String playlist = playlists.get(path);
+            if (playlist == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = playlist.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/vnd.apple.mpegurl");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package rjv.mg.myidm.domain.downloader.hls;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadEngine;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.model.DownloadType;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link HlsLiveRecorder} against a live playlist served on 127.0.0.1 that never ends.
+ */
+public class HlsLiveRecorderTest {
+    private static final int SEGMENT_SIZE = 1000;
+    private static final String LIVE_PLAYLIST = "#EXTM3U\n#EXT-X-TARGETDURATION:4\n#EXT-X-MEDIA-SEQUENCE:0\n"
+        + "#EXTINF:4.0,\ns0.ts\n#EXTINF:4.0,\ns1.ts\n#EXTINF:4.0,\ns2.ts\n";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private HttpServer server;
+    private SegmentScheduler scheduler;
+    private final AtomicInteger segmentRequests = new AtomicInteger();
+    
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 8);
+        server.createContext("/", this::handle);
+        server.start();
+        scheduler = new SegmentScheduler(2, 2, new BufferPool(64 * 1024, true, 2));
+    }
+    
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        server.stop(0);
+    }
+    
+    @Test
+    public void restartedRecordingKeepsItsDuration() throws Exception {
+        File output = new File(folder.getRoot(), "live.ts");
+        // What the run before the restart had written, 8 of the 10 seconds allowed
+        Files.write(new File(output.getPath() + ".part").toPath(), new byte[2 * SEGMENT_SIZE]);
+        DownloadEntity download = new DownloadEntity(url("/live.m3u8"), "live.ts", DownloadType.M3U8);
+        download.setFilePath(output.getPath());
+        download.setRecordMaxDuration(10);
+        download.setRecordedDuration(8000);
+        
+        HlsLiveRecorder recorder = new HlsLiveRecorder(download, url("/live.m3u8"), scheduler, null);
+        assertEquals(8000, recorder.getRecordedDuration());
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> error = new AtomicReference<>();
+        AtomicInteger lastProgress = new AtomicInteger();
+        recorder.setProgressCallback(new DownloadEngine.DownloadProgressCallback() {
+            @Override
+            public void onProgress(long downloadedBytes, long totalBytes, int progress, long speed) {
+                lastProgress.set(progress);
+            }
+            
+            @Override
+            public void onSegmentProgress(int segmentIndex, long downloadedBytes, long totalBytes, int progress) {
+            }
+        });
+        recorder.setCompletionCallback((filePath, checksum) -> done.countDown());
+        recorder.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String message, int segmentIndex) {
+                error.set(message);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String message) {
+            }
+        });
+        
+        recorder.start();
+        assertTrue("Recording did not stop", done.await(30, TimeUnit.SECONDS));
+        
+        assertNull(error.get());
+        // One more segment reaches the cap, it does not start again from zero
+        assertEquals(1, segmentRequests.get());
+        assertEquals(3 * SEGMENT_SIZE, output.length());
+        assertEquals(12000, recorder.getRecordedDuration());
+        assertEquals(100, lastProgress.get());
+    }
+    
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body;
+            if (exchange.getRequestURI().getPath().endsWith(".ts")) {
+                segmentRequests.incrementAndGet();
+                body = new byte[SEGMENT_SIZE];
+            } else {
+                body = LIVE_PLAYLIST.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/vnd.apple.mpegurl");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package rjv.mg.myidm.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadEngine;
+import rjv.mg.myidm.domain.downloader.MultiThreadDownloader;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.model.DownloadType;
+import rjv.mg.myidm.testserver.FaultInjectingServer;
+import rjv.mg.myidm.testserver.FaultProfile;
+
+/**
+ * Downloads through {@link FaultInjectingServer} under a {@link FaultProfile}: throughput
+ * with capped, high-latency connections that drop and answer 503, and how long the
+ * downloader takes to ask again for the bytes a fault cut off. Faults come at fixed request
+ * counts, so the {@code stable} profile gives comparable numbers from one CI run to the next.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class FaultRecoveryBenchmark {
+    
+    private static final long MB = 1024 * 1024;
+    
+    @Param({"clean", "stable"})
+    public String profile;
+    
+    @Param({"64MB", "256MB"})
+    public String fileSize;
+    
+    @Param({"8"})
+    public int segments;
+    
+    private FaultInjectingServer server;
+    private SegmentScheduler scheduler;
+    private File directory;
+    private long size;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private DownloadEntity current;
+    
+    /**
+     * Megabytes downloaded, reported per minute like the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public double megabytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+    
+    /**
+     * Per-download averages, divided by the iteration count since JMH sums event counters.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Recovery {
+        public double faults;
+        public double recoveryMillis;
+        
+        private double share;
+        private int downloads;
+        private long faultTotal;
+        private long recoveries;
+        private long recoveryTotal;
+        
+        @Setup(Level.Iteration)
+        public void reset(IterationParams params) {
+            share = 1.0 / Math.max(1, params.getCount());
+            faults = 0;
+            recoveryMillis = 0;
+            downloads = 0;
+            faultTotal = 0;
+            recoveries = 0;
+            recoveryTotal = 0;
+        }
+        
+        void record(int downloadFaults, List<Long> downloadRecoveries) {
+            downloads++;
+            faultTotal += downloadFaults;
+            for (long millis : downloadRecoveries) {
+                recoveryTotal += millis;
+                recoveries++;
+            }
+            faults = (double) faultTotal / downloads * share;
+            recoveryMillis = recoveries == 0 ? 0 : (double) recoveryTotal / recoveries * share;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        size = SegmentDownloadBenchmark.parseSize(fileSize);
+        scheduler = new SegmentScheduler(segments, segments, new BufferPool(64 * 1024, true, segments));
+        directory = Files.createTempDirectory("fault-benchmark").toFile();
+    }
+    
+    @Setup(Level.Invocation)
+    public void startServer() throws IOException {
+        // A fresh server per download restarts the fault counters, every run sees the same faults
+        server = new FaultInjectingServer(size);
+        server.apply(FaultProfile.named(profile));
+    }
+    
+    @TearDown(Level.Invocation)
+    public void stopServer() throws IOException {
+        try {
+            // Checked outside the measured call, comparing a large file takes a while
+            if (current != null && !server.contentEquals(new File(current.getFilePath()))) {
+                throw new IOException("Downloaded content differs from the served file");
+            }
+        } finally {
+            server.close();
+            deleteDownload();
+        }
+    }
+    
+    private void deleteDownload() {
+        if (current != null) {
+            new File(current.getFilePath()).delete();
+            new File(current.getFilePath() + ".part").delete();
+            current = null;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+        directory.delete();
+    }
+    
+    @Benchmark
+    public String download(Transfer transfer, Recovery recovery) throws Exception {
+        long id = nextId.getAndIncrement();
+        DownloadEntity download = new DownloadEntity(server.url(), "file-" + id + ".bin", DownloadType.HTTP_HTTPS);
+        download.setId(id);
+        download.setFilePath(new File(directory, download.getFilename()).getPath());
+        download.setMaxConcurrentSegments(segments);
+        current = download;
+        
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setHostConnectionStore(new SegmentDownloadBenchmark.FixedConnections(segments));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> result = new AtomicReference<>();
+        AtomicReference<String> error = new AtomicReference<>();
+        downloader.setCompletionCallback((filePath, fileChecksum) -> {
+            result.set(filePath);
+            done.countDown();
+        });
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String message, int segmentIndex) {
+                error.set(message);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String message) {
+            }
+        });
+        
+        downloader.prepare();
+        downloader.start();
+        done.await();
+        
+        if (error.get() != null) {
+            throw new IOException("Download failed under " + profile + ": " + error.get());
+        }
+        transfer.megabytes += (double) size / MB;
+        recovery.record(server.getFaultCount(), server.getRecoveryTimesMillis());
+        return result.get();
+    }
+}
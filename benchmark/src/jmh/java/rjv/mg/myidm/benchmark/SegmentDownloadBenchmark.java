@@ -0,0 +1,271 @@
+package rjv.mg.myidm.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rjv.mg.myidm.data.database.entity.DownloadEntity;
+import rjv.mg.myidm.domain.downloader.BufferPool;
+import rjv.mg.myidm.domain.downloader.DownloadEngine;
+import rjv.mg.myidm.domain.downloader.HostConnectionStore;
+import rjv.mg.myidm.domain.downloader.MultiThreadDownloader;
+import rjv.mg.myidm.domain.downloader.SegmentScheduler;
+import rjv.mg.myidm.domain.model.DownloadType;
+import rjv.mg.myidm.testserver.FaultInjectingServer;
+
+/**
+ * Downloads one file per operation through {@link MultiThreadDownloader} from a loopback
+ * server: probe, ranged reads, positional writes, inline checksums and the final rename.
+ * The primary score is operations per second; the aux counters add MB/s, bytes allocated
+ * per MB by the download threads and how many segment threads did the work.
+ *
+ * <p>The full matrix takes hours and needs 4 GB of free disk. Narrow it on the jar, e.g.
+ * {@code java -jar benchmark-jmh.jar -p fileSize=64MB -p segments=1,8 -p checksum=NONE}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class SegmentDownloadBenchmark {
+    
+    private static final String SEGMENT_THREAD_PREFIX = "DownloadSegment-";
+    private static final long MB = 1024 * 1024;
+    
+    @Param({"1MB", "64MB", "1GB", "4GB"})
+    public String fileSize;
+    
+    @Param({"1", "4", "8", "16", "32"})
+    public int segments;
+    
+    @Param({"16384", "65536", "262144", "1048576"})
+    public int bufferSize;
+    
+    @Param({"NONE", "XXHASH64", "SHA_256"})
+    public String checksum;
+    
+    private FaultInjectingServer server;
+    private SegmentScheduler scheduler;
+    private File directory;
+    private long size;
+    private String url;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private DownloadEntity current;
+    
+    /**
+     * Megabytes downloaded, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public double megabytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+    
+    /**
+     * Per-download averages. JMH sums event counters over the measurement iterations, so
+     * each iteration reports its average divided by the iteration count.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Resources {
+        public double allocatedBytesPerMb;
+        public double segmentThreads;
+        
+        private double share;
+        private double allocatedBytes;
+        private double megabytes;
+        private double threadSamples;
+        private int downloads;
+        
+        @Setup(Level.Iteration)
+        public void reset(IterationParams params) {
+            share = 1.0 / Math.max(1, params.getCount());
+            allocatedBytesPerMb = 0;
+            segmentThreads = 0;
+            allocatedBytes = 0;
+            megabytes = 0;
+            threadSamples = 0;
+            downloads = 0;
+        }
+        
+        void record(long bytesAllocated, double downloadedMegabytes, int threads) {
+            allocatedBytes += bytesAllocated;
+            megabytes += downloadedMegabytes;
+            threadSamples += threads;
+            downloads++;
+            allocatedBytesPerMb = allocatedBytes / megabytes * share;
+            segmentThreads = threadSamples / downloads * share;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        size = parseSize(fileSize);
+        server = new FaultInjectingServer(size);
+        url = server.url();
+        scheduler = new SegmentScheduler(segments, segments, new BufferPool(bufferSize, true, segments));
+        directory = Files.createTempDirectory("segment-benchmark").toFile();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+        server.close();
+        directory.delete();
+    }
+    
+    @TearDown(Level.Invocation)
+    public void deleteDownload() {
+        if (current != null) {
+            new File(current.getFilePath()).delete();
+            new File(current.getFilePath() + ".part").delete();
+            current = null;
+        }
+    }
+    
+    @Benchmark
+    public String download(Transfer transfer, Resources resources) throws Exception {
+        long id = nextId.getAndIncrement();
+        DownloadEntity download = new DownloadEntity(url, "file-" + id + ".bin", DownloadType.HTTP_HTTPS);
+        download.setId(id);
+        download.setFilePath(new File(directory, download.getFilename()).getPath());
+        download.setMaxConcurrentSegments(segments);
+        download.setChecksumAlgorithm(checksum);
+        current = download;
+        
+        // Every segment connects from the start instead of ramping up adaptively
+        MultiThreadDownloader downloader = new MultiThreadDownloader(null, download, null, scheduler, null);
+        downloader.setHostConnectionStore(new FixedConnections(segments));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> result = new AtomicReference<>();
+        AtomicReference<String> error = new AtomicReference<>();
+        downloader.setCompletionCallback((filePath, fileChecksum) -> {
+            result.set(filePath);
+            done.countDown();
+        });
+        downloader.setErrorCallback(new DownloadEngine.DownloadErrorCallback() {
+            @Override
+            public void onError(String message, int segmentIndex) {
+                error.set(message);
+                done.countDown();
+            }
+            
+            @Override
+            public void onSegmentFailed(int segmentIndex, String message) {
+            }
+        });
+        
+        ThreadSnapshot before = ThreadSnapshot.take();
+        downloader.prepare();
+        downloader.start();
+        done.await();
+        ThreadSnapshot after = ThreadSnapshot.take();
+        
+        if (error.get() != null) {
+            throw new IOException("Download failed: " + error.get());
+        }
+        long written = new File(result.get()).length();
+        if (written != size) {
+            throw new IOException("Downloaded " + written + " bytes instead of " + size);
+        }
+        
+        double megabytes = (double) size / MB;
+        transfer.megabytes += megabytes;
+        // A segment thread retiring mid-download takes its counter with it, never report below zero
+        resources.record(Math.max(0, after.allocatedBytes - before.allocatedBytes), megabytes, after.segmentThreads);
+        return result.get();
+    }
+    
+    static long parseSize(String value) {
+        String upper = value.trim().toUpperCase();
+        if (upper.endsWith("GB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2).trim()) * 1024 * MB;
+        }
+        if (upper.endsWith("MB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2).trim()) * MB;
+        }
+        if (upper.endsWith("KB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2).trim()) * 1024;
+        }
+        return Long.parseLong(upper);
+    }
+    
+    static final class FixedConnections implements HostConnectionStore {
+        private final int connections;
+        
+        FixedConnections(int connections) {
+            this.connections = connections;
+        }
+        
+        @Override
+        public int getOptimalConnections(String host) {
+            return connections;
+        }
+        
+        @Override
+        public void saveOptimalConnections(String host, int connections) {
+        }
+    }
+    
+    /**
+     * Bytes allocated so far by every thread except the loopback server's, and how many
+     * segment threads exist. Segment threads outlive a download, so their counters carry over.
+     */
+    private static final class ThreadSnapshot {
+        final long allocatedBytes;
+        final int segmentThreads;
+        
+        private ThreadSnapshot(long allocatedBytes, int segmentThreads) {
+            this.allocatedBytes = allocatedBytes;
+            this.segmentThreads = segmentThreads;
+        }
+        
+        static ThreadSnapshot take() {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] ids = threads.getAllThreadIds();
+            ThreadInfo[] infos = threads.getThreadInfo(ids);
+            long[] allocatedPerThread = threads.getThreadAllocatedBytes(ids);
+            long allocated = 0;
+            int segmentThreads = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (infos[i] == null || allocatedPerThread[i] < 0) continue;
+                String name = infos[i].getThreadName();
+                if (name.startsWith(FaultInjectingServer.THREAD_PREFIX) || name.startsWith("HTTP-Dispatcher")) continue;
+                allocated += allocatedPerThread[i];
+                if (name.startsWith(SEGMENT_THREAD_PREFIX)) {
+                    segmentThreads++;
+                }
+            }
+            return new ThreadSnapshot(allocated, segmentThreads);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * JVM stand-in; the download pipeline only passes it through.
+ */
+public abstract class Context {
+}
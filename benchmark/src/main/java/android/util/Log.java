@@ -0,0 +1,43 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android logger. Debug output would dominate the measured path,
+ * so only warnings and errors are printed.
+ */
+public final class Log {
+    
+    private Log() {
+    }
+    
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+    
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+    
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+    
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+    
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println("W/" + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+    
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+    
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println("E/" + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
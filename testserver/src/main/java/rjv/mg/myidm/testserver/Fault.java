@@ -0,0 +1,133 @@
+package rjv.mg.myidm.testserver;
+
+/**
+ * One misbehaviour {@link FaultInjectingServer} applies to a single data request.
+ */
+public final class Fault {
+    
+    public enum Type {
+        /** Sends the headers and part of the body, then drops the connection. */
+        DISCONNECT,
+        /** Answers 206 with a Content-Range (and body) starting elsewhere than asked. */
+        WRONG_CONTENT_RANGE,
+        /** Answers 200 with the whole file, as a server without range support would. */
+        IGNORE_RANGE,
+        /** Answers with an error status and no body, optionally with Retry-After. */
+        STATUS,
+        /** Sends part of the body, then keeps the connection open without sending anything. */
+        STALL,
+        /** Serves this one request far slower than the others. */
+        THROTTLE
+    }
+    
+    private final Type type;
+    private final long bytes;
+    private final int status;
+    private final int retryAfterSeconds;
+    private final long millis;
+    
+    private Fault(Type type, long bytes, int status, int retryAfterSeconds) {
+        this(type, bytes, status, retryAfterSeconds, 0);
+    }
+    
+    private Fault(Type type, long bytes, int status, int retryAfterSeconds, long millis) {
+        this.type = type;
+        this.bytes = bytes;
+        this.status = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.millis = millis;
+    }
+    
+    /**
+     * Drops the connection after {@code bytes} bytes of the body.
+     */
+    public static Fault disconnectAfter(long bytes) {
+        return new Fault(Type.DISCONNECT, bytes, 0, -1);
+    }
+    
+    /**
+     * Serves the range shifted by {@code shift} bytes and says so in Content-Range.
+     */
+    public static Fault wrongContentRange(long shift) {
+        return new Fault(Type.WRONG_CONTENT_RANGE, shift, 0, -1);
+    }
+    
+    public static Fault ignoreRange() {
+        return new Fault(Type.IGNORE_RANGE, 0, 0, -1);
+    }
+    
+    /**
+     * Answers {@code status}; {@code retryAfterSeconds} below zero sends no Retry-After.
+     */
+    public static Fault status(int status, int retryAfterSeconds) {
+        return new Fault(Type.STATUS, 0, status, retryAfterSeconds);
+    }
+    
+    /**
+     * Goes silent after {@code bytes} bytes of the body and drops the connection
+     * {@code millis} later, as a dead TCP path would.
+     */
+    public static Fault stallAfter(long bytes, long millis) {
+        return new Fault(Type.STALL, bytes, 0, -1, millis);
+    }
+    
+    /**
+     * Serves the request at {@code bytesPerSecond}, whatever the per-connection cap.
+     */
+    public static Fault throttle(long bytesPerSecond) {
+        return new Fault(Type.THROTTLE, bytesPerSecond, 0, -1);
+    }
+    
+    public static Fault tooManyRequests(int retryAfterSeconds) {
+        return status(429, retryAfterSeconds);
+    }
+    
+    public static Fault unavailable(int retryAfterSeconds) {
+        return status(503, retryAfterSeconds);
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    /**
+     * Body bytes sent before a {@link Type#DISCONNECT} or {@link Type#STALL}, the shift of a
+     * {@link Type#WRONG_CONTENT_RANGE} or the bandwidth of a {@link Type#THROTTLE}.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+    
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+    
+    /**
+     * How long a {@link Type#STALL} holds the silent connection.
+     */
+    public long getMillis() {
+        return millis;
+    }
+    
+    @Override
+    public String toString() {
+        switch (type) {
+            case DISCONNECT:
+                return "disconnect after " + bytes + " bytes";
+            case WRONG_CONTENT_RANGE:
+                return "Content-Range shifted by " + bytes;
+            case IGNORE_RANGE:
+                return "200 instead of 206";
+            case STALL:
+                return "stall after " + bytes + " bytes for " + millis + " ms";
+            case THROTTLE:
+                return "throttle to " + bytes + " B/s";
+            default:
+                return status + (retryAfterSeconds >= 0 ? " Retry-After " + retryAfterSeconds : "");
+        }
+    }
+}
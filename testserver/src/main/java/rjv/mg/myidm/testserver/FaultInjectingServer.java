@@ -0,0 +1,444 @@
+package rjv.mg.myidm.testserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves one file on 127.0.0.1 with byte ranges and misbehaves on demand: bandwidth caps
+ * and latency per connection, connections dropped or stalled mid-body, single slow connections,
+ * wrong Content-Range, 200 instead of 206, 429/503 with Retry-After, and content (and ETag)
+ * changing or the file shrinking under a running download.
+ *
+ * <p>The file is never held in memory: byte {@code i} is {@code pattern[i % pattern.length]}
+ * for a pattern drawn from a seed, so any size up to several GB can be served and checked.
+ * Faults only hit data requests; the one-byte probe ({@code bytes=0-0}) is always answered
+ * normally so a download gets to the part under test.
+ */
+public class FaultInjectingServer implements AutoCloseable {
+    
+    /** Prefix of the threads answering requests, to keep them out of client-side measurements. */
+    public static final String THREAD_PREFIX = "test-server-";
+    
+    private static final int PATTERN_LENGTH = 1024 * 1024 + 7;
+    private static final int WRITE_CHUNK = 64 * 1024;
+    
+    private volatile byte[] pattern;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    
+    // Guarded by this
+    private long size;
+    private long seed;
+    private String etag;
+    private boolean rangesSupported = true;
+    private boolean sizeHidden;
+    private long bandwidthPerConnection;
+    private long latencyMillis;
+    private final Deque<Fault> queued = new ArrayDeque<>();
+    private final List<FaultProfile.Periodic> periodic = new ArrayList<>();
+    private final List<String> requestLog = new ArrayList<>();
+    private final List<PendingRecovery> pendingRecoveries = new ArrayList<>();
+    private final List<Long> recoveryTimes = new ArrayList<>();
+    private int requestCount;
+    private int dataRequestCount;
+    private int faultCount;
+    private int maxConcurrentConnections;
+    private long bytesServed;
+    
+    /**
+     * A faulted request waiting for the client to ask for the bytes it did not get.
+     */
+    private static final class PendingRecovery {
+        final long faultNanos;
+        final long from;
+        final long to;
+        
+        PendingRecovery(long faultNanos, long from, long to) {
+            this.faultNanos = faultNanos;
+            this.from = from;
+            this.to = to;
+        }
+    }
+    
+    public FaultInjectingServer(long size) throws IOException {
+        this(size, 42);
+    }
+    
+    public FaultInjectingServer(long size, long seed) throws IOException {
+        this.size = size;
+        this.seed = seed;
+        this.etag = "\"" + size + "-" + seed + "\"";
+        this.pattern = generatePattern(seed);
+        AtomicInteger counter = new AtomicInteger(1);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, THREAD_PREFIX + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+    
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+    }
+    
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Caps every connection at {@code bytesPerSecond}, 0 for unlimited.
+     */
+    public synchronized void setBandwidthPerConnection(long bytesPerSecond) {
+        this.bandwidthPerConnection = bytesPerSecond;
+    }
+    
+    /**
+     * Delays the response headers of every request.
+     */
+    public synchronized void setLatency(long millis) {
+        this.latencyMillis = millis;
+    }
+    
+    /**
+     * When false, every request gets 200 and the whole file, and no Accept-Ranges is sent.
+     */
+    public synchronized void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+    
+    /**
+     * When true, every request gets 200 and the whole file as a chunked body, so neither
+     * the size nor ranges are announced.
+     */
+    public synchronized void setSizeHidden(boolean sizeHidden) {
+        this.sizeHidden = sizeHidden;
+    }
+    
+    /**
+     * Applies {@code fault} to the next data request. Queued faults go out in order and
+     * before any periodic fault.
+     */
+    public synchronized void enqueue(Fault fault) {
+        queued.add(fault);
+    }
+    
+    /**
+     * Replaces the bandwidth, latency and periodic faults with those of {@code profile}.
+     * Periodic faults count data requests from here on.
+     */
+    public synchronized void apply(FaultProfile profile) {
+        bandwidthPerConnection = profile.getBandwidthPerConnection();
+        latencyMillis = profile.getLatencyMillis();
+        periodic.clear();
+        periodic.addAll(profile.getFaults());
+        dataRequestCount = 0;
+    }
+    
+    /**
+     * Serves different bytes under a different ETag from now on, as if the file had been
+     * replaced on the server. Requests already streaming keep the old bytes.
+     */
+    public synchronized void changeContent(long newSeed) {
+        pattern = generatePattern(newSeed);
+        seed = newSeed;
+        etag = "\"" + size + "-" + seed + "\"";
+    }
+    
+    /**
+     * Cuts the file to its first {@code newSize} bytes but keeps the ETag, like a server whose
+     * validators missed the change: If-Range still matches and ranges past the new end get 416.
+     */
+    public synchronized void truncate(long newSize) {
+        size = newSize;
+    }
+    
+    public synchronized String getEtag() {
+        return etag;
+    }
+    
+    public byte byteAt(long position) {
+        return pattern[(int) (position % PATTERN_LENGTH)];
+    }
+    
+    /**
+     * True when {@code file} holds exactly the content currently served.
+     */
+    public boolean contentEquals(File file) throws IOException {
+        long size = getSize();
+        if (file.length() != size) return false;
+        byte[] buffer = new byte[WRITE_CHUNK];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            long position = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != byteAt(position + i)) return false;
+                }
+                position += read;
+            }
+            return position == size;
+        }
+    }
+    
+    /** Every request received, probes included. */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+    
+    /** Faults applied so far. */
+    public synchronized int getFaultCount() {
+        return faultCount;
+    }
+    
+    /** Body bytes written, whether or not the client read them. */
+    public synchronized long getBytesServed() {
+        return bytesServed;
+    }
+    
+    public synchronized int getMaxConcurrentConnections() {
+        return maxConcurrentConnections;
+    }
+    
+    /**
+     * One line per request: method, Range header and what was answered.
+     */
+    public synchronized List<String> getRequestLog() {
+        return Collections.unmodifiableList(new ArrayList<>(requestLog));
+    }
+    
+    /**
+     * For each faulted request the client came back for, the milliseconds between the fault
+     * and the request asking again for the bytes it cut off.
+     */
+    public synchronized List<Long> getRecoveryTimesMillis() {
+        return Collections.unmodifiableList(new ArrayList<>(recoveryTimes));
+    }
+    
+    /**
+     * Faulted requests the client has not come back for yet.
+     */
+    public synchronized int getUnrecoveredCount() {
+        return pendingRecoveries.size();
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        int active = activeConnections.incrementAndGet();
+        try {
+            long size = getSize();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            long start = 0;
+            long end = size - 1;
+            boolean ranged = false;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", 2);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                ranged = true;
+            }
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            boolean data = !head && end - start > 0;
+            
+            Fault fault;
+            long bandwidth;
+            long latency;
+            boolean ranges;
+            boolean hidden;
+            String etag;
+            byte[] content;
+            synchronized (this) {
+                requestCount++;
+                maxConcurrentConnections = Math.max(maxConcurrentConnections, active);
+                fault = data ? nextFault() : null;
+                bandwidth = bandwidthPerConnection;
+                latency = latencyMillis;
+                hidden = sizeHidden;
+                ranges = rangesSupported && !hidden;
+                etag = getEtag();
+                content = pattern;
+                if (data) {
+                    recordRecovery(start);
+                }
+                requestLog.add(exchange.getRequestMethod() + " " + (range != null ? range : "-")
+                    + (fault != null ? " -> " + fault : ""));
+            }
+            if (latency > 0) {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            }
+            
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (fault != null && fault.getType() == Fault.Type.STATUS) {
+                if (fault.getRetryAfterSeconds() >= 0) {
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(fault.getRetryAfterSeconds()));
+                }
+                pendingRecovery(start, start);
+                exchange.sendResponseHeaders(fault.getStatus(), -1);
+                return;
+            }
+            if (ranged && ranges && start > end) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            
+            int status = 206;
+            long requestedStart = start;
+            // A stale If-Range validator gets the whole current file, as RFC 9110 asks
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            boolean stale = ifRange != null && ifRange.startsWith("\"") && !ifRange.equals(etag);
+            if (!ranged || !ranges || stale || (fault != null && fault.getType() == Fault.Type.IGNORE_RANGE)) {
+                status = 200;
+                start = 0;
+                end = size - 1;
+                if (ranged) {
+                    pendingRecovery(requestedStart, requestedStart);
+                }
+            } else if (fault != null && fault.getType() == Fault.Type.WRONG_CONTENT_RANGE) {
+                start = Math.max(0, Math.min(end, start + fault.getBytes()));
+                pendingRecovery(requestedStart, requestedStart);
+            }
+            if (ranges) {
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            }
+            if (status == 206) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+            long length = end - start + 1;
+            if (head) {
+                if (!hidden) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // A response length of 0 makes the body chunked
+            exchange.sendResponseHeaders(status, hidden ? 0 : length);
+            
+            long stop = end;
+            if (fault != null && (fault.getType() == Fault.Type.DISCONNECT || fault.getType() == Fault.Type.STALL)) {
+                stop = Math.min(end, start + fault.getBytes() - 1);
+                pendingRecovery(start, stop + 1);
+            } else if (fault != null && fault.getType() == Fault.Type.THROTTLE) {
+                bandwidth = fault.getBytes();
+            }
+            OutputStream out = exchange.getResponseBody();
+            write(out, content, start, stop, bandwidth);
+            if (stop < end) {
+                if (fault.getType() == Fault.Type.STALL) {
+                    // Nothing more is sent, the client has to notice on its own
+                    TimeUnit.MILLISECONDS.sleep(fault.getMillis());
+                }
+                // Closing with the body short of Content-Length drops the connection
+                return;
+            }
+            out.close();
+        } catch (IOException e) {
+            // The client closed a connection it no longer needs, e.g. after a segment split
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeConnections.decrementAndGet();
+            exchange.close();
+        }
+    }
+    
+    private void write(OutputStream out, byte[] content, long start, long end, long bandwidth)
+        throws IOException, InterruptedException {
+        long began = System.nanoTime();
+        long written = 0;
+        long position = start;
+        int chunk = bandwidth > 0 ? (int) Math.max(1024, Math.min(WRITE_CHUNK, bandwidth / 20)) : WRITE_CHUNK;
+        while (position <= end) {
+            int offset = (int) (position % PATTERN_LENGTH);
+            int length = (int) Math.min(Math.min(chunk, PATTERN_LENGTH - offset), end - position + 1);
+            out.write(content, offset, length);
+            position += length;
+            written += length;
+            synchronized (this) {
+                bytesServed += length;
+            }
+            if (bandwidth > 0) {
+                // Sleep until the bytes written so far fit the cap
+                long due = began + written * 1_000_000_000L / bandwidth;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        }
+        out.flush();
+    }
+    
+    private static byte[] generatePattern(long seed) {
+        byte[] pattern = new byte[PATTERN_LENGTH];
+        new Random(seed).nextBytes(pattern);
+        return pattern;
+    }
+    
+    // Called with the lock held
+    private Fault nextFault() {
+        dataRequestCount++;
+        Fault fault = queued.poll();
+        if (fault == null) {
+            for (FaultProfile.Periodic entry : periodic) {
+                if (dataRequestCount % entry.every == 0) {
+                    fault = entry.fault;
+                    break;
+                }
+            }
+        }
+        if (fault != null) {
+            faultCount++;
+        }
+        return fault;
+    }
+    
+    private synchronized void pendingRecovery(long from, long to) {
+        pendingRecoveries.add(new PendingRecovery(System.nanoTime(), from, to));
+    }
+    
+    // Called with the lock held
+    private void recordRecovery(long start) {
+        Iterator<PendingRecovery> iterator = pendingRecoveries.iterator();
+        while (iterator.hasNext()) {
+            PendingRecovery pending = iterator.next();
+            if (start >= pending.from && start <= pending.to) {
+                recoveryTimes.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.faultNanos));
+                iterator.remove();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package rjv.mg.myidm.testserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Network conditions applied to a whole run: a bandwidth cap and latency on every
+ * connection, plus faults that hit every n-th data request. Counting requests instead of
+ * drawing random numbers keeps a run reproducible, so numbers can be compared across CI runs.
+ */
+public final class FaultProfile {
+    
+    private final String name;
+    private final long bandwidthPerConnection;
+    private final long latencyMillis;
+    private final List<Periodic> faults = new ArrayList<>();
+    
+    static final class Periodic {
+        final int every;
+        final Fault fault;
+        
+        Periodic(int every, Fault fault) {
+            this.every = every;
+            this.fault = fault;
+        }
+    }
+    
+    /**
+     * @param bandwidthPerConnection bytes per second for each connection, 0 for unlimited
+     * @param latencyMillis delay before the response headers of every request
+     */
+    public FaultProfile(String name, long bandwidthPerConnection, long latencyMillis) {
+        this.name = name;
+        this.bandwidthPerConnection = bandwidthPerConnection;
+        this.latencyMillis = latencyMillis;
+    }
+    
+    /**
+     * Loopback speed, no faults.
+     */
+    public static FaultProfile clean() {
+        return new FaultProfile("clean", 0, 0);
+    }
+    
+    /**
+     * The reference profile for load tests: 8 MB/s and 20 ms per connection, a connection
+     * dropped mid-body on every 7th data request and a 503 with Retry-After on every 11th.
+     */
+    public static FaultProfile stable() {
+        return new FaultProfile("stable", 8L * 1024 * 1024, 20)
+            .every(7, Fault.disconnectAfter(256 * 1024))
+            .every(11, Fault.unavailable(1));
+    }
+    
+    /**
+     * Looks a profile up by the name used on benchmark command lines.
+     */
+    public static FaultProfile named(String name) {
+        switch (name) {
+            case "clean":
+                return clean();
+            case "stable":
+                return stable();
+            default:
+                throw new IllegalArgumentException("Unknown fault profile: " + name);
+        }
+    }
+    
+    /**
+     * Applies {@code fault} to every {@code every}-th data request.
+     */
+    public FaultProfile every(int every, Fault fault) {
+        if (every <= 0) {
+            throw new IllegalArgumentException("every must be positive: " + every);
+        }
+        faults.add(new Periodic(every, fault));
+        return this;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getBandwidthPerConnection() {
+        return bandwidthPerConnection;
+    }
+    
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+    
+    List<Periodic> getFaults() {
+        return Collections.unmodifiableList(faults);
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}